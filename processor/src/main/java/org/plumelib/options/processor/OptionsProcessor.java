@@ -0,0 +1,704 @@
+package org.plumelib.options.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates an {@code OptionsBinder} for every class that declares {@code @Option}-annotated
+ * fields. The binder records the parsed contents of each {@code @Option}, {@code @OptionGroup}, and
+ * {@code @Unpublicized} annotation, and reads, writes, and converts field values with ordinary
+ * Java code, so that {@code Options} need not use reflection.
+ *
+ * <p>The processor also checks the annotations: a malformed {@code @Option} string, a non-public
+ * option field, or a field of an unsupported type is a compile-time error rather than a run-time
+ * {@code Error}.
+ *
+ * <p>No binder is generated for a class that generated code cannot access, such as a private
+ * nested class. {@code Options} falls back to reflection for such classes.
+ */
+public class OptionsProcessor extends AbstractProcessor {
+
+  /** Fully-qualified name of the {@code @Option} annotation. */
+  static final String OPTION = "org.plumelib.options.Option";
+
+  /** Fully-qualified name of the {@code @OptionGroup} annotation. */
+  static final String OPTION_GROUP = "org.plumelib.options.OptionGroup";
+
+  /** Fully-qualified name of the {@code @Unpublicized} annotation. */
+  static final String UNPUBLICIZED = "org.plumelib.options.Unpublicized";
+
+  /** Must match {@code OptionsBinder.SUFFIX}. */
+  static final String SUFFIX = "_OptionsBinder";
+
+  /** The wrapper classes whose values a binder produces with {@code valueOf(String)}. */
+  static final List<String> BOXED_TYPES =
+      Arrays.asList(
+          "java.lang.Boolean",
+          "java.lang.Byte",
+          "java.lang.Short",
+          "java.lang.Integer",
+          "java.lang.Long",
+          "java.lang.Float",
+          "java.lang.Double");
+
+  /** Classes for which a binder has already been generated (or rejected). */
+  private final Set<String> processed = new LinkedHashSet<String>();
+
+  /** Map from the name of each binder generated so far to the class it was generated for. */
+  private final Map<String, String> binderClasses = new HashMap<String, String>();
+
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    return Collections.singleton(OPTION);
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    TypeElement optionElement = processingEnv.getElementUtils().getTypeElement(OPTION);
+    if (optionElement == null) {
+      return false;
+    }
+    Set<TypeElement> classes = new LinkedHashSet<TypeElement>();
+    for (Element e : roundEnv.getElementsAnnotatedWith(optionElement)) {
+      if (e.getKind() == ElementKind.FIELD) {
+        classes.add((TypeElement) e.getEnclosingElement());
+      }
+    }
+    for (TypeElement clazz : classes) {
+      if (processed.add(clazz.getQualifiedName().toString())) {
+        processClass(clazz);
+      }
+    }
+    return false;
+  }
+
+  /** Information about one {@code @Option}-annotated field, gathered at compile time. */
+  static class OptionField {
+    /** The field. */
+    VariableElement field;
+    /** The erased type of the field. */
+    String fieldType;
+    /** The erased base type: the field type, or its element type if it is a list. */
+    String baseType;
+    /** The kind of the base type. */
+    BaseKind baseKind;
+    /** Whether the field is a list. */
+    boolean isList;
+    /** The {@code value} of the {@code @Option} annotation. */
+    String optionValue;
+    /** The parsed short name, or null. */
+    String shortName;
+    /** The parsed type name, or null. */
+    String typeName;
+    /** The parsed description. */
+    String description;
+    /** The aliases of the option. */
+    List<String> aliases = new ArrayList<String>();
+    /** The {@code noDocDefault} element of the {@code @Option} annotation. */
+    boolean noDocDefault;
+    /** Whether the field is {@code @Unpublicized}. */
+    boolean unpublicized;
+    /** The name of the {@code @OptionGroup} on the field, or null. */
+    String groupName;
+    /** The {@code unpublicized} element of the {@code @OptionGroup} on the field. */
+    boolean groupUnpublicized;
+  }
+
+  /** How values of a base type are produced from strings. */
+  enum BaseKind {
+    /** A primitive type; converted by {@code Options}. */
+    PRIMITIVE,
+    /** An enum type; converted by {@code Options}. */
+    ENUM,
+    /** {@code java.util.regex.Pattern}; converted by {@code Pattern.compile}. */
+    PATTERN,
+    /** A type with a public string constructor. */
+    CONSTRUCTOR
+  }
+
+  /**
+   * Checks the option fields of one class and, if the class is accessible, writes its binder.
+   *
+   * @param clazz a class that declares at least one {@code @Option}-annotated field
+   */
+  private void processClass(TypeElement clazz) {
+    List<OptionField> fields = new ArrayList<OptionField>();
+    boolean ok = true;
+    for (VariableElement field : ElementFilter.fieldsIn(clazz.getEnclosedElements())) {
+      AnnotationMirror option = findAnnotation(field, OPTION);
+      if (option == null) {
+        continue;
+      }
+      OptionField of = checkField(field, option);
+      if (of == null) {
+        ok = false;
+      } else {
+        fields.add(of);
+      }
+    }
+    if (!ok || fields.isEmpty()) {
+      return;
+    }
+    PackageElement pkg = processingEnv.getElementUtils().getPackageOf(clazz);
+    if (!isAccessible(clazz, pkg)) {
+      return;
+    }
+    for (OptionField of : fields) {
+      // A binder cannot assign a final field, so such a class is left to the reflective path,
+      // which reports an error only if an option tries to set the field.
+      if (!isAccessible(of.field.asType(), pkg)
+          || of.field.getModifiers().contains(Modifier.FINAL)) {
+        return;
+      }
+    }
+    try {
+      writeBinder(clazz, pkg, fields);
+    } catch (IOException e) {
+      processingEnv
+          .getMessager()
+          .printMessage(Diagnostic.Kind.ERROR, "Cannot write options binder: " + e, clazz);
+    }
+  }
+
+  /**
+   * Checks one option field and gathers information about it. Reports an error and returns null if
+   * the field is not a legal option.
+   *
+   * @param field the field
+   * @param option the {@code @Option} annotation on the field
+   * @return information about the field, or null if it is erroneous
+   */
+  private OptionField checkField(VariableElement field, AnnotationMirror option) {
+    Messager messager = processingEnv.getMessager();
+    OptionField of = new OptionField();
+    of.field = field;
+    of.optionValue = (String) annotationValue(option, "value");
+    of.noDocDefault = (Boolean) annotationValue(option, "noDocDefault");
+    @SuppressWarnings("unchecked")
+    List<? extends AnnotationValue> aliases =
+        (List<? extends AnnotationValue>) annotationValue(option, "aliases");
+    for (AnnotationValue alias : aliases) {
+      of.aliases.add((String) alias.getValue());
+    }
+    of.unpublicized = findAnnotation(field, UNPUBLICIZED) != null;
+    AnnotationMirror group = findAnnotation(field, OPTION_GROUP);
+    if (group != null) {
+      of.groupName = (String) annotationValue(group, "value");
+      of.groupUnpublicized = (Boolean) annotationValue(group, "unpublicized");
+    }
+
+    if (!field.getModifiers().contains(Modifier.PUBLIC)) {
+      messager.printMessage(
+          Diagnostic.Kind.ERROR, "option field is not public: " + field.getSimpleName(), field);
+      return null;
+    }
+
+    String error = parseOption(of);
+    if (error != null) {
+      messager.printMessage(Diagnostic.Kind.ERROR, error, field, option);
+      return null;
+    }
+
+    TypeMirror type = field.asType();
+    TypeMirror baseType = type;
+    if (type.getKind() == TypeKind.ARRAY) {
+      messager.printMessage(
+          Diagnostic.Kind.ERROR, "@Option may not annotate a variable of array type", field);
+      return null;
+    }
+    if (type.getKind() == TypeKind.DECLARED
+        && !((DeclaredType) type).getTypeArguments().isEmpty()) {
+      DeclaredType dt = (DeclaredType) type;
+      if (!((TypeElement) dt.asElement()).getQualifiedName().contentEquals("java.util.List")) {
+        messager.printMessage(
+            Diagnostic.Kind.ERROR,
+            "@Option supports List<...> but no other parameterized type; it does not support type "
+                + type,
+            field);
+        return null;
+      }
+      baseType = dt.getTypeArguments().get(0);
+      if (baseType.getKind() != TypeKind.DECLARED
+          || !((DeclaredType) baseType).getTypeArguments().isEmpty()) {
+        messager.printMessage(
+            Diagnostic.Kind.ERROR, "@Option does not support list element type " + baseType, field);
+        return null;
+      }
+      of.isList = true;
+    }
+    of.fieldType = erasure(type);
+    of.baseType = erasure(baseType);
+
+    if (baseType.getKind().isPrimitive()) {
+      of.baseKind = BaseKind.PRIMITIVE;
+    } else if (baseType.getKind() == TypeKind.DECLARED
+        && ((DeclaredType) baseType).asElement().getKind() == ElementKind.ENUM) {
+      of.baseKind = BaseKind.ENUM;
+    } else if (of.baseType.equals("java.util.regex.Pattern")) {
+      of.baseKind = BaseKind.PATTERN;
+    } else if (baseType.getKind() == TypeKind.DECLARED
+        && hasStringConstructor((TypeElement) ((DeclaredType) baseType).asElement())) {
+      of.baseKind = BaseKind.CONSTRUCTOR;
+    } else {
+      messager.printMessage(
+          Diagnostic.Kind.ERROR,
+          "@Option does not support type "
+              + baseType
+              + " because it does not have a string constructor",
+          field);
+      return null;
+    }
+    return of;
+  }
+
+  /**
+   * Parses {@code of.optionValue} into its short name, type name, and description, exactly as
+   * {@code Options.parseOption} does at run time.
+   *
+   * @param of the field whose option value to parse; its other fields are set
+   * @return an error message, or null if the option value is well-formed
+   */
+  static String parseOption(OptionField of) {
+    String val = of.optionValue;
+    String description;
+    if (val.startsWith("-")) {
+      if (val.length() < 4 || !val.substring(2, 3).equals(" ")) {
+        return "Malformed @Option argument \""
+            + val
+            + "\".  An argument that starts with '-' should contain a short name, a space, and a description.";
+      }
+      of.shortName = val.substring(1, 2);
+      description = val.substring(3);
+    } else {
+      of.shortName = null;
+      description = val;
+    }
+    if (description.startsWith("<")) {
+      of.typeName = description.substring(1).replaceFirst(">.*", "");
+      description = description.replaceFirst("<.*> ", "");
+    } else {
+      of.typeName = null;
+    }
+    of.description = description;
+    return null;
+  }
+
+  /**
+   * Returns true if the type has a public constructor that takes a single String.
+   *
+   * @param type a class
+   * @return true if the type has a public string constructor
+   */
+  private static boolean hasStringConstructor(TypeElement type) {
+    for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+      if (c.getModifiers().contains(Modifier.PUBLIC)
+          && c.getParameters().size() == 1
+          && c.getParameters().get(0).asType().toString().equals("java.lang.String")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if code in the given package can name the given class.
+   *
+   * @param type a class
+   * @param pkg the package of the generated code
+   * @return true if code in {@code pkg} can refer to {@code type}
+   */
+  private boolean isAccessible(TypeElement type, PackageElement pkg) {
+    if (type.getNestingKind() == NestingKind.LOCAL
+        || type.getNestingKind() == NestingKind.ANONYMOUS) {
+      return false;
+    }
+    boolean samePackage = processingEnv.getElementUtils().getPackageOf(type).equals(pkg);
+    for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+      Set<Modifier> mods = e.getModifiers();
+      if (mods.contains(Modifier.PRIVATE)) {
+        return false;
+      }
+      if (!mods.contains(Modifier.PUBLIC) && !samePackage) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if code in the given package can name the given type and its type arguments.
+   *
+   * @param type a type
+   * @param pkg the package of the generated code
+   * @return true if code in {@code pkg} can refer to {@code type}
+   */
+  private boolean isAccessible(TypeMirror type, PackageElement pkg) {
+    if (type.getKind() != TypeKind.DECLARED) {
+      return true;
+    }
+    DeclaredType dt = (DeclaredType) type;
+    if (!isAccessible((TypeElement) dt.asElement(), pkg)) {
+      return false;
+    }
+    for (TypeMirror arg : dt.getTypeArguments()) {
+      if (!isAccessible(arg, pkg)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the binder for one class.
+   *
+   * @param clazz the class
+   * @param pkg the package of the class
+   * @param fields the option fields of the class, in declaration order
+   * @throws IOException if the source file cannot be written
+   */
+  private void writeBinder(TypeElement clazz, PackageElement pkg, List<OptionField> fields)
+      throws IOException {
+    String binaryName = processingEnv.getElementUtils().getBinaryName(clazz).toString();
+    String pkgName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+    String flatName =
+        (pkgName.isEmpty() ? binaryName : binaryName.substring(pkgName.length() + 1))
+            .replace('$', '_');
+    String binderName = flatName + SUFFIX;
+    String className = erasure(clazz.asType());
+    String qualifiedBinderName = pkgName.isEmpty() ? binderName : pkgName + "." + binderName;
+
+    // A nested class Outer.Inner and a top-level class Outer_Inner have the same binder name.
+    String previous = binderClasses.get(qualifiedBinderName);
+    if (previous != null) {
+      processingEnv
+          .getMessager()
+          .printMessage(
+              Diagnostic.Kind.ERROR,
+              "options binder "
+                  + qualifiedBinderName
+                  + " would be generated for both "
+                  + previous
+                  + " and "
+                  + className
+                  + "; rename one of the classes",
+              clazz);
+      return;
+    }
+    binderClasses.put(qualifiedBinderName, className);
+
+    JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedBinderName, clazz);
+    try (Writer w = file.openWriter()) {
+      StringBuilder b = new StringBuilder();
+      if (!pkgName.isEmpty()) {
+        b.append("package ").append(pkgName).append(";\n\n");
+      }
+      b.append("import org.plumelib.options.OptionsBinder;\n\n");
+      b.append("/** Options binder for {@link ").append(className).append("}. Generated code. */\n");
+      b.append("@SuppressWarnings({\"unchecked\", \"rawtypes\", \"deprecation\"})\n");
+      b.append("public final class ").append(binderName).append(" implements OptionsBinder {\n\n");
+
+      b.append("  private static final Descriptor[] DESCRIPTORS = {\n");
+      for (OptionField of : fields) {
+        b.append("    new Descriptor(")
+            .append(literal(of.field.getSimpleName().toString()))
+            .append(", ")
+            .append(of.field.getModifiers().contains(Modifier.STATIC))
+            .append(", ")
+            .append(of.fieldType)
+            .append(".class, ")
+            .append(of.baseType)
+            .append(".class, ")
+            .append(of.isList)
+            .append(", ")
+            .append(literal(of.optionValue))
+            .append(", ")
+            .append(literal(of.shortName))
+            .append(", ")
+            .append(literal(of.typeName))
+            .append(", ")
+            .append(literal(of.description))
+            .append(", new String[] {");
+        for (int i = 0; i < of.aliases.size(); i++) {
+          b.append(i == 0 ? "" : ", ").append(literal(of.aliases.get(i)));
+        }
+        b.append("}, ")
+            .append(of.noDocDefault)
+            .append(", ")
+            .append(of.unpublicized)
+            .append(", ")
+            .append(literal(of.groupName))
+            .append(", ")
+            .append(of.groupUnpublicized)
+            .append("),\n");
+      }
+      b.append("  };\n\n");
+
+      b.append("  @Override\n");
+      b.append("  public Class<?> targetClass() {\n");
+      b.append("    return ").append(className).append(".class;\n");
+      b.append("  }\n\n");
+
+      b.append("  @Override\n");
+      b.append("  public Descriptor[] descriptors() {\n");
+      b.append("    return DESCRIPTORS;\n");
+      b.append("  }\n\n");
+
+      b.append("  @Override\n");
+      b.append("  public Object get(int index, Object target) {\n");
+      b.append("    switch (index) {\n");
+      for (int i = 0; i < fields.size(); i++) {
+        b.append("      case ").append(i).append(":\n");
+        b.append("        return ").append(fieldRef(className, fields.get(i))).append(";\n");
+      }
+      b.append("      default:\n");
+      b.append("        throw new IndexOutOfBoundsException(String.valueOf(index));\n");
+      b.append("    }\n");
+      b.append("  }\n\n");
+
+      b.append("  @Override\n");
+      b.append("  public void set(int index, Object target, Object value) {\n");
+      b.append("    switch (index) {\n");
+      for (int i = 0; i < fields.size(); i++) {
+        OptionField of = fields.get(i);
+        b.append("      case ").append(i).append(":\n");
+        b.append("        ")
+            .append(fieldRef(className, of))
+            .append(" = (")
+            .append(boxedName(of))
+            .append(") value;\n");
+        b.append("        return;\n");
+      }
+      b.append("      default:\n");
+      b.append("        throw new IndexOutOfBoundsException(String.valueOf(index));\n");
+      b.append("    }\n");
+      b.append("  }\n\n");
+
+      writePrimitiveSetter(b, className, fields, "Boolean", "boolean", "boolean");
+      writePrimitiveSetter(
+          b, className, fields, "Long", "long", "byte", "char", "short", "int", "long");
+      writePrimitiveSetter(b, className, fields, "Double", "double", "float", "double");
+
+      b.append("  @Override\n");
+      b.append("  public Object convert(int index, String value) throws Exception {\n");
+      b.append("    switch (index) {\n");
+      for (int i = 0; i < fields.size(); i++) {
+        OptionField of = fields.get(i);
+        if (of.baseKind == BaseKind.PATTERN) {
+          b.append("      case ").append(i).append(":\n");
+          b.append("        return java.util.regex.Pattern.compile(value);\n");
+        } else if (of.baseKind == BaseKind.CONSTRUCTOR) {
+          b.append("      case ").append(i).append(":\n");
+          if (BOXED_TYPES.contains(of.baseType)) {
+            // The wrappers' string constructors are deprecated for removal; valueOf is equivalent.
+            b.append("        return ").append(of.baseType).append(".valueOf(value);\n");
+          } else {
+            b.append("        return new ").append(of.baseType).append("(value);\n");
+          }
+        }
+      }
+      b.append("      default:\n");
+      b.append("        throw new IllegalArgumentException(")
+          .append("\"no converter for option \" + index);\n");
+      b.append("    }\n");
+      b.append("  }\n");
+      b.append("}\n");
+      w.write(b.toString());
+    }
+  }
+
+  /**
+   * Writes a method that sets fields of some primitive types without boxing.
+   *
+   * @param b where to write the method
+   * @param className the name of the class that declares the fields
+   * @param fields the option fields of the class, in declaration order
+   * @param suffix the suffix of the method name, as in {@code setLong}
+   * @param paramType the type of the value parameter of the method
+   * @param fieldTypes the primitive field types that the method sets
+   */
+  private static void writePrimitiveSetter(
+      StringBuilder b,
+      String className,
+      List<OptionField> fields,
+      String suffix,
+      String paramType,
+      String... fieldTypes) {
+    b.append("  @Override\n");
+    b.append("  public void set")
+        .append(suffix)
+        .append("(int index, Object target, ")
+        .append(paramType)
+        .append(" value) {\n");
+    b.append("    switch (index) {\n");
+    for (int i = 0; i < fields.size(); i++) {
+      OptionField of = fields.get(i);
+      if (of.isList || !Arrays.asList(fieldTypes).contains(of.fieldType)) {
+        continue;
+      }
+      b.append("      case ").append(i).append(":\n");
+      b.append("        ").append(fieldRef(className, of)).append(" = ");
+      if (!of.fieldType.equals(paramType)) {
+        b.append("(").append(of.fieldType).append(") ");
+      }
+      b.append("value;\n");
+      b.append("        return;\n");
+    }
+    b.append("      default:\n");
+    b.append("        throw new IllegalArgumentException(String.valueOf(index));\n");
+    b.append("    }\n");
+    b.append("  }\n\n");
+  }
+
+  /**
+   * Returns an expression that refers to the given field.
+   *
+   * @param className the name of the class that declares the field
+   * @param of the field
+   * @return Java source for an lvalue referring to the field
+   */
+  private static String fieldRef(String className, OptionField of) {
+    String name = of.field.getSimpleName().toString();
+    if (of.field.getModifiers().contains(Modifier.STATIC)) {
+      return className + "." + name;
+    } else {
+      return "((" + className + ") target)." + name;
+    }
+  }
+
+  /**
+   * Returns the type to which a value must be cast before it is assigned to the field.
+   *
+   * @param of the field
+   * @return a reference type that is assignable to the field
+   */
+  private String boxedName(OptionField of) {
+    TypeMirror type = of.field.asType();
+    if (type.getKind().isPrimitive()) {
+      return processingEnv
+          .getTypeUtils()
+          .boxedClass((javax.lang.model.type.PrimitiveType) type)
+          .getQualifiedName()
+          .toString();
+    }
+    return of.fieldType;
+  }
+
+  /**
+   * Returns the source name of the erasure of the given type.
+   *
+   * @param type a type
+   * @return the name of the erasure of {@code type}, usable in a cast or class literal
+   */
+  private String erasure(TypeMirror type) {
+    return processingEnv.getTypeUtils().erasure(type).toString();
+  }
+
+  /**
+   * Returns the annotation with the given name on the element, or null.
+   *
+   * @param e an element
+   * @param name the fully-qualified name of an annotation type
+   * @return the annotation, or null if {@code e} is not annotated with it
+   */
+  private static AnnotationMirror findAnnotation(Element e, String name) {
+    for (AnnotationMirror am : e.getAnnotationMirrors()) {
+      TypeElement te = (TypeElement) am.getAnnotationType().asElement();
+      if (te.getQualifiedName().contentEquals(name)) {
+        return am;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the value of an annotation element, taking defaults into account.
+   *
+   * @param am an annotation
+   * @param name the name of an element of the annotation
+   * @return the value of the element
+   */
+  private Object annotationValue(AnnotationMirror am, String name) {
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+        processingEnv.getElementUtils().getElementValuesWithDefaults(am).entrySet()) {
+      if (entry.getKey().getSimpleName().contentEquals(name)) {
+        return entry.getValue().getValue();
+      }
+    }
+    throw new Error("No element " + name + " in " + am);
+  }
+
+  /**
+   * Returns a Java string literal, or "null".
+   *
+   * @param s a string, or null
+   * @return Java source for a literal denoting {@code s}
+   */
+  static String literal(String s) {
+    if (s == null) {
+      return "null";
+    }
+    StringBuilder b = new StringBuilder(s.length() + 2);
+    b.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          b.append("\\\"");
+          break;
+        case '\\':
+          b.append("\\\\");
+          break;
+        case '\n':
+          b.append("\\n");
+          break;
+        case '\r':
+          b.append("\\r");
+          break;
+        case '\t':
+          b.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c > 0x7e) {
+            b.append(String.format("\\u%04x", (int) c));
+          } else {
+            b.append(c);
+          }
+      }
+    }
+    b.append('"');
+    return b.toString();
+  }
+}
@@ -0,0 +1,422 @@
+package org.plumelib.options;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.plumelib.options.Options.ArgException;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Expands {@code @}<i>file</i> arguments into the arguments contained in the file.
+ *
+ * <p>An argument file contains arguments separated by whitespace. Single or double quotes group
+ * characters that contain whitespace, and a backslash escapes the next character, as described in
+ * {@link Tokenizer}; unlike {@link Options#tokenize}, the quotes are not part of the arguments. A
+ * file whose name ends in {@code .gz} is decompressed. An argument file may itself contain {@code
+ * @}<i>file</i> arguments, whose relative names are resolved against the directory of the file that
+ * contains them; a file that includes itself, directly or indirectly, is an error. An argument
+ * {@code @@}<i>text</i> stands for the literal argument {@code @}<i>text</i>. After an argument
+ * {@code --}, arguments are not expanded.
+ *
+ * <p>Large files are mapped into memory rather than read, and tokenized without being converted to
+ * one String. The arguments of each file are cached, keyed by the file's canonical name, and reused
+ * as long as the file's modification time and length are unchanged. The cache is limited in the
+ * number of files and in their total size, so that it does not keep very large files alive; the
+ * arguments of a file too large for the cache are read each time it is expanded.
+ *
+ * <p>A caller that needs to know where each expanded argument came from passes an {@link Origins},
+ * which records the index of the argument on the original command line or the file and line that
+ * contained it.
+ */
+// Not public, but package-visible, to keep it out of public Javadoc
+final class ArgFiles {
+
+  /** Do not instantiate. */
+  private ArgFiles() {
+    throw new Error("do not instantiate");
+  }
+
+  /** Files at least this large are mapped into memory rather than read through a stream. */
+  static final long MAP_THRESHOLD = 1 << 20;
+
+  /** The greatest number of files whose arguments are cached. */
+  private static final int CACHE_SIZE = 64;
+
+  /** The greatest total {@link CachedFile#weight} of the cached files, about 16 MB of memory. */
+  static final long CACHE_WEIGHT = 1 << 23;
+
+  /** The total {@link CachedFile#weight} of the files in {@link #cache}. */
+  private static long cacheWeight = 0;
+
+  /** The arguments of a file, as of a particular modification time and length. */
+  private static final class CachedFile {
+
+    /** The modification time of the file when it was read. */
+    final long lastModified;
+
+    /** The length of the file when it was read. */
+    final long length;
+
+    /** The arguments in the file, before nested files are expanded. */
+    final String[] args;
+
+    /** The line on which each argument starts, indexed as {@link #args}. */
+    final int[] lines;
+
+    /**
+     * An estimate of the memory used by {@link #args} and {@link #lines}, in chars: the characters
+     * of the arguments plus a fixed overhead per argument.
+     */
+    final long weight;
+
+    /**
+     * Creates a CachedFile.
+     *
+     * @param lastModified the modification time of the file when it was read
+     * @param length the length of the file when it was read
+     * @param args the arguments in the file
+     * @param lines the line on which each argument starts
+     */
+    CachedFile(long lastModified, long length, String[] args, int[] lines) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.args = args;
+      this.lines = lines;
+      long w = 0;
+      for (String arg : args) {
+        w += arg.length() + 32;
+      }
+      this.weight = w;
+    }
+  }
+
+  /**
+   * Where each argument of an expanded command line came from. Each argument of the original
+   * command line is recorded with its index; each argument read from a file is recorded with the
+   * canonical name of the file and the line on which the argument starts.
+   */
+  static final class Origins {
+
+    /** For each expanded argument, the file that contained it, or null for the command line. */
+    private /*@Nullable*/ String[] files = new String[16];
+
+    /** For each expanded argument, its index on the command line or its line in the file. */
+    private int[] positions = new int[16];
+
+    /** The number of expanded arguments recorded. */
+    private int size = 0;
+
+    /**
+     * Records the origin of the next expanded argument.
+     *
+     * @param file the file that contained it, or null for the command line
+     * @param position its index on the command line, or its line in the file
+     */
+    void add(/*@Nullable*/ String file, int position) {
+      if (size == positions.length) {
+        files = Arrays.copyOf(files, size * 2);
+        positions = Arrays.copyOf(positions, size * 2);
+      }
+      files[size] = file;
+      positions[size] = position;
+      size++;
+    }
+
+    /**
+     * Returns the file that contained an expanded argument.
+     *
+     * @param index the index of the expanded argument
+     * @return the canonical name of the file, or null if the argument was on the command line
+     */
+    /*@Nullable*/ String file(int index) {
+      return files[index];
+    }
+
+    /**
+     * Returns the position of an expanded argument.
+     *
+     * @param index the index of the expanded argument
+     * @return its index on the original command line, or its line in {@link #file}
+     */
+    int position(int index) {
+      return positions[index];
+    }
+  }
+
+  /**
+   * Map from canonical file name to the arguments of the file; least recently used first. Guarded
+   * by itself, as is {@link #cacheWeight}.
+   */
+  private static final Map<String, CachedFile> cache =
+      new LinkedHashMap<String, CachedFile>(16, 0.75f, true);
+
+  /**
+   * Returns {@code args} with each {@code @}<i>file</i> argument replaced by the arguments in the
+   * file. Returns {@code args} itself if no argument starts with {@code @}.
+   *
+   * @param args the command line
+   * @param origins if non-null, where to record the origin of each expanded argument
+   * @return the command line with argument files expanded
+   * @throws ArgException if an argument file cannot be read or includes itself
+   */
+  static String[] expand(String[] args, /*@Nullable*/ Origins origins) throws ArgException {
+    boolean any = false;
+    for (String arg : args) {
+      if (arg.startsWith("@")) {
+        any = true;
+        break;
+      }
+    }
+    if (!any) {
+      if (origins != null) {
+        for (int i = 0; i < args.length; i++) {
+          origins.add(null, i);
+        }
+      }
+      return args;
+    }
+    List<String> result = new ArrayList<String>(args.length);
+    List<String> includeStack = new ArrayList<String>();
+    expand(args, null, null, result, origins, includeStack, false);
+    return result.toArray(new String[result.size()]);
+  }
+
+  /**
+   * Appends {@code args} to {@code result}, expanding argument files.
+   *
+   * @param args the arguments to expand
+   * @param file the file that contains {@code args}, or null for the command line
+   * @param lines the line of each argument in {@code file}, or null for the command line
+   * @param result where to append the expanded arguments
+   * @param origins if non-null, where to record the origin of each expanded argument
+   * @param includeStack the canonical names of the argument files being expanded
+   * @param seenDashDash whether a {@code --} argument has already been seen
+   * @return whether a {@code --} argument has been seen
+   * @throws ArgException if an argument file cannot be read or includes itself
+   */
+  private static boolean expand(
+      String[] args,
+      /*@Nullable*/ File file,
+      int /*@Nullable*/ [] lines,
+      List<String> result,
+      /*@Nullable*/ Origins origins,
+      List<String> includeStack,
+      boolean seenDashDash)
+      throws ArgException {
+    /*@Nullable*/ File dir = (file == null) ? null : file.getParentFile();
+    /*@Nullable*/ String fileName = (file == null) ? null : file.getPath();
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      boolean literal = seenDashDash || !arg.startsWith("@") || arg.length() == 1;
+      if (literal || arg.startsWith("@@")) {
+        if (arg.equals("--")) {
+          seenDashDash = true;
+        }
+        result.add(literal ? arg : arg.substring(1));
+        if (origins != null) {
+          origins.add(fileName, lines == null ? i : lines[i]);
+        }
+      } else {
+        File included = new File(arg.substring(1));
+        if (dir != null && !included.isAbsolute()) {
+          included = new File(dir, included.getPath());
+        }
+        String canonical;
+        try {
+          canonical = included.getCanonicalPath();
+        } catch (IOException e) {
+          throw new ArgException("cannot read argument file %s: %s", included, e.getMessage());
+        }
+        if (includeStack.contains(canonical)) {
+          StringBuilder cycle = new StringBuilder();
+          for (int j = includeStack.indexOf(canonical); j < includeStack.size(); j++) {
+            cycle.append(includeStack.get(j)).append(" -> ");
+          }
+          cycle.append(canonical);
+          throw new ArgException("argument file includes itself: %s", cycle);
+        }
+        File canonicalFile = new File(canonical);
+        CachedFile contents = read(canonicalFile);
+        includeStack.add(canonical);
+        seenDashDash =
+            expand(
+                contents.args,
+                canonicalFile,
+                contents.lines,
+                result,
+                origins,
+                includeStack,
+                seenDashDash);
+        includeStack.remove(includeStack.size() - 1);
+      }
+    }
+    return seenDashDash;
+  }
+
+  /**
+   * Returns the arguments in a file, from the cache if the file has not changed.
+   *
+   * @param file an argument file, with a canonical name
+   * @return the arguments in the file, before nested argument files are expanded, and their lines
+   * @throws ArgException if the file cannot be read
+   */
+  private static CachedFile read(File file) throws ArgException {
+    String key = file.getPath();
+    long lastModified = file.lastModified();
+    long length = file.length();
+    synchronized (cache) {
+      CachedFile cached = cache.get(key);
+      if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+        return cached;
+      }
+    }
+    CachedFile contents;
+    try {
+      contents = tokenize(file, lastModified, length);
+    } catch (IOException e) {
+      throw new ArgException("cannot read argument file %s: %s", file, e.getMessage());
+    }
+    if (contents.weight <= CACHE_WEIGHT) {
+      synchronized (cache) {
+        CachedFile previous = cache.put(key, contents);
+        if (previous != null) {
+          cacheWeight -= previous.weight;
+        }
+        cacheWeight += contents.weight;
+        Iterator<CachedFile> eldest = cache.values().iterator();
+        while (cache.size() > CACHE_SIZE || cacheWeight > CACHE_WEIGHT) {
+          cacheWeight -= eldest.next().weight;
+          eldest.remove();
+        }
+      }
+    }
+    return contents;
+  }
+
+  /**
+   * Returns the number of files whose arguments are cached. For testing.
+   *
+   * @return the number of files in the cache
+   */
+  static int cachedFiles() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /**
+   * Reads and tokenizes an argument file.
+   *
+   * @param file an argument file
+   * @param lastModified the modification time of the file
+   * @param length the length of the file
+   * @return the arguments in the file and the line of each
+   * @throws IOException if the file cannot be read
+   */
+  private static CachedFile tokenize(File file, long lastModified, long length)
+      throws IOException {
+    List<String> args = new ArrayList<String>();
+    int[] lines = new int[16];
+    // Closing the reader closes the GZIPInputStream, if any, which releases its native Inflater.
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        Reader reader = openReader(raf, file, length)) {
+      Tokenizer tokenizer = new Tokenizer(reader);
+      tokenizer.setStripQuotes(true);
+      tokenizer.setBackslashEscapes(true);
+      while (tokenizer.next()) {
+        if (args.size() == lines.length) {
+          lines = Arrays.copyOf(lines, lines.length * 2);
+        }
+        lines[args.size()] = tokenizer.line();
+        args.add(tokenizer.token());
+      }
+    }
+    return new CachedFile(
+        lastModified,
+        length,
+        args.toArray(new String[args.size()]),
+        Arrays.copyOf(lines, args.size()));
+  }
+
+  /**
+   * Opens a reader on an argument file: mapped into memory if it is large, and decompressed if its
+   * name ends in {@code .gz}.
+   *
+   * @param raf the open file
+   * @param file the file
+   * @param length the length of the file
+   * @return a reader on the contents of the file
+   * @throws IOException if the file cannot be read
+   */
+  private static Reader openReader(RandomAccessFile raf, File file, long length)
+      throws IOException {
+    InputStream in;
+    if (length >= MAP_THRESHOLD && length <= Integer.MAX_VALUE) {
+      FileChannel channel = raf.getChannel();
+      in = new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+    } else {
+      in = new FileInputStream(raf.getFD());
+    }
+    if (file.getName().endsWith(".gz")) {
+      in = new GZIPInputStream(in);
+    }
+    return new InputStreamReader(in, StandardCharsets.UTF_8);
+  }
+
+  /** Reads from a ByteBuffer, such as a {@link MappedByteBuffer}, without copying it. */
+  private static final class ByteBufferInputStream extends InputStream {
+
+    /** The bytes to read. */
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a ByteBufferInputStream.
+     *
+     * @param buffer the bytes to read, from its position to its limit
+     */
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
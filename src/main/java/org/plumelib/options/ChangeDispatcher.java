@@ -0,0 +1,237 @@
+package org.plumelib.options;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Notifies {@link OptionsChange.Listener}s of the options that changed between two snapshots. Used
+ * by {@link Options} and {@link OptionsWatcher}.
+ *
+ * <p>The dispatch table, which lists the options that have any listener and the listeners of each,
+ * is rebuilt when a listener is registered, not when options change. Comparing two snapshots
+ * examines only the options that have listeners, so an option without listeners costs nothing, and
+ * if there are no listeners at all, {@link #fire} returns at once.
+ */
+// Not public, but package-visible, to keep it out of public Javadoc
+final class ChangeDispatcher {
+
+  /** A listener, the options it is registered for, and where it runs. */
+  private static final class Registration {
+
+    /** The listener. */
+    final OptionsChange.Listener listener;
+
+    /** Runs the listener. */
+    final Executor executor;
+
+    /** The indices of the options the listener is registered for, in increasing order. */
+    final int[] indices;
+
+    /**
+     * Creates a Registration.
+     *
+     * @param listener the listener
+     * @param executor runs the listener
+     * @param indices the indices of the options the listener is registered for, in increasing
+     *     order
+     */
+    Registration(OptionsChange.Listener listener, Executor executor, int[] indices) {
+      this.listener = listener;
+      this.executor = executor;
+      this.indices = indices;
+    }
+  }
+
+  /** Runs a task on the calling thread. */
+  static final Executor DIRECT =
+      new Executor() {
+        @Override
+        public void execute(Runnable task) {
+          task.run();
+        }
+      };
+
+  /** The long names of the options, by index. */
+  private final List<String> names;
+
+  /** Map from option group name to the indices of its options, in increasing order. */
+  private final Map<String, int[]> groups;
+
+  /** The dispatch table, which is replaced, never modified, when a listener is added. */
+  private volatile Table table = new Table(new Registration[0], new int[0], new int[0][]);
+
+  /** The registered listeners and the options they watch. */
+  private static final class Table {
+
+    /** The registered listeners. */
+    final Registration[] registrations;
+
+    /** The indices of the options that have any listener, in increasing order. */
+    final int[] watched;
+
+    /**
+     * For each registration, the positions in {@link #watched} of the options it is registered
+     * for.
+     */
+    final int[][] positions;
+
+    /**
+     * Creates a Table.
+     *
+     * @param registrations the registered listeners
+     * @param watched the indices of the options that have any listener, in increasing order
+     * @param positions for each registration, the positions in {@code watched} of its options
+     */
+    Table(Registration[] registrations, int[] watched, int[][] positions) {
+      this.registrations = registrations;
+      this.watched = watched;
+      this.positions = positions;
+    }
+  }
+
+  /**
+   * Creates a dispatcher with no listeners.
+   *
+   * @param names the long names of the options, by index, as in the snapshots passed to {@link
+   *     #fire}
+   * @param groups map from option group name to the indices of the options in the group, in
+   *     increasing order
+   */
+  ChangeDispatcher(List<String> names, Map<String, int[]> groups) {
+    this.names = names;
+    this.groups = groups;
+  }
+
+  /**
+   * Registers a listener for one option.
+   *
+   * @param name the long name of the option
+   * @param index the index of the option, or -1 if there is no such option
+   * @param listener the listener
+   * @param executor runs the listener
+   * @throws IllegalArgumentException if there is no such option
+   */
+  void addOptionListener(
+      String name, int index, OptionsChange.Listener listener, Executor executor) {
+    if (index == -1) {
+      throw new IllegalArgumentException("no option named " + name);
+    }
+    add(new Registration(listener, executor, new int[] {index}));
+  }
+
+  /**
+   * Registers a listener for every option of an option group.
+   *
+   * @param groupName the name of the option group
+   * @param listener the listener
+   * @param executor runs the listener
+   * @throws IllegalArgumentException if there is no such group
+   */
+  void addGroupListener(String groupName, OptionsChange.Listener listener, Executor executor) {
+    int[] indices = groups.get(groupName);
+    if (indices == null) {
+      throw new IllegalArgumentException("no option group named " + groupName);
+    }
+    add(new Registration(listener, executor, indices));
+  }
+
+  /**
+   * Adds a registration and rebuilds the dispatch table.
+   *
+   * @param r the registration
+   */
+  private synchronized void add(Registration r) {
+    Registration[] old = table.registrations;
+    Registration[] registrations = Arrays.copyOf(old, old.length + 1);
+    registrations[old.length] = r;
+    // position[i] is the position of option i in watched, or -1 if it has no listener.
+    int[] position = new int[names.size()];
+    Arrays.fill(position, -1);
+    for (Registration reg : registrations) {
+      for (int i : reg.indices) {
+        position[i] = 0;
+      }
+    }
+    int count = 0;
+    for (int i = 0; i < position.length; i++) {
+      if (position[i] != -1) {
+        position[i] = count++;
+      }
+    }
+    int[] watched = new int[count];
+    for (int i = 0; i < position.length; i++) {
+      if (position[i] != -1) {
+        watched[position[i]] = i;
+      }
+    }
+    int[][] positions = new int[registrations.length][];
+    for (int j = 0; j < registrations.length; j++) {
+      int[] indices = registrations[j].indices;
+      positions[j] = new int[indices.length];
+      for (int k = 0; k < indices.length; k++) {
+        positions[j][k] = position[indices[k]];
+      }
+    }
+    table = new Table(registrations, watched, positions);
+  }
+
+  /**
+   * Notifies each listener whose options differ between two snapshots, once.
+   *
+   * @param oldSnapshot the values before the change
+   * @param newSnapshot the values after the change
+   */
+  void fire(OptionsSnapshot oldSnapshot, OptionsSnapshot newSnapshot) {
+    Table t = table;
+    int[] watched = t.watched;
+    if (watched.length == 0) {
+      return;
+    }
+    boolean[] changed = new boolean[watched.length];
+    boolean any = false;
+    for (int p = 0; p < watched.length; p++) {
+      int i = watched[p];
+      if (!OptionsWatcher.valuesEqual(oldSnapshot.get(i), newSnapshot.get(i))) {
+        changed[p] = true;
+        any = true;
+      }
+    }
+    if (!any) {
+      return;
+    }
+    for (int j = 0; j < t.registrations.length; j++) {
+      Registration reg = t.registrations[j];
+      int[] positions = t.positions[j];
+      /*@Nullable*/ List<String> changedNames = null;
+      for (int k = 0; k < positions.length; k++) {
+        if (changed[positions[k]]) {
+          if (changedNames == null) {
+            changedNames = new ArrayList<String>();
+          }
+          changedNames.add(names.get(reg.indices[k]));
+        }
+      }
+      if (changedNames != null) {
+        final OptionsChange.Listener listener = reg.listener;
+        final OptionsChange change =
+            new OptionsChange(
+                oldSnapshot, newSnapshot, Collections.unmodifiableList(changedNames));
+        reg.executor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                listener.optionsChanged(change);
+              }
+            });
+      }
+    }
+  }
+}
@@ -0,0 +1,655 @@
+package org.plumelib.options;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import org.plumelib.options.Options.ArgException;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Parses a large corpus of recorded command lines against an {@link OptionsSchema}, to check that
+ * they are still accepted after the {@code @}{@link Option} classes change and to count how often
+ * each option is used.
+ *
+ * <p>The corpus consists of files and directories:
+ *
+ * <ul>
+ *   <li>Each line of a file is one command line, as in a log of job invocations. Blank lines and
+ *       lines starting with {@code #} are skipped.
+ *   <li>Each file under a directory (recursively) is one argument file: its lines, other than
+ *       blank lines and comments, together form one command line.
+ * </ul>
+ *
+ * <p>A command line is split into arguments by {@link Options#tokenize} and parsed into new
+ * instances of the schema's classes, which are then discarded. Command lines are read by the
+ * calling thread and parsed in batches on a {@link ForkJoinPool}. At most a fixed number of batches
+ * are in memory at once, and a command line longer than a fixed number of characters is rejected
+ * without being read in full, so memory use does not grow with the size of the corpus or of any
+ * file in it.
+ *
+ * <p>Usage: <span style="white-space: nowrap;">{@code java org.plumelib.options.CorpusChecker
+ * [options] file-or-directory...}</span>; run with {@code --help} for the options. The exit status
+ * is 1 if any command line is rejected.
+ */
+public final class CorpusChecker {
+
+  /** The schema against which command lines are parsed. */
+  private final OptionsSchema schema;
+
+  /** The number of threads that parse command lines. */
+  private final int parallelism;
+
+  /** The number of command lines parsed by one task. */
+  private final int batchSize;
+
+  /** The greatest number of error messages to keep in a {@link Report}. */
+  private final int maxErrors;
+
+  /** The default for the greatest number of characters in one command line. */
+  public static final int DEFAULT_MAX_RECORD_LENGTH = 1 << 20;
+
+  /** The greatest number of characters in one command line; a longer one is rejected. */
+  private final int maxRecordLength;
+
+  /**
+   * Creates a checker.
+   *
+   * @param schema the schema against which command lines are parsed; each of its classes must have
+   *     a public constructor that takes no arguments
+   * @param parallelism the number of threads that parse command lines
+   * @param batchSize the number of command lines parsed by one task
+   * @param maxErrors the greatest number of error messages to keep; all errors are counted
+   */
+  public CorpusChecker(OptionsSchema schema, int parallelism, int batchSize, int maxErrors) {
+    this(schema, parallelism, batchSize, maxErrors, DEFAULT_MAX_RECORD_LENGTH);
+  }
+
+  /**
+   * Creates a checker that rejects command lines longer than the given number of characters.
+   *
+   * @param schema the schema against which command lines are parsed; each of its classes must have
+   *     a public constructor that takes no arguments
+   * @param parallelism the number of threads that parse command lines
+   * @param batchSize the number of command lines parsed by one task
+   * @param maxErrors the greatest number of error messages to keep; all errors are counted
+   * @param maxRecordLength the greatest number of characters in one command line: one line of a
+   *     file of command lines, or the non-comment lines of an argument file
+   */
+  public CorpusChecker(
+      OptionsSchema schema, int parallelism, int batchSize, int maxErrors, int maxRecordLength) {
+    if (parallelism < 1 || batchSize < 1 || maxErrors < 0 || maxRecordLength < 1) {
+      throw new IllegalArgumentException(
+          String.format(
+              "bad parallelism %d, batch size %d, maximum errors %d, or maximum record length %d",
+              parallelism, batchSize, maxErrors, maxRecordLength));
+    }
+    schema.newTargets(); // fail now, not on a worker thread, if the classes can't be instantiated
+    this.schema = schema;
+    this.parallelism = parallelism;
+    this.batchSize = batchSize;
+    this.maxErrors = maxErrors;
+    this.maxRecordLength = maxRecordLength;
+  }
+
+  /**
+   * Parses every command line in the given files and directories.
+   *
+   * @param paths files of command lines, and directories of argument files
+   * @return the number of command lines, the errors, and the number of uses of each option
+   * @throws IOException if a file cannot be read
+   */
+  public Report check(List<File> paths) throws IOException {
+    Report report = new Report(maxErrors);
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    // Two batches per thread keep the workers busy while the next batch is read.
+    int maxBatches = 2 * parallelism;
+    Semaphore permits = new Semaphore(maxBatches);
+    AtomicReference</*@Nullable*/ Throwable> failure =
+        new AtomicReference</*@Nullable*/ Throwable>();
+    BatchFeeder feeder = new BatchFeeder(pool, permits, failure, report);
+    try {
+      for (File path : paths) {
+        if (path.isDirectory()) {
+          feeder.readDirectory(path);
+        } else {
+          feeder.readLines(path);
+        }
+      }
+      feeder.flush();
+      permits.acquireUninterruptibly(maxBatches);
+    } finally {
+      pool.shutdown();
+    }
+    Throwable t = failure.get();
+    if (t != null) {
+      if (t instanceof RuntimeException) {
+        throw (RuntimeException) t;
+      }
+      if (t instanceof Error) {
+        throw (Error) t;
+      }
+      throw new Error(t);
+    }
+    return report;
+  }
+
+  /** Reads command lines and hands them, in batches, to the pool. */
+  private final class BatchFeeder {
+
+    /** The pool that parses batches. */
+    private final ForkJoinPool pool;
+
+    /** One permit per batch that may be in memory. */
+    private final Semaphore permits;
+
+    /** The first exception thrown by a task, other than an {@link ArgException}. */
+    private final AtomicReference</*@Nullable*/ Throwable> failure;
+
+    /** Where the tasks record their results. */
+    private final Report report;
+
+    /** The command lines of the batch being filled; null for one that is too long. */
+    private List</*@Nullable*/ String> lines = new ArrayList</*@Nullable*/ String>();
+
+    /** The location of each element of {@link #lines}, for error messages. */
+    private List<String> locations = new ArrayList<String>();
+
+    /** Holds the current line or argument file; reused, so that it grows at most once. */
+    private final StringBuilder record = new StringBuilder();
+
+    /** Holds the current line of an argument file; reused, as {@link #record} is. */
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * Creates a BatchFeeder.
+     *
+     * @param pool the pool that parses batches
+     * @param permits one permit per batch that may be in memory
+     * @param failure where to record an unexpected exception
+     * @param report where the tasks record their results
+     */
+    BatchFeeder(
+        ForkJoinPool pool,
+        Semaphore permits,
+        AtomicReference</*@Nullable*/ Throwable> failure,
+        Report report) {
+      this.pool = pool;
+      this.permits = permits;
+      this.failure = failure;
+      this.report = report;
+    }
+
+    /**
+     * Adds each line of a file as a command line.
+     *
+     * @param file a file containing one command line per line
+     * @throws IOException if the file cannot be read
+     */
+    void readLines(File file) throws IOException {
+      try (LineScanner scanner = new LineScanner(file)) {
+        int lineNumber = 0;
+        while (scanner.next(record, maxRecordLength)) {
+          lineNumber++;
+          if (!isComment(record)) {
+            add(scanner.truncated() ? null : record.toString(), file + ":" + lineNumber);
+          }
+        }
+      }
+    }
+
+    /**
+     * Adds the non-comment lines of an argument file, separated by spaces, as one command line.
+     *
+     * @param file an argument file
+     * @throws IOException if the file cannot be read
+     */
+    void readArgumentFile(File file) throws IOException {
+      record.setLength(0);
+      boolean tooLong = false;
+      try (LineScanner scanner = new LineScanner(file)) {
+        while (!tooLong && scanner.next(line, maxRecordLength)) {
+          if (!isComment(line)) {
+            tooLong = scanner.truncated() || record.length() + line.length() >= maxRecordLength;
+            if (!tooLong) {
+              record.append(line).append(' ');
+            }
+          }
+        }
+      }
+      add(tooLong ? null : record.toString(), file.toString());
+    }
+
+    /**
+     * Adds each file under a directory as a command line.
+     *
+     * @param dir a directory of argument files
+     * @throws IOException if a file cannot be read
+     */
+    void readDirectory(File dir) throws IOException {
+      File[] files = dir.listFiles();
+      if (files == null) {
+        throw new IOException("cannot list directory " + dir);
+      }
+      Arrays.sort(files);
+      for (File file : files) {
+        if (file.isDirectory()) {
+          readDirectory(file);
+        } else {
+          readArgumentFile(file);
+        }
+      }
+    }
+
+    /**
+     * Adds a command line to the current batch, and submits the batch if it is full.
+     *
+     * @param line a command line, or null if it is longer than the greatest length allowed
+     * @param location where the command line came from
+     */
+    void add(/*@Nullable*/ String line, String location) {
+      lines.add(line);
+      locations.add(location);
+      if (lines.size() == batchSize) {
+        flush();
+      }
+    }
+
+    /** Submits the current batch, if it is not empty. Blocks while too many batches are queued. */
+    void flush() {
+      if (lines.isEmpty()) {
+        return;
+      }
+      permits.acquireUninterruptibly();
+      pool.execute(new Batch(lines, locations, permits, failure, report));
+      lines = new ArrayList</*@Nullable*/ String>();
+      locations = new ArrayList<String>();
+    }
+  }
+
+  /**
+   * Returns true if the line should be skipped: it is blank or starts with {@code #}.
+   *
+   * @param line a line of a file
+   * @return true if the line is blank or a comment
+   */
+  private static boolean isComment(CharSequence line) {
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        return c == '#';
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the lines of a file, keeping at most a given number of characters of each, so that a
+   * very long line does not need to be held in memory.
+   */
+  private static final class LineScanner implements Closeable {
+
+    /** The file's contents. */
+    private final InputStreamReader in;
+
+    /** Holds characters read from {@link #in}. */
+    private final char[] buffer = new char[8192];
+
+    /** The index in {@link #buffer} of the next character to read. */
+    private int pos = 0;
+
+    /** The index in {@link #buffer} after the last character available. */
+    private int limit = 0;
+
+    /** Whether the line most recently read was longer than the greatest length allowed. */
+    private boolean truncated = false;
+
+    /**
+     * Opens a file.
+     *
+     * @param file the file to read, in UTF-8
+     * @throws IOException if the file cannot be opened
+     */
+    LineScanner(File file) throws IOException {
+      in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the next line into {@code line}, without its line terminator. If the line is longer
+     * than {@code maxLength} characters, only its first {@code maxLength} are kept and {@link
+     * #truncated} returns true.
+     *
+     * @param line where to put the line; its previous contents are discarded
+     * @param maxLength the greatest number of characters to keep
+     * @return false if there are no more lines
+     * @throws IOException if the file cannot be read
+     */
+    boolean next(StringBuilder line, int maxLength) throws IOException {
+      line.setLength(0);
+      truncated = false;
+      boolean any = false;
+      while (true) {
+        if (pos == limit) {
+          limit = in.read(buffer, 0, buffer.length);
+          pos = 0;
+          if (limit <= 0) {
+            limit = 0;
+            return any;
+          }
+        }
+        any = true;
+        int start = pos;
+        while (pos < limit && buffer[pos] != '\n') {
+          pos++;
+        }
+        int room = maxLength - line.length();
+        if (pos - start > room) {
+          truncated = true;
+        }
+        line.append(buffer, start, Math.min(pos - start, Math.max(room, 0)));
+        if (pos < limit) {
+          pos++; // the newline
+          int end = line.length();
+          if (end > 0 && line.charAt(end - 1) == '\r' && !truncated) {
+            line.setLength(end - 1);
+          }
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Returns true if the line most recently read was longer than the greatest length allowed.
+     *
+     * @return true if the last line was truncated
+     */
+    boolean truncated() {
+      return truncated;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /** Parses a batch of command lines on a worker thread. */
+  private final class Batch extends RecursiveAction {
+
+    /** The serial version UID. */
+    private static final long serialVersionUID = 20180301L;
+
+    /** The command lines to parse; null for one that is too long. */
+    private final List</*@Nullable*/ String> lines;
+
+    /** The location of each command line, for error messages. */
+    private final List<String> locations;
+
+    /** Released when this batch is done. */
+    private final Semaphore permits;
+
+    /** Where to record an unexpected exception. */
+    private final AtomicReference</*@Nullable*/ Throwable> failure;
+
+    /** Where to record the results. */
+    private final Report report;
+
+    /**
+     * Creates a Batch.
+     *
+     * @param lines the command lines to parse; null for one that is too long
+     * @param locations the location of each command line
+     * @param permits released when this batch is done
+     * @param failure where to record an unexpected exception
+     * @param report where to record the results
+     */
+    Batch(
+        List</*@Nullable*/ String> lines,
+        List<String> locations,
+        Semaphore permits,
+        AtomicReference</*@Nullable*/ Throwable> failure,
+        Report report) {
+      this.lines = lines;
+      this.locations = locations;
+      this.permits = permits;
+      this.failure = failure;
+      this.report = report;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        List<String> errors = new ArrayList<String>();
+        int errorCount = 0;
+        for (int i = 0; i < lines.size(); i++) {
+          String line = lines.get(i);
+          if (line == null) {
+            errorCount++;
+            if (errors.size() < maxErrors) {
+              errors.add(
+                  locations.get(i)
+                      + ": command line is longer than "
+                      + maxRecordLength
+                      + " characters");
+            }
+            continue;
+          }
+          try {
+            OptionsSchema.Result result = schema.parse(schema.newTargets(), Options.tokenize(line));
+            for (String name : result.getOptionNames()) {
+              String canonical = schema.canonicalName(name);
+              if (canonical != null) {
+                Long count = counts.get(canonical);
+                counts.put(canonical, count == null ? 1 : count + 1);
+              }
+            }
+          } catch (ArgException e) {
+            errorCount++;
+            if (errors.size() < maxErrors) {
+              errors.add(locations.get(i) + ": " + e.getMessage());
+            }
+          }
+        }
+        report.add(lines.size(), errorCount, errors, counts);
+      } catch (Throwable t) {
+        failure.compareAndSet(null, t);
+      } finally {
+        permits.release();
+      }
+    }
+  }
+
+  /** The results of checking a corpus. Filled in concurrently; read once checking is done. */
+  public static final class Report {
+
+    /** The greatest number of error messages to keep. */
+    private final int maxErrors;
+
+    /** The number of command lines. */
+    private long commandLines = 0;
+
+    /** The number of command lines that were rejected. */
+    private long errorCount = 0;
+
+    /** Messages for the first {@link #maxErrors} rejected command lines to be recorded. */
+    private final List<String> errors = new ArrayList<String>();
+
+    /** Map from canonical option name to the number of times it was used. */
+    private final Map<String, Long> optionCounts = new TreeMap<String, Long>();
+
+    /**
+     * Creates an empty Report.
+     *
+     * @param maxErrors the greatest number of error messages to keep
+     */
+    Report(int maxErrors) {
+      this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Adds the results of one batch.
+     *
+     * @param commandLines the number of command lines in the batch
+     * @param errorCount the number of rejected command lines in the batch
+     * @param errors messages for some of the rejected command lines
+     * @param optionCounts the number of uses of each option in the batch
+     */
+    synchronized void add(
+        int commandLines, int errorCount, List<String> errors, Map<String, Long> optionCounts) {
+      this.commandLines += commandLines;
+      this.errorCount += errorCount;
+      for (String error : errors) {
+        if (this.errors.size() < maxErrors) {
+          this.errors.add(error);
+        }
+      }
+      for (Map.Entry<String, Long> e : optionCounts.entrySet()) {
+        Long count = this.optionCounts.get(e.getKey());
+        this.optionCounts.put(e.getKey(), count == null ? e.getValue() : count + e.getValue());
+      }
+    }
+
+    /**
+     * Returns the number of command lines that were parsed.
+     *
+     * @return the number of command lines
+     */
+    public synchronized long getCommandLineCount() {
+      return commandLines;
+    }
+
+    /**
+     * Returns the number of command lines that were rejected.
+     *
+     * @return the number of rejected command lines
+     */
+    public synchronized long getErrorCount() {
+      return errorCount;
+    }
+
+    /**
+     * Returns messages for some of the rejected command lines, each prefixed by its location. At
+     * most the maximum number given to the {@link CorpusChecker} are kept.
+     *
+     * @return messages for some of the rejected command lines
+     */
+    public synchronized List<String> getErrors() {
+      return Collections.unmodifiableList(new ArrayList<String>(errors));
+    }
+
+    /**
+     * Returns the number of times each option was used, by canonical (long) name, in order of
+     * name. Options that were never used are absent. Rejected command lines are not counted.
+     *
+     * @return map from option name to number of uses
+     */
+    public synchronized Map<String, Long> getOptionCounts() {
+      return Collections.unmodifiableMap(new TreeMap<String, Long>(optionCounts));
+    }
+
+    /**
+     * Returns a human-readable summary of the report.
+     *
+     * @return a summary of the report
+     */
+    @Override
+    public synchronized String toString() {
+      StringBuilder sb = new StringBuilder();
+      String lineSeparator = System.getProperty("line.separator");
+      sb.append(String.format("%d command lines, %d rejected%n", commandLines, errorCount));
+      for (Map.Entry<String, Long> e : optionCounts.entrySet()) {
+        sb.append(String.format("  %10d  %s%n", e.getValue(), e.getKey()));
+      }
+      for (String error : errors) {
+        sb.append(error).append(lineSeparator);
+      }
+      if (errorCount > errors.size()) {
+        sb.append(String.format("... and %d more errors%n", errorCount - errors.size()));
+      }
+      return sb.toString();
+    }
+  }
+
+  // Options for main
+
+  /** Fully-qualified names of the classes that declare the options to check. */
+  @Option("-c <class> class that declares options; may be given more than once")
+  public static List<String> option_class = new ArrayList<String>();
+
+  /** The number of threads that parse command lines. */
+  @Option("-t number of parsing threads")
+  public static int threads = Runtime.getRuntime().availableProcessors();
+
+  /** The number of command lines parsed by one task. */
+  @Option("number of command lines per task")
+  public static int batch_size = 1000;
+
+  /** The greatest number of error messages to print. */
+  @Option("maximum number of error messages to print")
+  public static int max_errors = 100;
+
+  /** The greatest number of characters in one command line. */
+  @Option("maximum length of a command line, in characters; longer ones are rejected")
+  public static int max_record_length = DEFAULT_MAX_RECORD_LENGTH;
+
+  /** Whether to accept unique prefixes of long option names in the corpus. */
+  @Option("accept abbreviated long options in the corpus")
+  public static boolean allow_abbreviations = false;
+
+  /** Whether to print usage information. */
+  @Option("-h print usage information")
+  public static boolean help = false;
+
+  /**
+   * Checks the command lines in the files and directories named on the command line.
+   *
+   * @param args the options of this program, and the files and directories to check
+   * @throws Exception if a class cannot be loaded or a file cannot be read
+   */
+  public static void main(String[] args) throws Exception {
+    Options options =
+        new Options("CorpusChecker [options] file-or-directory...", CorpusChecker.class);
+    String[] paths = options.parse(true, args);
+    if (help) {
+      options.printUsage();
+      System.exit(0);
+    }
+    if (option_class.isEmpty() || paths.length == 0) {
+      System.out.println("CorpusChecker needs at least one --option-class and one path");
+      options.printUsage();
+      System.exit(-1);
+    }
+
+    Class<?>[] classes = new Class<?>[option_class.size()];
+    for (int i = 0; i < classes.length; i++) {
+      classes[i] = Class.forName(option_class.get(i));
+    }
+    OptionsSchema schema =
+        new OptionsSchema.Builder(classes).setAllowAbbreviations(allow_abbreviations).build();
+    List<File> files = new ArrayList<File>();
+    for (String path : paths) {
+      files.add(new File(path));
+    }
+
+    Report report =
+        new CorpusChecker(schema, threads, batch_size, max_errors, max_record_length).check(files);
+    System.out.print(report);
+    System.exit(report.getErrorCount() == 0 ? 0 : 1);
+  }
+}
@@ -0,0 +1,152 @@
+package org.plumelib.options;
+
+import java.io.IOException;
+
+/*>>>
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Writes elements to an {@link Appendable}, with a delimiter between each pair of elements. Unlike
+ * {@link StringBuilder}-based joining, the text goes straight to its destination, so producers of
+ * nested text can share one DelimitedWriter (or one destination) instead of each building a string
+ * that the next level copies.
+ *
+ * <p>An element is started by {@link #add} or {@link #begin}; the {@code append} methods add text
+ * to the current element without writing a delimiter. {@link #count} tells a producer whether a
+ * nested producer wrote any elements.
+ *
+ * <p>Where the final result must be a string, {@link #newBuilder} sizes the builder from an
+ * estimate of the length of the text, so that it is not repeatedly grown and copied.
+ */
+// Not public, but package-visible, to keep it out of public Javadoc
+final class DelimitedWriter implements Appendable {
+
+  /** Where the text is written. */
+  private final Appendable out;
+
+  /** The delimiter written between elements. */
+  private final String delimiter;
+
+  /** The number of elements started so far. */
+  private int count = 0;
+
+  /**
+   * Creates a DelimitedWriter.
+   *
+   * @param out where to write the text
+   * @param delimiter the delimiter to write between elements
+   */
+  DelimitedWriter(Appendable out, String delimiter) {
+    this.out = out;
+    this.delimiter = delimiter;
+  }
+
+  /**
+   * Returns a StringBuilder with room for about {@code estimate} characters, plus some slack.
+   *
+   * @param estimate the expected length of the text
+   * @return an empty StringBuilder
+   */
+  static StringBuilder newBuilder(int estimate) {
+    return new StringBuilder(Math.max(16, estimate + (estimate >> 3)));
+  }
+
+  /**
+   * Starts a new element, writing a delimiter unless this is the first one. Text for the element
+   * is then written with the {@code append} methods.
+   *
+   * @return this DelimitedWriter
+   * @throws IOException if the destination throws it
+   */
+  DelimitedWriter begin() throws IOException {
+    if (count > 0) {
+      out.append(delimiter);
+    }
+    count++;
+    return this;
+  }
+
+  /**
+   * Writes an element, preceded by a delimiter unless it is the first one.
+   *
+   * @param element the element to write
+   * @return this DelimitedWriter
+   * @throws IOException if the destination throws it
+   */
+  DelimitedWriter add(CharSequence element) throws IOException {
+    begin();
+    out.append(element);
+    return this;
+  }
+
+  /**
+   * Returns the number of elements started so far.
+   *
+   * @return the number of elements started so far
+   */
+  int count() {
+    return count;
+  }
+
+  /**
+   * Appends text to the current element, without writing a delimiter.
+   *
+   * @param csq the text to append
+   * @return this DelimitedWriter
+   * @throws IOException if the destination throws it
+   */
+  @Override
+  public DelimitedWriter append(/*@Nullable*/ CharSequence csq) throws IOException {
+    out.append(csq);
+    return this;
+  }
+
+  /**
+   * Appends part of a text to the current element, without writing a delimiter.
+   *
+   * @param csq the text to append part of
+   * @param start the index of the first character to append
+   * @param end the index after the last character to append
+   * @return this DelimitedWriter
+   * @throws IOException if the destination throws it
+   */
+  @Override
+  public DelimitedWriter append(
+      /*@Nullable*/ CharSequence csq,
+      /*@IndexOrHigh("#1")*/ int start,
+      /*@IndexOrHigh("#1")*/ int end)
+      throws IOException {
+    out.append(csq, start, end);
+    return this;
+  }
+
+  /**
+   * Appends a character to the current element, without writing a delimiter.
+   *
+   * @param c the character to append
+   * @return this DelimitedWriter
+   * @throws IOException if the destination throws it
+   */
+  @Override
+  public DelimitedWriter append(char c) throws IOException {
+    out.append(c);
+    return this;
+  }
+
+  /**
+   * Appends {@code n} copies of a character to the current element.
+   *
+   * @param c the character to append
+   * @param n the number of copies to append; nothing is appended if it is not positive
+   * @return this DelimitedWriter
+   * @throws IOException if the destination throws it
+   */
+  DelimitedWriter repeat(char c, int n) throws IOException {
+    for (int i = 0; i < n; i++) {
+      out.append(c);
+    }
+    return this;
+  }
+}
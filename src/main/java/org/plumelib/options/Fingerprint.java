@@ -0,0 +1,215 @@
+package org.plumelib.options;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * A 64-bit fingerprint of the values of a set of options, for keying caches of results that
+ * depend on the configuration. See {@link Options#setFingerprintOptions}.
+ *
+ * <p>The fingerprint depends only on the long names of the selected options and their values, not
+ * on how the values were written, the order of the options, or (unless requested) which options
+ * have their default values. Each option contributes a hash of its name and value, and the
+ * fingerprint is the sum of the contributions, so that setting one option updates it in constant
+ * time. The hash of a list is a chain over its elements, so adding an element also takes constant
+ * time. The hashes are computed from the values alone, never from {@link Object#hashCode}, so the
+ * fingerprint is the same in every run of a program.
+ */
+// Not public, but package-visible, to keep it out of public Javadoc
+final class Fingerprint {
+
+  /** The hash of a null value. */
+  private static final long NULL_HASH = 0x6a09e667f3bcc908L;
+
+  /** The hash of an empty list, from which the hash of a list is chained. */
+  private static final long LIST_SEED = 0xbb67ae8584caa73bL;
+
+  /** For each option, whether it contributes to the fingerprint. */
+  private final boolean[] selected;
+
+  /** For each option, the hash of its long name. */
+  private final long[] nameHashes;
+
+  /** For each option, the hash of its default value. */
+  private final long[] defaultHashes;
+
+  /** Whether options contribute to the fingerprint even when they have their default values. */
+  private final boolean includeDefaults;
+
+  /** For each option, the hash of its current value. */
+  private final long[] valueHashes;
+
+  /** The fingerprint: the sum of the contributions of the selected options. */
+  private long total = 0;
+
+  /**
+   * Creates a fingerprint of the given values.
+   *
+   * @param names the long names of the options, by index
+   * @param selected for each option, whether it contributes to the fingerprint
+   * @param defaults the default value of each option
+   * @param values the current value of each option
+   * @param includeDefaults whether options contribute even when they have their default values
+   */
+  Fingerprint(
+      List<String> names,
+      boolean[] selected,
+      /*@Nullable*/ Object[] defaults,
+      /*@Nullable*/ Object[] values,
+      boolean includeDefaults) {
+    int n = names.size();
+    this.selected = selected.clone();
+    this.nameHashes = new long[n];
+    this.defaultHashes = new long[n];
+    this.valueHashes = new long[n];
+    this.includeDefaults = includeDefaults;
+    for (int i = 0; i < n; i++) {
+      if (selected[i]) {
+        nameHashes[i] = stringHash(names.get(i));
+        defaultHashes[i] = valueHash(defaults[i]);
+        valueHashes[i] = valueHash(values[i]);
+        total += contribution(i);
+      }
+    }
+  }
+
+  /**
+   * Returns the fingerprint.
+   *
+   * @return the fingerprint
+   */
+  long value() {
+    return total;
+  }
+
+  /**
+   * Records that an option has been set to a new value.
+   *
+   * @param index the index of the option
+   * @param value its new value; a whole list for a list option
+   */
+  void set(int index, /*@Nullable*/ Object value) {
+    if (selected[index]) {
+      total -= contribution(index);
+      valueHashes[index] = valueHash(value);
+      total += contribution(index);
+    }
+  }
+
+  /**
+   * Records that an element has been added to the end of the list of a list option.
+   *
+   * @param index the index of the option
+   * @param element the new element
+   */
+  void append(int index, /*@Nullable*/ Object element) {
+    if (selected[index]) {
+      total -= contribution(index);
+      valueHashes[index] = chain(valueHashes[index], elementHash(element));
+      total += contribution(index);
+    }
+  }
+
+  /**
+   * Returns the contribution of an option to the fingerprint.
+   *
+   * @param index the index of a selected option
+   * @return the contribution of the option: 0 if it has its default value and defaults are not
+   *     included
+   */
+  private long contribution(int index) {
+    if (!includeDefaults && valueHashes[index] == defaultHashes[index]) {
+      return 0;
+    }
+    return mix(nameHashes[index] * 31 + valueHashes[index]);
+  }
+
+  /**
+   * Returns the hash of the value of an option.
+   *
+   * @param value the value of an option; a whole list for a list option
+   * @return the hash of the value
+   */
+  private static long valueHash(/*@Nullable*/ Object value) {
+    if (value instanceof List) {
+      long hash = LIST_SEED;
+      for (Object element : (List<?>) value) {
+        hash = chain(hash, elementHash(element));
+      }
+      return hash;
+    }
+    return mix(elementHash(value));
+  }
+
+  /**
+   * Returns the hash of a list with one more element.
+   *
+   * @param listHash the hash of the list
+   * @param elementHash the hash of the new element
+   * @return the hash of the list with the element added to the end
+   */
+  private static long chain(long listHash, long elementHash) {
+    return mix(listHash * 0x9e3779b97f4a7c15L + elementHash);
+  }
+
+  /**
+   * Returns the hash of a value that is not a list. Numbers are hashed by value, so that the way
+   * they were written does not matter; other values by the string that the option's converter
+   * turns back into the value.
+   *
+   * @param value a value, or an element of a list
+   * @return the hash of the value
+   */
+  private static long elementHash(/*@Nullable*/ Object value) {
+    if (value == null) {
+      return NULL_HASH;
+    } else if (value instanceof Boolean) {
+      return ((Boolean) value) ? 1 : 2;
+    } else if (value instanceof Float || value instanceof Double) {
+      return Double.doubleToLongBits(((Number) value).doubleValue());
+    } else if (value instanceof Byte
+        || value instanceof Short
+        || value instanceof Integer
+        || value instanceof Long) {
+      return ((Number) value).longValue();
+    } else if (value instanceof Character) {
+      return (Character) value;
+    } else if (value instanceof Pattern) {
+      Pattern p = (Pattern) value;
+      return stringHash(p.pattern()) + p.flags();
+    } else {
+      return stringHash(OptionsSnapshot.toArgString(value));
+    }
+  }
+
+  /**
+   * Returns the 64-bit FNV-1a hash of the characters of a string.
+   *
+   * @param s a string
+   * @return the hash of the string
+   */
+  private static long stringHash(String s) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Scrambles the bits of a hash, so that similar inputs have unrelated outputs. This is the
+   * finalizer of the SplitMix64 generator.
+   *
+   * @param z a hash
+   * @return the scrambled hash
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,307 @@
+package org.plumelib.options;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*>>>
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * An immutable map from option names to values, stored as a trie in a few flat arrays. A name is
+ * matched directly against the characters of a command-line argument, so no substring needs to be
+ * created to look it up.
+ *
+ * <p>Keys are matched exactly. A caller that accepts several spellings of a name, such as {@code
+ * --my-option} and {@code --my_option}, enters each of them; the spellings share the nodes of their
+ * common prefix.
+ *
+ * <p>A lookup may optionally accept a unique prefix of a key, as GNU getopt does for long options:
+ * {@code --verb} finds {@code --verbose} if no other key with a different value starts with {@code
+ * --verb}.
+ *
+ * @param <V> the type of the values
+ */
+// Not public, but package-visible, to keep it out of public Javadoc
+final class NameTrie<V> {
+
+  /** Marks a subtree that contains more than one distinct value. */
+  private static final Object AMBIGUOUS = new Object();
+
+  /**
+   * For node n, its outgoing edges are at indices {@code firstEdge[n]} (inclusive) to {@code
+   * firstEdge[n+1]} (exclusive) of {@link #labels} and {@link #targets}. Node 0 is the root.
+   */
+  private final int[] firstEdge;
+
+  /** The character on each edge, sorted within each node. */
+  private final char[] labels;
+
+  /** The node that each edge leads to. */
+  private final int[] targets;
+
+  /** The value whose key ends at each node, or null. */
+  private final /*@Nullable*/ Object[] values;
+
+  /**
+   * For each node, the single value found in its subtree, {@link #AMBIGUOUS} if there are several
+   * distinct values, or null if there are none.
+   */
+  private final /*@Nullable*/ Object[] unique;
+
+  /**
+   * Creates a trie from the given mutable tree.
+   *
+   * @param root the root of the tree built by a {@link Builder}
+   * @param size the number of nodes in the tree
+   */
+  private NameTrie(Builder.Node root, int size) {
+    firstEdge = new int[size + 1];
+    labels = new char[size - 1];
+    targets = new int[size - 1];
+    values = new Object[size];
+    unique = new Object[size];
+
+    // Number the nodes in breadth-first order, so that each node's edges are contiguous.
+    List<Builder.Node> queue = new ArrayList<Builder.Node>(size);
+    queue.add(root);
+    int edge = 0;
+    for (int n = 0; n < queue.size(); n++) {
+      Builder.Node node = queue.get(n);
+      firstEdge[n] = edge;
+      values[n] = node.value;
+      for (Map.Entry<Character, Builder.Node> e : node.children.entrySet()) {
+        labels[edge] = e.getKey();
+        targets[edge] = queue.size();
+        queue.add(e.getValue());
+        edge++;
+      }
+    }
+    firstEdge[size] = edge;
+
+    // Children are numbered after their parents, so a reverse pass sees every child first.
+    for (int n = size - 1; n >= 0; n--) {
+      Object u = values[n];
+      for (int e = firstEdge[n]; e < firstEdge[n + 1]; e++) {
+        u = merge(u, unique[targets[e]]);
+      }
+      unique[n] = u;
+    }
+  }
+
+  /**
+   * Combines the unique values of two subtrees.
+   *
+   * @param a the unique value of one subtree
+   * @param b the unique value of another subtree
+   * @return the unique value of their union
+   */
+  private static /*@Nullable*/ Object merge(/*@Nullable*/ Object a, /*@Nullable*/ Object b) {
+    if (a == null) {
+      return b;
+    } else if (b == null || a == b) {
+      return a;
+    } else {
+      return AMBIGUOUS;
+    }
+  }
+
+  /**
+   * Returns the child of the given node along the given character, or -1.
+   *
+   * @param node a node
+   * @param c a character
+   * @return the child of {@code node} labeled {@code c}, or -1 if there is none
+   */
+  private int child(int node, char c) {
+    int lo = firstEdge[node];
+    int hi = firstEdge[node + 1] - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      char label = labels[mid];
+      if (label < c) {
+        lo = mid + 1;
+      } else if (label > c) {
+        hi = mid - 1;
+      } else {
+        return targets[mid];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the node reached by following the given characters from the root, or -1.
+   *
+   * @param s the characters to follow
+   * @param start the index of the first character
+   * @param end the index after the last character
+   * @return the node for {@code s[start..end)}, or -1 if no key starts with those characters
+   */
+  private int walk(CharSequence s, int start, int end) {
+    int node = 0;
+    for (int i = start; i < end && node != -1; i++) {
+      node = child(node, s.charAt(i));
+    }
+    return node;
+  }
+
+  /**
+   * Returns the value for the name {@code s[start..end)}.
+   *
+   * @param s a string containing a name
+   * @param start the index of the first character of the name
+   * @param end the index after the last character of the name
+   * @param allowPrefix if true, also accept a unique prefix of a key
+   * @return the value for the name, or null if there is none or if the prefix is ambiguous
+   */
+  @SuppressWarnings("unchecked") // values and unique contain only Vs, apart from AMBIGUOUS
+  /*@Nullable*/ V get(CharSequence s, int start, int end, boolean allowPrefix) {
+    int node = walk(s, start, end);
+    if (node == -1) {
+      return null;
+    }
+    Object result = values[node];
+    if (result == null && allowPrefix && unique[node] != AMBIGUOUS) {
+      result = unique[node];
+    }
+    return (V) result;
+  }
+
+  /**
+   * Returns the value for the given name, which must match a key exactly.
+   *
+   * @param name a name
+   * @return the value for the name, or null if there is none
+   */
+  /*@Nullable*/ V get(String name) {
+    return get(name, 0, name.length(), false);
+  }
+
+  /**
+   * Returns the keys that start with {@code s[start..end)}, in sorted order. Intended for error
+   * messages, not for the common case.
+   *
+   * @param s a string containing a prefix
+   * @param start the index of the first character of the prefix
+   * @param end the index after the last character of the prefix
+   * @return the keys that start with the prefix
+   */
+  List<String> keysWithPrefix(CharSequence s, int start, int end) {
+    List<String> result = new ArrayList<String>();
+    int node = walk(s, start, end);
+    if (node != -1) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(s, start, end);
+      collectKeys(node, sb, result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns all the keys, in sorted order.
+   *
+   * @return all the keys
+   */
+  List<String> keys() {
+    return keysWithPrefix("", 0, 0);
+  }
+
+  /**
+   * Adds to {@code result} every key in the subtree rooted at {@code node}.
+   *
+   * @param node the root of a subtree
+   * @param prefix the key of {@code node}; restored before returning
+   * @param result where to add the keys
+   */
+  private void collectKeys(int node, StringBuilder prefix, List<String> result) {
+    if (values[node] != null) {
+      result.add(prefix.toString());
+    }
+    for (int e = firstEdge[node]; e < firstEdge[node + 1]; e++) {
+      prefix.append(labels[e]);
+      collectKeys(targets[e], prefix, result);
+      prefix.setLength(prefix.length() - 1);
+    }
+  }
+
+  /**
+   * Accumulates keys and values, then builds an immutable {@link NameTrie}.
+   *
+   * @param <V> the type of the values
+   */
+  static final class Builder<V> {
+
+    /** A node of the mutable tree. */
+    static final class Node {
+      /** The children of this node, by character. */
+      final TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+      /** The value whose key ends here, or null. */
+      /*@Nullable*/ Object value;
+    }
+
+    /** The root of the mutable tree. */
+    private final Node root = new Node();
+
+    /** The number of nodes in the tree. */
+    private int size = 1;
+
+    /**
+     * Returns the node for the given key, creating it if necessary.
+     *
+     * @param key a key
+     * @return the node for {@code key}
+     */
+    private Node node(String key) {
+      Node node = root;
+      for (int i = 0; i < key.length(); i++) {
+        Character c = key.charAt(i);
+        Node next = node.children.get(c);
+        if (next == null) {
+          next = new Node();
+          node.children.put(c, next);
+          size++;
+        }
+        node = next;
+      }
+      return node;
+    }
+
+    /**
+     * Returns the value for the given key, or null if there is none.
+     *
+     * @param key a key
+     * @return the value for {@code key}, or null
+     */
+    @SuppressWarnings("unchecked") // only Vs are stored
+    /*@Nullable*/ V get(String key) {
+      Node node = root;
+      for (int i = 0; i < key.length() && node != null; i++) {
+        node = node.children.get(key.charAt(i));
+      }
+      return node == null ? null : (V) node.value;
+    }
+
+    /**
+     * Associates {@code value} with {@code key}, replacing any previous value.
+     *
+     * @param key a key
+     * @param value the value
+     */
+    void put(String key, V value) {
+      node(key).value = value;
+    }
+
+    /**
+     * Returns an immutable trie containing the keys and values added so far.
+     *
+     * @return an immutable trie
+     */
+    NameTrie<V> build() {
+      return new NameTrie<V>(root, size);
+    }
+  }
+}
@@ -9,11 +9,15 @@
 package org.plumelib.options;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
@@ -21,12 +25,17 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 /*>>>
@@ -213,6 +222,20 @@ import org.checkerframework.dataflow.qual.*;
  *   <li>If {@link #setParseAfterArg(boolean)} is true, then options are searched for throughout a
  *       command line, to its end. If it is false, then processing stops at the first non-option
  *       argument. It defaults to true.
+ *   <li>If {@link #setAllowAbbreviations(boolean)} is true, then a long option may be abbreviated
+ *       to any unique prefix of its name, as in <span style="white-space: nowrap;">{@code
+ *       --verb}</span> for <span style="white-space: nowrap;">{@code --verbose}</span>. It defaults
+ *       to false.
+ *   <li>If {@link #setConfigFiles(File...)} is called, then options are also read from
+ *       configuration files, with lower precedence than the command line.
+ *   <li>If {@link #setSystemPropertyPrefix(String)} or {@link #setEnvironmentPrefix(String)} is
+ *       called, then options are also read from system properties or environment variables whose
+ *       names start with the prefix. In decreasing order of precedence, the sources of options are
+ *       the command line, system properties, environment variables, and configuration files.
+ *   <li>If {@link #setExpandArgFiles(boolean)} is true, then an argument {@code @}<i>file</i> is
+ *       replaced by the arguments in the file. It defaults to false.
+ *   <li>If {@link #setTransactional(boolean)} is true, then {@link #parse(String[])} writes no
+ *       field unless every argument is valid. It defaults to false.
  *   <li>If {@link #spaceSeparatedLists} is true, then when an argument contains spaces, it is
  *       treated as multiple elements to be added to a list. It defaults to false.
  *   <li>The programmer may set {@link #usageSynopsis} to masquerade as another program.
@@ -221,6 +244,27 @@ import org.checkerframework.dataflow.qual.*;
  *       user can always specify either; this just affects usage messages. It defaults to false.
  * </ul>
  *
+ * <p><b>Compile-time processing</b>
+ *
+ * <p>By default, the constructor finds options by reflecting over the fields of each class. To
+ * avoid that cost at run time, put the {@code options-processor} jar on the annotation processor
+ * path when compiling your program. It generates an {@link OptionsBinder} for each class that
+ * declares options, and it reports a malformed {@code @Option} string as a compile-time error. The
+ * constructor uses a generated binder whenever one is present.
+ *
+ * <p><b>Concurrent parsing</b>
+ *
+ * <p>An Options object binds to particular objects and records the options it has parsed, so it
+ * should be used by one thread at a time. A program that parses many command lines concurrently,
+ * such as a server that accepts per-request arguments, should instead build an {@link
+ * OptionsSchema} once and call its {@code parse} method from each thread with a fresh object to
+ * fill in.
+ *
+ * <p>Threads that read options while another thread parses into the same objects, as when a
+ * server is reconfigured at run time, should read them from {@link #getSnapshot}, which never
+ * shows a partly-applied parse, rather than from the fields. Processes on one host that share a
+ * configuration can parse it once and share the snapshots through a {@link SharedSnapshotFile}.
+ *
  * <p><b>Limitations</b>
  *
  * <ul>
@@ -295,8 +339,59 @@ public class Options {
   /** List of all of the defined options. */
   private final List<OptionInfo> options = new ArrayList<OptionInfo>();
 
-  /** Map from short or long option names (with leading dashes) to option information. */
-  private final Map<String, OptionInfo> nameMap = new LinkedHashMap<String, OptionInfo>();
+  /**
+   * The objects whose fields are set, in the order given to the constructor. An element is null if
+   * the corresponding argument was a class, whose static fields are set.
+   */
+  private final /*@Nullable*/ Object[] targets;
+
+  /**
+   * The name map and parsing logic, shared with {@link OptionsSchema}. Replaced by a copy with
+   * different settings when the settings of this object change.
+   */
+  private OptionsSchema schema;
+
+  /**
+   * Whether a long option may be abbreviated to any unique prefix of its name.
+   *
+   * @see #setAllowAbbreviations(boolean)
+   */
+  private boolean allowAbbreviations = false;
+
+  /**
+   * Whether an argument {@code @}<i>file</i> is replaced by the arguments in the file.
+   *
+   * @see #setExpandArgFiles(boolean)
+   */
+  private boolean expandArgFiles = false;
+
+  /**
+   * Configuration files read by {@link #parse(String[])}, in increasing order of precedence.
+   *
+   * @see #setConfigFiles(File...)
+   */
+  private List<File> configFiles = Collections.emptyList();
+
+  /**
+   * The prefix of environment variables that set options, or null.
+   *
+   * @see #setEnvironmentPrefix(String)
+   */
+  private /*@Nullable*/ String environmentPrefix = null;
+
+  /**
+   * The prefix of system properties that set options, or null.
+   *
+   * @see #setSystemPropertyPrefix(String)
+   */
+  private /*@Nullable*/ String systemPropertyPrefix = null;
+
+  /**
+   * Whether {@link #parse(String[])} writes the fields only if every argument succeeds.
+   *
+   * @see #setTransactional(boolean)
+   */
+  private boolean transactional = false;
 
   /** Map from option group name to option group information. */
   private final Map<String, OptionGroupInfo> groupMap =
@@ -329,124 +424,160 @@ public class Options {
     debugEnabled = enabled;
   }
 
-  /** All of the argument options as a single string. Used for debugging. */
-  private String optionsString = "";
+  /**
+   * The names of all of the options that have been set, in order. Element i of this list
+   * corresponds to element i of {@link #optionValues}. Used for {@link #getOptionsString}, which
+   * renders them on demand, so that recording an option takes constant time.
+   */
+  private final List<String> optionNames = new ArrayList<String>();
 
-  /** The system-dependent line separator. */
-  private static String lineSeparator = System.getProperty("line.separator");
+  /** The values of all of the options that have been set, in order; null for a bare boolean. */
+  private final List</*@Nullable*/ String> optionValues = new ArrayList</*@Nullable*/ String>();
 
-  /** Information about an option. */
-  class OptionInfo {
+  /**
+   * The rendering of {@link #optionNames} and {@link #optionValues}, or null if not yet computed.
+   */
+  private /*@Nullable*/ String optionsString = null;
 
-    /** What variable the option sets. */
-    Field field;
+  /** The names of the options, shared by all the snapshots of this Options. */
+  private final OptionsSnapshot.Layout snapshotLayout;
 
-    //    /** Option annotation on the field. */
-    //    Option option;
+  /**
+   * The values of the options as of the most recent completed parse, or as of construction if
+   * there has been none.
+   *
+   * @see #getSnapshot()
+   */
+  private final AtomicReference<OptionsSnapshot> snapshot = new AtomicReference<OptionsSnapshot>();
 
-    /** Object containing the field. Null if the field is static. */
-    /*@UnknownInitialization*/ /*@Raw*/ /*@Nullable*/ Object obj;
+  /** The version of the next snapshot to be published. */
+  private long nextSnapshotVersion = 0;
 
-    /** Short (one-character) argument name. */
-    /*@Nullable*/ String shortName;
+  /** The values of the options when this Options was constructed: their defaults. */
+  private final OptionsSnapshot defaults;
 
-    /** Long argument name. */
-    String longName;
+  /**
+   * For each option, its long name with leading dashes, as written by {@link
+   * #appendCanonicalArgs}; null until first needed.
+   */
+  private String /*@MonotonicNonNull*/ [] canonicalNames = null;
 
-    /** Aliases for this option. */
-    String[] aliases;
+  /**
+   * For each boolean option, {@code <name>=false}, as written by {@link #appendCanonicalArgs}; null
+   * for other options.
+   */
+  private /*@Nullable*/ String /*@MonotonicNonNull*/ [] canonicalFalseArgs = null;
 
-    /** Argument description: the first line. */
-    String description;
+  /** The value of {@link #useSingleDash} when {@link #canonicalNames} were computed. */
+  private boolean canonicalNamesUseSingleDash;
 
-    /** Full Javadoc description. */
-    /*@Nullable*/ String jdoc;
+  /**
+   * Records the values that parsing writes: which options have been set explicitly, and the
+   * fingerprint of the options selected by {@link #setFingerprintOptions}, if any.
+   */
+  private final WriteLog writeLog = new WriteLog();
 
-    /**
-     * Maps names of enum constants to their corresponding Javadoc. This is used by OptionsDoclet to
-     * generate documentation for enum-type options. Null if the baseType is not an Enum.
-     */
-    /*@MonotonicNonNull*/ Map<String, String> enumJdoc;
+  /** Notifies listeners of the options that each completed parse changes. */
+  private final ChangeDispatcher changeDispatcher;
+
+  /**
+   * Whether to record each option for {@link #getOptionsString}.
+   *
+   * @see #setRecordOptionsString(boolean)
+   */
+  private boolean recordOptionsString = true;
+
+  /** The system-dependent line separator. */
+  private static String lineSeparator = System.getProperty("line.separator");
+
+  /**
+   * Static information about an {@code @Option}-annotated field: everything that can be determined
+   * from the field's declaration, without reference to any particular object. A FieldSpec is
+   * obtained either reflectively (see {@link #fromField}) or from a generated {@link OptionsBinder}
+   * (see {@link #fromBinder}). FieldSpecs are cached per class (see {@link #fieldSpecs}) and
+   * shared by all Options instances, so they are never modified after construction.
+   */
+  static class FieldSpec {
+
+    /** The name of the field. */
+    String fieldName;
+
+    /** The class that declares the field. */
+    Class<?> declaringClass;
 
     /**
-     * Name of the argument type. Defaults to the type of the field, but user can override this in
-     * the option string.
+     * The field as {@link Field#toString} prints it, such as {@code public int pkg.C.x}; used in
+     * messages.
      */
-    String typeName;
+    String fieldString;
+
+    /** The declared type of the field. */
+    Class<?> fieldType;
+
+    /** Whether the field is static. */
+    boolean isStatic;
+
+    /** Whether the field is a list. */
+    boolean isList;
 
     /** Class type of this field. If the field is a list, the basetype of the list. */
     Class<?> baseType;
 
-    /** Default value of the option as a string. */
-    /*@Nullable*/ String defaultStr = null;
+    /** The short name, type name, and description from the {@code @Option} annotation. */
+    ParseResult pr;
 
-    /**
-     * If true, the default value string for this option will be excluded from OptionsDoclet
-     * documentation.
-     */
-    boolean noDocDefault = false;
+    /** Aliases for this option. */
+    String[] aliases;
 
-    /** If the option is a list, this references that list. */
-    /*@MonotonicNonNull*/ List<Object> list = null;
+    /** If true, the default value string is excluded from OptionsDoclet documentation. */
+    boolean noDocDefault;
 
-    /** Constructor that takes one String for the type. */
-    /*@Nullable*/ Constructor<?> constructor = null;
+    /** Whether the field is annotated with {@code @Unpublicized}. */
+    boolean unpublicized;
 
-    /**
-     * Factory that takes a string (some classes don't have a string constructor) and always returns
-     * non-null.
-     */
-    /*@Nullable*/ Method factory = null;
+    /** The name of the {@code @OptionGroup} on this field, or null if there is none. */
+    /*@Nullable*/ String groupName;
 
-    /**
-     * If true, this OptionInfo is not output when printing documentation.
-     *
-     * @see #usage()
-     */
-    boolean unpublicized;
+    /** Whether the {@code @OptionGroup} on this field is unpublicized. */
+    boolean groupUnpublicized;
+
+    /** Reads and writes the field. */
+    FieldAccessor accessor;
+
+    /** Converts a string to the base type. Null if the base type is primitive. */
+    /*@Nullable*/ Converter converter;
+
+    /** Converts an argument and stores it in the field; specialized to the field's type. */
+    ArgSetter setter;
 
     /**
-     * Create a new OptionInfo. The short name, type name, and description are taken from the option
-     * parameter. The long name is the name of the field. The default value is the current value of
-     * the field.
+     * Create a FieldSpec by reflecting over an annotated field.
      *
-     * @param field the field to set
-     * @param option the option
-     * @param obj the object whose field will be set; if obj is null, the field must be static
+     * @param field the field
+     * @param option the option annotation on the field
      * @param unpublicized whether the option is unpublicized
+     * @param optionGroup the option group annotation on the field, or null
+     * @return a FieldSpec for the field
      */
-    OptionInfo(
-        Field field,
-        Option option,
-        /*@UnknownInitialization*/ /*@Raw*/ /*@Nullable*/ Object obj,
-        boolean unpublicized) {
-      this.field = field;
-      //      this.option = option;
-      this.obj = obj;
-      this.baseType = field.getType();
-      this.unpublicized = unpublicized;
-      this.aliases = option.aliases();
-      this.noDocDefault = option.noDocDefault();
-
-      // The long name is the name of the field
-      longName = field.getName();
-      if (useDashes) {
-        longName = longName.replace('_', '-');
+    static FieldSpec fromField(
+        Field field, Option option, boolean unpublicized, /*@Nullable*/ OptionGroup optionGroup) {
+      FieldSpec spec = new FieldSpec();
+      spec.fieldName = field.getName();
+      spec.declaringClass = field.getDeclaringClass();
+      spec.fieldString = field.toString();
+      spec.fieldType = field.getType();
+      spec.isStatic = Modifier.isStatic(field.getModifiers());
+      spec.baseType = field.getType();
+      spec.aliases = option.aliases();
+      spec.noDocDefault = option.noDocDefault();
+      spec.unpublicized = unpublicized;
+      if (optionGroup != null) {
+        spec.groupName = optionGroup.value();
+        spec.groupUnpublicized = optionGroup.unpublicized();
       }
-
-      // Get the default value (if any)
-      Object defaultObj = null;
       if (!Modifier.isPublic(field.getModifiers())) {
         throw new Error("option field is not public: " + field);
       }
-      try {
-        defaultObj = field.get(obj);
-        if (defaultObj != null) {
-          defaultStr = defaultObj.toString();
-        }
-      } catch (Exception e) {
-        throw new Error("Unexpected error getting default for " + field, e);
-      }
 
       if (field.getType().isArray()) {
         throw new Error("@Option may not annotate a variable of array type: " + field);
@@ -465,13 +596,1211 @@ public class Options {
                   + " for field "
                   + field);
         }
+        spec.isList = true;
+        Type[] listTypeArgs = pt.getActualTypeArguments();
+        spec.baseType = (Class<?>) (listTypeArgs.length == 0 ? Object.class : listTypeArgs[0]);
+
+        // System.out.printf ("Param type for %s = %s%n", field, pt);
+        // System.out.printf ("raw type = %s, type = %s%n", pt.getRawType(),
+        //                   pt.getActualTypeArguments()[0]);
+      }
+
+      // Only now that the field is known to be a legal option is it resolved, so that an illegal
+      // one is reported as such rather than as inaccessible.
+      spec.accessor = new MethodHandleAccessor(field);
+
+      // Get the short name, type name, and description from the annotation
+      try {
+        spec.pr = parseOption(option.value());
+      } catch (Throwable e) {
+        throw new Error(
+            "Error while processing @Option(\"" + option.value() + "\") on '" + field + "'", e);
+      }
+
+      // Get a constructor for non-primitive base types
+      Class<?> baseType = spec.baseType;
+      if (baseType.isEnum()) {
+        spec.converter = new EnumConverter(baseType);
+      } else if (!baseType.isPrimitive()) {
+        try {
+          MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+          MethodHandle handle;
+          if (baseType == Pattern.class) {
+            handle =
+                lookup.findStatic(
+                    Pattern.class, "compile", MethodType.methodType(Pattern.class, String.class));
+          } else { // look for a string constructor
+            handle = lookup.unreflectConstructor(baseType.getConstructor(String.class));
+          }
+          spec.converter = new MethodHandleConverter(handle);
+        } catch (Exception e) {
+          throw new Error(
+              "@Option does not support type "
+                  + baseType
+                  + " for field "
+                  + field
+                  + " because it does not have a string constructor",
+              e);
+        }
+      }
+      spec.setter = ArgSetter.forSpec(spec);
+      return spec;
+    }
+
+    /**
+     * Create a FieldSpec from the compile-time information in a generated binder.
+     *
+     * @param clazz the class that declares the field
+     * @param binder the binder for {@code clazz}
+     * @param index the index of the field within the binder
+     * @return a FieldSpec for the field
+     */
+    static FieldSpec fromBinder(Class<?> clazz, OptionsBinder binder, int index) {
+      OptionsBinder.Descriptor d = binder.descriptors()[index];
+      FieldSpec spec = new FieldSpec();
+      spec.fieldName = d.fieldName;
+      spec.declaringClass = clazz;
+      try {
+        // findBinder has checked that the field exists.
+        spec.fieldString = clazz.getDeclaredField(d.fieldName).toString();
+      } catch (NoSuchFieldException e) {
+        throw new Error("option field " + d.fieldName + " not found in " + clazz, e);
+      }
+      spec.fieldType = d.fieldType;
+      spec.isStatic = d.isStatic;
+      spec.isList = d.isList;
+      spec.baseType = d.baseType;
+      spec.pr = new ParseResult(d.shortName, d.typeName, d.description);
+      spec.aliases = d.aliases;
+      spec.noDocDefault = d.noDocDefault;
+      spec.unpublicized = d.unpublicized;
+      spec.groupName = d.groupName;
+      spec.groupUnpublicized = d.groupUnpublicized;
+      spec.accessor = new BinderAccessor(binder, index);
+      if (d.baseType.isEnum()) {
+        spec.converter = new EnumConverter(d.baseType);
+      } else if (!d.baseType.isPrimitive()) {
+        spec.converter = new BinderConverter(binder, index);
+      }
+      spec.setter = ArgSetter.forSpec(spec);
+      return spec;
+    }
+  }
+
+  /**
+   * Reads and writes the field underlying an option. The primitive setters avoid boxing when the
+   * accessor supports it; by default they box the value and call {@link #set}.
+   */
+  abstract static class FieldAccessor {
+
+    /**
+     * Returns the value of the field.
+     *
+     * @param obj the object containing the field, or null if the field is static
+     * @return the value of the field
+     */
+    abstract /*@Nullable*/ Object get(/*@Nullable*/ Object obj);
+
+    /**
+     * Sets the field.
+     *
+     * @param obj the object containing the field, or null if the field is static
+     * @param value the new value
+     */
+    abstract void set(/*@Nullable*/ Object obj, /*@Nullable*/ Object value);
+
+    /**
+     * Sets a field of type {@code boolean}.
+     *
+     * @param obj the object containing the field, or null if the field is static
+     * @param value the new value
+     */
+    void setBoolean(/*@Nullable*/ Object obj, boolean value) {
+      set(obj, value);
+    }
+
+    /**
+     * Sets a field of type {@code byte}.
+     *
+     * @param obj the object containing the field, or null if the field is static
+     * @param value the new value
+     */
+    void setByte(/*@Nullable*/ Object obj, byte value) {
+      set(obj, value);
+    }
+
+    /**
+     * Sets a field of type {@code char}.
+     *
+     * @param obj the object containing the field, or null if the field is static
+     * @param value the new value
+     */
+    void setChar(/*@Nullable*/ Object obj, char value) {
+      set(obj, value);
+    }
+
+    /**
+     * Sets a field of type {@code short}.
+     *
+     * @param obj the object containing the field, or null if the field is static
+     * @param value the new value
+     */
+    void setShort(/*@Nullable*/ Object obj, short value) {
+      set(obj, value);
+    }
+
+    /**
+     * Sets a field of type {@code int}.
+     *
+     * @param obj the object containing the field, or null if the field is static
+     * @param value the new value
+     */
+    void setInt(/*@Nullable*/ Object obj, int value) {
+      set(obj, value);
+    }
+
+    /**
+     * Sets a field of type {@code long}.
+     *
+     * @param obj the object containing the field, or null if the field is static
+     * @param value the new value
+     */
+    void setLong(/*@Nullable*/ Object obj, long value) {
+      set(obj, value);
+    }
+
+    /**
+     * Sets a field of type {@code float}.
+     *
+     * @param obj the object containing the field, or null if the field is static
+     * @param value the new value
+     */
+    void setFloat(/*@Nullable*/ Object obj, float value) {
+      set(obj, value);
+    }
+
+    /**
+     * Sets a field of type {@code double}.
+     *
+     * @param obj the object containing the field, or null if the field is static
+     * @param value the new value
+     */
+    void setDouble(/*@Nullable*/ Object obj, double value) {
+      set(obj, value);
+    }
+  }
+
+  /**
+   * Accesses a field via method handles, which are resolved once, when the class's FieldSpecs are
+   * computed. The handles are adapted to take an {@code Object} receiver (ignored for static fields)
+   * so that each call is an exact invocation.
+   */
+  static class MethodHandleAccessor extends FieldAccessor {
+
+    /** The field; used only for error messages. */
+    private final Field field;
+
+    /** Reads the field. Type: {@code (Object)Object}. */
+    private final MethodHandle getter;
+
+    /** Writes the field. Type: {@code (Object,T)void} where T is the field's type. */
+    private final /*@Nullable*/ MethodHandle setter;
+
+    /** Writes the field. Type: {@code (Object,Object)void}. */
+    private final /*@Nullable*/ MethodHandle objectSetter;
+
+    MethodHandleAccessor(Field field) {
+      this.field = field;
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      boolean isStatic = Modifier.isStatic(field.getModifiers());
+      try {
+        MethodHandle g = lookup.unreflectGetter(field);
+        if (isStatic) {
+          g = MethodHandles.dropArguments(g, 0, Object.class);
+        }
+        getter = g.asType(MethodType.methodType(Object.class, Object.class));
+      } catch (IllegalAccessException e) {
+        throw new Error("option field is not accessible: " + field, e);
+      }
+      MethodHandle s;
+      try {
+        s = lookup.unreflectSetter(field);
+        if (isStatic) {
+          s = MethodHandles.dropArguments(s, 0, Object.class);
+        }
+      } catch (IllegalAccessException e) {
+        // A final field.  Report an error only if the user tries to set it.
+        s = null;
+      }
+      if (s == null) {
+        setter = null;
+        objectSetter = null;
+      } else {
+        setter = s.asType(MethodType.methodType(void.class, Object.class, field.getType()));
+        objectSetter = s.asType(MethodType.methodType(void.class, Object.class, Object.class));
+      }
+    }
+
+    /**
+     * Returns the setter, or throws an Error if the field cannot be set.
+     *
+     * @param handle the setter to check
+     * @return {@code handle}
+     */
+    private MethodHandle checkSetter(/*@Nullable*/ MethodHandle handle) {
+      if (handle == null) {
+        throw new Error("Unexpected error setting final field " + field);
+      }
+      return handle;
+    }
+
+    @Override
+    /*@Nullable*/ Object get(/*@Nullable*/ Object obj) {
+      try {
+        return (Object) getter.invokeExact(obj);
+      } catch (Throwable e) {
+        throw new Error("unexpected exception reading field " + field, e);
+      }
+    }
+
+    @Override
+    void set(/*@Nullable*/ Object obj, /*@Nullable*/ Object value) {
+      MethodHandle handle = checkSetter(objectSetter);
+      try {
+        handle.invokeExact(obj, value);
+      } catch (Throwable e) {
+        throw new Error("Unexpected error setting " + field, e);
+      }
+    }
+
+    @Override
+    void setBoolean(/*@Nullable*/ Object obj, boolean value) {
+      MethodHandle handle = checkSetter(setter);
+      try {
+        handle.invokeExact(obj, value);
+      } catch (Throwable e) {
+        throw new Error("Unexpected error setting " + field, e);
+      }
+    }
+
+    @Override
+    void setByte(/*@Nullable*/ Object obj, byte value) {
+      MethodHandle handle = checkSetter(setter);
+      try {
+        handle.invokeExact(obj, value);
+      } catch (Throwable e) {
+        throw new Error("Unexpected error setting " + field, e);
+      }
+    }
+
+    @Override
+    void setChar(/*@Nullable*/ Object obj, char value) {
+      MethodHandle handle = checkSetter(setter);
+      try {
+        handle.invokeExact(obj, value);
+      } catch (Throwable e) {
+        throw new Error("Unexpected error setting " + field, e);
+      }
+    }
+
+    @Override
+    void setShort(/*@Nullable*/ Object obj, short value) {
+      MethodHandle handle = checkSetter(setter);
+      try {
+        handle.invokeExact(obj, value);
+      } catch (Throwable e) {
+        throw new Error("Unexpected error setting " + field, e);
+      }
+    }
+
+    @Override
+    void setInt(/*@Nullable*/ Object obj, int value) {
+      MethodHandle handle = checkSetter(setter);
+      try {
+        handle.invokeExact(obj, value);
+      } catch (Throwable e) {
+        throw new Error("Unexpected error setting " + field, e);
+      }
+    }
+
+    @Override
+    void setLong(/*@Nullable*/ Object obj, long value) {
+      MethodHandle handle = checkSetter(setter);
+      try {
+        handle.invokeExact(obj, value);
+      } catch (Throwable e) {
+        throw new Error("Unexpected error setting " + field, e);
+      }
+    }
+
+    @Override
+    void setFloat(/*@Nullable*/ Object obj, float value) {
+      MethodHandle handle = checkSetter(setter);
+      try {
+        handle.invokeExact(obj, value);
+      } catch (Throwable e) {
+        throw new Error("Unexpected error setting " + field, e);
+      }
+    }
+
+    @Override
+    void setDouble(/*@Nullable*/ Object obj, double value) {
+      MethodHandle handle = checkSetter(setter);
+      try {
+        handle.invokeExact(obj, value);
+      } catch (Throwable e) {
+        throw new Error("Unexpected error setting " + field, e);
+      }
+    }
+  }
+
+  /** Accesses a field via a generated {@link OptionsBinder}. */
+  static class BinderAccessor extends FieldAccessor {
+
+    /** The binder for the class that declares the field. */
+    private final OptionsBinder binder;
+
+    /** The index of the field within the binder. */
+    private final int index;
+
+    BinderAccessor(OptionsBinder binder, int index) {
+      this.binder = binder;
+      this.index = index;
+    }
+
+    @Override
+    /*@Nullable*/ Object get(/*@Nullable*/ Object obj) {
+      return binder.get(index, obj);
+    }
+
+    @Override
+    void set(/*@Nullable*/ Object obj, /*@Nullable*/ Object value) {
+      binder.set(index, obj, value);
+    }
+
+    @Override
+    void setBoolean(/*@Nullable*/ Object obj, boolean value) {
+      binder.setBoolean(index, obj, value);
+    }
+
+    @Override
+    void setByte(/*@Nullable*/ Object obj, byte value) {
+      binder.setLong(index, obj, value);
+    }
+
+    @Override
+    void setChar(/*@Nullable*/ Object obj, char value) {
+      binder.setLong(index, obj, value);
+    }
+
+    @Override
+    void setShort(/*@Nullable*/ Object obj, short value) {
+      binder.setLong(index, obj, value);
+    }
+
+    @Override
+    void setInt(/*@Nullable*/ Object obj, int value) {
+      binder.setLong(index, obj, value);
+    }
+
+    @Override
+    void setLong(/*@Nullable*/ Object obj, long value) {
+      binder.setLong(index, obj, value);
+    }
+
+    @Override
+    void setFloat(/*@Nullable*/ Object obj, float value) {
+      binder.setDouble(index, obj, value);
+    }
+
+    @Override
+    void setDouble(/*@Nullable*/ Object obj, double value) {
+      binder.setDouble(index, obj, value);
+    }
+  }
+
+  /** Converts a command-line string to a value of an option's (non-primitive) base type. */
+  abstract static class Converter {
+
+    /**
+     * Converts the given string.
+     *
+     * @param value the command-line string
+     * @return the converted value
+     * @throws Exception if the string cannot be converted
+     */
+    abstract Object convert(String value) throws Exception;
+  }
+
+  /** Converts by calling a string constructor or a static factory method via a method handle. */
+  static class MethodHandleConverter extends Converter {
+
+    /** The constructor or factory. Type: {@code (String)Object}. */
+    private final MethodHandle handle;
+
+    MethodHandleConverter(MethodHandle handle) {
+      this.handle = handle.asType(MethodType.methodType(Object.class, String.class));
+    }
+
+    @Override
+    Object convert(String value) throws Exception {
+      try {
+        return (Object) handle.invokeExact(value);
+      } catch (Exception e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new InvocationTargetException(e);
+      }
+    }
+  }
+
+  /** Converts by calling generated code in an {@link OptionsBinder}. */
+  static class BinderConverter extends Converter {
+
+    /** The binder for the class that declares the field. */
+    private final OptionsBinder binder;
+
+    /** The index of the field within the binder. */
+    private final int index;
+
+    BinderConverter(OptionsBinder binder, int index) {
+      this.binder = binder;
+      this.index = index;
+    }
+
+    @Override
+    Object convert(String value) throws Exception {
+      return binder.convert(index, value);
+    }
+  }
+
+  /** Converts to an enum constant; see {@link #getEnumValue}. */
+  static class EnumConverter extends Converter {
+
+    /** The enum type. */
+    @SuppressWarnings("rawtypes")
+    private final Class<Enum> enumType;
+
+    /** The constants of the enum type, fetched once. */
+    @SuppressWarnings("rawtypes")
+    private final Enum[] constants;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    EnumConverter(Class<?> enumType) {
+      this.enumType = (Class<Enum>) enumType;
+      Enum[] constants = this.enumType.getEnumConstants();
+      if (constants == null) {
+        throw new IllegalArgumentException(enumType.getName() + " is not an enum type");
+      }
+      this.constants = constants;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    Object convert(String value) {
+      return getEnumValue(enumType, constants, value);
+    }
+
+    /**
+     * Like {@link #convert}, but reads the name directly from {@code s[start..end)}, without
+     * allocating.
+     *
+     * @param s a string containing the name of a constant
+     * @param start the index of the first character of the name
+     * @param end the index after the last character of the name
+     * @return the constant, or null if there is none with the given name
+     */
+    /*@Nullable*/ Object convert(String s, int start, int end) {
+      for (Enum<?> constant : constants) {
+        if (enumNameMatches(constant.name(), s, start, end)) {
+          return constant;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Converts an argument string and stores the result in an option's field. There is one subclass
+   * per kind of field, chosen once per FieldSpec by {@link #forSpec}, so that setting an option
+   * does not test the field's type. The call that {@link OptionsSchema} makes to {@link #set} is
+   * still a virtual call: where options of several types are set, it is megamorphic, as a call
+   * through a per-option MethodHandle would be. What is saved is the chain of type tests and the
+   * reflective calls, not the dispatch.
+   *
+   * <p>Setters for primitive, boolean, and non-list enum fields read the value directly from the
+   * characters of the command-line argument and do not allocate, except to report an error. The
+   * float and double setters are an exception: they use the JDK's parsers.
+   *
+   * <p>{@link #convert} performs the same conversion without storing the result, for a parse that
+   * stages its values and writes the fields only once every argument has been converted.
+   */
+  abstract static class ArgSetter {
+
+    /**
+     * Converts the value of {@code arg} and stores it in the field described by {@code spec}.
+     *
+     * @param spec the field to set
+     * @param obj the object containing the field, or null if the field is static
+     * @param arg the name and value of the option as passed on the command line
+     * @param splitLists whether to split an argument to a list on spaces; see {@link
+     *     #spaceSeparatedLists}
+     * @throws ArgException if the value cannot be converted
+     */
+    abstract void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException;
+
+    /**
+     * Converts the value of {@code arg} to the type of the field described by {@code spec}, without
+     * storing it. A primitive value is boxed. For a list field, returns a new list of the elements
+     * to be added to the field.
+     *
+     * @param spec the field
+     * @param arg the name and value of the option as passed on the command line
+     * @param splitLists whether to split an argument to a list on spaces; see {@link
+     *     #spaceSeparatedLists}
+     * @return the converted value
+     * @throws ArgException if the value cannot be converted
+     */
+    abstract Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException;
+
+    /**
+     * Returns the setter for the given field.
+     *
+     * @param spec static information about a field
+     * @return the setter for the field
+     */
+    static ArgSetter forSpec(FieldSpec spec) {
+      Class<?> type = spec.baseType;
+      if (spec.isList) {
+        return new ListSetter();
+      } else if (type.isEnum()) {
+        return new EnumSetter();
+      } else if (!type.isPrimitive()) {
+        return new RefSetter();
+      } else if (type == Boolean.TYPE) {
+        return new BooleanSetter();
+      } else if (type == Byte.TYPE) {
+        return new ByteSetter();
+      } else if (type == Character.TYPE) {
+        return new CharSetter();
+      } else if (type == Short.TYPE) {
+        return new ShortSetter();
+      } else if (type == Integer.TYPE) {
+        return new IntSetter();
+      } else if (type == Long.TYPE) {
+        return new LongSetter();
+      } else if (type == Float.TYPE) {
+        return new FloatSetter();
+      } else if (type == Double.TYPE) {
+        return new DoubleSetter();
+      } else { // unexpected type
+        throw new Error("Unexpected type " + type);
+      }
+    }
+  }
+
+  /** Sets a {@code boolean} field. */
+  static class BooleanSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      spec.accessor.setBoolean(obj, parse(arg));
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      return parse(arg);
+    }
+
+    /**
+     * Converts the value of an argument to a boolean.
+     *
+     * @param arg the name and value of the option
+     * @return the value
+     * @throws ArgException if the value is not a boolean
+     */
+    private static boolean parse(ArgSlice arg) throws ArgException {
+      if (arg.valueEqualsIgnoreCase("true") || arg.valueEqualsIgnoreCase("t")) {
+        return true;
+      } else if (arg.valueEqualsIgnoreCase("false") || arg.valueEqualsIgnoreCase("f")) {
+        return false;
+      } else {
+        throw new ArgException(
+            "Value \"%s\" for argument %s is not a boolean", arg.value(), arg.name());
+      }
+    }
+  }
+
+  /** Sets a {@code byte} field. */
+  static class ByteSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      spec.accessor.setByte(obj, parse(arg));
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      return parse(arg);
+    }
+
+    /**
+     * Converts the value of an argument to a byte.
+     *
+     * @param arg the name and value of the option
+     * @return the value
+     * @throws ArgException if the value is not a byte
+     */
+    private static byte parse(ArgSlice arg) throws ArgException {
+      try {
+        return (byte) arg.decodeValue(Byte.MIN_VALUE, Byte.MAX_VALUE);
+      } catch (NumberFormatException e) {
+        throw new ArgException(
+            "Value \"%s\" for argument %s is not a byte", arg.value(), arg.name());
+      }
+    }
+  }
+
+  /** Sets a {@code char} field. */
+  static class CharSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      spec.accessor.setChar(obj, parse(arg));
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      return parse(arg);
+    }
+
+    /**
+     * Converts the value of an argument to a char.
+     *
+     * @param arg the name and value of the option
+     * @return the value
+     * @throws ArgException if the value is not a single character
+     */
+    private static char parse(ArgSlice arg) throws ArgException {
+      if (arg.valueEnd - arg.valueStart != 1) {
+        throw new ArgException(
+            "Value \"%s\" for argument %s is not a single character", arg.value(), arg.name());
+      }
+      return arg.valueSource.charAt(arg.valueStart);
+    }
+  }
+
+  /** Sets a {@code short} field. */
+  static class ShortSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      spec.accessor.setShort(obj, parse(arg));
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      return parse(arg);
+    }
+
+    /**
+     * Converts the value of an argument to a short.
+     *
+     * @param arg the name and value of the option
+     * @return the value
+     * @throws ArgException if the value is not a short integer
+     */
+    private static short parse(ArgSlice arg) throws ArgException {
+      try {
+        return (short) arg.decodeValue(Short.MIN_VALUE, Short.MAX_VALUE);
+      } catch (NumberFormatException e) {
+        throw new ArgException(
+            "Value \"%s\" for argument %s is not a short integer", arg.value(), arg.name());
+      }
+    }
+  }
+
+  /** Sets an {@code int} field. */
+  static class IntSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      spec.accessor.setInt(obj, parse(arg));
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      return parse(arg);
+    }
+
+    /**
+     * Converts the value of an argument to an int.
+     *
+     * @param arg the name and value of the option
+     * @return the value
+     * @throws ArgException if the value is not an integer
+     */
+    private static int parse(ArgSlice arg) throws ArgException {
+      try {
+        return (int) arg.decodeValue(Integer.MIN_VALUE, Integer.MAX_VALUE);
+      } catch (NumberFormatException e) {
+        throw new ArgException(
+            "Value \"%s\" for argument %s is not an integer", arg.value(), arg.name());
+      }
+    }
+  }
+
+  /** Sets a {@code long} field. */
+  static class LongSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      spec.accessor.setLong(obj, parse(arg));
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      return parse(arg);
+    }
+
+    /**
+     * Converts the value of an argument to a long.
+     *
+     * @param arg the name and value of the option
+     * @return the value
+     * @throws ArgException if the value is not a long integer
+     */
+    private static long parse(ArgSlice arg) throws ArgException {
+      try {
+        return arg.decodeValue(Long.MIN_VALUE, Long.MAX_VALUE);
+      } catch (NumberFormatException e) {
+        throw new ArgException(
+            "Value \"%s\" for argument %s is not a long integer", arg.value(), arg.name());
+      }
+    }
+  }
+
+  /** Sets a {@code float} field. */
+  static class FloatSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      spec.accessor.setFloat(obj, parse(arg));
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      return parse(arg);
+    }
+
+    /**
+     * Converts the value of an argument to a float.
+     *
+     * @param arg the name and value of the option
+     * @return the value
+     * @throws ArgException if the value is not a float
+     */
+    private static float parse(ArgSlice arg) throws ArgException {
+      try {
+        return Float.parseFloat(arg.value());
+      } catch (Exception e) {
+        throw new ArgException(
+            "Value \"%s\" for argument %s is not a float", arg.value(), arg.name());
+      }
+    }
+  }
+
+  /** Sets a {@code double} field. */
+  static class DoubleSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      spec.accessor.setDouble(obj, parse(arg));
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      return parse(arg);
+    }
+
+    /**
+     * Converts the value of an argument to a double.
+     *
+     * @param arg the name and value of the option
+     * @return the value
+     * @throws ArgException if the value is not a double
+     */
+    private static double parse(ArgSlice arg) throws ArgException {
+      try {
+        return Double.parseDouble(arg.value());
+      } catch (Exception e) {
+        throw new ArgException(
+            "Value \"%s\" for argument %s is not a double", arg.value(), arg.name());
+      }
+    }
+  }
+
+  /** Sets an enum field that is not a list. */
+  static class EnumSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      spec.accessor.set(obj, convert(spec, arg, splitLists));
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      assert spec.converter != null : "@AssumeAssertion(nullness): enum options have a converter";
+      assert arg.valueSource != null : "@AssumeAssertion(nullness): value has been set";
+      EnumConverter converter = (EnumConverter) spec.converter;
+      Object val = converter.convert(arg.valueSource, arg.valueStart, arg.valueEnd);
+      if (val == null) {
+        throw new ArgException(
+            "Invalid argument (%s) for argument %s", arg.value(), arg.name());
+      }
+      return val;
+    }
+  }
+
+  /** Sets a field of reference type that is not a list. */
+  static class RefSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      spec.accessor.set(obj, convert(spec, arg, splitLists));
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      return getRefArg(spec, arg.name(), arg.value());
+    }
+  }
+
+  /**
+   * Adds to a list field. Adds repeated arguments, or multiple blank-separated arguments if lists
+   * are space-separated, to the list. Creates the list if the field is null.
+   */
+  static class ListSetter extends ArgSetter {
+    @Override
+    void set(FieldSpec spec, /*@Nullable*/ Object obj, ArgSlice arg, boolean splitLists)
+        throws ArgException {
+      @SuppressWarnings("unchecked")
+      List<Object> list = (List<Object>) spec.accessor.get(obj);
+      if (list == null) {
+        list = new ArrayList<Object>();
+        spec.accessor.set(obj, list);
+      }
+      addElements(spec, list, arg, splitLists);
+    }
+
+    @Override
+    Object convert(FieldSpec spec, ArgSlice arg, boolean splitLists) throws ArgException {
+      List<Object> elements = new ArrayList<Object>();
+      addElements(spec, elements, arg, splitLists);
+      return elements;
+    }
+
+    /**
+     * Converts the value of an argument to one or more list elements, and adds them to a list.
+     *
+     * @param spec the field
+     * @param list the list to which to add the elements
+     * @param arg the name and value of the option
+     * @param splitLists whether to split the value on spaces
+     * @throws ArgException if an element cannot be converted
+     */
+    private static void addElements(
+        FieldSpec spec, List<Object> list, ArgSlice arg, boolean splitLists) throws ArgException {
+      String argName = arg.name();
+      String argValue = arg.value();
+      if (splitLists) {
+        String[] aarr = argValue.split("  *");
+        for (String aval : aarr) {
+          Object val = getRefArg(spec, argName, aval);
+          list.add(val); // uncheck cast
+        }
+      } else {
+        Object val = getRefArg(spec, argName, argValue);
+        list.add(val);
+      }
+    }
+  }
+
+  /**
+   * The name and value of one option on the command line, as ranges of characters in the original
+   * arguments. Setters read the value from the characters directly; {@link #name} and {@link
+   * #value} create strings only when they are needed. One ArgSlice is reused for every option of a
+   * call to {@link #parse(String[])}.
+   */
+  static final class ArgSlice {
+
+    /** The string that contains the option name. */
+    String nameSource = "";
+
+    /** The index of the first character of the option name. */
+    int nameStart;
+
+    /** The index after the last character of the option name. */
+    int nameEnd;
+
+    /** The string that contains the value, or null if no value was given. */
+    /*@Nullable*/ String valueSource;
+
+    /** The index of the first character of the value. */
+    int valueStart;
+
+    /** The index after the last character of the value. */
+    int valueEnd;
+
+    /**
+     * Sets the name of this option.
+     *
+     * @param source the string that contains the name
+     * @param start the index of the first character of the name
+     * @param end the index after the last character of the name
+     */
+    void setName(String source, int start, int end) {
+      nameSource = source;
+      nameStart = start;
+      nameEnd = end;
+    }
+
+    /**
+     * Sets the value of this option.
+     *
+     * @param source the string that contains the value, or null if there is no value
+     * @param start the index of the first character of the value
+     * @param end the index after the last character of the value
+     */
+    void setValue(/*@Nullable*/ String source, int start, int end) {
+      valueSource = source;
+      valueStart = start;
+      valueEnd = end;
+    }
+
+    /**
+     * Returns the option name, as a new string if necessary.
+     *
+     * @return the option name
+     */
+    String name() {
+      return substring(nameSource, nameStart, nameEnd);
+    }
+
+    /**
+     * Returns the value, as a new string if necessary. Must not be called if there is no value.
+     *
+     * @return the value
+     */
+    String value() {
+      assert valueSource != null : "@AssumeAssertion(nullness): value has been set";
+      return substring(valueSource, valueStart, valueEnd);
+    }
+
+    /**
+     * Returns the value, or null if there is none.
+     *
+     * @return the value, or null
+     */
+    /*@Nullable*/ String valueOrNull() {
+      return valueSource == null ? null : value();
+    }
+
+    /**
+     * Returns true if the value equals {@code s}, ignoring case.
+     *
+     * @param s a string
+     * @return true if the value equals {@code s}, ignoring case
+     */
+    boolean valueEqualsIgnoreCase(String s) {
+      assert valueSource != null : "@AssumeAssertion(nullness): value has been set";
+      return valueEnd - valueStart == s.length()
+          && valueSource.regionMatches(true, valueStart, s, 0, s.length());
+    }
+
+    /**
+     * Decodes the value as an integer, accepting the same syntax as {@link Long#decode}: an
+     * optional sign followed by a decimal number, a hexadecimal number prefixed by {@code 0x},
+     * {@code 0X}, or {@code #}, or an octal number prefixed by {@code 0}.
+     *
+     * @param min the least permitted value
+     * @param max the greatest permitted value
+     * @return the decoded value
+     * @throws NumberFormatException if the value is not an integer between min and max
+     */
+    long decodeValue(long min, long max) {
+      assert valueSource != null : "@AssumeAssertion(nullness): value has been set";
+      String s = valueSource;
+      int i = valueStart;
+      int end = valueEnd;
+      if (i == end) {
+        throw new NumberFormatException("Zero length string");
+      }
+      boolean negative = false;
+      char first = s.charAt(i);
+      if (first == '-' || first == '+') {
+        negative = (first == '-');
+        i++;
+      }
+      int radix = 10;
+      if (s.startsWith("0x", i) || s.startsWith("0X", i)) {
+        radix = 16;
+        i += 2;
+      } else if (s.startsWith("#", i)) {
+        radix = 16;
+        i++;
+      } else if (s.startsWith("0", i) && end - i > 1) {
+        radix = 8;
+        i++;
+      }
+      if (i == end || s.charAt(i) == '-' || s.charAt(i) == '+') {
+        throw new NumberFormatException(value());
+      }
+      // Accumulate negatively, as Long.parseLong does, so that min is representable.
+      long limit = negative ? min : -max;
+      long multmin = limit / radix;
+      long result = 0;
+      for (; i < end; i++) {
+        int digit = Character.digit(s.charAt(i), radix);
+        if (digit < 0 || result < multmin) {
+          throw new NumberFormatException(value());
+        }
+        result *= radix;
+        if (result < limit + digit) {
+          throw new NumberFormatException(value());
+        }
+        result -= digit;
+      }
+      return negative ? result : -result;
+    }
+
+    /**
+     * Returns {@code s[start..end)}, without copying if that is all of {@code s}.
+     *
+     * @param s a string
+     * @param start the index of the first character
+     * @param end the index after the last character
+     * @return {@code s[start..end)}
+     */
+    private static String substring(String s, int start, int end) {
+      return (start == 0 && end == s.length()) ? s : s.substring(start, end);
+    }
+  }
+
+  /** Information about an option. */
+  class OptionInfo {
+
+    /** Static information about the variable the option sets; shared across Options instances. */
+    FieldSpec spec;
+
+    /** The name of the variable the option sets. */
+    String fieldName;
+
+    /** The class that declares the variable the option sets. */
+    Class<?> declaringClass;
+
+    /** The declared type of the variable the option sets. */
+    Class<?> fieldType;
+
+    /** Reads and writes the variable the option sets. */
+    FieldAccessor accessor;
+
+    /** Converts argument strings to the base type. Null if the base type is primitive. */
+    /*@Nullable*/ Converter converter;
+
+    //    /** Option annotation on the field. */
+    //    Option option;
+
+    /** Object containing the field. Null if the field is static. */
+    /*@UnknownInitialization*/ /*@Raw*/ /*@Nullable*/ Object obj;
+
+    /** Short (one-character) argument name. */
+    /*@Nullable*/ String shortName;
+
+    /** Long argument name. */
+    String longName;
+
+    /** Aliases for this option. */
+    String[] aliases;
+
+    /** Argument description: the first line. */
+    String description;
+
+    /** Full Javadoc description. */
+    /*@Nullable*/ String jdoc;
+
+    /**
+     * Maps names of enum constants to their corresponding Javadoc. This is used by OptionsDoclet to
+     * generate documentation for enum-type options. Null if the baseType is not an Enum.
+     */
+    /*@MonotonicNonNull*/ Map<String, String> enumJdoc;
+
+    /**
+     * Name of the argument type. Defaults to the type of the field, but user can override this in
+     * the option string.
+     */
+    String typeName;
+
+    /** Class type of this field. If the field is a list, the basetype of the list. */
+    Class<?> baseType;
+
+    /** Default value of the option as a string. */
+    /*@Nullable*/ String defaultStr = null;
+
+    /**
+     * If true, the default value string for this option will be excluded from OptionsDoclet
+     * documentation.
+     */
+    boolean noDocDefault = false;
+
+    /** If the option is a list, this references that list. */
+    /*@MonotonicNonNull*/ List<Object> list = null;
+
+    /**
+     * If true, this OptionInfo is not output when printing documentation.
+     *
+     * @see #usage()
+     */
+    boolean unpublicized;
+
+    /**
+     * Create a new OptionInfo. The short name, type name, and description are taken from the field
+     * specification. The long name is the name of the field. The default value is the current value
+     * of the field.
+     *
+     * @param spec static information about the field to set
+     * @param obj the object whose field will be set; if obj is null, the field must be static
+     */
+    OptionInfo(FieldSpec spec, /*@UnknownInitialization*/ /*@Raw*/ /*@Nullable*/ Object obj) {
+      this.spec = spec;
+      this.fieldName = spec.fieldName;
+      this.declaringClass = spec.declaringClass;
+      this.fieldType = spec.fieldType;
+      this.accessor = spec.accessor;
+      this.converter = spec.converter;
+      this.obj = obj;
+      this.baseType = spec.baseType;
+      this.unpublicized = spec.unpublicized;
+      this.aliases = spec.aliases;
+      this.noDocDefault = spec.noDocDefault;
+
+      // The long name is the name of the field
+      longName = spec.fieldName;
+      if (useDashes) {
+        longName = longName.replace('_', '-');
+      }
+
+      // Get the default value (if any)
+      Object defaultObj = accessor.get(obj);
+      if (defaultObj != null) {
+        defaultStr = defaultObj.toString();
+      }
+
+      if (spec.isList) {
         if (defaultObj == null) {
           List<Object> newList = new ArrayList<Object>();
-          try {
-            field.set(obj, newList);
-          } catch (Exception e) {
-            throw new Error("Unexpected error setting default for " + field, e);
-          }
+          accessor.set(obj, newList);
           defaultObj = newList;
         }
         if (((List<?>) defaultObj).isEmpty()) {
@@ -481,48 +1810,15 @@ public class Options {
         List<Object> defaultObjAsList = (List<Object>) defaultObj;
         this.list = defaultObjAsList;
         // System.out.printf ("list default = %s%n", list);
-        Type[] listTypeArgs = pt.getActualTypeArguments();
-        this.baseType = (Class<?>) (listTypeArgs.length == 0 ? Object.class : listTypeArgs[0]);
-
-        // System.out.printf ("Param type for %s = %s%n", field, pt);
-        // System.out.printf ("raw type = %s, type = %s%n", pt.getRawType(),
-        //                   pt.getActualTypeArguments()[0]);
       }
 
-      // Get the short name, type name, and description from the annotation
-      ParseResult pr;
-      try {
-        pr = parseOption(option.value());
-      } catch (Throwable e) {
-        throw new Error(
-            "Error while processing @Option(\"" + option.value() + "\") on '" + field + "'", e);
-      }
-      shortName = pr.shortName;
-      if (pr.typeName != null) {
-        typeName = pr.typeName;
+      shortName = spec.pr.shortName;
+      if (spec.pr.typeName != null) {
+        typeName = spec.pr.typeName;
       } else {
         typeName = typeShortName(baseType);
       }
-      description = pr.description;
-
-      // Get a constructor for non-primitive base types
-      if (!baseType.isPrimitive() && !baseType.isEnum()) {
-        try {
-          if (baseType == Pattern.class) {
-            factory = Pattern.class.getMethod("compile", String.class);
-          } else { // look for a string constructor
-            constructor = baseType.getConstructor(String.class);
-          }
-        } catch (Exception e) {
-          throw new Error(
-              "@Option does not support type "
-                  + baseType
-                  + " for field "
-                  + field
-                  + " because it does not have a string constructor",
-              e);
-        }
-      }
+      description = spec.pr.description;
     }
 
     /**
@@ -531,7 +1827,7 @@ public class Options {
      * @return whether or not this option has a required argument
      */
     public boolean argumentRequired() {
-      Class<?> type = field.getType();
+      Class<?> type = fieldType;
       return (type != Boolean.TYPE) && (type != Boolean.class);
     }
 
@@ -560,12 +1856,27 @@ public class Options {
     @Override
     /*@SideEffectFree*/
     public String toString(/*>>>@GuardSatisfied OptionInfo this*/) {
-      String prefix = useSingleDash ? "-" : "--";
-      String shortNameStr = "";
+      StringBuilder sb = new StringBuilder();
+      try {
+        appendTo(sb);
+      } catch (IOException e) {
+        throw new Error("StringBuilder threw " + e, e);
+      }
+      return sb.toString();
+    }
+
+    /**
+     * Writes the description returned by {@link #toString} to {@code out}.
+     *
+     * @param out where to write the description
+     * @throws IOException if {@code out} throws it
+     */
+    void appendTo(Appendable out) throws IOException {
       if (shortName != null) {
-        shortNameStr = "-" + shortName + " ";
+        out.append('-').append(shortName).append(' ');
       }
-      return String.format("%s%s%s field %s", shortNameStr, prefix, longName, field);
+      out.append(useSingleDash ? "-" : "--").append(longName);
+      out.append(" field ").append(spec.fieldString);
     }
 
     /**
@@ -574,7 +1885,7 @@ public class Options {
      * @return the class that declares this option
      */
     public Class<?> getDeclaringClass() {
-      return field.getDeclaringClass();
+      return declaringClass;
     }
   }
 
@@ -600,12 +1911,6 @@ public class Options {
       this.unpublicized = unpublicized;
     }
 
-    OptionGroupInfo(OptionGroup optionGroup) {
-      optionList = new ArrayList<OptionInfo>();
-      this.name = optionGroup.value();
-      this.unpublicized = optionGroup.unpublicized();
-    }
-
     /**
      * If false, this group of options does not contain any publicized options, so it will not be
      * included in the default usage message.
@@ -654,8 +1959,13 @@ public class Options {
     // true once the first @Option annotation is observed, false until then.
     boolean seenFirstOpt = false;
 
+    targets = new Object[args.length];
+    Class<?>[] classes = new Class<?>[args.length];
+    List<OptionsSchema.Entry> entries = new ArrayList<OptionsSchema.Entry>();
+
     // Loop through each specified object or class
-    for (Object obj : args) {
+    for (int targetIndex = 0; targetIndex < args.length; targetIndex++) {
+      Object obj = args[targetIndex];
       boolean isClass = obj instanceof Class<?>;
       String currentGroup = null;
 
@@ -668,61 +1978,39 @@ public class Options {
       if (mainClass == Void.TYPE) {
         mainClass = clazz;
       }
-      Field[] fields = clazz.getDeclaredFields();
-
-      for (Field f : fields) {
+      targets[targetIndex] = isClass ? null : obj;
+      classes[targetIndex] = clazz;
+      for (FieldSpec spec : fieldSpecs(clazz)) {
         try {
           // Possible exception because "obj" is not yet initialized; catch it and proceed
           @SuppressWarnings("cast")
           Object objNonraw = (/*@Initialized*/ /*@NonRaw*/ Object) obj;
           if (debugEnabled) {
-            System.err.printf("Considering field %s of object %s%n", f, objNonraw);
+            System.err.printf("Considering field %s of object %s%n", spec.fieldName, objNonraw);
           }
         } catch (Throwable t) {
-          if (debugEnabled) {
-            System.err.printf("Considering field %s of object of type %s%n", f, obj.getClass());
-          }
-        }
-        try {
           if (debugEnabled) {
             System.err.printf(
-                "  with annotations %s%n", Arrays.toString(f.getDeclaredAnnotations()));
-          }
-        } catch (java.lang.ArrayStoreException e) {
-          if (e.getMessage() != null
-              && Objects.equals(
-                  e.getMessage(), "sun.reflect.annotation.TypeNotPresentExceptionProxy")) {
-            if (debugEnabled) {
-              System.err.printf("  with TypeNotPresentExceptionProxy while getting annotations%n");
-            }
-          } else {
-            throw e;
+                "Considering field %s of object of type %s%n", spec.fieldName, obj.getClass());
           }
         }
-        Option option = safeGetAnnotation(f, Option.class);
-        if (option == null) {
-          continue;
-        }
 
-        boolean unpublicized = safeGetAnnotation(f, Unpublicized.class) != null;
-
-        if (isClass && !Modifier.isStatic(f.getModifiers())) {
-          throw new Error("non-static option " + f + " in class " + obj);
+        if (isClass && !spec.isStatic) {
+          throw new Error(
+              "non-static option " + spec.fieldString + " in class " + obj);
         }
 
         @SuppressWarnings(
             "initialization") // new C(underInit) yields @UnderInitialization; @Initialized is safe
-        /*@Initialized*/ OptionInfo oi =
-            new OptionInfo(f, option, isClass ? null : obj, unpublicized);
+        /*@Initialized*/ OptionInfo oi = new OptionInfo(spec, isClass ? null : obj);
         options.add(oi);
-
-        OptionGroup optionGroup = safeGetAnnotation(f, OptionGroup.class);
+        entries.add(new OptionsSchema.Entry(spec, targetIndex, entries.size(), useDashes));
 
         if (!seenFirstOpt) {
           seenFirstOpt = true;
           // This is the first @Option annotation encountered so we can decide
           // now if the user intends to use option groups.
-          if (optionGroup != null) {
+          if (spec.groupName != null) {
             hasGroups = true;
           } else {
             continue;
@@ -730,7 +2018,7 @@ public class Options {
         }
 
         if (!hasGroups) {
-          if (optionGroup != null) {
+          if (spec.groupName != null) {
             // The user included an @OptionGroup annotation in their code
             // without including an @OptionGroup annotation on the first
             // @Option-annotated field, hence violating the requirement.
@@ -750,15 +2038,16 @@ public class Options {
         // we can check that the first @Option-annotated field of every
         // class/object in 'args' has an @OptionGroup annotation when hasGroups
         // is true, as required.
-        if (currentGroup == null && optionGroup == null) {
+        if (currentGroup == null && spec.groupName == null) {
           // NOTE: changing this error string requires changes to TestPlume
-          throw new Error("missing @OptionGroup annotation in field " + f + " of class " + obj);
-        } else if (optionGroup != null) {
-          String name = optionGroup.value();
+          throw new Error(
+              "missing @OptionGroup annotation in field " + spec.fieldString + " of class " + obj);
+        } else if (spec.groupName != null) {
+          String name = spec.groupName;
           if (groupMap.containsKey(name)) {
             throw new Error("option group " + name + " declared twice");
           }
-          OptionGroupInfo gi = new OptionGroupInfo(optionGroup);
+          OptionGroupInfo gi = new OptionGroupInfo(name, spec.groupUnpublicized);
           groupMap.put(name, gi);
           currentGroup = name;
         } // currentGroup is non-null at this point
@@ -768,32 +2057,157 @@ public class Options {
       } // loop through fields
     } // loop through args
 
-    String prefix = useSingleDash ? "-" : "--";
-
-    // Add each option to the option name map
+    schema =
+        new OptionsSchema(
+            classes,
+            entries,
+            useSingleDash,
+            parseAfterArg,
+            allowAbbreviations,
+            spaceSeparatedLists,
+            expandArgFiles,
+            environmentPrefix,
+            systemPropertyPrefix,
+            transactional);
+
+    List<String> names = new ArrayList<String>(options.size());
+    List<FieldSpec> specs = new ArrayList<FieldSpec>(options.size());
     for (OptionInfo oi : options) {
-      if (oi.shortName != null) {
-        if (nameMap.containsKey("-" + oi.shortName)) {
-          throw new Error("short name " + oi + " appears twice");
+      names.add(oi.longName);
+      specs.add(oi.spec);
+    }
+    snapshotLayout = new OptionsSnapshot.Layout(names, specs);
+
+    Map<OptionInfo, Integer> indices = new IdentityHashMap<OptionInfo, Integer>();
+    for (int i = 0; i < options.size(); i++) {
+      indices.put(options.get(i), i);
+    }
+    Map<String, int[]> groupIndices = new HashMap<String, int[]>();
+    for (OptionGroupInfo gi : groupMap.values()) {
+      int[] members = new int[gi.optionList.size()];
+      for (int i = 0; i < members.length; i++) {
+        @SuppressWarnings("nullness") // every option of a group is in options
+        /*@NonNull*/ Integer index = indices.get(gi.optionList.get(i));
+        members[i] = index;
+      }
+      Arrays.sort(members);
+      groupIndices.put(gi.name, members);
+    }
+    changeDispatcher = new ChangeDispatcher(snapshotLayout.names, groupIndices);
+
+    publishSnapshot();
+    defaults = getSnapshot();
+  }
+
+  /**
+   * Static information about the option fields of each class, computed once per class and shared by
+   * every Options instance. Only binding to a particular object and reading its default values is
+   * done per instance.
+   */
+  private static final ClassValue<List<FieldSpec>> fieldSpecCache =
+      new ClassValue<List<FieldSpec>>() {
+        @Override
+        protected List<FieldSpec> computeValue(Class<?> type) {
+          return Collections.unmodifiableList(computeFieldSpecs(type));
         }
-        nameMap.put("-" + oi.shortName, oi);
+      };
+
+  /**
+   * Returns static information about each {@code @Option}-annotated field of the given class, in
+   * declaration order. The result is cached; the FieldSpecs in it must not be modified.
+   *
+   * @param clazz the class whose fields to examine
+   * @return information about each option field of {@code clazz}
+   */
+  static List<FieldSpec> fieldSpecs(Class<?> clazz) {
+    return fieldSpecCache.get(clazz);
+  }
+
+  /**
+   * Computes static information about each {@code @Option}-annotated field of the given class, in
+   * declaration order. Uses the class's generated {@link OptionsBinder} if there is one, and
+   * otherwise reflects over the class's fields.
+   *
+   * @param clazz the class whose fields to examine
+   * @return information about each option field of {@code clazz}
+   */
+  private static List<FieldSpec> computeFieldSpecs(Class<?> clazz) {
+    List<FieldSpec> result = new ArrayList<FieldSpec>();
+
+    OptionsBinder binder = findBinder(clazz);
+    if (binder != null) {
+      for (int i = 0; i < binder.descriptors().length; i++) {
+        result.add(FieldSpec.fromBinder(clazz, binder, i));
+      }
+      return result;
+    }
+
+    for (Field f : clazz.getDeclaredFields()) {
+      Option option = safeGetAnnotation(f, Option.class);
+      if (option == null) {
+        continue;
+      }
+
+      boolean unpublicized = safeGetAnnotation(f, Unpublicized.class) != null;
+      OptionGroup optionGroup = safeGetAnnotation(f, OptionGroup.class);
+
+      result.add(FieldSpec.fromField(f, option, unpublicized, optionGroup));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the generated {@link OptionsBinder} for the given class, or null if the class was not
+   * processed by the options annotation processor. A binder found by name is not used if it was
+   * generated for a different class with the same flattened name, or if it does not match the
+   * fields of the class, as when the class was later recompiled without the processor.
+   *
+   * @param clazz a class that may have a generated binder
+   * @return the binder for {@code clazz}, or null
+   */
+  static /*@Nullable*/ OptionsBinder findBinder(Class<?> clazz) {
+    String binderName = clazz.getName().replace('$', '_') + OptionsBinder.SUFFIX;
+    ClassLoader loader = clazz.getClassLoader();
+    try {
+      Class<?> binderClass = Class.forName(binderName, true, loader);
+      if (!OptionsBinder.class.isAssignableFrom(binderClass)) {
+        return null;
       }
-      if (nameMap.containsKey(prefix + oi.longName)) {
-        throw new Error("long name " + oi + " appears twice");
+      OptionsBinder binder = (OptionsBinder) binderClass.newInstance();
+      if (binder.targetClass() != clazz || !matchesFields(binder, clazz)) {
+        return null;
       }
-      nameMap.put(prefix + oi.longName, oi);
-      if (useDashes && oi.longName.contains("-")) {
-        nameMap.put(prefix + oi.longName.replace('-', '_'), oi);
+      return binder;
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (LinkageError e) {
+      return null;
+    } catch (Exception e) {
+      throw new Error("Unable to instantiate options binder " + binderName, e);
+    }
+  }
+
+  /**
+   * Returns true if every field that a binder describes is declared by the class, with the same
+   * type and staticness.
+   *
+   * @param binder a binder for {@code clazz}
+   * @param clazz the class
+   * @return true if the binder's descriptors match the fields of {@code clazz}
+   */
+  private static boolean matchesFields(OptionsBinder binder, Class<?> clazz) {
+    for (OptionsBinder.Descriptor d : binder.descriptors()) {
+      Field f;
+      try {
+        f = clazz.getDeclaredField(d.fieldName);
+      } catch (NoSuchFieldException e) {
+        return false;
       }
-      if (oi.aliases.length > 0) {
-        for (String alias : oi.aliases) {
-          if (nameMap.containsKey(alias)) {
-            throw new Error("alias " + oi + " appears twice");
-          }
-          nameMap.put(alias, oi);
-        }
+      if (f.getType() != d.fieldType || Modifier.isStatic(f.getModifiers()) != d.isStatic) {
+        return false;
       }
     }
+    return true;
   }
 
   /**
@@ -836,123 +2250,453 @@ public class Options {
   }
 
   /**
-   * If true, Options will parse arguments even after a non-option command-line argument. Setting
-   * this to true is useful to permit users to write options at the end of a command line. Setting
-   * this to false is useful to avoid processing arguments that are actually options/arguments for
-   * another program that this one will invoke. The default is true.
+   * If true, Options will parse arguments even after a non-option command-line argument. Setting
+   * this to true is useful to permit users to write options at the end of a command line. Setting
+   * this to false is useful to avoid processing arguments that are actually options/arguments for
+   * another program that this one will invoke. The default is true.
+   *
+   * @param val whether to parse arguments after a non-option command-line argument
+   */
+  public void setParseAfterArg(boolean val) {
+    parseAfterArg = val;
+  }
+
+  /**
+   * If true, long options (those derived from field names) are expected with a single dash prefix
+   * as in <span style="white-space: nowrap;">{@code -long-option}</span> rather than <span
+   * style="white-space: nowrap;">{@code --long-option}</span>. The default is false and long
+   * options will be parsed with a double dash prefix as in <span style="white-space:
+   * nowrap;">{@code --longOption}</span>.
+   *
+   * @param val whether to parse long options with a single dash, as in <span style="white-space:
+   *     nowrap;">{@code -longOption}</span>
+   */
+  public void setUseSingleDash(boolean val) {
+    useSingleDash = val;
+  }
+
+  /**
+   * If true, a long option may be abbreviated to any prefix of its name that is not also a prefix
+   * of another option's name, as in GNU getopt: <span style="white-space: nowrap;">{@code
+   * --verb}</span> is accepted for <span style="white-space: nowrap;">{@code --verbose}</span>. An
+   * exact match always takes precedence over an abbreviation. The default is false.
+   *
+   * @param val whether to accept unique prefixes of long option names
+   */
+  public void setAllowAbbreviations(boolean val) {
+    allowAbbreviations = val;
+  }
+
+  /**
+   * If true, {@link #parse(String[])} replaces each argument of the form {@code @}<i>file</i> by
+   * the arguments in the file, so that a command line longer than the operating system permits can
+   * be passed in a file. Within the file, arguments are separated by whitespace and may be quoted
+   * or escaped with a backslash; a file named {@code *.gz} is decompressed; and {@code
+   * @}<i>file</i> arguments are expanded in turn, relative to the including file's directory. An
+   * argument {@code @@}<i>text</i> stands for {@code @}<i>text</i>, and arguments after {@code --}
+   * are not expanded. The default is false.
+   *
+   * @param val whether to expand argument files
+   */
+  public void setExpandArgFiles(boolean val) {
+    expandArgFiles = val;
+  }
+
+  /**
+   * Sets the configuration files that {@link #parse(String[])} reads in addition to the command
+   * line. Options on the command line take precedence over the files, and a file takes precedence
+   * over the files before it, so the files are usually given from most general to most specific.
+   * Each option is set from the source of highest precedence that mentions it, and its field is
+   * written once; a list option gets all of its elements from that one source.
+   *
+   * <p>A configuration file is read line by line. Each line has the form <span
+   * style="white-space: nowrap;">{@code long-name = value}</span>, where {@code long-name} is the
+   * long name of an option without leading dashes (or any name of the option, with its dashes).
+   * A boolean option may be given without {@code = value} to set it to true. A list option may be
+   * given on several lines, one element per line. If another option appears more than once, the
+   * last value is used. Blank lines and lines starting with {@code #} or {@code !} are ignored.
+   * Values are not unquoted or unescaped.
+   *
+   * @param files the configuration files, in increasing order of precedence
+   */
+  public void setConfigFiles(File... files) {
+    configFiles = Collections.unmodifiableList(new ArrayList<File>(Arrays.asList(files)));
+  }
+
+  /**
+   * If non-null, {@link #parse(String[])} also sets options from the environment variables whose
+   * names start with {@code prefix}. The rest of the variable's name is the long name or an alias
+   * of an option, in any case, with dashes written as underscores: with prefix {@code MYAPP_}, the
+   * variable {@code MYAPP_THREAD_COUNT} sets {@code --thread-count}. A variable with the prefix
+   * that names no option is ignored. An empty value sets a boolean option to true.
+   *
+   * <p>Environment variables take precedence over configuration files, but not over system
+   * properties or the command line: an option given on the command line is never set from the
+   * environment. The default is null, which ignores the environment.
+   *
+   * @param prefix the prefix of environment variables that set options, or null
+   * @see #setSystemPropertyPrefix(String)
+   */
+  public void setEnvironmentPrefix(/*@Nullable*/ String prefix) {
+    environmentPrefix = prefix;
+  }
+
+  /**
+   * If non-null, {@link #parse(String[])} also sets options from the system properties whose names
+   * start with {@code prefix}, such as those given by {@code -D} to the {@code java} command. The
+   * rest of the property's name is matched as for {@link #setEnvironmentPrefix}, where a period is
+   * also equivalent to a dash: with prefix {@code myapp.}, the property {@code
+   * myapp.thread-count} sets {@code --thread-count}.
+   *
+   * <p>System properties take precedence over environment variables and configuration files, but
+   * not over the command line. The default is null, which ignores system properties.
+   *
+   * @param prefix the prefix of system properties that set options, or null
+   */
+  public void setSystemPropertyPrefix(/*@Nullable*/ String prefix) {
+    systemPropertyPrefix = prefix;
+  }
+
+  /**
+   * If true, {@link #parse(String[])} first converts every option value, from every source, into a
+   * buffer private to the call, and writes the fields only once all of them have succeeded. If any
+   * argument is unknown or cannot be converted, no field is written, no list is added to, and
+   * {@link #getOptionsString} is unchanged, so the same objects may be parsed into again. A field
+   * that is set more than once is written once, with its last value.
+   *
+   * <p>If false, each field is written as soon as its argument is converted, so an error leaves the
+   * fields set by the arguments before it. That mode boxes no primitive values. The default is
+   * false.
+   *
+   * @param val whether to write the fields only if the whole parse succeeds
+   */
+  public void setTransactional(boolean val) {
+    transactional = val;
+  }
+
+  /**
+   * Starts maintaining a fingerprint of the values of the given options, which {@link
+   * #getFingerprint} returns; for instance, to key a cache of results that depend on those options.
+   * The fingerprint is computed now from the current values, and afterward is updated as {@link
+   * #parse(String[])} sets each option, so reading it costs nothing. It reflects only the values
+   * set by this Options, not assignments to the fields by other code.
+   *
+   * <p>The fingerprint depends only on the names of the options and their values. It does not
+   * depend on the order of the options, on how the values were written (so {@code 1.50} and {@code
+   * 1.5} are the same), or on the run of the program. Unless {@code includeDefaults} is true, an
+   * option that has its default value does not affect the fingerprint, so adding a new option with
+   * a default does not change it. The values of list options are fingerprinted in order.
+   *
+   * @param includeDefaults whether options that have their default values affect the fingerprint
+   * @param optionNames the long names of the options to fingerprint, with or without leading
+   *     dashes; if none are given, all options except unpublicized ones
+   * @throws IllegalArgumentException if there is no option with one of the given names
+   */
+  public void setFingerprintOptions(boolean includeDefaults, String... optionNames) {
+    boolean[] selected = new boolean[options.size()];
+    if (optionNames.length == 0) {
+      for (int i = 0; i < selected.length; i++) {
+        OptionInfo oi = options.get(i);
+        selected[i] = !oi.unpublicized && !oi.spec.groupUnpublicized;
+      }
+    }
+    for (String name : optionNames) {
+      int i = defaults.indexOf(name);
+      if (i == -1) {
+        throw new IllegalArgumentException("no option named " + name);
+      }
+      selected[i] = true;
+    }
+    /*@Nullable*/ Object[] defaultValues = new Object[options.size()];
+    /*@Nullable*/ Object[] values = new Object[options.size()];
+    for (int i = 0; i < values.length; i++) {
+      OptionInfo oi = options.get(i);
+      defaultValues[i] = defaults.get(i);
+      values[i] = oi.accessor.get(oi.obj);
+    }
+    writeLog.fingerprint =
+        new Fingerprint(snapshotLayout.names, selected, defaultValues, values, includeDefaults);
+  }
+
+  /**
+   * Returns the fingerprint of the options selected by {@link #setFingerprintOptions}: a 64-bit
+   * hash of their current values.
+   *
+   * @return the fingerprint of the selected options
+   * @throws IllegalStateException if {@link #setFingerprintOptions} has not been called
+   */
+  public long getFingerprint() {
+    Fingerprint fingerprint = writeLog.fingerprint;
+    if (fingerprint == null) {
+      throw new IllegalStateException("setFingerprintOptions has not been called");
+    }
+    return fingerprint.value();
+  }
+
+  /**
+   * Returns true if {@link #parse(String[])} has set the given option from the command line, a
+   * configuration file, a system property, or an environment variable, even if to its default
+   * value. An option whose field was assigned directly, or by {@link #decodeValues}, is not
+   * explicitly set.
+   *
+   * @param optionName the long name of an option, with or without leading dashes
+   * @return true if some parse has set the option
+   * @throws IllegalArgumentException if there is no such option
+   */
+  public boolean isExplicitlySet(String optionName) {
+    int index = getSnapshot().indexOf(optionName);
+    if (index == -1) {
+      throw new IllegalArgumentException("no option named " + optionName);
+    }
+    return writeLog.explicit.get(index);
+  }
+
+  /**
+   * Returns the options that {@link #parse(String[])} has set explicitly; see {@link
+   * #isExplicitlySet}. A bit is set for each such option, at its index in {@link OptionsSnapshot}.
+   *
+   * @return a new set of the indices of the options that have been set explicitly
+   */
+  public BitSet getExplicitlySet() {
+    return (BitSet) writeLog.explicit.clone();
+  }
+
+  /**
+   * If true, {@link #parse(String[])} records where the value of each option came from: the index
+   * of its argument on the command line as given, the file and line number of an {@code
+   * @}<i>file</i> argument file or a configuration file, or the name of a system property or
+   * environment variable.
+   * {@link #explain(String)} reports it. The sources are kept in arrays indexed by option, so
+   * recording them allocates nothing per option; when recording is off, as it is by default,
+   * parsing does no work for it. Turning recording off discards the sources recorded so far.
+   *
+   * @param val whether to record the source of each option's value
+   */
+  public void setRecordProvenance(boolean val) {
+    if (!val) {
+      writeLog.provenance = null;
+    } else if (writeLog.provenance == null) {
+      writeLog.provenance = new Provenance(options.size());
+    }
+  }
+
+  /**
+   * Returns a line that explains the current value of an option: its long name, its value, and
+   * where the value came from. The source is one of those described at {@link
+   * #setRecordProvenance}; or "default" if no parse has set the option and it has its default
+   * value; or a note that the source is unknown, if the option was set while provenance was not
+   * recorded, or its field was assigned other than by parsing. For a list option given several
+   * times, the source is that of the last element.
+   *
+   * @param optionName the long name of an option, with or without leading dashes
+   * @return an explanation of the current value of the option
+   * @throws IllegalArgumentException if there is no such option
+   */
+  public String explain(String optionName) {
+    int index = getSnapshot().indexOf(optionName);
+    if (index == -1) {
+      throw new IllegalArgumentException("no option named " + optionName);
+    }
+    StringBuilder sb = new StringBuilder();
+    try {
+      explain(index, sb);
+    } catch (IOException e) {
+      throw new Error("StringBuilder threw " + e, e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns an explanation of the current value of every option, as by {@link #explain(String)},
+   * one option per line.
+   *
+   * @return an explanation of the current values of all the options
+   */
+  public String explain() {
+    StringBuilder sb = DelimitedWriter.newBuilder(textLengthEstimate());
+    DelimitedWriter out = new DelimitedWriter(sb, lineSeparator);
+    try {
+      for (int i = 0; i < options.size(); i++) {
+        out.begin();
+        explain(i, out);
+      }
+    } catch (IOException e) {
+      throw new Error("StringBuilder threw " + e, e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes an explanation of the current value of an option; see {@link #explain(String)}.
+   *
+   * @param index the index of the option
+   * @param out where to write the explanation
+   * @throws IOException if {@code out} throws it
+   */
+  private void explain(int index, Appendable out) throws IOException {
+    OptionInfo oi = options.get(index);
+    Object value = oi.accessor.get(oi.obj);
+    out.append(oi.longName).append(" = ").append(String.valueOf(value)).append(" (");
+    Provenance provenance = writeLog.provenance;
+    if (provenance != null && provenance.has(index)) {
+      provenance.describe(index, out);
+    } else if (writeLog.explicit.get(index)) {
+      out.append("source unknown: set while provenance was not recorded");
+    } else if (OptionsWatcher.valuesEqual(value, defaults.get(index))) {
+      out.append("default");
+    } else {
+      out.append("source unknown: not set by parsing");
+    }
+    out.append(')');
+  }
+
+  /**
+   * Returns the values of the options when this Options was constructed: their defaults. Use
+   * {@link OptionsSnapshot#diffFromDefaults} to find the options that differ from their defaults.
+   *
+   * @return the default values of the options
+   */
+  public OptionsSnapshot getDefaults() {
+    return defaults;
+  }
+
+  /**
+   * If false, {@link #parse(String[])} does not record the options it sets, so {@link
+   * #getOptionsString} omits them. Together with the conversion of primitive, boolean, and enum
+   * values directly from the characters of the command line, this makes parsing those options
+   * allocation-free, which matters to programs that parse command lines in a loop. The default is
+   * true.
+   *
+   * @param val whether to record options for {@link #getOptionsString}
+   */
+  public void setRecordOptionsString(boolean val) {
+    recordOptionsString = val;
+  }
+
+  /**
+   * Sets option variables from the given command line.
+   *
+   * @param args the commandline to be parsed
+   * @return all non-option arguments
+   * @throws ArgException if the command line contains unknown option or misused options
+   */
+  public String[] parse(String[] args) throws ArgException {
+    schema =
+        schema.withSettings(
+            parseAfterArg,
+            allowAbbreviations,
+            spaceSeparatedLists,
+            expandArgFiles,
+            environmentPrefix,
+            systemPropertyPrefix,
+            transactional);
+    optionsString = null;
+    String[] nonOptions;
+    if (recordOptionsString) {
+      nonOptions =
+          schema.parse(targets, args, configFiles, optionNames, optionValues, writeLog);
+    } else {
+      nonOptions = schema.parse(targets, args, configFiles, null, null, writeLog);
+    }
+    publishSnapshot();
+    return nonOptions;
+  }
+
+  /**
+   * Returns an immutable copy of the values of all the options, as of the most recent call to
+   * {@link #parse(String[])} that completed without an error (or as of construction, if there has
+   * been none). Each completed parse publishes a new snapshot with a single release store, so this
+   * method may be called from any thread, without a lock, while another thread parses; the
+   * snapshot it returns never mixes the values of two parses, or the values of a parse that threw
+   * an exception.
+   *
+   * @return the values of the options as of the most recent completed parse
+   */
+  public OptionsSnapshot getSnapshot() {
+    @SuppressWarnings("nullness") // published by the constructor
+    /*@NonNull*/ OptionsSnapshot result = snapshot.get();
+    return result;
+  }
+
+  /** Builds a snapshot of the current values of the options, and publishes it. */
+  private void publishSnapshot(/*>>>@UnknownInitialization(Options.class) Options this*/) {
+    /*@Nullable*/ Object[] values = new Object[options.size()];
+    for (int i = 0; i < values.length; i++) {
+      OptionInfo oi = options.get(i);
+      values[i] = OptionsSnapshot.copyValue(oi.accessor.get(oi.obj));
+    }
+    OptionsSnapshot oldSnapshot = snapshot.get();
+    // The first snapshot holds the defaults, and every later one records its differences from it.
+    OptionsSnapshot newSnapshot =
+        new OptionsSnapshot(snapshotLayout, values, nextSnapshotVersion++, defaults, true);
+    // lazySet is a release store: a thread that reads the new snapshot also sees its contents.
+    snapshot.lazySet(newSnapshot);
+    if (oldSnapshot != null) {
+      changeDispatcher.fire(oldSnapshot, newSnapshot);
+    }
+  }
+
+  /**
+   * Registers a listener that is called, on the thread that calls {@link #parse(String[])}, after
+   * each completed parse that changes the given option. See {@link #addChangeListener(String,
+   * OptionsChange.Listener, Executor)}.
    *
-   * @param val whether to parse arguments after a non-option command-line argument
+   * @param optionName the long name of an option, with or without leading dashes
+   * @param listener the listener
+   * @throws IllegalArgumentException if there is no such option
    */
-  public void setParseAfterArg(boolean val) {
-    parseAfterArg = val;
+  public void addChangeListener(String optionName, OptionsChange.Listener listener) {
+    addChangeListener(optionName, listener, ChangeDispatcher.DIRECT);
   }
 
   /**
-   * If true, long options (those derived from field names) are expected with a single dash prefix
-   * as in <span style="white-space: nowrap;">{@code -long-option}</span> rather than <span
-   * style="white-space: nowrap;">{@code --long-option}</span>. The default is false and long
-   * options will be parsed with a double dash prefix as in <span style="white-space:
-   * nowrap;">{@code --longOption}</span>.
+   * Registers a listener that is called after each completed parse that changes the given option.
+   * The listener receives the old and new values of the option. It is run by {@code executor},
+   * which may be, for example, a single-thread executor or one that starts a thread per task, so
+   * that a slow listener does not delay the thread that parses.
    *
-   * @param val whether to parse long options with a single dash, as in <span style="white-space:
-   *     nowrap;">{@code -longOption}</span>
+   * <p>Which options have listeners is worked out when a listener is registered; after a parse,
+   * only those options are compared with their previous values, so options without listeners add
+   * no cost.
+   *
+   * @param optionName the long name of an option, with or without leading dashes
+   * @param listener the listener
+   * @param executor runs the listener
+   * @throws IllegalArgumentException if there is no such option
    */
-  public void setUseSingleDash(boolean val) {
-    useSingleDash = val;
+  public void addChangeListener(
+      String optionName, OptionsChange.Listener listener, Executor executor) {
+    changeDispatcher.addOptionListener(
+        optionName, getSnapshot().indexOf(optionName), listener, executor);
   }
 
   /**
-   * Sets option variables from the given command line.
+   * Registers a listener that is called, on the thread that calls {@link #parse(String[])}, after
+   * each completed parse that changes any option of the given option group. See {@link
+   * #addGroupChangeListener(String, OptionsChange.Listener, Executor)}.
    *
-   * @param args the commandline to be parsed
-   * @return all non-option arguments
-   * @throws ArgException if the command line contains unknown option or misused options
+   * @param groupName the name of an option group, as given to {@code @}{@link OptionGroup}
+   * @param listener the listener
+   * @throws IllegalArgumentException if there is no such option group
    */
-  @SuppressWarnings("index") // https://github.com/kelloggm/checker-framework/issues/169
-  public String[] parse(String[] args) throws ArgException {
-
-    List<String> nonOptions = new ArrayList<String>();
-    // If true, then "--" has been seen and any argument starting with "-"
-    // is processed as an ordinary argument, not as an option.
-    boolean ignoreOptions = false;
-
-    // Loop through each argument
-    String tail = "";
-    String arg;
-    for (int ii = 0; ii < args.length; ) {
-      // If there was a ',' separator in previous arg, use the tail as
-      // current arg; otherwise, fetch the next arg from args list.
-      if (tail.length() > 0) {
-        arg = tail;
-        tail = "";
-      } else {
-        arg = args[ii];
-      }
-
-      if (arg.equals("--")) {
-        ignoreOptions = true;
-      } else if ((arg.startsWith("--") || arg.startsWith("-")) && !ignoreOptions) {
-        String argName;
-        String argValue;
-
-        // Allow ',' as an argument separator to get around
-        // some command line quoting problems.  (markro)
-        int splitPos = arg.indexOf(",-");
-        if (splitPos == 0) {
-          // Just discard the ',' if ",-" occurs at begining of string
-          arg = arg.substring(1);
-          splitPos = arg.indexOf(",-");
-        }
-        if (splitPos > 0) {
-          tail = arg.substring(splitPos + 1);
-          arg = arg.substring(0, splitPos);
-        }
-
-        int eqPos = arg.indexOf('=');
-        if (eqPos == -1) {
-          argName = arg;
-          argValue = null;
-        } else {
-          argName = arg.substring(0, eqPos);
-          argValue = arg.substring(eqPos + 1);
-        }
-        OptionInfo oi = nameMap.get(argName);
-        if (oi == null) {
-          StringBuilder msg = new StringBuilder();
-          msg.append(String.format("unknown option name '%s' in arg '%s'", argName, arg));
-          if (false) { // for debugging
-            msg.append("; known options:");
-            for (String optionName : sortedKeySet(nameMap)) {
-              msg.append(" ");
-              msg.append(optionName);
-            }
-          }
-          throw new ArgException(msg.toString());
-        }
-        if (oi.argumentRequired() && (argValue == null)) {
-          ii++;
-          if (ii >= args.length) {
-            throw new ArgException("option %s requires an argument", arg);
-          }
-          argValue = args[ii];
-        }
-        // System.out.printf ("argName = '%s', argValue='%s'%n", argName,
-        //                    argValue);
-        setArg(oi, argName, argValue);
-      } else { // not an option
-        if (!parseAfterArg) {
-          ignoreOptions = true;
-        }
-        nonOptions.add(arg);
-      }
+  public void addGroupChangeListener(String groupName, OptionsChange.Listener listener) {
+    addGroupChangeListener(groupName, listener, ChangeDispatcher.DIRECT);
+  }
 
-      // If no ',' tail, advance to next args option
-      if (tail.length() == 0) {
-        ii++;
-      }
-    }
-    String[] result = nonOptions.toArray(new String[nonOptions.size()]);
-    return result;
+  /**
+   * Registers a listener that is called after each completed parse that changes any option of the
+   * given option group. The listener is called once per parse, with all of the group's options
+   * that changed, and is run by {@code executor}. See {@link #addChangeListener(String,
+   * OptionsChange.Listener, Executor)}.
+   *
+   * @param groupName the name of an option group, as given to {@code @}{@link OptionGroup}
+   * @param listener the listener
+   * @param executor runs the listener
+   * @throws IllegalArgumentException if there is no such option group
+   */
+  public void addGroupChangeListener(
+      String groupName, OptionsChange.Listener listener, Executor executor) {
+    changeDispatcher.addGroupListener(groupName, listener, executor);
   }
 
   /**
@@ -960,7 +2704,8 @@ public class Options {
    * respecting single and double quotes.
    *
    * <p>This method is only appropriate when the {@code String[]} version of the arguments is not
-   * available &mdash; for example, for the {@code premain} method of a Java agent.
+   * available &mdash; for example, for the {@code premain} method of a Java agent. To tokenize a
+   * large input, or one that is read from a stream, use a {@link Tokenizer} directly.
    *
    * @param args the command line to be tokenized
    * @return a string array analogous to the argument to {@code main}.
@@ -970,37 +2715,14 @@ public class Options {
 
     // Split the args string on whitespace boundaries accounting for quoted
     // strings.
-    args = args.trim();
+    Tokenizer tokenizer = new Tokenizer(args.trim());
     List<String> argList = new ArrayList<String>();
-    String arg = "";
-    char activeQuote = 0;
-    for (int ii = 0; ii < args.length(); ii++) {
-      char ch = args.charAt(ii);
-      if ((ch == '\'') || (ch == '"')) {
-        arg += ch;
-        ii++;
-        while ((ii < args.length()) && (args.charAt(ii) != ch)) {
-          arg += args.charAt(ii++);
-        }
-        arg += ch;
-      } else if (Character.isWhitespace(ch)) {
-        // System.out.printf ("adding argument '%s'%n", arg);
-        argList.add(arg);
-        arg = "";
-        while ((ii < args.length()) && Character.isWhitespace(args.charAt(ii))) {
-          ii++;
-        }
-        if (ii < args.length()) {
-          // Encountered a non-whitespace character.
-          // Back up to process it on the next loop iteration.
-          ii--;
-        }
-      } else { // must be part of current argument
-        arg += ch;
+    try {
+      while (tokenizer.next()) {
+        argList.add(tokenizer.token());
       }
-    }
-    if (!arg.equals("")) {
-      argList.add(arg);
+    } catch (IOException e) {
+      throw new Error("Unexpected exception reading from a String", e);
     }
 
     String[] argsArray = argList.toArray(new String[argList.size()]);
@@ -1070,12 +2792,6 @@ public class Options {
     return nonOptions;
   }
 
-  /**
-   * True if some documented option accepts a list as a parameter. Used and set by {code usage()}
-   * methods and their callees.
-   */
-  private boolean hasListOption = false;
-
   /**
    * Prints usage information to the given PrintStream. Uses the usage synopsis passed into the
    * constructor, if any.
@@ -1083,12 +2799,12 @@ public class Options {
    * @param ps where to print usage information
    */
   public void printUsage(PrintStream ps) {
-    hasListOption = false;
     if (usageSynopsis != null) {
       ps.printf("Usage: %s%n", usageSynopsis);
     }
-    ps.println(usage());
-    if (hasListOption) {
+    UsageText text = usageText(false, new String[0]);
+    ps.println(text.toString());
+    if (text.hasListOption) {
       ps.println();
       ps.println(LIST_HELP);
     }
@@ -1113,7 +2829,8 @@ public class Options {
   }
 
   /**
-   * Returns a usage message for command-line options.
+   * Returns a usage message for command-line options. The message is computed once for each
+   * combination of arguments and then reused.
    *
    * @return the command-line usage message
    * @param showUnpublicized if true, treat all unpublicized options and option groups as publicized
@@ -1123,16 +2840,134 @@ public class Options {
    *     options that are not unpublicized.
    */
   public String usage(boolean showUnpublicized, String... groupNames) {
+    return usageText(showUnpublicized, groupNames).toString();
+  }
+
+  /**
+   * Writes a usage message for command-line options to {@code out}, line by line, without first
+   * building it as a single string. Writes the same text that {@link #usage(boolean, String...)}
+   * returns.
+   *
+   * @param out where to write the usage message
+   * @param showUnpublicized if true, treat all unpublicized options and option groups as publicized
+   * @param groupNames the list of option groups to include in the usage message; see {@link
+   *     #usage(boolean, String...)}
+   * @throws IOException if {@code out} throws it
+   */
+  public void usage(Appendable out, boolean showUnpublicized, String... groupNames)
+      throws IOException {
+    usageText(showUnpublicized, groupNames).appendTo(out);
+  }
+
+  /** The lines of a usage message, computed once and shared by every request for it. */
+  private static final class UsageText {
+
+    /** The lines of the message, without line separators. */
+    final String[] lines;
+
+    /** True if some option in the message accepts a list as a parameter. */
+    final boolean hasListOption;
+
+    /** The lines joined by line separators, or null if not yet computed. */
+    private volatile /*@Nullable*/ String text = null;
+
+    /**
+     * Creates a UsageText.
+     *
+     * @param lines the lines of the message, without line separators
+     * @param hasListOption true if some option in the message accepts a list as a parameter
+     */
+    UsageText(String[] lines, boolean hasListOption) {
+      this.lines = lines;
+      this.hasListOption = hasListOption;
+    }
+
+    /**
+     * Writes the lines, separated by line separators, to {@code out}.
+     *
+     * @param out where to write the lines
+     * @throws IOException if {@code out} throws it
+     */
+    void appendTo(Appendable out) throws IOException {
+      DelimitedWriter w = new DelimitedWriter(out, lineSeparator);
+      for (String line : lines) {
+        w.add(line);
+      }
+    }
+
+    @Override
+    public String toString() {
+      String result = text;
+      if (result == null) {
+        int length = 0;
+        for (String line : lines) {
+          length += line.length() + lineSeparator.length();
+        }
+        StringBuilder sb = new StringBuilder(length);
+        try {
+          appendTo(sb);
+        } catch (IOException e) {
+          throw new Error("StringBuilder threw " + e, e);
+        }
+        result = sb.toString();
+        text = result;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Usage messages computed so far, keyed by whether unpublicized options are shown, whether long
+   * options take a single dash, and the requested option groups.
+   */
+  private final ConcurrentHashMap<String, UsageText> usageTexts =
+      new ConcurrentHashMap<String, UsageText>();
+
+  /**
+   * Returns the usage message for the given arguments, computing it if it has not been requested
+   * before.
+   *
+   * @param showUnpublicized if true, treat all unpublicized options and option groups as publicized
+   * @param groupNames the option groups to include; see {@link #usage(boolean, String...)}
+   * @return the usage message
+   */
+  private UsageText usageText(boolean showUnpublicized, String[] groupNames) {
+    StringBuilder key = new StringBuilder();
+    key.append(showUnpublicized ? 'u' : '-').append(useSingleDash ? 's' : '-');
+    for (String groupName : groupNames) {
+      key.append('\0').append(groupName);
+    }
+    String k = key.toString();
+    UsageText result = usageTexts.get(k);
+    if (result == null) {
+      result = computeUsageText(showUnpublicized, groupNames);
+      UsageText previous = usageTexts.putIfAbsent(k, result);
+      if (previous != null) {
+        result = previous;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Computes the usage message for the given arguments. A group heading is preceded by an empty
+   * line. Each option is on its own line, with the synopses padded to a common width.
+   *
+   * @param showUnpublicized if true, treat all unpublicized options and option groups as publicized
+   * @param groupNames the option groups to include; see {@link #usage(boolean, String...)}
+   * @return the usage message
+   */
+  private UsageText computeUsageText(boolean showUnpublicized, String[] groupNames) {
+    List</*@Nullable*/ String> headings = new ArrayList</*@Nullable*/ String>();
+    List<List<OptionInfo>> sections = new ArrayList<List<OptionInfo>>();
     if (!hasGroups) {
       if (groupNames.length > 0) {
         throw new IllegalArgumentException(
             "This instance of Options does not have any option groups defined");
       }
-      return formatOptions(options, maxOptionLength(options, showUnpublicized), showUnpublicized);
-    }
-
-    List<OptionGroupInfo> groups = new ArrayList<OptionGroupInfo>();
-    if (groupNames.length > 0) {
+      headings.add(null);
+      sections.add(options);
+    } else if (groupNames.length > 0) {
       for (String groupName : groupNames) {
         if (!groupMap.containsKey(groupName)) {
           throw new IllegalArgumentException("invalid option group: " + groupName);
@@ -1141,59 +2976,63 @@ public class Options {
         if (!showUnpublicized && !gi.anyPublicized()) {
           throw new IllegalArgumentException(
               "group does not contain any publicized options: " + groupName);
-        } else {
-          groups.add(groupMap.get(groupName));
         }
+        headings.add(gi.name);
+        sections.add(gi.optionList);
       }
     } else { // return usage for all groups that are not unpublicized
       for (OptionGroupInfo gi : groupMap.values()) {
         if ((gi.unpublicized || !gi.anyPublicized()) && !showUnpublicized) {
           continue;
         }
-        groups.add(gi);
+        headings.add(gi.name);
+        sections.add(gi.optionList);
       }
     }
 
-    List<Integer> lengths = new ArrayList<Integer>();
-    for (OptionGroupInfo gi : groups) {
-      lengths.add(maxOptionLength(gi.optionList, showUnpublicized));
-    }
-    int maxLength = Collections.max(lengths);
-
-    StringBuilderDelimited buf = new StringBuilderDelimited(lineSeparator);
-    for (OptionGroupInfo gi : groups) {
-      buf.add(String.format("%n%s:", gi.name));
-      buf.add(formatOptions(gi.optionList, maxLength, showUnpublicized));
+    // Compute each synopsis once, and the width of the widest.
+    Map<OptionInfo, String> synopses = new IdentityHashMap<OptionInfo, String>();
+    int width = 0;
+    for (List<OptionInfo> section : sections) {
+      for (OptionInfo oi : section) {
+        if (oi.unpublicized && !showUnpublicized) {
+          continue;
+        }
+        String synopsis = oi.synopsis();
+        synopses.put(oi, synopsis);
+        width = Math.max(width, synopsis.length());
+      }
     }
 
-    return buf.toString();
-  }
-
-  /**
-   * Format a list of options for use in generating usage messages. Also sets {@link #hasListOption}
-   * if any option has list type.
-   */
-  private String formatOptions(List<OptionInfo> optList, int maxLength, boolean showUnpublicized) {
-    StringBuilderDelimited buf = new StringBuilderDelimited(lineSeparator);
-    for (OptionInfo oi : optList) {
-      if (oi.unpublicized && !showUnpublicized) {
-        continue;
-      }
-      String defaultStr = "";
-      if (oi.defaultStr != null) {
-        defaultStr = String.format(" [default %s]", oi.defaultStr);
+    List<String> lines = new ArrayList<String>();
+    boolean hasListOption = false;
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < sections.size(); i++) {
+      String heading = headings.get(i);
+      if (heading != null) {
+        lines.add(lineSeparator + heading + ":");
       }
-
-      @SuppressWarnings("formatter") // format string computed from maxLength argument
-      String use =
-          String.format("  %-" + maxLength + "s - %s%s", oi.synopsis(), oi.description, defaultStr);
-      buf.add(use);
-
-      if (oi.list != null) {
-        hasListOption = true;
+      for (OptionInfo oi : sections.get(i)) {
+        String synopsis = synopses.get(oi);
+        if (synopsis == null) {
+          continue;
+        }
+        line.setLength(0);
+        line.append("  ").append(synopsis);
+        for (int pad = synopsis.length(); pad < width; pad++) {
+          line.append(' ');
+        }
+        line.append(" - ").append(oi.description);
+        if (oi.defaultStr != null) {
+          line.append(" [default ").append(oi.defaultStr).append(']');
+        }
+        lines.add(line.toString());
+        if (oi.list != null) {
+          hasListOption = true;
+        }
       }
     }
-    return buf.toString();
+    return new UsageText(lines.toArray(new String[lines.size()]), hasListOption);
   }
 
   /**
@@ -1237,175 +3076,19 @@ public class Options {
     return groupMap.values();
   }
 
-  /**
-   * Set the specified option to the value specified in argValue.
-   *
-   * @param oi the option to set
-   * @param argName the name of the argument as passed on the command line; used only for debugging
-   * @param argValue a string representation of the value
-   * @throws ArgException if there are any errors
-   */
-  private void setArg(OptionInfo oi, String argName, /*@Nullable*/ String argValue)
-      throws ArgException {
-
-    Field f = oi.field;
-    Class<?> type = oi.baseType;
-
-    // Keep track of all of the options specified
-    if (optionsString.length() > 0) {
-      optionsString += " ";
-    }
-    optionsString += argName;
-    if (argValue != null) {
-      if (!argValue.contains(" ")) {
-        optionsString += "=" + argValue;
-      } else if (!argValue.contains("'")) {
-        optionsString += "='" + argValue + "'";
-      } else if (!argValue.contains("\"")) {
-        optionsString += "=\"" + argValue + "\"";
-      } else {
-        throw new ArgException("Can't quote for internal debugging: " + argValue);
-      }
-    }
-    // Argument values are required for everything but booleans
-    if (argValue == null) {
-      if ((type != Boolean.TYPE) || (type != Boolean.class)) {
-        argValue = "true";
-      } else {
-        throw new ArgException("Value required for option " + argName);
-      }
-    }
-
-    try {
-      if (type.isPrimitive()) {
-        if (type == Boolean.TYPE) {
-          boolean val;
-          String argValueLowercase = argValue.toLowerCase();
-          if (argValueLowercase.equals("true") || (argValueLowercase.equals("t"))) {
-            val = true;
-          } else if (argValueLowercase.equals("false") || argValueLowercase.equals("f")) {
-            val = false;
-          } else {
-            throw new ArgException(
-                "Value \"%s\" for argument %s is not a boolean", argValue, argName);
-          }
-          argValue = (val) ? "true" : "false";
-          // System.out.printf ("Setting %s to %s%n", argName, val);
-          f.setBoolean(oi.obj, val);
-        } else if (type == Byte.TYPE) {
-          byte val;
-          try {
-            val = Byte.decode(argValue);
-          } catch (Exception e) {
-            throw new ArgException("Value \"%s\" for argument %s is not a byte", argValue, argName);
-          }
-          f.setByte(oi.obj, val);
-        } else if (type == Character.TYPE) {
-          if (argValue.length() != 1) {
-            throw new ArgException(
-                "Value \"%s\" for argument %s is not a single character", argValue, argName);
-          }
-          char val = argValue.charAt(0);
-          f.setChar(oi.obj, val);
-        } else if (type == Short.TYPE) {
-          short val;
-          try {
-            val = Short.decode(argValue);
-          } catch (Exception e) {
-            throw new ArgException(
-                "Value \"%s\" for argument %s is not a short integer", argValue, argName);
-          }
-          f.setShort(oi.obj, val);
-        } else if (type == Integer.TYPE) {
-          int val;
-          try {
-            val = Integer.decode(argValue);
-          } catch (Exception e) {
-            throw new ArgException(
-                "Value \"%s\" for argument %s is not an integer", argValue, argName);
-          }
-          f.setInt(oi.obj, val);
-        } else if (type == Long.TYPE) {
-          long val;
-          try {
-            val = Long.decode(argValue);
-          } catch (Exception e) {
-            throw new ArgException(
-                "Value \"%s\" for argument %s is not a long integer", argValue, argName);
-          }
-          f.setLong(oi.obj, val);
-        } else if (type == Float.TYPE) {
-          Float val;
-          try {
-            val = Float.valueOf(argValue);
-          } catch (Exception e) {
-            throw new ArgException(
-                "Value \"%s\" for argument %s is not a float", argValue, argName);
-          }
-          f.setFloat(oi.obj, val);
-        } else if (type == Double.TYPE) {
-          Double val;
-          try {
-            val = Double.valueOf(argValue);
-          } catch (Exception e) {
-            throw new ArgException(
-                "Value \"%s\" for argument %s is not a double", argValue, argName);
-          }
-          f.setDouble(oi.obj, val);
-        } else { // unexpected type
-          throw new Error("Unexpected type " + type);
-        }
-      } else { // reference type
-
-        // If the argument is a list, add repeated arguments or multiple
-        // blank separated arguments to the list, otherwise just set the
-        // argument value.
-        if (oi.list != null) {
-          if (spaceSeparatedLists) {
-            String[] aarr = argValue.split("  *");
-            for (String aval : aarr) {
-              Object val = getRefArg(oi, argName, aval);
-              oi.list.add(val); // uncheck cast
-            }
-          } else {
-            Object val = getRefArg(oi, argName, argValue);
-            oi.list.add(val);
-          }
-        } else {
-          Object val = getRefArg(oi, argName, argValue);
-          f.set(oi.obj, val);
-        }
-      }
-    } catch (ArgException ae) {
-      throw ae;
-    } catch (Exception e) {
-      throw new Error("Unexpected error ", e);
-    }
-  }
-
   /**
    * Create an instance of the correct type by passing the argument value string to the constructor.
    * The only expected error is some sort of parse error from the constructor.
    */
-  private /*@NonNull*/ Object getRefArg(OptionInfo oi, String argName, String argValue)
+  private static /*@NonNull*/ Object getRefArg(FieldSpec spec, String argName, String argValue)
       throws ArgException {
 
     Object val;
     try {
-      if (oi.constructor != null) {
-        val = oi.constructor.newInstance(new Object[] {argValue});
-      } else if (oi.baseType.isEnum()) {
-        @SuppressWarnings({"unchecked", "rawtypes"})
-        Object tmpVal = getEnumValue((Class<Enum>) oi.baseType, argValue);
-        val = tmpVal;
-      } else {
-        if (oi.factory == null) {
-          throw new Error("No constructor or factory for argument " + argName);
-        }
-        @SuppressWarnings("nullness") // static method, so null first arg is OK: oi.factory
-        /*@NonNull*/ Object tmpVal = oi.factory.invoke(null, argValue);
-        val = tmpVal;
+      if (spec.converter == null) {
+        throw new Error("No constructor or factory for argument " + argName);
       }
+      val = spec.converter.convert(argValue);
     } catch (Exception e) {
       throw new ArgException("Invalid argument (%s) for argument %s", argValue, argName);
     }
@@ -1419,12 +3102,12 @@ public class Options {
    * flexibility when specifying enum types as command-line arguments.
    *
    * @param <T> the enum type
+   * @param enumType the enum type
+   * @param constants the constants of {@code enumType}
+   * @param name the name to look up
+   * @return the constant named {@code name}
    */
-  private <T extends Enum<T>> T getEnumValue(Class<T> enumType, String name) {
-    T[] constants = enumType.getEnumConstants();
-    if (constants == null) {
-      throw new IllegalArgumentException(enumType.getName() + " is not an enum type");
-    }
+  private static <T extends Enum<T>> T getEnumValue(Class<T> enumType, T[] constants, String name) {
     for (T constant : constants) {
       if (constant.name().equalsIgnoreCase(name.replace('-', '_'))) {
         return constant;
@@ -1435,6 +3118,35 @@ public class Options {
         "No enum constant " + enumType.getCanonicalName() + "." + name);
   }
 
+  /**
+   * Returns true if {@code s[start..end)} names the given enum constant, under the rules of {@link
+   * #getEnumValue}: case-insensitively, with hyphens in place of underscores allowed.
+   *
+   * @param constantName the name of an enum constant
+   * @param s a string containing a name
+   * @param start the index of the first character of the name
+   * @param end the index after the last character of the name
+   * @return true if the name matches {@code constantName}
+   */
+  private static boolean enumNameMatches(String constantName, String s, int start, int end) {
+    if (constantName.length() != end - start) {
+      return false;
+    }
+    for (int i = 0; i < constantName.length(); i++) {
+      char c = s.charAt(start + i);
+      if (c == '-') {
+        c = '_';
+      }
+      char k = constantName.charAt(i);
+      if (c != k
+          && Character.toUpperCase(c) != Character.toUpperCase(k)
+          && Character.toLowerCase(c) != Character.toLowerCase(k)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Return a short name for the specified type for use in messages.
    *
@@ -1460,13 +3172,163 @@ public class Options {
    * essentially the contents of args[] with all non-options removed. It can be used for calling a
    * subprocess or for debugging.
    *
+   * <p>A value that contains a space is quoted. A value that contains a space and both kinds of
+   * quote is put in single quotes, with each embedded single quote written as <span
+   * style="white-space: nowrap;">{@code '\''}</span>, as in a POSIX shell.
+   *
    * @return options, similarly to supplied on the command line
    * @see #settings()
+   * @see #getCanonicalArgs()
    */
   public String getOptionsString() {
+    if (optionsString == null) {
+      optionsString = OptionsSchema.formatOptions(optionNames, optionValues);
+    }
     return optionsString;
   }
 
+  /**
+   * Returns a minimal command line that reproduces the current values of all the options. See
+   * {@link #appendCanonicalArgs}.
+   *
+   * @return a command line that, parsed by a new Options over the same classes, sets every option
+   *     to its current value
+   * @throws IllegalStateException if the current values cannot be expressed as a command line
+   */
+  public String[] getCanonicalArgs() {
+    List<String> args = new ArrayList<String>();
+    appendCanonicalArgs(args);
+    return args.toArray(new String[args.size()]);
+  }
+
+  /**
+   * Appends to {@code out} a minimal command line that reproduces the current values of all the
+   * options, for launching a child process with the same configuration. Parsed by a new Options
+   * over the same classes, with the same settings and no configuration files or other sources, the
+   * command line sets every option to its current value. Unlike {@link #getOptionsString}, it
+   * reflects values set by any means, not only the command line, and it needs no quoting, since
+   * each argument is a separate element.
+   *
+   * <p>The command line has an entry only for each option whose value differs from its default:
+   * the long name, then the value as a separate argument. A boolean option is written as its name
+   * alone for true, and as <span style="white-space: nowrap;">{@code --name=false}</span> for
+   * false. A list option is written once per element beyond its default elements, in order. If
+   * argument files are expanded, a value that begins with {@code @} is escaped as {@code @@}. The
+   * names of the options are computed once, so the cost of this method is mostly that of reading
+   * the fields.
+   *
+   * <p>Some values have no command-line form: an option that is null but has a non-null default; a
+   * list that no longer begins with its default elements; and, if lists are space-separated, a list
+   * element that contains a space.
+   *
+   * @param out where to append the arguments
+   * @throws IllegalStateException if the current values cannot be expressed as a command line
+   */
+  public void appendCanonicalArgs(Collection<? super String> out) {
+    if (canonicalNames == null || canonicalNamesUseSingleDash != useSingleDash) {
+      computeCanonicalNames();
+    }
+    String[] names = canonicalNames;
+    /*@Nullable*/ String[] falseArgs = canonicalFalseArgs;
+    // Whether a value that begins with "@" must be escaped; not after a "--" argument.
+    boolean escapeArgFiles = expandArgFiles;
+    for (int i = 0; i < options.size(); i++) {
+      OptionInfo oi = options.get(i);
+      Object value = oi.accessor.get(oi.obj);
+      Object defaultValue = defaults.get(i);
+      if (oi.spec.isList) {
+        List<?> list = (List<?>) value;
+        List<?> defaultList = (List<?>) defaultValue;
+        int start = (defaultList == null) ? 0 : defaultList.size();
+        if (list == null
+            || list.size() < start
+            || !OptionsWatcher.valuesEqual(list.subList(0, start), defaultList)) {
+          throw new IllegalStateException(
+              String.format(
+                  "option %s is %s, which does not begin with its default %s",
+                  names[i], list, defaultList));
+        }
+        for (int j = start; j < list.size(); j++) {
+          String element = OptionsSnapshot.toArgString(list.get(j));
+          if (spaceSeparatedLists && element.indexOf(' ') != -1) {
+            throw new IllegalStateException(
+                String.format(
+                    "option %s has an element with a space, \"%s\", but lists are space-separated",
+                    names[i], element));
+          }
+          out.add(names[i]);
+          out.add((escapeArgFiles && element.startsWith("@")) ? "@" + element : element);
+          escapeArgFiles &= !element.equals("--");
+        }
+      } else if (OptionsWatcher.valuesEqual(value, defaultValue)) {
+        continue;
+      } else if (value == null) {
+        throw new IllegalStateException(
+            String.format("option %s is null, but its default is %s", names[i], defaultValue));
+      } else if (value instanceof Boolean) {
+        out.add((Boolean) value ? names[i] : falseArgs[i]);
+      } else {
+        String arg = OptionsSnapshot.toArgString(value);
+        out.add(names[i]);
+        out.add((escapeArgFiles && arg.startsWith("@")) ? "@" + arg : arg);
+        escapeArgFiles &= !arg.equals("--");
+      }
+    }
+  }
+
+  /** Computes {@link #canonicalNames} and {@link #canonicalFalseArgs}. */
+  /*@EnsuresNonNull({"canonicalNames", "canonicalFalseArgs"})*/
+  private void computeCanonicalNames() {
+    String prefix = useSingleDash ? "-" : "--";
+    String[] names = new String[options.size()];
+    /*@Nullable*/ String[] falseArgs = new String[options.size()];
+    for (int i = 0; i < names.length; i++) {
+      OptionInfo oi = options.get(i);
+      names[i] = prefix + oi.longName;
+      if (!oi.argumentRequired()) {
+        falseArgs[i] = names[i] + "=false";
+      }
+    }
+    canonicalNamesUseSingleDash = useSingleDash;
+    canonicalFalseArgs = falseArgs;
+    canonicalNames = names;
+  }
+
+  /**
+   * Returns a compact binary encoding of the current values of all the options, for handing the
+   * configuration to a worker process, which applies it with {@link #decodeValues}. Unlike {@link
+   * #getOptionsString}, the encoding includes every option, need not be tokenized or parsed, and
+   * represents every value exactly, whatever characters it contains. See {@link
+   * OptionsSchema#encodeValues}.
+   *
+   * @return the encoded values of the options
+   */
+  public byte[] encodeValues() {
+    return schema.encode(targets);
+  }
+
+  /**
+   * Sets all the options to the values in an encoding made by {@link #encodeValues} of an Options
+   * over the same classes, then publishes a new snapshot as {@link #parse(String[])} does.
+   * Primitive fields are set directly, and other values are converted as if they had been given on
+   * the command line. If an exception is thrown, no field has been changed.
+   *
+   * @param data the encoded values
+   * @throws ArgException if {@code data} is malformed, was encoded for different options, or holds
+   *     a value that cannot be converted
+   */
+  public void decodeValues(byte[] data) throws ArgException {
+    schema.decode(targets, data);
+    Fingerprint fingerprint = writeLog.fingerprint;
+    if (fingerprint != null) {
+      for (int i = 0; i < options.size(); i++) {
+        OptionInfo oi = options.get(i);
+        fingerprint.set(i, oi.accessor.get(oi.obj));
+      }
+    }
+    publishSnapshot();
+  }
+
   // TODO: document what this is good for.  Debugging?  Invoking other programs?
   /**
    * Returns a string containing the current setting for each option, in command-line format that
@@ -1491,24 +3353,112 @@ public class Options {
    *     setting for each option
    */
   public String settings(boolean showUnpublicized) {
-    StringBuilderDelimited out = new StringBuilderDelimited(lineSeparator);
+    StringBuilder sb = DelimitedWriter.newBuilder(textLengthEstimate());
+    try {
+      settings(sb, showUnpublicized);
+    } catch (IOException e) {
+      throw new Error("StringBuilder threw " + e, e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the current setting for each option to {@code out}, in the format of {@link
+   * #settings(boolean)}, without first building it as a single string.
+   *
+   * @param out where to write the settings
+   * @param showUnpublicized if true, treat all unpublicized options and option groups as publicized
+   * @throws IOException if {@code out} throws it
+   */
+  public void settings(Appendable out, boolean showUnpublicized) throws IOException {
+    DelimitedWriter w = new DelimitedWriter(out, lineSeparator);
 
     // Determine the length of the longest name
     int maxLength = maxOptionLength(options, showUnpublicized);
 
-    // Create the settings string
     for (OptionInfo oi : options) {
-      @SuppressWarnings("formatter") // format string computed from maxLength
-      String use = String.format("%-" + maxLength + "s = ", oi.longName);
-      try {
-        use += oi.field.get(oi.obj);
-      } catch (Exception e) {
-        throw new Error("unexpected exception reading field " + oi.field, e);
-      }
-      out.add(use);
+      w.begin().append(oi.longName).repeat(' ', maxLength - oi.longName.length()).append(" = ");
+      w.append(String.valueOf(oi.accessor.get(oi.obj)));
+    }
+  }
+
+  /** Writes the values of the options as JSON or properties; null until first needed. */
+  private /*@MonotonicNonNull*/ SettingsExporter exporter = null;
+
+  /**
+   * Returns the exporter of the values of the options, creating it if necessary.
+   *
+   * @return the exporter of the values of the options
+   */
+  private SettingsExporter exporter() {
+    if (exporter == null) {
+      exporter = new SettingsExporter(options, defaults);
     }
+    return exporter;
+  }
+
+  /**
+   * Writes the current value of each option to {@code out} as a JSON object, in UTF-8, for
+   * machine-readable records of a configuration. The object maps each option's long name to its
+   * value: a boolean or a number as a JSON boolean or number, a list as an array, null as {@code
+   * null}, and any other value (including a character, an enum constant, or an infinite or NaN
+   * floating-point number) as the string that the option's converter turns back into the value.
+   * The text is written as the fields are read; it is never built in memory as a whole.
+   *
+   * @param out where to write the JSON; it is flushed but not closed
+   * @param nonDefaultOnly if true, write only the options whose values differ from their defaults
+   * @param showUnpublicized if true, also write unpublicized options and the options of
+   *     unpublicized groups
+   * @throws IOException if {@code out} throws it
+   * @see #writeProperties
+   */
+  public void writeJson(OutputStream out, boolean nonDefaultOnly, boolean showUnpublicized)
+      throws IOException {
+    exporter().writeJson(out, nonDefaultOnly, showUnpublicized);
+  }
+
+  /**
+   * Writes the current value of each option to {@code out} as Java properties, in the format that
+   * {@link java.util.Properties#load(java.io.InputStream)} reads, escaped so that the output is
+   * ASCII. The key is the option's long name, and the value is the string that the option's
+   * converter turns back into the value. A list is written as one property per element, with key
+   * <i>name</i>{@code .}<i>index</i>. An option or element whose value is null is not written. The
+   * text is written as the fields are read; it is never built in memory as a whole.
+   *
+   * @param out where to write the properties; it is flushed but not closed
+   * @param nonDefaultOnly if true, write only the options whose values differ from their defaults
+   * @param showUnpublicized if true, also write unpublicized options and the options of
+   *     unpublicized groups
+   * @throws IOException if {@code out} throws it
+   * @see #writeJson
+   */
+  public void writeProperties(OutputStream out, boolean nonDefaultOnly, boolean showUnpublicized)
+      throws IOException {
+    exporter().writeProperties(out, nonDefaultOnly, showUnpublicized);
+  }
+
+  /** The result of {@link #textLengthEstimate}, or 0 if it has not been computed yet. */
+  private int textLengthEstimate = 0;
 
-    return out.toString();
+  /**
+   * Returns an estimate of the length of a text with a line for each option, such as the result
+   * of {@link #settings} or {@link #toString}, for sizing buffers.
+   *
+   * @return an estimate of the length of a text with a line for each option
+   */
+  private int textLengthEstimate() {
+    int result = textLengthEstimate;
+    if (result == 0) {
+      int maxLength = 0;
+      for (OptionInfo oi : options) {
+        maxLength = Math.max(maxLength, oi.synopsis().length());
+        result += oi.defaultStr == null ? 0 : oi.defaultStr.length();
+        result += oi.spec.fieldString.length();
+      }
+      result += options.size() * (maxLength + lineSeparator.length() + 16);
+      textLengthEstimate = result;
+    }
+    return result;
   }
 
   /**
@@ -1524,13 +3474,17 @@ public class Options {
   }) // side effect to local state (string creation)
   /*@SideEffectFree*/
   public String toString(/*>>>@GuardSatisfied Options this*/) {
-    StringBuilderDelimited out = new StringBuilderDelimited(lineSeparator);
-
-    for (OptionInfo oi : options) {
-      out.add(oi.toString());
+    StringBuilder sb = DelimitedWriter.newBuilder(textLengthEstimate());
+    DelimitedWriter out = new DelimitedWriter(sb, lineSeparator);
+    try {
+      for (OptionInfo oi : options) {
+        out.begin();
+        oi.appendTo(out);
+      }
+    } catch (IOException e) {
+      throw new Error("StringBuilder threw " + e, e);
     }
-
-    return out.toString();
+    return sb.toString();
   }
 
   /**
@@ -1550,7 +3504,7 @@ public class Options {
     }
   }
 
-  private static class ParseResult {
+  static class ParseResult {
     /*@Nullable*/ String shortName;
     /*@Nullable*/ String typeName;
     String description;
@@ -1622,19 +3576,4 @@ public class Options {
   //     options.parse(true, args);
   //     System.out.printf("Results:%n%s", options.settings());
   //   }
-
-  /**
-   * Returns a sorted version of m.keySet().
-   *
-   * @param <K> type of the map keys
-   * @param <V> type of the map values
-   * @param m a map whose keyset will be sorted
-   * @return a sorted version of m.keySet()
-   */
-  private static <K extends Comparable<? super K>, V> Collection</*@KeyFor("#1")*/ K> sortedKeySet(
-      Map<K, V> m) {
-    ArrayList</*@KeyFor("#1")*/ K> theKeys = new ArrayList</*@KeyFor("#1")*/ K>(m.keySet());
-    Collections.sort(theKeys);
-    return theKeys;
-  }
 }
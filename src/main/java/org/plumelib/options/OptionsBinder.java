@@ -0,0 +1,198 @@
+package org.plumelib.options;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Reflection-free access to the {@code @}{@link Option}-annotated fields of one class. An
+ * implementation is generated at compile time by the annotation processor in the {@code processor}
+ * module; application code does not normally implement or call this interface directly.
+ *
+ * <p>For a class whose binary name is {@code pkg.Outer$Inner}, the generated binder is named {@code
+ * pkg.Outer_Inner_OptionsBinder} (see {@link #SUFFIX}). When {@link Options} is constructed, it
+ * looks for a binder for each class it is given and, if one exists, uses it instead of scanning the
+ * class's fields reflectively. Since a top-level class {@code pkg.Outer_Inner} would have the same
+ * binder name, a binder is used only if its {@link #targetClass()} is the class and its {@link
+ * #descriptors()} match the class's fields.
+ *
+ * <p>Options are numbered in declaration order, starting at 0. The {@code index} argument of every
+ * method refers to an element of {@link #descriptors()}.
+ *
+ * @see Options
+ */
+public interface OptionsBinder {
+
+  /** Appended to the flattened name of an annotated class to form the name of its binder. */
+  String SUFFIX = "_OptionsBinder";
+
+  /**
+   * Returns the class whose fields this binder accesses.
+   *
+   * @return the class whose fields this binder accesses
+   */
+  Class<?> targetClass();
+
+  /**
+   * Returns a description of every {@code @Option}-annotated field, in declaration order.
+   *
+   * @return a description of every option field
+   */
+  Descriptor[] descriptors();
+
+  /**
+   * Returns the current value of the given field.
+   *
+   * @param index which option
+   * @param target the object containing the field, or null if the field is static
+   * @return the current value of the field, boxed if it is primitive
+   */
+  /*@Nullable*/ Object get(int index, /*@Nullable*/ Object target);
+
+  /**
+   * Sets the given field.
+   *
+   * @param index which option
+   * @param target the object containing the field, or null if the field is static
+   * @param value the new value, boxed if the field is primitive
+   */
+  void set(int index, /*@Nullable*/ Object target, /*@Nullable*/ Object value);
+
+  /**
+   * Sets a field of type {@code boolean}, without boxing.
+   *
+   * @param index which option
+   * @param target the object containing the field, or null if the field is static
+   * @param value the new value
+   */
+  void setBoolean(int index, /*@Nullable*/ Object target, boolean value);
+
+  /**
+   * Sets a field of type {@code byte}, {@code char}, {@code short}, {@code int}, or {@code long},
+   * without boxing. The value is narrowed to the type of the field; the caller ensures that it is
+   * in range.
+   *
+   * @param index which option
+   * @param target the object containing the field, or null if the field is static
+   * @param value the new value
+   */
+  void setLong(int index, /*@Nullable*/ Object target, long value);
+
+  /**
+   * Sets a field of type {@code float} or {@code double}, without boxing.
+   *
+   * @param index which option
+   * @param target the object containing the field, or null if the field is static
+   * @param value the new value
+   */
+  void setDouble(int index, /*@Nullable*/ Object target, double value);
+
+  /**
+   * Converts a command-line string to the base type of the given option, by calling the base
+   * type's string constructor or {@link java.util.regex.Pattern#compile(String)}. Not called for
+   * options whose base type is primitive or an enum; {@link Options} converts those itself.
+   *
+   * @param index which option
+   * @param value the command-line string
+   * @return the converted value
+   * @throws Exception if the constructor or factory throws an exception
+   * @throws IllegalArgumentException if the option's base type is primitive or an enum, so that
+   *     the binder has no converter for it
+   */
+  Object convert(int index, String value) throws Exception;
+
+  /** Compile-time information about one {@code @Option}-annotated field. */
+  final class Descriptor {
+
+    /** The name of the field. */
+    public final String fieldName;
+
+    /** Whether the field is static. */
+    public final boolean isStatic;
+
+    /** The declared (erased) type of the field. */
+    public final Class<?> fieldType;
+
+    /** The type of the field, or, if the field is a list, its element type. */
+    public final Class<?> baseType;
+
+    /** Whether the field is a {@code List}. */
+    public final boolean isList;
+
+    /** The {@code value} element of the {@code @Option} annotation, as written. */
+    public final String optionValue;
+
+    /** The short name parsed from {@link #optionValue}, or null. */
+    public final /*@Nullable*/ String shortName;
+
+    /** The type name parsed from {@link #optionValue}, or null. */
+    public final /*@Nullable*/ String typeName;
+
+    /** The description parsed from {@link #optionValue}. */
+    public final String description;
+
+    /** The {@code aliases} element of the {@code @Option} annotation. */
+    public final String[] aliases;
+
+    /** The {@code noDocDefault} element of the {@code @Option} annotation. */
+    public final boolean noDocDefault;
+
+    /** Whether the field is annotated with {@code @Unpublicized}. */
+    public final boolean unpublicized;
+
+    /** The name of the {@code @OptionGroup} on this field, or null if there is none. */
+    public final /*@Nullable*/ String groupName;
+
+    /** The {@code unpublicized} element of the {@code @OptionGroup} on this field. */
+    public final boolean groupUnpublicized;
+
+    /**
+     * Creates a new Descriptor. Called only from generated code.
+     *
+     * @param fieldName the name of the field
+     * @param isStatic whether the field is static
+     * @param fieldType the erased type of the field
+     * @param baseType the type of the field, or its element type if it is a list
+     * @param isList whether the field is a list
+     * @param optionValue the {@code value} element of the {@code @Option} annotation
+     * @param shortName the parsed short name, or null
+     * @param typeName the parsed type name, or null
+     * @param description the parsed description
+     * @param aliases the aliases of the option
+     * @param noDocDefault whether to omit the default value from documentation
+     * @param unpublicized whether the field is {@code @Unpublicized}
+     * @param groupName the name of the {@code @OptionGroup} on this field, or null
+     * @param groupUnpublicized whether the {@code @OptionGroup} on this field is unpublicized
+     */
+    public Descriptor(
+        String fieldName,
+        boolean isStatic,
+        Class<?> fieldType,
+        Class<?> baseType,
+        boolean isList,
+        String optionValue,
+        /*@Nullable*/ String shortName,
+        /*@Nullable*/ String typeName,
+        String description,
+        String[] aliases,
+        boolean noDocDefault,
+        boolean unpublicized,
+        /*@Nullable*/ String groupName,
+        boolean groupUnpublicized) {
+      this.fieldName = fieldName;
+      this.isStatic = isStatic;
+      this.fieldType = fieldType;
+      this.baseType = baseType;
+      this.isList = isList;
+      this.optionValue = optionValue;
+      this.shortName = shortName;
+      this.typeName = typeName;
+      this.description = description;
+      this.aliases = aliases;
+      this.noDocDefault = noDocDefault;
+      this.unpublicized = unpublicized;
+      this.groupName = groupName;
+      this.groupUnpublicized = groupUnpublicized;
+    }
+  }
+}
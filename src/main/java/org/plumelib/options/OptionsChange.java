@@ -0,0 +1,122 @@
+package org.plumelib.options;
+
+import java.util.List;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * The options that one completed parse or reload changed, among those that a {@link Listener} is
+ * registered for, with their old and new values. A listener receives one OptionsChange per
+ * committed change set, however many of its options changed. {@link OptionsSnapshot#diff} also
+ * returns an OptionsChange, for all the options that differ between two snapshots.
+ *
+ * @see Options#addChangeListener(String, Listener)
+ * @see OptionsWatcher#addChangeListener(String, Listener)
+ */
+public final class OptionsChange {
+
+  /** Reacts to changes in the values of options, for instance by resizing a thread pool. */
+  public interface Listener {
+
+    /**
+     * Called once for each committed change set that changes an option that this listener is
+     * registered for.
+     *
+     * @param change the options that changed, and their old and new values
+     */
+    void optionsChanged(OptionsChange change);
+  }
+
+  /** The values of all the options before the change. */
+  private final OptionsSnapshot oldSnapshot;
+
+  /** The values of all the options after the change. */
+  private final OptionsSnapshot newSnapshot;
+
+  /** The long names of the changed options that the listener is registered for. */
+  private final List<String> changedOptions;
+
+  /**
+   * Creates an OptionsChange.
+   *
+   * @param oldSnapshot the values of all the options before the change
+   * @param newSnapshot the values of all the options after the change
+   * @param changedOptions the long names of the changed options that the listener is registered
+   *     for
+   */
+  OptionsChange(
+      OptionsSnapshot oldSnapshot, OptionsSnapshot newSnapshot, List<String> changedOptions) {
+    this.oldSnapshot = oldSnapshot;
+    this.newSnapshot = newSnapshot;
+    this.changedOptions = changedOptions;
+  }
+
+  /**
+   * Returns the long names, without leading dashes, of the changed options that the listener is
+   * registered for, in the order in which they were declared.
+   *
+   * @return the names of the changed options; never empty when passed to a listener
+   */
+  public List<String> getChangedOptions() {
+    return changedOptions;
+  }
+
+  /**
+   * Returns the value of an option before the change.
+   *
+   * @param name the long name of an option; see {@link OptionsSnapshot#indexOf}
+   * @return the value of the option before the change
+   * @throws IllegalArgumentException if there is no such option
+   */
+  public /*@Nullable*/ Object getOldValue(String name) {
+    return oldSnapshot.get(name);
+  }
+
+  /**
+   * Returns the value of an option after the change.
+   *
+   * @param name the long name of an option; see {@link OptionsSnapshot#indexOf}
+   * @return the value of the option after the change
+   * @throws IllegalArgumentException if there is no such option
+   */
+  public /*@Nullable*/ Object getNewValue(String name) {
+    return newSnapshot.get(name);
+  }
+
+  /**
+   * Returns the values of all the options before the change.
+   *
+   * @return the values of all the options before the change
+   */
+  public OptionsSnapshot getOldSnapshot() {
+    return oldSnapshot;
+  }
+
+  /**
+   * Returns the values of all the options after the change.
+   *
+   * @return the values of all the options after the change
+   */
+  public OptionsSnapshot getNewSnapshot() {
+    return newSnapshot;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("OptionsChange {");
+    for (int i = 0; i < changedOptions.size(); i++) {
+      String name = changedOptions.get(i);
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(name)
+          .append(": ")
+          .append(oldSnapshot.get(name))
+          .append(" -> ")
+          .append(newSnapshot.get(name));
+    }
+    return sb.append('}').toString();
+  }
+}
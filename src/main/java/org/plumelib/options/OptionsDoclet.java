@@ -20,6 +20,7 @@ import com.sun.javadoc.Tag;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.lang.reflect.Constructor;
@@ -455,7 +456,8 @@ public class OptionsDoclet {
    */
   public void write() throws Exception {
     PrintWriter out;
-    String output = output();
+    // When editing the docfile in place, it must be read completely before it is truncated.
+    String output = inPlace ? output() : null;
 
     if (outFile != null) {
       out = new PrintWriter(Files.newBufferedWriter(outFile.toPath(), UTF_8));
@@ -467,7 +469,12 @@ public class OptionsDoclet {
       out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, UTF_8)));
     }
 
-    out.println(output);
+    if (output != null) {
+      out.println(output);
+    } else {
+      output(out);
+      out.println();
+    }
     out.flush();
     out.close();
   }
@@ -480,21 +487,48 @@ public class OptionsDoclet {
    * @throws Exception if there is trouble
    */
   public String output() throws Exception {
+    StringBuilder b = DelimitedWriter.newBuilder(outputLengthEstimate());
+    output(b);
+    return b.toString();
+  }
+
+  /**
+   * Write the final output of this doclet to {@code out}, without first building it as a string.
+   * Writes the same text that {@link #output()} returns.
+   *
+   * @param out where to write the user-visible doclet output
+   * @throws Exception if there is trouble
+   */
+  public void output(Appendable out) throws Exception {
     if (docFile == null) {
       if (formatJavadoc) {
-        return optionsToJavadoc(0, 99);
+        optionsToJavadoc(out, 0, 99);
       } else {
-        return optionsToHtml(0);
+        optionsToHtml(new DelimitedWriter(out, eol), 0);
       }
+      return;
     }
 
-    return newDocFileText();
+    newDocFileText(out);
+  }
+
+  /**
+   * Returns an estimate of the length of the HTML documentation of the options, for sizing
+   * buffers.
+   */
+  private int outputLengthEstimate() {
+    int result = 0;
+    for (Options.OptionInfo oi : options.getOptions()) {
+      result += 64 + 2 * oi.longName.length() + oi.typeName.length();
+      result += (oi.jdoc == null) ? oi.description.length() : oi.jdoc.length();
+    }
+    return result;
   }
 
-  /** Get the result of inserting the options documentation into the docfile. */
+  /** Write the result of inserting the options documentation into the docfile. */
   /*@RequiresNonNull("docFile")*/
-  private String newDocFileText() throws Exception {
-    StringBuilderDelimited b = new StringBuilderDelimited(eol);
+  private void newDocFileText(Appendable out) throws Exception {
+    DelimitedWriter b = new DelimitedWriter(out, eol);
     BufferedReader doc = Files.newBufferedReader(docFile.toPath(), UTF_8);
     String docline;
     boolean replacing = false;
@@ -516,13 +550,13 @@ public class OptionsDoclet {
         if (formatJavadoc) {
           int starIndex = docline.indexOf('*');
           b.add(docline.substring(0, starIndex + 1));
-          String jdoc = optionsToJavadoc(starIndex, 100);
-          b.add(jdoc);
+          b.begin();
+          JavadocCommentWriter jdoc = optionsToJavadoc(b, starIndex, 100);
           if (jdoc.endsWith("</ul>")) {
             b.add(docline.substring(0, starIndex + 1));
           }
         } else {
-          b.add(optionsToHtml(0));
+          optionsToHtml(b, 0);
         }
         replacedOnce = true;
         replacing = true;
@@ -530,7 +564,6 @@ public class OptionsDoclet {
     }
 
     doc.close();
-    return b.toString();
   }
 
   // HTML and Javadoc processing methods
@@ -605,8 +638,24 @@ public class OptionsDoclet {
    * @return the HTML documentation for the underlying Options instance
    */
   public String optionsToHtml(int refillWidth) {
-    StringBuilderDelimited b = new StringBuilderDelimited(eol);
+    StringBuilder sb = DelimitedWriter.newBuilder(outputLengthEstimate());
+    try {
+      optionsToHtml(new DelimitedWriter(sb, eol), refillWidth);
+    } catch (IOException e) {
+      throw new Error("StringBuilder threw " + e, e);
+    }
+    return sb.toString();
+  }
 
+  /**
+   * Write the HTML documentation for the underlying Options instance, one line per element of
+   * {@code b}.
+   *
+   * @param b where to write the documentation
+   * @param refillWidth the number of columns to fit the text into, by breaking lines
+   * @throws IOException if the destination of {@code b} throws it
+   */
+  private void optionsToHtml(DelimitedWriter b, int refillWidth) throws IOException {
     if (includeClassDoc && root.classes().length > 0) {
       b.add(OptionsDoclet.javadocToHtml(root.classes()[0]));
       b.add("<p>Command line options:</p>");
@@ -614,7 +663,7 @@ public class OptionsDoclet {
 
     b.add("<ul>");
     if (!options.hasGroups()) {
-      b.add(optionListToHtml(options.getOptions(), 6, 2, refillWidth));
+      optionListToHtml(b, options.getOptions(), 6, 2, refillWidth);
     } else {
       for (Options.OptionGroupInfo gi : options.getOptionGroups()) {
         // Do not include groups without publicized options in output
@@ -627,9 +676,9 @@ public class OptionsDoclet {
                 + gi.name.replace(" ", "-").replace("/", "-")
                 + "\">"
                 + gi.name;
-        b.add(refill(ogroupHeader, 6, 2, refillWidth));
+        refill(b, ogroupHeader, 6, 2, refillWidth);
         b.add("      <ul>");
-        b.add(optionListToHtml(gi.optionList, 12, 8, refillWidth));
+        optionListToHtml(b, gi.optionList, 12, 8, refillWidth);
         b.add("      </ul>");
         // b.add("  </li>");
       }
@@ -643,8 +692,6 @@ public class OptionsDoclet {
         break;
       }
     }
-
-    return b.toString();
   }
 
   /**
@@ -655,28 +702,146 @@ public class OptionsDoclet {
    * @return the HTML documentation for the underlying Options instance
    */
   public String optionsToJavadoc(int padding, int refillWidth) {
-    StringBuilderDelimited b = new StringBuilderDelimited(eol);
-    Scanner s = new Scanner(optionsToHtml(refillWidth - padding - 2));
+    StringBuilder sb = DelimitedWriter.newBuilder(outputLengthEstimate());
+    try {
+      optionsToJavadoc(sb, padding, refillWidth);
+    } catch (IOException e) {
+      throw new Error("StringBuilder threw " + e, e);
+    }
+    return sb.toString();
+  }
 
-    while (s.hasNextLine()) {
-      String line = s.nextLine();
-      StringBuilder bb = new StringBuilder();
-      bb.append(StringUtils.repeat(" ", padding));
-      if (line.trim().equals("")) {
-        bb.append("*");
+  /**
+   * Write the HTML documentation for the underlying Options instance, formatted as a Javadoc
+   * comment, to {@code out}.
+   *
+   * @param out where to write the documentation
+   * @param padding the number of leading spaces to add in the Javadoc output, before "* "
+   * @param refillWidth the number of columns to fit the text into, by breaking lines
+   * @return the writer that formatted the comment, which knows its last line
+   * @throws IOException if {@code out} throws it
+   */
+  private JavadocCommentWriter optionsToJavadoc(Appendable out, int padding, int refillWidth)
+      throws IOException {
+    JavadocCommentWriter jdoc = new JavadocCommentWriter(out, padding);
+    optionsToHtml(new DelimitedWriter(jdoc, eol), refillWidth - padding - 2);
+    jdoc.finish();
+    return jdoc;
+  }
+
+  /**
+   * Formats the lines of the text appended to it as the lines of a Javadoc comment: each is
+   * indented and preceded by "* ", or is just "*" if it is blank. Lines are split as by {@link
+   * Scanner#nextLine}, and a final empty line is dropped.
+   */
+  private static final class JavadocCommentWriter implements Appendable {
+
+    /** Where the comment is written, one line per element. */
+    private final DelimitedWriter out;
+
+    /** The indentation of each line, before the "*". */
+    private final String indent;
+
+    /** The current line, not yet terminated. */
+    private final StringBuilder line = new StringBuilder();
+
+    /** True if the last character appended was a carriage return. */
+    private boolean afterCR = false;
+
+    /** The last line written, without its indentation and "*"; null if none has been written. */
+    private /*@Nullable*/ String lastLine = null;
+
+    /**
+     * Creates a JavadocCommentWriter.
+     *
+     * @param out where to write the comment
+     * @param padding the number of spaces before the "*" of each line
+     */
+    JavadocCommentWriter(Appendable out, int padding) {
+      this.out = new DelimitedWriter(out, eol);
+      this.indent = StringUtils.repeat(" ", padding);
+    }
+
+    @Override
+    public JavadocCommentWriter append(/*@Nullable*/ CharSequence csq) throws IOException {
+      CharSequence text = (csq == null) ? "null" : csq;
+      return append(text, 0, text.length());
+    }
+
+    @Override
+    public JavadocCommentWriter append(/*@Nullable*/ CharSequence csq, int start, int end)
+        throws IOException {
+      CharSequence text = (csq == null) ? "null" : csq;
+      for (int i = start; i < end; i++) {
+        append(text.charAt(i));
+      }
+      return this;
+    }
+
+    @Override
+    public JavadocCommentWriter append(char c) throws IOException {
+      boolean wasCR = afterCR;
+      afterCR = (c == '\r');
+      if (c == '\n' && wasCR) {
+        return this;
+      }
+      if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085') {
+        writeLine();
       } else {
-        bb.append("* ").append(line);
+        line.append(c);
       }
-      b.add(bb);
+      return this;
     }
 
-    return b.toString();
+    /**
+     * Writes the final line, if it is not empty.
+     *
+     * @throws IOException if the destination throws it
+     */
+    void finish() throws IOException {
+      if (line.length() > 0) {
+        writeLine();
+      }
+    }
+
+    /**
+     * Returns true if the last line written ends with {@code suffix}.
+     *
+     * @param suffix the text to look for
+     * @return true if the last line written ends with {@code suffix}
+     */
+    boolean endsWith(String suffix) {
+      return lastLine != null && lastLine.endsWith(suffix);
+    }
+
+    /**
+     * Writes the current line as a line of the comment.
+     *
+     * @throws IOException if the destination throws it
+     */
+    private void writeLine() throws IOException {
+      String text = line.toString();
+      line.setLength(0);
+      out.begin().append(indent);
+      if (text.trim().equals("")) {
+        out.append('*');
+        lastLine = "";
+      } else {
+        out.append("* ").append(text);
+        lastLine = text;
+      }
+    }
   }
 
-  /** Get the HTML describing many options, formatted as an HTML list. */
-  private String optionListToHtml(
-      List<Options.OptionInfo> optList, int padding, int firstLinePadding, int refillWidth) {
-    StringBuilderDelimited b = new StringBuilderDelimited(eol);
+  /** Write the HTML describing many options, formatted as an HTML list, one line per element. */
+  private void optionListToHtml(
+      DelimitedWriter b,
+      List<Options.OptionInfo> optList,
+      int padding,
+      int firstLinePadding,
+      int refillWidth)
+      throws IOException {
+    int before = b.count();
     for (Options.OptionInfo oi : optList) {
       if (oi.unpublicized) {
         continue;
@@ -689,16 +854,25 @@ public class OptionsDoclet {
       if (refillWidth <= 0) {
         b.add(bb);
       } else {
-        b.add(refill(bb.toString(), padding, firstLinePadding, refillWidth));
+        refill(b, bb.toString(), padding, firstLinePadding, refillWidth);
       }
     }
-    return b.toString();
+    if (b.count() == before) {
+      // An empty list still occupies a line.
+      b.add("");
+    }
   }
 
-  /** refillWidth includes the padding. */
-  private String refill(String in, int padding, int firstLinePadding, int refillWidth) {
+  /**
+   * Write {@code in}, refilled, to {@code b}, one line per element. refillWidth includes the
+   * padding.
+   */
+  private void refill(
+      DelimitedWriter b, String in, int padding, int firstLinePadding, int refillWidth)
+      throws IOException {
     if (refillWidth <= 0) {
-      return in;
+      b.add(in);
+      return;
     }
 
     // suffix is text *not* to refill.
@@ -719,7 +893,6 @@ public class OptionsDoclet {
       compressedSpaces = compressedSpaces.substring(1);
     }
     String oneLine = StringUtils.repeat(" ", firstLinePadding) + compressedSpaces;
-    StringBuilderDelimited multiLine = new StringBuilderDelimited(eol);
     while (oneLine.length() > refillWidth) {
       int breakLoc = oneLine.lastIndexOf(' ', refillWidth);
       if (breakLoc == -1) {
@@ -729,17 +902,16 @@ public class OptionsDoclet {
       if (firstPart.trim().isEmpty()) {
         break;
       }
-      multiLine.add(firstPart);
+      b.add(firstPart);
       oneLine = StringUtils.repeat(" ", padding) + oneLine.substring(breakLoc + 1);
     }
-    multiLine.add(oneLine);
+    b.add(oneLine);
     if (suffix != null) {
       Scanner s = new Scanner(suffix);
       while (s.hasNextLine()) {
-        multiLine.add(StringUtils.repeat(" ", padding) + s.nextLine());
+        b.begin().repeat(' ', padding).append(s.nextLine());
       }
     }
-    return multiLine.toString();
   }
 
   /**
@@ -827,12 +999,11 @@ public class OptionsDoclet {
     SeeTag[] seetags = doc.seeTags();
     if (seetags.length > 0) {
       b.append(" See: ");
-      {
-        StringBuilderDelimited bb = new StringBuilderDelimited(", ");
-        for (SeeTag tag : seetags) {
-          bb.add("<code>" + tag.text() + "</code>");
+      for (int i = 0; i < seetags.length; i++) {
+        if (i > 0) {
+          b.append(", ");
         }
-        b.append(bb);
+        b.append("<code>").append(seetags[i].text()).append("</code>");
       }
       b.append(".");
     }
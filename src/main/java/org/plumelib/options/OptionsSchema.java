@@ -0,0 +1,1712 @@
+package org.plumelib.options;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import org.plumelib.options.Options.ArgException;
+import org.plumelib.options.Options.ArgSlice;
+import org.plumelib.options.Options.FieldSpec;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * The options declared by a set of classes, separated from any particular objects whose fields
+ * they set. An OptionsSchema is immutable and may be shared by any number of threads: each call to
+ * {@link #parse(Object, String...)} binds the command line into objects supplied by the caller and
+ * returns its own {@link Result}, so many threads can parse different command lines at once,
+ * without locks and without building the schema again.
+ *
+ * <p>For example:
+ *
+ * <pre>
+ * static final OptionsSchema SCHEMA = new OptionsSchema.Builder(RequestOptions.class).build();
+ *
+ * void handle(String[] args) throws ArgException {
+ *   RequestOptions opts = new RequestOptions();
+ *   OptionsSchema.Result result = SCHEMA.parse(opts, args);
+ *   ...
+ * }
+ * </pre>
+ *
+ * <p>Options are declared with {@code @}{@link Option} exactly as for {@link Options}, and are
+ * parsed the same way. Because the fields are set in caller-supplied objects, an option field of a
+ * schema must not be static. Usage messages and option groups remain the business of {@link
+ * Options}.
+ *
+ * @see Options
+ */
+public final class OptionsSchema {
+
+  /** The classes whose options this schema parses; {@link #parse} takes one target per class. */
+  private final Class<?>[] classes;
+
+  /** The options, in the order in which their classes and fields were declared. */
+  private final List<Entry> entries;
+
+  /** Map from option names (with leading dashes) to options. */
+  private final NameTrie<Entry> nameMap;
+
+  /** The names of the options, shared by all the snapshots of this schema. */
+  private final OptionsSnapshot.Layout snapshotLayout;
+
+  /** Encodes and decodes the values of the options; see {@link #encodeValues}. */
+  private final ValueCodec valueCodec;
+
+  /** Whether long options take a single dash; see {@link Options#setUseSingleDash}. */
+  private final boolean useSingleDash;
+
+  /** Whether to parse options after a non-option argument; see {@link Options#setParseAfterArg}. */
+  private final boolean parseAfterArg;
+
+  /** Whether long options may be abbreviated; see {@link Options#setAllowAbbreviations}. */
+  private final boolean allowAbbreviations;
+
+  /** Whether list arguments are split on spaces; see {@link Options#spaceSeparatedLists}. */
+  private final boolean spaceSeparatedLists;
+
+  /** Whether to expand {@code @}<i>file</i> arguments; see {@link Options#setExpandArgFiles}. */
+  private final boolean expandArgFiles;
+
+  /**
+   * Whether fields are written only if the whole parse succeeds; see {@link
+   * Options#setTransactional}.
+   */
+  private final boolean transactional;
+
+  /**
+   * The prefix of environment variables that set options, or null to ignore the environment; see
+   * {@link Options#setEnvironmentPrefix}.
+   */
+  private final /*@Nullable*/ String environmentPrefix;
+
+  /**
+   * The prefix of system properties that set options, or null to ignore system properties; see
+   * {@link Options#setSystemPropertyPrefix}.
+   */
+  private final /*@Nullable*/ String systemPropertyPrefix;
+
+  /**
+   * Map from the {@link #variableKey variable key} of each long name and alias to its option. It is
+   * computed once, so that looking up an environment variable or system property does not scan the
+   * options.
+   */
+  private final Map<String, Entry> variableNames;
+
+  /** Variable keys that belong to more than one option, and so cannot be used. */
+  private final Set<String> ambiguousVariableNames;
+
+  /** Returned by {@link #parse} when there are no non-option arguments. */
+  private static final String[] NO_ARGS = new String[0];
+
+  /** One option of the schema: a field, and which of the targets of a parse declares it. */
+  static final class Entry {
+
+    /** Static information about the field. */
+    final FieldSpec spec;
+
+    /** The index, among the targets of a parse, of the object whose field this option sets. */
+    final int target;
+
+    /** The index of this option among all the options of its schema. */
+    final int index;
+
+    /** Short (one-character) argument name, or null. */
+    final /*@Nullable*/ String shortName;
+
+    /** Long argument name, without leading dashes. */
+    final String longName;
+
+    /**
+     * Creates a new Entry.
+     *
+     * @param spec static information about the field
+     * @param target the index of the object whose field this option sets
+     * @param index the index of this option among all the options of its schema
+     * @param useDashes whether to write underscores in the long name as dashes
+     */
+    Entry(FieldSpec spec, int target, int index, boolean useDashes) {
+      this.spec = spec;
+      this.target = target;
+      this.index = index;
+      this.shortName = spec.pr.shortName;
+      this.longName = useDashes ? spec.fieldName.replace('_', '-') : spec.fieldName;
+    }
+
+    /**
+     * Return whether or not this option has a required argument.
+     *
+     * @return whether or not this option has a required argument
+     */
+    boolean argumentRequired() {
+      Class<?> type = spec.fieldType;
+      return (type != Boolean.TYPE) && (type != Boolean.class);
+    }
+  }
+
+  /**
+   * Creates a schema containing the given options.
+   *
+   * @param classes the classes that declare the options
+   * @param entries the options, each of which refers to an element of {@code classes}
+   * @param useSingleDash whether long options take a single dash
+   * @param parseAfterArg whether to parse options after a non-option argument
+   * @param allowAbbreviations whether long options may be abbreviated
+   * @param spaceSeparatedLists whether list arguments are split on spaces
+   * @param expandArgFiles whether to expand {@code @}<i>file</i> arguments
+   * @param environmentPrefix the prefix of environment variables that set options, or null
+   * @param systemPropertyPrefix the prefix of system properties that set options, or null
+   * @param transactional whether fields are written only if the whole parse succeeds
+   */
+  OptionsSchema(
+      Class<?>[] classes,
+      List<Entry> entries,
+      boolean useSingleDash,
+      boolean parseAfterArg,
+      boolean allowAbbreviations,
+      boolean spaceSeparatedLists,
+      boolean expandArgFiles,
+      /*@Nullable*/ String environmentPrefix,
+      /*@Nullable*/ String systemPropertyPrefix,
+      boolean transactional) {
+    this.classes = classes;
+    this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    List<String> names = new ArrayList<String>(entries.size());
+    List<FieldSpec> specs = new ArrayList<FieldSpec>(entries.size());
+    for (Entry e : entries) {
+      names.add(e.longName);
+      specs.add(e.spec);
+    }
+    this.snapshotLayout = new OptionsSnapshot.Layout(names, specs);
+    this.valueCodec = new ValueCodec(snapshotLayout);
+    this.useSingleDash = useSingleDash;
+    this.parseAfterArg = parseAfterArg;
+    this.allowAbbreviations = allowAbbreviations;
+    this.spaceSeparatedLists = spaceSeparatedLists;
+    this.expandArgFiles = expandArgFiles;
+    this.environmentPrefix = environmentPrefix;
+    this.systemPropertyPrefix = systemPropertyPrefix;
+    this.transactional = transactional;
+
+    String prefix = useSingleDash ? "-" : "--";
+
+    // Add each option to the option name map.
+    NameTrie.Builder<Entry> nameMapBuilder = new NameTrie.Builder<Entry>();
+    for (Entry e : entries) {
+      if (e.shortName != null) {
+        if (nameMapBuilder.get("-" + e.shortName) != null) {
+          throw new Error("short name " + describe(e) + " appears twice");
+        }
+        nameMapBuilder.put("-" + e.shortName, e);
+      }
+      if (nameMapBuilder.get(prefix + e.longName) != null) {
+        throw new Error("long name " + describe(e) + " appears twice");
+      }
+      nameMapBuilder.put(prefix + e.longName, e);
+      // With useDashes, the long name is also accepted with the field's own underscores.
+      if (!e.longName.equals(e.spec.fieldName)) {
+        nameMapBuilder.put(prefix + e.spec.fieldName, e);
+      }
+      for (String alias : e.spec.aliases) {
+        Entry previous = nameMapBuilder.get(alias);
+        if (previous != null && previous != e) {
+          throw new Error("alias " + describe(e) + " appears twice");
+        }
+        nameMapBuilder.put(alias, e);
+      }
+    }
+    nameMap = nameMapBuilder.build();
+
+    variableNames = new HashMap<String, Entry>();
+    ambiguousVariableNames = new HashSet<String>();
+    for (Entry e : entries) {
+      addVariableName(e.longName, e);
+      for (String alias : e.spec.aliases) {
+        addVariableName(alias, e);
+      }
+    }
+  }
+
+  /**
+   * Adds a name of an option to {@link #variableNames}.
+   *
+   * @param name a long name or alias of the option
+   * @param e the option
+   */
+  private void addVariableName(String name, Entry e) {
+    String key = variableKey(name, 0);
+    Entry previous = variableNames.put(key, e);
+    if (previous != null && previous != e) {
+      ambiguousVariableNames.add(key);
+    }
+  }
+
+  /**
+   * Returns the key under which a name is looked up in {@link #variableNames}: the name without
+   * leading dashes, in upper case, with each dash and period replaced by an underscore. Thus the
+   * option {@code --thread-count} has the key {@code THREAD_COUNT}, which is also the key of the
+   * environment variable suffix {@code THREAD_COUNT} and the system property suffix {@code
+   * thread-count}.
+   *
+   * @param name a name
+   * @param start the index in {@code name} at which to start
+   * @return the key for the part of {@code name} starting at {@code start}
+   */
+  static String variableKey(String name, int start) {
+    while (start < name.length() && name.charAt(start) == '-') {
+      start++;
+    }
+    StringBuilder sb = new StringBuilder(name.length() - start);
+    for (int i = start; i < name.length(); i++) {
+      char ch = name.charAt(i);
+      sb.append((ch == '-' || ch == '.') ? '_' : ch);
+    }
+    return sb.toString().toUpperCase(Locale.ROOT);
+  }
+
+  /**
+   * Creates a copy of {@code schema} with different settings. The options and the name map are
+   * shared, not copied.
+   *
+   * @param schema the schema to copy
+   * @param parseAfterArg whether to parse options after a non-option argument
+   * @param allowAbbreviations whether long options may be abbreviated
+   * @param spaceSeparatedLists whether list arguments are split on spaces
+   * @param expandArgFiles whether to expand {@code @}<i>file</i> arguments
+   * @param environmentPrefix the prefix of environment variables that set options, or null
+   * @param systemPropertyPrefix the prefix of system properties that set options, or null
+   * @param transactional whether fields are written only if the whole parse succeeds
+   */
+  private OptionsSchema(
+      OptionsSchema schema,
+      boolean parseAfterArg,
+      boolean allowAbbreviations,
+      boolean spaceSeparatedLists,
+      boolean expandArgFiles,
+      /*@Nullable*/ String environmentPrefix,
+      /*@Nullable*/ String systemPropertyPrefix,
+      boolean transactional) {
+    this.classes = schema.classes;
+    this.entries = schema.entries;
+    this.snapshotLayout = schema.snapshotLayout;
+    this.valueCodec = schema.valueCodec;
+    this.nameMap = schema.nameMap;
+    this.variableNames = schema.variableNames;
+    this.ambiguousVariableNames = schema.ambiguousVariableNames;
+    this.useSingleDash = schema.useSingleDash;
+    this.parseAfterArg = parseAfterArg;
+    this.allowAbbreviations = allowAbbreviations;
+    this.spaceSeparatedLists = spaceSeparatedLists;
+    this.expandArgFiles = expandArgFiles;
+    this.environmentPrefix = environmentPrefix;
+    this.systemPropertyPrefix = systemPropertyPrefix;
+    this.transactional = transactional;
+  }
+
+  /**
+   * Returns a schema like this one but with the given settings, or this schema if its settings
+   * already match.
+   *
+   * @param parseAfterArg whether to parse options after a non-option argument
+   * @param allowAbbreviations whether long options may be abbreviated
+   * @param spaceSeparatedLists whether list arguments are split on spaces
+   * @param expandArgFiles whether to expand {@code @}<i>file</i> arguments
+   * @param environmentPrefix the prefix of environment variables that set options, or null
+   * @param systemPropertyPrefix the prefix of system properties that set options, or null
+   * @param transactional whether fields are written only if the whole parse succeeds
+   * @return a schema with the given settings
+   */
+  OptionsSchema withSettings(
+      boolean parseAfterArg,
+      boolean allowAbbreviations,
+      boolean spaceSeparatedLists,
+      boolean expandArgFiles,
+      /*@Nullable*/ String environmentPrefix,
+      /*@Nullable*/ String systemPropertyPrefix,
+      boolean transactional) {
+    if (parseAfterArg == this.parseAfterArg
+        && allowAbbreviations == this.allowAbbreviations
+        && spaceSeparatedLists == this.spaceSeparatedLists
+        && expandArgFiles == this.expandArgFiles
+        && Objects.equals(environmentPrefix, this.environmentPrefix)
+        && Objects.equals(systemPropertyPrefix, this.systemPropertyPrefix)
+        && transactional == this.transactional) {
+      return this;
+    }
+    return new OptionsSchema(
+        this,
+        parseAfterArg,
+        allowAbbreviations,
+        spaceSeparatedLists,
+        expandArgFiles,
+        environmentPrefix,
+        systemPropertyPrefix,
+        transactional);
+  }
+
+  /**
+   * Returns a one-line description of an option, for error messages.
+   *
+   * @param e an option
+   * @return a one-line description of the option
+   */
+  private String describe(Entry e) {
+    String prefix = useSingleDash ? "-" : "--";
+    String shortNameStr = (e.shortName == null) ? "" : "-" + e.shortName + " ";
+    return String.format("%s%s%s field %s", shortNameStr, prefix, e.longName, e.spec.fieldString);
+  }
+
+  /**
+   * Returns the options of this schema, in the order in which their classes and fields were
+   * declared.
+   *
+   * @return the options of this schema
+   */
+  List<Entry> entries() {
+    return entries;
+  }
+
+  /**
+   * Returns a new dispatcher for listeners to changes in the options of this schema. An option
+   * belongs to the option group named by the {@code @}{@link OptionGroup} on it or on the nearest
+   * option before it in the same class.
+   *
+   * @return a new dispatcher with no listeners, for snapshots made by {@link #snapshot}
+   */
+  ChangeDispatcher newChangeDispatcher() {
+    Map<String, List<Integer>> members = new LinkedHashMap<String, List<Integer>>();
+    /*@Nullable*/ List<Integer> current = null;
+    int currentTarget = -1;
+    for (int i = 0; i < entries.size(); i++) {
+      Entry e = entries.get(i);
+      if (e.target != currentTarget) {
+        current = null;
+        currentTarget = e.target;
+      }
+      if (e.spec.groupName != null) {
+        current = new ArrayList<Integer>();
+        members.put(e.spec.groupName, current);
+      }
+      if (current != null) {
+        current.add(i);
+      }
+    }
+    Map<String, int[]> groups = new HashMap<String, int[]>();
+    for (Map.Entry<String, List<Integer>> m : members.entrySet()) {
+      int[] indices = new int[m.getValue().size()];
+      for (int i = 0; i < indices.length; i++) {
+        indices[i] = m.getValue().get(i);
+      }
+      groups.put(m.getKey(), indices);
+    }
+    return new ChangeDispatcher(snapshotLayout.names, groups);
+  }
+
+  /**
+   * Returns a snapshot of the values of the options in {@code targets}.
+   *
+   * @param targets the objects whose fields to read, indexed by {@link Entry#target}
+   * @param version the version of the snapshot
+   * @param base the snapshot to record differences from (see {@link OptionsSnapshot#diff}), or
+   *     null if the new snapshot is to be the base
+   * @return a snapshot of the values of the options
+   */
+  OptionsSnapshot snapshot(
+      /*@Nullable*/ Object[] targets, long version, /*@Nullable*/ OptionsSnapshot base) {
+    /*@Nullable*/ Object[] values = new Object[entries.size()];
+    for (int i = 0; i < values.length; i++) {
+      Entry e = entries.get(i);
+      values[i] = OptionsSnapshot.copyValue(e.spec.accessor.get(targets[e.target]));
+    }
+    return new OptionsSnapshot(snapshotLayout, values, version, base, false);
+  }
+
+  /**
+   * Returns the long name of an option, with leading dashes.
+   *
+   * @param e an option of this schema
+   * @return the long name of the option, with leading dashes
+   */
+  String optionName(Entry e) {
+    return (useSingleDash ? "-" : "--") + e.longName;
+  }
+
+  /**
+   * Returns the canonical name of an option: its long name with leading dashes. Every name of an
+   * option that is accepted on the command line (short name, alias, or abbreviation, if
+   * abbreviations are allowed) yields the same canonical name.
+   *
+   * @param name the name of an option, with leading dashes
+   * @return the canonical name of the option, or null if there is no such option
+   */
+  /*@Nullable*/ String canonicalName(String name) {
+    Entry e = nameMap.get(name, 0, name.length(), allowAbbreviations);
+    if (e == null) {
+      return null;
+    }
+    return optionName(e);
+  }
+
+  /**
+   * Creates one new target object per class of this schema, suitable for {@link #parse(Object[],
+   * String[])}. Each class must have a public constructor that takes no arguments.
+   *
+   * @return new instances of the classes of this schema
+   * @throws Error if a class cannot be instantiated
+   */
+  Object[] newTargets() {
+    Object[] targets = new Object[classes.length];
+    for (int i = 0; i < classes.length; i++) {
+      try {
+        targets[i] = classes[i].getConstructor().newInstance();
+      } catch (Exception e) {
+        throw new Error("cannot instantiate " + classes[i].getName(), e);
+      }
+    }
+    return targets;
+  }
+
+  /**
+   * Sets option variables of {@code target} from the given command line. The schema must have been
+   * built from exactly one class.
+   *
+   * @param target the object whose fields to set; an instance of the class of this schema
+   * @param args the command line to be parsed
+   * @return the non-option arguments and the options that were set
+   * @throws ArgException if the command line contains unknown option or misused options
+   */
+  public Result parse(Object target, String... args) throws ArgException {
+    return parse(new Object[] {target}, args);
+  }
+
+  /**
+   * Sets option variables of {@code targets} from the given command line.
+   *
+   * @param targets the objects whose fields to set: one instance of each class of this schema, in
+   *     the order the classes were given to the {@link Builder}
+   * @param args the command line to be parsed
+   * @return the non-option arguments and the options that were set
+   * @throws ArgException if the command line contains unknown option or misused options
+   */
+  public Result parse(Object[] targets, String[] args) throws ArgException {
+    return parse(targets, args, Collections.<File>emptyList());
+  }
+
+  /**
+   * Sets option variables of {@code targets} from the given command line and configuration files,
+   * and from system properties and environment variables if the schema has a prefix for them. In
+   * decreasing order of precedence, the sources are the command line, system properties,
+   * environment variables, and the configuration files, of which a file takes precedence over the
+   * files before it in the list. Each option gets its value or values from the source of highest
+   * precedence that mentions it. See {@link Options#setConfigFiles} for the format of the files.
+   *
+   * @param targets the objects whose fields to set: one instance of each class of this schema, in
+   *     the order the classes were given to the {@link Builder}
+   * @param args the command line to be parsed
+   * @param configFiles configuration files, in increasing order of precedence
+   * @return the non-option arguments and the options that were set
+   * @throws ArgException if the command line or a file contains unknown option or misused options,
+   *     or if a file cannot be read
+   */
+  public Result parse(Object[] targets, String[] args, List<File> configFiles)
+      throws ArgException {
+    checkTargets(targets);
+    List<String> optionNames = new ArrayList<String>();
+    List</*@Nullable*/ String> optionValues = new ArrayList</*@Nullable*/ String>();
+    String[] nonOptions = parse(targets, args, configFiles, optionNames, optionValues, null);
+    return new Result(nonOptions, optionNames, optionValues);
+  }
+
+  /**
+   * Throws an exception unless {@code targets} holds one instance of each class of this schema, in
+   * order.
+   *
+   * @param targets the objects whose fields to read or set
+   * @throws IllegalArgumentException if the targets do not match the classes of this schema
+   */
+  private void checkTargets(Object[] targets) {
+    if (targets.length != classes.length) {
+      throw new IllegalArgumentException(
+          String.format(
+              "expected %d targets, one for each of %s, but got %d",
+              classes.length, Arrays.toString(classes), targets.length));
+    }
+    for (int i = 0; i < targets.length; i++) {
+      if (!classes[i].isInstance(targets[i])) {
+        throw new IllegalArgumentException(
+            String.format(
+                "target %d is not an instance of %s: %s", i, classes[i].getName(), targets[i]));
+      }
+    }
+  }
+
+  /**
+   * Returns a compact binary encoding of the current values of all the options in {@code targets},
+   * for handing a configuration to another process. Unlike a command line built from {@link
+   * Result#getOptionsString}, it need not be tokenized or parsed, and it represents every value
+   * exactly, whatever characters it contains. The encoding records a hash of the names and types of
+   * the options, so {@link #decodeValues} rejects an encoding made by a schema of different
+   * classes.
+   *
+   * @param targets the objects whose fields to read: one instance of each class of this schema, in
+   *     the order the classes were given to the {@link Builder}
+   * @return the encoded values
+   */
+  public byte[] encodeValues(Object[] targets) {
+    checkTargets(targets);
+    return encode(targets);
+  }
+
+  /**
+   * Like {@link #encodeValues}, but does not check the targets.
+   *
+   * @param targets the objects whose fields to read, indexed by {@link Entry#target}; an element
+   *     is null if all the options of its class are static
+   * @return the encoded values
+   */
+  byte[] encode(/*@Nullable*/ Object[] targets) {
+    return valueCodec.encode(optionObjects(targets));
+  }
+
+  /**
+   * Sets all the options in {@code targets} to the values in an encoding made by {@link
+   * #encodeValues}. Primitive fields are set directly, and other values are converted as if they
+   * had been given on the command line. If an exception is thrown, no field has been changed.
+   *
+   * @param targets the objects whose fields to set: one instance of each class of this schema, in
+   *     the order the classes were given to the {@link Builder}
+   * @param data the encoded values
+   * @throws ArgException if {@code data} is malformed, was encoded by a schema of different
+   *     classes, or holds a value that cannot be converted
+   */
+  public void decodeValues(Object[] targets, byte[] data) throws ArgException {
+    checkTargets(targets);
+    decode(targets, data);
+  }
+
+  /**
+   * Like {@link #decodeValues}, but does not check the targets.
+   *
+   * @param targets the objects whose fields to set, indexed by {@link Entry#target}; an element is
+   *     null if all the options of its class are static
+   * @param data the encoded values
+   * @throws ArgException if {@code data} is malformed, was encoded by a schema of different
+   *     classes, or holds a value that cannot be converted
+   */
+  void decode(/*@Nullable*/ Object[] targets, byte[] data) throws ArgException {
+    valueCodec.decode(optionObjects(targets), data);
+  }
+
+  /**
+   * Returns, for each option, the object whose field holds its value.
+   *
+   * @param targets the objects whose fields hold the options, indexed by {@link Entry#target}
+   * @return the object of each option, in the order of {@link #entries}
+   */
+  private /*@Nullable*/ Object[] optionObjects(/*@Nullable*/ Object[] targets) {
+    /*@Nullable*/ Object[] objects = new Object[entries.size()];
+    for (int i = 0; i < objects.length; i++) {
+      objects[i] = targets[entries.get(i).target];
+    }
+    return objects;
+  }
+
+  /**
+   * Sets option variables from the given command line and configuration files, and from the
+   * system's properties and environment if the schema has a prefix for them. Does not check the
+   * targets.
+   *
+   * @param targets the objects whose fields to set, indexed by {@link Entry#target}; an element is
+   *     null if its options are static fields
+   * @param args the command line to be parsed
+   * @param configFiles configuration files, in increasing order of precedence
+   * @param optionNames where to record the name of each option that is set, or null to not record
+   *     options
+   * @param optionValues where to record the value of each option that is set (null for a bare
+   *     boolean), or null to not record options
+   * @param log if non-null, records each value that is written to a field
+   * @return all non-option arguments
+   * @throws ArgException if the command line or a file contains unknown option or misused options,
+   *     or if a file cannot be read
+   */
+  String[] parse(
+      /*@Nullable*/ Object[] targets,
+      String[] args,
+      List<File> configFiles,
+      /*@Nullable*/ List<String> optionNames,
+      /*@Nullable*/ List</*@Nullable*/ String> optionValues,
+      /*@Nullable*/ WriteLog log)
+      throws ArgException {
+    Map<?, ?> systemProperties =
+        systemPropertyPrefix == null ? Collections.emptyMap() : System.getProperties();
+    Map<String, String> environment =
+        environmentPrefix == null ? Collections.<String, String>emptyMap() : System.getenv();
+    return parse(
+        targets, args, systemProperties, environment, configFiles, optionNames, optionValues, log);
+  }
+
+  /**
+   * Sets option variables from the given command line, system properties, environment variables,
+   * and configuration files, in decreasing order of precedence. Does not check the targets. If the
+   * schema is transactional, every value is converted before any field is written, and on an
+   * error no field is written and nothing is recorded.
+   *
+   * @param targets the objects whose fields to set, indexed by {@link Entry#target}; an element is
+   *     null if its options are static fields
+   * @param args the command line to be parsed
+   * @param systemProperties the system properties; ignored if there is no system property prefix
+   * @param environment the environment variables; ignored if there is no environment prefix
+   * @param configFiles configuration files, in increasing order of precedence
+   * @param optionNames where to record the name of each option that is set, or null to not record
+   *     options
+   * @param optionValues where to record the value of each option that is set (null for a bare
+   *     boolean), or null to not record options
+   * @return all non-option arguments
+   * @throws ArgException if a source contains unknown option or misused options, or if a file
+   *     cannot be read
+   */
+  String[] parse(
+      /*@Nullable*/ Object[] targets,
+      String[] args,
+      Map<?, ?> systemProperties,
+      Map<String, String> environment,
+      List<File> configFiles,
+      /*@Nullable*/ List<String> optionNames,
+      /*@Nullable*/ List</*@Nullable*/ String> optionValues)
+      throws ArgException {
+    return parse(
+        targets,
+        args,
+        systemProperties,
+        environment,
+        configFiles,
+        optionNames,
+        optionValues,
+        null);
+  }
+
+  /**
+   * Like {@link #parse(Object[], String[], Map, Map, List, List, List)}, but also records the
+   * values that are written to fields.
+   *
+   * @param targets the objects whose fields to set, indexed by {@link Entry#target}; an element is
+   *     null if its options are static fields
+   * @param args the command line to be parsed
+   * @param systemProperties the system properties; ignored if there is no system property prefix
+   * @param environment the environment variables; ignored if there is no environment prefix
+   * @param configFiles configuration files, in increasing order of precedence
+   * @param optionNames where to record the name of each option that is set, or null to not record
+   *     options
+   * @param optionValues where to record the value of each option that is set (null for a bare
+   *     boolean), or null to not record options
+   * @param log if non-null, records each value that is written to a field
+   * @return all non-option arguments
+   * @throws ArgException if a source contains unknown option or misused options, or if a file
+   *     cannot be read
+   */
+  private String[] parse(
+      /*@Nullable*/ Object[] targets,
+      String[] args,
+      Map<?, ?> systemProperties,
+      Map<String, String> environment,
+      List<File> configFiles,
+      /*@Nullable*/ List<String> optionNames,
+      /*@Nullable*/ List</*@Nullable*/ String> optionValues,
+      /*@Nullable*/ WriteLog log)
+      throws ArgException {
+    if (!transactional) {
+      return parseSources(
+          targets,
+          null,
+          log,
+          args,
+          systemProperties,
+          environment,
+          configFiles,
+          optionNames,
+          optionValues);
+    }
+    Map<Entry, Object> staged = new LinkedHashMap<Entry, Object>();
+    List<String> stagedNames = (optionNames == null) ? null : new ArrayList<String>();
+    List</*@Nullable*/ String> stagedValues =
+        (optionValues == null) ? null : new ArrayList</*@Nullable*/ String>();
+    String[] nonOptions;
+    boolean committed = false;
+    if (log != null) {
+      log.beginTransaction();
+    }
+    try {
+      nonOptions =
+          parseSources(
+              targets,
+              staged,
+              log,
+              args,
+              systemProperties,
+              environment,
+              configFiles,
+              stagedNames,
+              stagedValues);
+      commit(targets, staged, log);
+      committed = true;
+    } finally {
+      if (log != null) {
+        log.endTransaction(committed);
+      }
+    }
+    if (optionNames != null && stagedNames != null) {
+      optionNames.addAll(stagedNames);
+    }
+    if (optionValues != null && stagedValues != null) {
+      optionValues.addAll(stagedValues);
+    }
+    return nonOptions;
+  }
+
+  /**
+   * Sets or stages option variables from the given command line, system properties, environment
+   * variables, and configuration files, in decreasing order of precedence.
+   *
+   * @param targets the objects whose fields to set, indexed by {@link Entry#target}; an element is
+   *     null if its options are static fields
+   * @param staged if non-null, converted values are staged here instead of written to fields;
+   *     see {@link #setArg}
+   * @param log if non-null, records each value that is written to a field
+   * @param args the command line to be parsed
+   * @param systemProperties the system properties; ignored if there is no system property prefix
+   * @param environment the environment variables; ignored if there is no environment prefix
+   * @param configFiles configuration files, in increasing order of precedence
+   * @param optionNames where to record the name of each option that is set, or null
+   * @param optionValues where to record the value of each option that is set, or null
+   * @return all non-option arguments
+   * @throws ArgException if a source contains unknown option or misused options, or if a file
+   *     cannot be read
+   */
+  private String[] parseSources(
+      /*@Nullable*/ Object[] targets,
+      /*@Nullable*/ Map<Entry, Object> staged,
+      /*@Nullable*/ WriteLog log,
+      String[] args,
+      Map<?, ?> systemProperties,
+      Map<String, String> environment,
+      List<File> configFiles,
+      /*@Nullable*/ List<String> optionNames,
+      /*@Nullable*/ List</*@Nullable*/ String> optionValues)
+      throws ArgException {
+    if (configFiles.isEmpty() && systemPropertyPrefix == null && environmentPrefix == null) {
+      return parseArgs(targets, staged, log, args, null, optionNames, optionValues);
+    }
+    // Sources are read from highest precedence to lowest, so that each option is set from only
+    // one source and each field is written only once.
+    Set<Entry> seen = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+    String[] nonOptions =
+        parseArgs(targets, staged, log, args, seen, optionNames, optionValues);
+    if (systemPropertyPrefix != null) {
+      readVariables(
+          "system property",
+          Provenance.SYSTEM_PROPERTY,
+          systemProperties,
+          systemPropertyPrefix,
+          targets,
+          staged,
+          log,
+          seen,
+          optionNames,
+          optionValues);
+    }
+    if (environmentPrefix != null) {
+      readVariables(
+          "environment variable",
+          Provenance.ENVIRONMENT_VARIABLE,
+          environment,
+          environmentPrefix,
+          targets,
+          staged,
+          log,
+          seen,
+          optionNames,
+          optionValues);
+    }
+    for (int i = configFiles.size() - 1; i >= 0; i--) {
+      readConfigFile(configFiles.get(i), targets, staged, log, seen, optionNames, optionValues);
+    }
+    return nonOptions;
+  }
+
+  /**
+   * Writes staged values to the fields of {@code targets}. A list option's elements are added to
+   * its list, which is created if the field is null.
+   *
+   * @param targets the objects whose fields to set, indexed by {@link Entry#target}
+   * @param staged the converted values, keyed by option
+   * @param log if non-null, records each value that is written to a field
+   */
+  private static void commit(
+      /*@Nullable*/ Object[] targets,
+      Map<Entry, Object> staged,
+      /*@Nullable*/ WriteLog log) {
+    for (Map.Entry<Entry, Object> s : staged.entrySet()) {
+      Entry e = s.getKey();
+      Object obj = targets[e.target];
+      if (e.spec.isList) {
+        @SuppressWarnings("unchecked")
+        List<Object> list = (List<Object>) e.spec.accessor.get(obj);
+        if (list == null) {
+          // The staged list is a new ArrayList, as ListSetter would create.
+          e.spec.accessor.set(obj, s.getValue());
+        } else {
+          list.addAll((List<?>) s.getValue());
+        }
+        if (log != null) {
+          log.mark(e.index);
+          for (Object element : (List<?>) s.getValue()) {
+            log.append(e.index, element);
+          }
+        }
+      } else {
+        e.spec.accessor.set(obj, s.getValue());
+        if (log != null) {
+          log.set(e.index, s.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets option variables from the given command line. Does not check the targets.
+   *
+   * @param targets the objects whose fields to set, indexed by {@link Entry#target}
+   * @param staged if non-null, converted values are staged here instead of written to fields;
+   *     see {@link #setArg}
+   * @param log if non-null, records each value that is written to a field
+   * @param args the command line to be parsed
+   * @param seen if non-null, each option that is set is added to this set
+   * @param optionNames where to record the name of each option that is set, or null
+   * @param optionValues where to record the value of each option that is set, or null
+   * @return all non-option arguments
+   * @throws ArgException if the command line contains unknown option or misused options
+   */
+  @SuppressWarnings("index") // https://github.com/kelloggm/checker-framework/issues/169
+  private String[] parseArgs(
+      /*@Nullable*/ Object[] targets,
+      /*@Nullable*/ Map<Entry, Object> staged,
+      /*@Nullable*/ WriteLog log,
+      String[] args,
+      /*@Nullable*/ Set<Entry> seen,
+      /*@Nullable*/ List<String> optionNames,
+      /*@Nullable*/ List</*@Nullable*/ String> optionValues)
+      throws ArgException {
+
+    // The origin of each argument after expansion, if argument files were expanded and sources
+    // are recorded; otherwise each argument is at its own index on the command line.
+    /*@Nullable*/ ArgFiles.Origins origins = null;
+    if (expandArgFiles) {
+      if (log != null && log.recordsSources()) {
+        origins = new ArgFiles.Origins();
+      }
+      args = ArgFiles.expand(args, origins);
+    }
+
+    /*@MonotonicNonNull*/ List<String> nonOptions = null;
+    ArgSlice slice = new ArgSlice();
+    // If true, then "--" has been seen and any argument starting with "-"
+    // is processed as an ordinary argument, not as an option.
+    boolean ignoreOptions = false;
+
+    String longPrefix = useSingleDash ? "-" : "--";
+
+    // Loop through each argument.  The current argument is the part of arg starting at argStart.
+    // If there was a ',' separator in an argument, tailArg holds it and tailStart is the index
+    // just after the ','.
+    /*@Nullable*/ String tailArg = null;
+    int tailStart = 0;
+    String arg;
+    int argStart;
+    for (int ii = 0; ii < args.length; ) {
+      // If there was a ',' separator in previous arg, use the tail as
+      // current arg; otherwise, fetch the next arg from args list.
+      if (tailArg != null) {
+        arg = tailArg;
+        argStart = tailStart;
+        tailArg = null;
+      } else {
+        arg = args[ii];
+        argStart = 0;
+      }
+      int argEnd = arg.length();
+
+      if (argEnd - argStart == 2 && arg.startsWith("--", argStart)) {
+        ignoreOptions = true;
+      } else if (arg.startsWith("-", argStart) && !ignoreOptions) {
+        // Allow ',' as an argument separator to get around
+        // some command line quoting problems.  (markro)
+        int splitPos = arg.indexOf(",-", argStart);
+        if (splitPos != -1) {
+          tailArg = arg;
+          tailStart = splitPos + 1;
+          argEnd = splitPos;
+        }
+
+        int eqPos = arg.indexOf('=', argStart);
+        if (eqPos >= argEnd) {
+          eqPos = -1;
+        }
+        int nameEnd = (eqPos == -1) ? argEnd : eqPos;
+        boolean abbreviate =
+            allowAbbreviations
+                && nameEnd - argStart > longPrefix.length()
+                && arg.startsWith(longPrefix, argStart);
+        Entry e = nameMap.get(arg, argStart, nameEnd, abbreviate);
+        if (e == null) {
+          throw unknownOption(arg, argStart, nameEnd, argEnd, abbreviate);
+        }
+        slice.setName(arg, argStart, nameEnd);
+        int position = ii;
+        if (eqPos != -1) {
+          slice.setValue(arg, eqPos + 1, argEnd);
+        } else if (e.argumentRequired()) {
+          ii++;
+          if (ii >= args.length) {
+            throw new ArgException(
+                "option %s requires an argument", arg.substring(argStart, argEnd));
+          }
+          slice.setValue(args[ii], 0, args[ii].length());
+        } else {
+          slice.setValue(null, 0, 0);
+        }
+        // System.out.printf ("argName = '%s', argValue='%s'%n", slice.name(),
+        //                    slice.valueOrNull());
+        setArg(e, targets[e.target], staged, log, slice, optionNames, optionValues);
+        if (log != null) {
+          if (origins == null) {
+            log.source(e.index, Provenance.ARGUMENT, null, position);
+          } else {
+            String file = origins.file(position);
+            log.source(
+                e.index,
+                file == null ? Provenance.ARGUMENT : Provenance.ARGUMENT_FILE,
+                file,
+                origins.position(position));
+          }
+        }
+        if (seen != null) {
+          seen.add(e);
+        }
+      } else { // not an option
+        if (!parseAfterArg) {
+          ignoreOptions = true;
+        }
+        if (nonOptions == null) {
+          nonOptions = new ArrayList<String>();
+        }
+        nonOptions.add(argStart == 0 ? arg : arg.substring(argStart));
+      }
+
+      // If no ',' tail, advance to next args option
+      if (tailArg == null) {
+        ii++;
+      }
+    }
+    if (nonOptions == null) {
+      return NO_ARGS;
+    }
+    String[] result = nonOptions.toArray(new String[nonOptions.size()]);
+    return result;
+  }
+
+  /**
+   * Sets option variables from a configuration file, skipping the options in {@code seen}, which
+   * were set by a source of higher precedence. Each line is read and applied in turn. Values of
+   * list options are added as they are read; for other options, only the last value in the file
+   * matters, so those are held until the end of the file and then set once.
+   *
+   * @param file a configuration file
+   * @param targets the objects whose fields to set, indexed by {@link Entry#target}
+   * @param staged if non-null, converted values are staged here instead of written to fields;
+   *     see {@link #setArg}
+   * @param log if non-null, records each value that is written to a field
+   * @param seen the options set by sources of higher precedence; the options that this file sets
+   *     are added to it
+   * @param optionNames where to record the name of each option that is set, or null
+   * @param optionValues where to record the value of each option that is set, or null
+   * @throws ArgException if the file contains an unknown or misused option, or cannot be read
+   */
+  private void readConfigFile(
+      File file,
+      /*@Nullable*/ Object[] targets,
+      /*@Nullable*/ Map<Entry, Object> staged,
+      /*@Nullable*/ WriteLog log,
+      Set<Entry> seen,
+      /*@Nullable*/ List<String> optionNames,
+      /*@Nullable*/ List</*@Nullable*/ String> optionValues)
+      throws ArgException {
+    String prefix = useSingleDash ? "-" : "--";
+    ArgSlice slice = new ArgSlice();
+    // Map from option to its last line in this file.
+    Map<Entry, ConfigLine> lastLines = new LinkedHashMap<Entry, ConfigLine>();
+    Set<Entry> seenHere = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#") || line.startsWith("!")) {
+          continue;
+        }
+        int eqPos = line.indexOf('=');
+        String key = (eqPos == -1 ? line : line.substring(0, eqPos)).trim();
+        String value = (eqPos == -1) ? null : line.substring(eqPos + 1).trim();
+        String name = key.startsWith("-") ? key : prefix + key;
+        Entry e = nameMap.get(name);
+        if (e == null) {
+          throw new ArgException("%s:%d: unknown option name '%s'", file, lineNumber, key);
+        }
+        if (seen.contains(e)) {
+          continue;
+        }
+        seenHere.add(e);
+        ConfigLine configLine = new ConfigLine(name, value, lineNumber);
+        if (e.spec.isList) {
+          setConfigArg(e, targets, staged, log, slice, configLine, file, optionNames, optionValues);
+        } else {
+          lastLines.put(e, configLine);
+        }
+      }
+    } catch (IOException ex) {
+      throw new ArgException("cannot read configuration file %s: %s", file, ex.getMessage());
+    }
+    for (Map.Entry<Entry, ConfigLine> last : lastLines.entrySet()) {
+      setConfigArg(
+          last.getKey(),
+          targets,
+          staged,
+          log,
+          slice,
+          last.getValue(),
+          file,
+          optionNames,
+          optionValues);
+    }
+    seen.addAll(seenHere);
+  }
+
+  /**
+   * Sets option variables from the variables (environment variables or system properties) whose
+   * names start with {@code prefix}, skipping the options in {@code seen}, which were set by a
+   * source of higher precedence. The rest of a variable's name is looked up in the precomputed
+   * {@link #variableNames}; a variable that does not name an option is ignored. Variables are
+   * applied in order of name, so that the recorded options do not depend on the order of the map.
+   *
+   * @param kind what the variables are, for error messages
+   * @param sourceKind what the variables are, for the log: {@link Provenance#SYSTEM_PROPERTY} or
+   *     {@link Provenance#ENVIRONMENT_VARIABLE}
+   * @param variables the variables; keys or values that are not strings are ignored
+   * @param prefix the prefix of the names of variables that set options
+   * @param targets the objects whose fields to set, indexed by {@link Entry#target}
+   * @param staged if non-null, converted values are staged here instead of written to fields;
+   *     see {@link #setArg}
+   * @param log if non-null, records each value that is written to a field
+   * @param seen the options set by sources of higher precedence; the options that the variables
+   *     set are added to it
+   * @param optionNames where to record the name of each option that is set, or null
+   * @param optionValues where to record the value of each option that is set, or null
+   * @throws ArgException if a name is ambiguous, two variables name the same option, or a value
+   *     cannot be converted
+   */
+  private void readVariables(
+      String kind,
+      byte sourceKind,
+      Map<?, ?> variables,
+      String prefix,
+      /*@Nullable*/ Object[] targets,
+      /*@Nullable*/ Map<Entry, Object> staged,
+      /*@Nullable*/ WriteLog log,
+      Set<Entry> seen,
+      /*@Nullable*/ List<String> optionNames,
+      /*@Nullable*/ List</*@Nullable*/ String> optionValues)
+      throws ArgException {
+    // Map from variable name to the option it sets, in order of name.
+    TreeMap<String, Entry> found = new TreeMap<String, Entry>();
+    // Map from variable name to its value.
+    Map<String, String> values = new HashMap<String, String>();
+    // Map from option to the variable that sets it, to detect duplicates.
+    Map<Entry, String> foundNames = new IdentityHashMap<Entry, String>();
+    for (Map.Entry<?, ?> variable : variables.entrySet()) {
+      Object name = variable.getKey();
+      if (!(name instanceof String)
+          || !(variable.getValue() instanceof String)
+          || !((String) name).startsWith(prefix)) {
+        continue;
+      }
+      String varName = (String) name;
+      String key = variableKey(varName, prefix.length());
+      if (ambiguousVariableNames.contains(key)) {
+        throw new ArgException("%s %s names more than one option", kind, varName);
+      }
+      Entry e = variableNames.get(key);
+      if (e == null || seen.contains(e)) {
+        continue;
+      }
+      String previous = foundNames.put(e, varName);
+      if (previous != null) {
+        boolean inOrder = previous.compareTo(varName) < 0;
+        throw new ArgException(
+            "%ss %s and %s both set option %s",
+            kind,
+            inOrder ? previous : varName,
+            inOrder ? varName : previous,
+            describe(e));
+      }
+      found.put(varName, e);
+      values.put(varName, (String) variable.getValue());
+    }
+
+    String dashes = useSingleDash ? "-" : "--";
+    ArgSlice slice = new ArgSlice();
+    for (Map.Entry<String, Entry> f : found.entrySet()) {
+      String varName = f.getKey();
+      Entry e = f.getValue();
+      @SuppressWarnings("nullness") // map key
+      /*@NonNull*/ String value = values.get(varName);
+      String optionName = dashes + e.longName;
+      slice.setName(optionName, 0, optionName.length());
+      if (value.isEmpty() && !e.argumentRequired()) {
+        slice.setValue(null, 0, 0);
+      } else {
+        slice.setValue(value, 0, value.length());
+      }
+      try {
+        setArg(e, targets[e.target], staged, log, slice, optionNames, optionValues);
+      } catch (ArgException ae) {
+        throw new ArgException("%s %s: %s", kind, varName, ae.getMessage());
+      }
+      if (log != null) {
+        log.source(e.index, sourceKind, varName, 0);
+      }
+      seen.add(e);
+    }
+  }
+
+  /** An option setting read from a line of a configuration file. */
+  private static final class ConfigLine {
+
+    /** The name of the option, with leading dashes. */
+    final String name;
+
+    /** The value of the option, or null if none was given. */
+    final /*@Nullable*/ String value;
+
+    /** The line number, for error messages. */
+    final int lineNumber;
+
+    /**
+     * Creates a ConfigLine.
+     *
+     * @param name the name of the option, with leading dashes
+     * @param value the value of the option, or null if none was given
+     * @param lineNumber the line number
+     */
+    ConfigLine(String name, /*@Nullable*/ String value, int lineNumber) {
+      this.name = name;
+      this.value = value;
+      this.lineNumber = lineNumber;
+    }
+  }
+
+  /**
+   * Sets an option from a line of a configuration file.
+   *
+   * @param e the option to set
+   * @param targets the objects whose fields to set, indexed by {@link Entry#target}
+   * @param staged if non-null, converted values are staged here instead of written to fields;
+   *     see {@link #setArg}
+   * @param log if non-null, records each value that is written to a field
+   * @param slice a reusable ArgSlice
+   * @param line the option's name and value
+   * @param file the configuration file, for error messages
+   * @param optionNames where to record the name of each option that is set, or null
+   * @param optionValues where to record the value of each option that is set, or null
+   * @throws ArgException if the value is missing or cannot be converted
+   */
+  private void setConfigArg(
+      Entry e,
+      /*@Nullable*/ Object[] targets,
+      /*@Nullable*/ Map<Entry, Object> staged,
+      /*@Nullable*/ WriteLog log,
+      ArgSlice slice,
+      ConfigLine line,
+      File file,
+      /*@Nullable*/ List<String> optionNames,
+      /*@Nullable*/ List</*@Nullable*/ String> optionValues)
+      throws ArgException {
+    if (line.value == null && e.argumentRequired()) {
+      throw new ArgException(
+          "%s:%d: option %s requires an argument", file, line.lineNumber, line.name);
+    }
+    slice.setName(line.name, 0, line.name.length());
+    slice.setValue(line.value, 0, line.value == null ? 0 : line.value.length());
+    try {
+      setArg(e, targets[e.target], staged, log, slice, optionNames, optionValues);
+    } catch (ArgException ae) {
+      throw new ArgException("%s:%d: %s", file, line.lineNumber, ae.getMessage());
+    }
+    if (log != null) {
+      log.source(e.index, Provenance.CONFIG_FILE, file.getPath(), line.lineNumber);
+    }
+  }
+
+  /**
+   * Returns an exception describing an option name that was not found.
+   *
+   * @param arg the string containing the option
+   * @param argStart the index of the start of the option in {@code arg}
+   * @param nameEnd the index of the end of the option name in {@code arg}
+   * @param argEnd the index of the end of the option (including any value) in {@code arg}
+   * @param abbreviate whether the name was looked up as a possible abbreviation
+   * @return an exception to throw
+   */
+  private ArgException unknownOption(
+      String arg, int argStart, int nameEnd, int argEnd, boolean abbreviate) {
+    String argName = arg.substring(argStart, nameEnd);
+    String argText = arg.substring(argStart, argEnd);
+    if (abbreviate) {
+      List<String> candidates = nameMap.keysWithPrefix(arg, argStart, nameEnd);
+      if (!candidates.isEmpty()) {
+        return new ArgException(
+            "ambiguous option name '%s' in arg '%s'; possibilities: %s",
+            argName, argText, candidates);
+      }
+    }
+    StringBuilder msg = new StringBuilder();
+    msg.append(String.format("unknown option name '%s' in arg '%s'", argName, argText));
+    if (false) { // for debugging
+      msg.append("; known options:");
+      for (String optionName : nameMap.keys()) {
+        msg.append(" ");
+        msg.append(optionName);
+      }
+    }
+    return new ArgException(msg.toString());
+  }
+
+  /**
+   * Set the specified option to the value specified in {@code arg}.
+   *
+   * @param e the option to set
+   * @param obj the object whose field to set, or null if the field is static
+   * @param staged if non-null, the converted value is staged here, keyed by option, and the field
+   *     is not written; a list option's value is the list of elements to add to the field
+   * @param log if non-null, records the value if it is written to the field
+   * @param arg the name of the argument as passed on the command line, and its value; the value
+   *     may be absent
+   * @param optionNames where to record the name of the option, or null
+   * @param optionValues where to record the value of the option, or null
+   * @throws ArgException if there are any errors
+   */
+  private void setArg(
+      Entry e,
+      /*@Nullable*/ Object obj,
+      /*@Nullable*/ Map<Entry, Object> staged,
+      /*@Nullable*/ WriteLog log,
+      ArgSlice arg,
+      /*@Nullable*/ List<String> optionNames,
+      /*@Nullable*/ List</*@Nullable*/ String> optionValues)
+      throws ArgException {
+
+    Class<?> type = e.spec.baseType;
+
+    // Keep track of all of the options specified
+    if (optionNames != null && optionValues != null) {
+      optionNames.add(arg.name());
+      optionValues.add(arg.valueOrNull());
+    }
+
+    // Argument values are required for everything but booleans
+    if (arg.valueSource == null) {
+      if ((type != Boolean.TYPE) || (type != Boolean.class)) {
+        arg.setValue("true", 0, 4);
+      } else {
+        throw new ArgException("Value required for option " + arg.name());
+      }
+    }
+
+    try {
+      if (staged == null && log != null) {
+        setAndLog(e, obj, arg, log);
+      } else if (staged == null) {
+        e.spec.setter.set(e.spec, obj, arg, spaceSeparatedLists);
+      } else if (e.spec.isList) {
+        @SuppressWarnings("unchecked")
+        List<Object> elements = (List<Object>) staged.get(e);
+        List<?> converted = (List<?>) e.spec.setter.convert(e.spec, arg, spaceSeparatedLists);
+        if (elements == null) {
+          staged.put(e, converted);
+        } else {
+          elements.addAll(converted);
+        }
+      } else {
+        staged.put(e, e.spec.setter.convert(e.spec, arg, spaceSeparatedLists));
+      }
+    } catch (ArgException ae) {
+      throw ae;
+    } catch (Exception ex) {
+      throw new Error("Unexpected error ", ex);
+    }
+  }
+
+  /**
+   * Sets an option, and records the new value, or for a list option, the elements that were added.
+   *
+   * @param e the option to set
+   * @param obj the object whose field to set, or null if the field is static
+   * @param arg the name and value of the option
+   * @param log where to record the value
+   * @throws ArgException if the value cannot be converted
+   */
+  private void setAndLog(Entry e, /*@Nullable*/ Object obj, ArgSlice arg, WriteLog log)
+      throws ArgException {
+    if (!log.needsValues()) {
+      e.spec.setter.set(e.spec, obj, arg, spaceSeparatedLists);
+      log.mark(e.index);
+      return;
+    }
+    if (!e.spec.isList) {
+      e.spec.setter.set(e.spec, obj, arg, spaceSeparatedLists);
+      log.set(e.index, e.spec.accessor.get(obj));
+      return;
+    }
+    List<?> list = (List<?>) e.spec.accessor.get(obj);
+    int oldSize = (list == null) ? 0 : list.size();
+    e.spec.setter.set(e.spec, obj, arg, spaceSeparatedLists);
+    log.mark(e.index);
+    list = (List<?>) e.spec.accessor.get(obj);
+    if (list != null) {
+      for (int i = oldSize; i < list.size(); i++) {
+        log.append(e.index, list.get(i));
+      }
+    }
+  }
+
+  /**
+   * Returns the recorded options as a command line. Used by {@link Options#getOptionsString} and
+   * {@link Result#getOptionsString}.
+   *
+   * <p>A value that contains a space is quoted. A value that contains a space and both kinds of
+   * quote is put in single quotes, with each embedded single quote written as <span
+   * style="white-space: nowrap;">{@code '\''}</span>, as in a POSIX shell.
+   *
+   * @param optionNames the name of each option, in order
+   * @param optionValues the value of each option, or null for a bare boolean
+   * @return the options, similarly to supplied on the command line
+   */
+  static String formatOptions(List<String> optionNames, List</*@Nullable*/ String> optionValues) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < optionNames.size(); i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      sb.append(optionNames.get(i));
+      String argValue = optionValues.get(i);
+      if (argValue != null) {
+        sb.append('=');
+        appendQuoted(sb, argValue);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Appends an option value to {@code sb}, quoting it if it contains a space.
+   *
+   * @param sb where to append the value
+   * @param argValue the value to append
+   */
+  private static void appendQuoted(StringBuilder sb, String argValue) {
+    if (argValue.indexOf(' ') == -1) {
+      sb.append(argValue);
+    } else if (argValue.indexOf('\'') == -1) {
+      sb.append('\'').append(argValue).append('\'');
+    } else if (argValue.indexOf('"') == -1) {
+      sb.append('"').append(argValue).append('"');
+    } else {
+      sb.append('\'');
+      for (int i = 0; i < argValue.length(); i++) {
+        char ch = argValue.charAt(i);
+        if (ch == '\'') {
+          sb.append("'\\''");
+        } else {
+          sb.append(ch);
+        }
+      }
+      sb.append('\'');
+    }
+  }
+
+  /** The outcome of one call to {@link OptionsSchema#parse}. */
+  public static final class Result {
+
+    /** The non-option arguments. */
+    private final String[] args;
+
+    /** The names of the options that were set, in order. */
+    private final List<String> optionNames;
+
+    /** The values of the options that were set, in order; null for a bare boolean. */
+    private final List</*@Nullable*/ String> optionValues;
+
+    /**
+     * Creates a new Result.
+     *
+     * @param args the non-option arguments
+     * @param optionNames the names of the options that were set
+     * @param optionValues the values of the options that were set
+     */
+    Result(
+        String[] args, List<String> optionNames, List</*@Nullable*/ String> optionValues) {
+      this.args = args;
+      this.optionNames = optionNames;
+      this.optionValues = optionValues;
+    }
+
+    /**
+     * Returns the non-option arguments, in order.
+     *
+     * @return the non-option arguments
+     */
+    public String[] getArgs() {
+      return args.clone();
+    }
+
+    /**
+     * Returns the names of the options that were set, in order, as written on the command line.
+     * An option that was set more than once appears more than once.
+     *
+     * @return the names of the options that were set
+     */
+    public List<String> getOptionNames() {
+      return Collections.unmodifiableList(optionNames);
+    }
+
+    /**
+     * Returns the options that were set, in the format of {@link Options#getOptionsString}.
+     *
+     * @return the options that were set, similarly to supplied on the command line
+     */
+    public String getOptionsString() {
+      return formatOptions(optionNames, optionValues);
+    }
+  }
+
+  /**
+   * Collects the classes and settings of an {@link OptionsSchema}. The settings have the same
+   * meaning and defaults as the corresponding settings of {@link Options}.
+   */
+  public static final class Builder {
+
+    /** The classes that declare the options. */
+    private final Class<?>[] classes;
+
+    /** Whether long options take a single dash. */
+    private boolean useSingleDash = false;
+
+    /** Whether to parse options after a non-option argument. */
+    private boolean parseAfterArg = true;
+
+    /** Whether long options may be abbreviated. */
+    private boolean allowAbbreviations = false;
+
+    /** Whether list arguments are split on spaces. */
+    private boolean spaceSeparatedLists = false;
+
+    /** Whether to write underscores in long option names as dashes. */
+    private boolean useDashes = true;
+
+    /** Whether to expand {@code @}<i>file</i> arguments. */
+    private boolean expandArgFiles = false;
+
+    /** The prefix of environment variables that set options, or null. */
+    private /*@Nullable*/ String environmentPrefix = null;
+
+    /** The prefix of system properties that set options, or null. */
+    private /*@Nullable*/ String systemPropertyPrefix = null;
+
+    /** Whether fields are written only if the whole parse succeeds. */
+    private boolean transactional = false;
+
+    /**
+     * Creates a builder for a schema of the options declared by the given classes. The names of all
+     * the options must be unique across the classes.
+     *
+     * @param classes the classes whose options to parse
+     */
+    public Builder(Class<?>... classes) {
+      if (classes.length == 0) {
+        throw new Error("Must pass at least one class to OptionsSchema.Builder");
+      }
+      this.classes = classes.clone();
+    }
+
+    /**
+     * Sets whether long options take a single dash.
+     *
+     * @param val whether to parse long options with a single dash
+     * @return this builder
+     * @see Options#setUseSingleDash(boolean)
+     */
+    public Builder setUseSingleDash(boolean val) {
+      useSingleDash = val;
+      return this;
+    }
+
+    /**
+     * Sets whether to parse options after a non-option argument.
+     *
+     * @param val whether to parse arguments after a non-option command-line argument
+     * @return this builder
+     * @see Options#setParseAfterArg(boolean)
+     */
+    public Builder setParseAfterArg(boolean val) {
+      parseAfterArg = val;
+      return this;
+    }
+
+    /**
+     * Sets whether long options may be abbreviated to a unique prefix.
+     *
+     * @param val whether to accept unique prefixes of long option names
+     * @return this builder
+     * @see Options#setAllowAbbreviations(boolean)
+     */
+    public Builder setAllowAbbreviations(boolean val) {
+      allowAbbreviations = val;
+      return this;
+    }
+
+    /**
+     * Sets whether an argument to an option of list type is split on spaces. Unlike {@link
+     * Options#spaceSeparatedLists}, this setting belongs to the schema, not to the whole JVM.
+     *
+     * @param val whether to split list arguments on spaces
+     * @return this builder
+     */
+    public Builder setSpaceSeparatedLists(boolean val) {
+      spaceSeparatedLists = val;
+      return this;
+    }
+
+    /**
+     * Sets whether underscores in field names are written as dashes in long option names. If so,
+     * the name with the field's underscores is also accepted on the command line; if not, only the
+     * field's own name is.
+     *
+     * @param val whether to use dashes in long option names
+     * @return this builder
+     * @see Options#useDashes
+     */
+    public Builder setUseDashes(boolean val) {
+      useDashes = val;
+      return this;
+    }
+
+    /**
+     * Sets whether an argument {@code @}<i>file</i> is replaced by the arguments in the file.
+     *
+     * @param val whether to expand argument files
+     * @return this builder
+     * @see Options#setExpandArgFiles(boolean)
+     */
+    public Builder setExpandArgFiles(boolean val) {
+      expandArgFiles = val;
+      return this;
+    }
+
+    /**
+     * Sets the prefix of environment variables that set options.
+     *
+     * @param prefix the prefix of environment variables that set options, or null to ignore the
+     *     environment
+     * @return this builder
+     * @see Options#setEnvironmentPrefix(String)
+     */
+    public Builder setEnvironmentPrefix(/*@Nullable*/ String prefix) {
+      environmentPrefix = prefix;
+      return this;
+    }
+
+    /**
+     * Sets the prefix of system properties that set options.
+     *
+     * @param prefix the prefix of system properties that set options, or null to ignore system
+     *     properties
+     * @return this builder
+     * @see Options#setSystemPropertyPrefix(String)
+     */
+    public Builder setSystemPropertyPrefix(/*@Nullable*/ String prefix) {
+      systemPropertyPrefix = prefix;
+      return this;
+    }
+
+    /**
+     * Sets whether a parse writes the fields only if every argument is converted successfully.
+     *
+     * @param val whether to stage values and write them only if the whole parse succeeds
+     * @return this builder
+     * @see Options#setTransactional(boolean)
+     */
+    public Builder setTransactional(boolean val) {
+      transactional = val;
+      return this;
+    }
+
+    /**
+     * Returns a schema for the options of the classes, with the current settings.
+     *
+     * @return a new schema
+     */
+    public OptionsSchema build() {
+      List<Entry> entries = new ArrayList<Entry>();
+      for (int i = 0; i < classes.length; i++) {
+        for (FieldSpec spec : Options.fieldSpecs(classes[i])) {
+          if (spec.isStatic) {
+            throw new Error(
+                "static option "
+                    + spec.fieldString
+                    + " cannot be set per parse; use Options for static options");
+          }
+          entries.add(new Entry(spec, i, entries.size(), useDashes));
+        }
+      }
+      return new OptionsSchema(
+          classes,
+          entries,
+          useSingleDash,
+          parseAfterArg,
+          allowAbbreviations,
+          spaceSeparatedLists,
+          expandArgFiles,
+          environmentPrefix,
+          systemPropertyPrefix,
+          transactional);
+    }
+  }
+}
@@ -0,0 +1,350 @@
+package org.plumelib.options;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.plumelib.options.Options.FieldSpec;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * An immutable copy of the values of all the options of an {@link Options} or an {@link
+ * OptionsSchema}, as of the end of one parse or reload.
+ *
+ * <p>A program whose threads read options while another thread may reconfigure them should read a
+ * snapshot rather than the option fields. {@link Options#getSnapshot} returns the snapshot of the
+ * most recent completed parse; it is published with a single release store, so a reader sees all
+ * of the values of one parse, never a mix of two, without taking a lock:
+ *
+ * <pre>
+ * static final int THREADS = OPTIONS.getSnapshot().indexOf("threads");
+ *
+ * void handle(Request r) {
+ *   int threads = (Integer) OPTIONS.getSnapshot().get(THREADS);
+ *   ...
+ * }
+ * </pre>
+ *
+ * <p>Primitive values are boxed. A list option's value is an unmodifiable copy of the list. Other
+ * values are shared with the fields, so they are immutable only if their classes are.
+ *
+ * <p>{@link #diff} and {@link #diffFromDefaults} report which options differ between two
+ * snapshots. A snapshot published by an {@link Options} or an {@link OptionsWatcher} records, when
+ * it is created, which options differ from a common base snapshot (the defaults, for an Options),
+ * so comparing two such snapshots visits only the options that differ from the base in either of
+ * them, not every option.
+ */
+public final class OptionsSnapshot {
+
+  /** The names of the options, and their indices. */
+  private final Layout layout;
+
+  /** The value of each option, indexed as in {@link #layout}. */
+  private final /*@Nullable*/ Object[] values;
+
+  /** The number of snapshots published before this one by the same source. */
+  private final long version;
+
+  /**
+   * The snapshot that {@link #differences} is relative to; this snapshot itself if it is the base.
+   * Null if there is no base, in which case {@link #differences} is null too.
+   */
+  private final /*@Nullable*/ OptionsSnapshot base;
+
+  /** Whether {@link #base} holds the default values of the options. */
+  private final boolean baseIsDefaults;
+
+  /** The indices of the options whose values differ from those in {@link #base}. */
+  private final /*@Nullable*/ BitSet differences;
+
+  /**
+   * Creates a snapshot that has no base, so that comparing it with another snapshot visits every
+   * option.
+   *
+   * @param layout the names of the options
+   * @param values the value of each option; lists must already be copied, and the array is not
+   *     copied
+   * @param version the number of snapshots published before this one by the same source
+   */
+  OptionsSnapshot(Layout layout, /*@Nullable*/ Object[] values, long version) {
+    this.layout = layout;
+    this.values = values;
+    this.version = version;
+    this.base = null;
+    this.baseIsDefaults = false;
+    this.differences = null;
+  }
+
+  /**
+   * Creates a snapshot, and records which of its values differ from those of a base snapshot.
+   *
+   * @param layout the names of the options
+   * @param values the value of each option; lists must already be copied, and the array is not
+   *     copied
+   * @param version the number of snapshots published before this one by the same source
+   * @param base the snapshot to compare the values with, which must have the same layout; or null
+   *     if this snapshot is itself the base
+   * @param baseIsDefaults whether the base holds the default values of the options
+   */
+  OptionsSnapshot(
+      Layout layout,
+      /*@Nullable*/ Object[] values,
+      long version,
+      /*@Nullable*/ OptionsSnapshot base,
+      boolean baseIsDefaults) {
+    this.layout = layout;
+    this.values = values;
+    this.version = version;
+    this.baseIsDefaults = baseIsDefaults;
+    BitSet differences = new BitSet();
+    if (base == null) {
+      this.base = this;
+    } else {
+      this.base = base;
+      for (int i = 0; i < values.length; i++) {
+        if (!OptionsWatcher.valuesEqual(values[i], base.values[i])) {
+          differences.set(i);
+        }
+      }
+    }
+    this.differences = differences;
+  }
+
+  /**
+   * The names and fields of the options of a snapshot, in order, and a map from name to index.
+   * Computed once per {@link Options} or {@link OptionsSchema} and shared by all of its snapshots.
+   */
+  static final class Layout {
+
+    /** The long names of the options, without leading dashes, in order. */
+    final List<String> names;
+
+    /** Static information about the field of each option, in order. */
+    final List<FieldSpec> specs;
+
+    /** Map from long name, and from field name if it differs, to index. */
+    final NameTrie<Integer> index;
+
+    /**
+     * A hash of the names and types of the options, in order. Binary encodings of snapshots record
+     * it, so that a reader can reject values written for different options.
+     */
+    final long schemaHash;
+
+    /**
+     * Creates a layout.
+     *
+     * @param names the long names of the options, without leading dashes, in order
+     * @param specs static information about the field of each option, in order
+     */
+    Layout(List<String> names, List<FieldSpec> specs) {
+      this.names = Collections.unmodifiableList(new ArrayList<String>(names));
+      this.specs = Collections.unmodifiableList(new ArrayList<FieldSpec>(specs));
+      NameTrie.Builder<Integer> builder = new NameTrie.Builder<Integer>();
+      for (int i = 0; i < names.size(); i++) {
+        builder.put(names.get(i), i);
+        if (!names.get(i).equals(specs.get(i).fieldName)) {
+          builder.put(specs.get(i).fieldName, i);
+        }
+      }
+      this.index = builder.build();
+
+      // 64-bit FNV-1a over each option's name and types.
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < names.size(); i++) {
+        FieldSpec spec = specs.get(i);
+        String key =
+            names.get(i) + '\0' + spec.fieldType.getName() + '\0' + spec.baseType.getName();
+        for (int j = 0; j < key.length(); j++) {
+          hash = (hash ^ key.charAt(j)) * 0x100000001b3L;
+        }
+        hash = (hash ^ 0xff) * 0x100000001b3L;
+      }
+      this.schemaHash = hash;
+    }
+  }
+
+  /**
+   * Returns the layout of this snapshot.
+   *
+   * @return the layout of this snapshot
+   */
+  Layout layout() {
+    return layout;
+  }
+
+  /**
+   * Returns a string that the option's converter turns back into {@code value}: the name of an
+   * enum constant, the regular expression of a Pattern, and otherwise {@code toString()}.
+   *
+   * @param value a non-primitive option value, or an element of a list option
+   * @return a string from which the value can be converted
+   */
+  static String toArgString(Object value) {
+    if (value instanceof Enum) {
+      return ((Enum<?>) value).name();
+    } else if (value instanceof Pattern) {
+      return ((Pattern) value).pattern();
+    } else {
+      return value.toString();
+    }
+  }
+
+  /**
+   * Returns the value to store in a snapshot for the given field value: an unmodifiable copy if it
+   * is a list, otherwise the value itself.
+   *
+   * @param value the value of an option field
+   * @return the value to store in a snapshot
+   */
+  static /*@Nullable*/ Object copyValue(/*@Nullable*/ Object value) {
+    if (value instanceof List) {
+      return Collections.unmodifiableList(new ArrayList<Object>((List<?>) value));
+    }
+    return value;
+  }
+
+  /**
+   * Returns the number of snapshots that the same {@link Options} or {@link OptionsWatcher}
+   * published before this one. A reader can compare versions to tell whether the configuration has
+   * been replaced.
+   *
+   * @return the version of this snapshot, starting at 0
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the long names of the options, without leading dashes, in index order.
+   *
+   * @return the names of the options
+   */
+  public List<String> getOptionNames() {
+    return layout.names;
+  }
+
+  /**
+   * Returns the index of the option with the given long name. Leading dashes are ignored, and
+   * hyphens and underscores are equivalent. The index is the same in every snapshot from the same
+   * source, so a program can look it up once.
+   *
+   * @param name the long name of an option
+   * @return the index of the option, or -1 if there is no such option
+   */
+  public int indexOf(String name) {
+    int start = 0;
+    while (start < name.length() && name.charAt(start) == '-') {
+      start++;
+    }
+    Integer i = layout.index.get(name, start, name.length(), false);
+    return (i == null) ? -1 : i;
+  }
+
+  /**
+   * Returns the value of the option with the given index.
+   *
+   * @param index the index of an option, as returned by {@link #indexOf}
+   * @return the value of the option
+   */
+  public /*@Nullable*/ Object get(int index) {
+    return values[index];
+  }
+
+  /**
+   * Returns the value of the option with the given long name.
+   *
+   * @param name the long name of an option; see {@link #indexOf}
+   * @return the value of the option
+   * @throws IllegalArgumentException if there is no such option
+   */
+  public /*@Nullable*/ Object get(String name) {
+    int i = indexOf(name);
+    if (i == -1) {
+      throw new IllegalArgumentException("no option named " + name);
+    }
+    return values[i];
+  }
+
+  /**
+   * Returns the options whose values differ between this snapshot and a later one from the same
+   * source, with their values in each. If both snapshots were published by the same {@link
+   * Options} or {@link OptionsWatcher}, this takes time proportional to the number of options that
+   * differ from the defaults (or from the watcher's first snapshot) in either snapshot; otherwise
+   * it compares every option.
+   *
+   * @param newer a snapshot of the same options, usually a later one
+   * @return the options whose values differ, in index order, with this snapshot as the old values
+   *     and {@code newer} as the new values; {@link OptionsChange#getChangedOptions} is empty if
+   *     no value differs
+   * @throws IllegalArgumentException if {@code newer} is a snapshot of different options
+   */
+  public OptionsChange diff(OptionsSnapshot newer) {
+    if (newer.layout != layout) {
+      throw new IllegalArgumentException("snapshots are of different options");
+    }
+    List<String> changed = new ArrayList<String>();
+    if (newer == this) {
+      // no differences
+    } else if (base != null && base == newer.base && differences != null) {
+      BitSet newerDifferences = newer.differences;
+      assert newerDifferences != null : "@AssumeAssertion(nullness): set whenever base is";
+      // Visit the union of the two sets of differences from the base. An option in neither set
+      // has the base value in both snapshots.
+      int i = differences.nextSetBit(0);
+      int j = newerDifferences.nextSetBit(0);
+      while (i >= 0 || j >= 0) {
+        int k = (i < 0) ? j : (j < 0) ? i : Math.min(i, j);
+        if (!OptionsWatcher.valuesEqual(values[k], newer.values[k])) {
+          changed.add(layout.names.get(k));
+        }
+        if (i == k) {
+          i = differences.nextSetBit(k + 1);
+        }
+        if (j == k) {
+          j = newerDifferences.nextSetBit(k + 1);
+        }
+      }
+    } else {
+      for (int k = 0; k < values.length; k++) {
+        if (!OptionsWatcher.valuesEqual(values[k], newer.values[k])) {
+          changed.add(layout.names.get(k));
+        }
+      }
+    }
+    return new OptionsChange(this, newer, Collections.unmodifiableList(changed));
+  }
+
+  /**
+   * Returns the options whose values differ from their defaults, with their default and current
+   * values. Takes time proportional to the number of such options.
+   *
+   * @return the options whose values differ from their defaults, in index order, with the defaults
+   *     as the old values and this snapshot as the new values
+   * @throws IllegalStateException if the default values are not known: the snapshot was not
+   *     published by an {@link Options}
+   */
+  public OptionsChange diffFromDefaults() {
+    if (!baseIsDefaults || base == null) {
+      throw new IllegalStateException("the default values of the options are not known");
+    }
+    return base.diff(this);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("OptionsSnapshot ").append(version).append(" {");
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(layout.names.get(i)).append('=').append(values[i]);
+    }
+    return sb.append('}').toString();
+  }
+}
@@ -0,0 +1,392 @@
+package org.plumelib.options;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import org.plumelib.options.Options.ArgException;
+import org.plumelib.options.Options.FieldAccessor;
+import org.plumelib.options.OptionsSchema.Entry;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Re-reads the configuration files of a long-running program when they change, and updates its
+ * option fields in place, so that tuning a setting does not require a restart.
+ *
+ * <p>A watcher holds the objects whose fields a program parsed at startup, together with the
+ * command line and the configuration files (see {@link Options#setConfigFiles}) that were parsed
+ * into them:
+ *
+ * <pre>
+ * OptionsSchema schema = new OptionsSchema.Builder(ServerOptions.class).build();
+ * ServerOptions opts = new ServerOptions();
+ * schema.parse(new Object[] {opts}, args, configFiles);
+ * OptionsWatcher watcher =
+ *     new OptionsWatcher(schema, new Object[] {opts}, args, configFiles, listener);
+ * watcher.start();
+ * </pre>
+ *
+ * <p>{@link #reload} does nothing unless the content of a file has changed since it was last read;
+ * a change of modification time alone, as from {@code touch}, is not a change. Otherwise it parses
+ * the command line and all the files afresh into new instances of the schema's classes, so that
+ * the whole new configuration is converted and validated before any field of the running
+ * configuration is touched. If that fails, the running configuration is left as it was. If it
+ * succeeds, only the fields whose values differ are written; a list field is replaced by the new
+ * list. As at startup, the command line takes precedence over the files, so an option given on the
+ * command line does not change.
+ *
+ * <p>{@link #start} calls {@link #reload} from a daemon thread whenever a {@link WatchService}
+ * reports that one of the files was created, modified, or deleted, and reports the outcome to a
+ * {@link Listener}. The fields are written by that thread, without synchronization, so other
+ * threads should read the options from {@link #getSnapshot}, which is replaced only after a reload
+ * has been applied in full.
+ */
+public final class OptionsWatcher implements Closeable {
+
+  /** Receives the outcome of each reload that {@link #start} performs. */
+  public interface Listener {
+
+    /**
+     * Called after the options in {@code changedOptions} have been set to new values.
+     *
+     * @param changedOptions the long names, with leading dashes, of the options whose values
+     *     changed; never empty
+     */
+    void applied(List<String> changedOptions);
+
+    /**
+     * Called when a changed file could not be read or parsed. No field has been changed.
+     *
+     * @param e the error
+     */
+    void rejected(ArgException e);
+  }
+
+  /** The schema of the options. */
+  private final OptionsSchema schema;
+
+  /** The objects whose fields are updated: one instance of each class of the schema. */
+  private final Object[] targets;
+
+  /** The command line, which takes precedence over the files. */
+  private final String[] args;
+
+  /** The configuration files, in increasing order of precedence. */
+  private final List<File> files;
+
+  /** The digest of the content of each file when it was last read, or null if it did not exist. */
+  private final byte /*@Nullable*/ [][] digests;
+
+  /** Receives the outcome of each reload performed by the watching thread. */
+  private final Listener listener;
+
+  /** The values of the options as of the most recent reload that changed a value. */
+  private final AtomicReference<OptionsSnapshot> snapshot;
+
+  /** The first snapshot, from which every later snapshot records its differences. */
+  private final OptionsSnapshot firstSnapshot;
+
+  /** The version of the next snapshot to be published. */
+  private long nextSnapshotVersion = 0;
+
+  /** Notifies change listeners of the options that each reload changes. */
+  private final ChangeDispatcher changeDispatcher;
+
+  /** The service that reports changes to the directories of the files, or null if not started. */
+  private /*@MonotonicNonNull*/ WatchService watchService = null;
+
+  /**
+   * Creates a watcher for the given configuration. The current content of the files is taken to be
+   * the content that {@code targets} were parsed from; the first {@link #reload} does nothing
+   * unless a file changes.
+   *
+   * @param schema the schema of the options
+   * @param targets the objects whose fields to update: one instance of each class of the schema, in
+   *     the order the classes were given to the {@link OptionsSchema.Builder}; each class must have
+   *     a public constructor that takes no arguments
+   * @param args the command line that was parsed into {@code targets}
+   * @param files the configuration files that were parsed into {@code targets}, in increasing order
+   *     of precedence
+   * @param listener receives the outcome of each reload performed by {@link #start}
+   */
+  public OptionsWatcher(
+      OptionsSchema schema, Object[] targets, String[] args, List<File> files, Listener listener) {
+    schema.newTargets(); // fail now, not on the watching thread, if the classes can't be created
+    this.schema = schema;
+    this.targets = targets.clone();
+    this.args = args.clone();
+    this.files = Collections.unmodifiableList(new ArrayList<File>(files));
+    this.listener = listener;
+    this.digests = new byte[files.size()][];
+    for (int i = 0; i < digests.length; i++) {
+      digests[i] = digest(this.files.get(i));
+    }
+    this.firstSnapshot = schema.snapshot(this.targets, nextSnapshotVersion++, null);
+    this.snapshot = new AtomicReference<OptionsSnapshot>(firstSnapshot);
+    this.changeDispatcher = schema.newChangeDispatcher();
+  }
+
+  /**
+   * Returns an immutable copy of the values of the options, as of the most recent reload that
+   * changed a value, or as of the creation of this watcher. A reload publishes its snapshot with a
+   * single release store after all of its fields have been written, so this method may be called
+   * from any thread without a lock and never shows part of a reload.
+   *
+   * @return the values of the options
+   */
+  public OptionsSnapshot getSnapshot() {
+    return snapshot.get();
+  }
+
+  /**
+   * If the content of any file has changed since it was last read, parses the command line and
+   * the files into new objects and, if that succeeds, copies the values that differ into the
+   * running configuration and publishes a new {@link #getSnapshot snapshot}.
+   *
+   * @return the long names, with leading dashes, of the options whose values changed; empty if no
+   *     file changed or no value changed
+   * @throws ArgException if a changed file cannot be read or parsed, in which case no field is
+   *     changed
+   */
+  public synchronized List<String> reload() throws ArgException {
+    boolean changed = false;
+    for (int i = 0; i < digests.length; i++) {
+      byte /*@Nullable*/ [] digest = digest(files.get(i));
+      if (!Arrays.equals(digest, digests[i])) {
+        // Remember the new content even if it does not parse, so that it is not parsed again
+        // until it changes.
+        digests[i] = digest;
+        changed = true;
+      }
+    }
+    if (!changed) {
+      return Collections.emptyList();
+    }
+
+    Object[] fresh = schema.newTargets();
+    schema.parse(fresh, args, files);
+
+    List<String> changedOptions = new ArrayList<String>();
+    for (Entry e : schema.entries()) {
+      FieldAccessor accessor = e.spec.accessor;
+      Object oldValue = accessor.get(targets[e.target]);
+      Object newValue = accessor.get(fresh[e.target]);
+      if (!valuesEqual(oldValue, newValue)) {
+        accessor.set(targets[e.target], newValue);
+        changedOptions.add(schema.optionName(e));
+      }
+    }
+    if (!changedOptions.isEmpty()) {
+      OptionsSnapshot oldSnapshot = snapshot.get();
+      OptionsSnapshot newSnapshot = schema.snapshot(targets, nextSnapshotVersion++, firstSnapshot);
+      snapshot.lazySet(newSnapshot);
+      changeDispatcher.fire(oldSnapshot, newSnapshot);
+    }
+    return changedOptions;
+  }
+
+  /**
+   * Registers a listener that is called, on the thread that reloads, after each reload that
+   * changes the given option. See {@link Options#addChangeListener(String, OptionsChange.Listener,
+   * Executor)}.
+   *
+   * @param optionName the long name of an option, with or without leading dashes
+   * @param listener the listener
+   * @throws IllegalArgumentException if there is no such option
+   */
+  public void addChangeListener(String optionName, OptionsChange.Listener listener) {
+    addChangeListener(optionName, listener, ChangeDispatcher.DIRECT);
+  }
+
+  /**
+   * Registers a listener that is run by {@code executor} after each reload that changes the given
+   * option.
+   *
+   * @param optionName the long name of an option, with or without leading dashes
+   * @param listener the listener
+   * @param executor runs the listener
+   * @throws IllegalArgumentException if there is no such option
+   */
+  public void addChangeListener(
+      String optionName, OptionsChange.Listener listener, Executor executor) {
+    changeDispatcher.addOptionListener(
+        optionName, getSnapshot().indexOf(optionName), listener, executor);
+  }
+
+  /**
+   * Registers a listener that is run by {@code executor} once after each reload that changes any
+   * option of the given option group.
+   *
+   * @param groupName the name of an option group, as given to {@code @}{@link OptionGroup}
+   * @param listener the listener
+   * @param executor runs the listener
+   * @throws IllegalArgumentException if there is no such option group
+   */
+  public void addGroupChangeListener(
+      String groupName, OptionsChange.Listener listener, Executor executor) {
+    changeDispatcher.addGroupListener(groupName, listener, executor);
+  }
+
+  /**
+   * Returns whether two option values are equal. Unlike {@link Object#equals}, this compares
+   * {@link Pattern}s by their regular expressions and flags, including within lists.
+   *
+   * @param a an option value
+   * @param b an option value
+   * @return whether the values are equal
+   */
+  static boolean valuesEqual(/*@Nullable*/ Object a, /*@Nullable*/ Object b) {
+    if (a instanceof Pattern && b instanceof Pattern) {
+      Pattern pa = (Pattern) a;
+      Pattern pb = (Pattern) b;
+      return pa.pattern().equals(pb.pattern()) && pa.flags() == pb.flags();
+    }
+    if (a instanceof List && b instanceof List) {
+      List<?> la = (List<?>) a;
+      List<?> lb = (List<?>) b;
+      if (la.size() != lb.size()) {
+        return false;
+      }
+      for (int i = 0; i < la.size(); i++) {
+        if (!valuesEqual(la.get(i), lb.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return Objects.equals(a, b);
+  }
+
+  /**
+   * Returns a digest of the content of a file.
+   *
+   * @param file a file
+   * @return a digest of the content of the file, or null if the file does not exist or cannot be
+   *     read
+   */
+  private static byte /*@Nullable*/ [] digest(File file) {
+    byte[] content;
+    try {
+      content = Files.readAllBytes(file.toPath());
+    } catch (IOException e) {
+      // Treated like a missing file; parsing the files will report the problem.
+      return null;
+    }
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(content);
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error("SHA-256 is not supported", e);
+    }
+  }
+
+  /**
+   * Starts a daemon thread that watches the directories of the files and calls {@link #reload}
+   * whenever one of the files is created, modified, or deleted. The outcome of each reload that
+   * changes a value or fails is reported to the listener, on that thread.
+   *
+   * @throws IOException if the directories cannot be watched
+   * @throws IllegalStateException if this watcher has already been started
+   */
+  public synchronized void start() throws IOException {
+    if (watchService != null) {
+      throw new IllegalStateException("OptionsWatcher already started");
+    }
+    final WatchService service = FileSystems.getDefault().newWatchService();
+    final Set<Path> watched = new HashSet<Path>();
+    Set<Path> dirs = new HashSet<Path>();
+    for (File file : files) {
+      Path path = file.toPath().toAbsolutePath().normalize();
+      watched.add(path);
+      Path dir = path.getParent();
+      if (dir != null && dirs.add(dir)) {
+        dir.register(
+            service,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+      }
+    }
+    watchService = service;
+    Thread thread =
+        new Thread("OptionsWatcher") {
+          @Override
+          public void run() {
+            watch(service, watched);
+          }
+        };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * The body of the watching thread. Returns when the watch service is closed.
+   *
+   * @param service the service that reports changes to the directories of the files
+   * @param watched the absolute, normalized names of the files
+   */
+  private void watch(WatchService service, Set<Path> watched) {
+    while (true) {
+      WatchKey key;
+      try {
+        key = service.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      boolean relevant = false;
+      Path dir = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        Object context = event.context();
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+            || (context instanceof Path && watched.contains(dir.resolve((Path) context)))) {
+          relevant = true;
+        }
+      }
+      key.reset();
+      if (!relevant) {
+        continue;
+      }
+      try {
+        List<String> changedOptions = reload();
+        if (!changedOptions.isEmpty()) {
+          listener.applied(changedOptions);
+        }
+      } catch (ArgException e) {
+        listener.rejected(e);
+      }
+    }
+  }
+
+  /**
+   * Stops watching the files. Does nothing if this watcher was not started.
+   *
+   * @throws IOException if the watch service cannot be closed
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (watchService != null) {
+      watchService.close();
+    }
+  }
+}
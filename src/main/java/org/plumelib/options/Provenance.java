@@ -0,0 +1,140 @@
+package org.plumelib.options;
+
+import java.io.IOException;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Where the value of each option of an {@link Options} came from: a position on the command line,
+ * a line of an argument file or a configuration file, a system property, or an environment
+ * variable. See {@link
+ * Options#setRecordProvenance} and {@link Options#explain}.
+ *
+ * <p>The sources are stored in parallel arrays indexed by option, so recording one costs three
+ * array stores and no allocation. For an option that is set more than once, such as a list option
+ * given several times, the last source is kept.
+ */
+// Not public, but package-visible, to keep it out of public Javadoc
+final class Provenance {
+
+  /** The kind of an option that no parse has set since recording began. */
+  static final byte NONE = 0;
+
+  /** The kind of an option set on the command line; the position is the index of the argument. */
+  static final byte ARGUMENT = 1;
+
+  /** The kind of an option set in a configuration file; the position is the line number. */
+  static final byte CONFIG_FILE = 2;
+
+  /** The kind of an option set by a system property. */
+  static final byte SYSTEM_PROPERTY = 3;
+
+  /** The kind of an option set by an environment variable. */
+  static final byte ENVIRONMENT_VARIABLE = 4;
+
+  /**
+   * The kind of an option set in an {@code @}<i>file</i> argument file; the position is the line
+   * number.
+   */
+  static final byte ARGUMENT_FILE = 5;
+
+  /** For each option, the kind of its source, or {@link #NONE}. */
+  private final byte[] kinds;
+
+  /** For each option, the index of its argument or the number of its line, if applicable. */
+  private final int[] positions;
+
+  /** For each option, the name of its file or variable, if applicable. */
+  private final /*@Nullable*/ String[] names;
+
+  /**
+   * Creates an empty record of provenance.
+   *
+   * @param size the number of options
+   */
+  Provenance(int size) {
+    kinds = new byte[size];
+    positions = new int[size];
+    names = new String[size];
+  }
+
+  /**
+   * Returns the number of options.
+   *
+   * @return the number of options
+   */
+  int size() {
+    return kinds.length;
+  }
+
+  /**
+   * Records the source of an option's value.
+   *
+   * @param index the index of the option
+   * @param kind the kind of source, such as {@link #ARGUMENT}
+   * @param name the name of the file or variable, or null for an argument
+   * @param position the index of the argument or the number of the line, or 0
+   */
+  void record(int index, byte kind, /*@Nullable*/ String name, int position) {
+    kinds[index] = kind;
+    names[index] = name;
+    positions[index] = position;
+  }
+
+  /**
+   * Copies into this record every source that {@code other} has recorded.
+   *
+   * @param other a record of the same options
+   */
+  void addAll(Provenance other) {
+    for (int i = 0; i < kinds.length; i++) {
+      if (other.kinds[i] != NONE) {
+        record(i, other.kinds[i], other.names[i], other.positions[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns true if a source has been recorded for an option.
+   *
+   * @param index the index of the option
+   * @return true if a source has been recorded for the option
+   */
+  boolean has(int index) {
+    return kinds[index] != NONE;
+  }
+
+  /**
+   * Writes a description of the source of an option, such as {@code command-line argument 3} or
+   * {@code file app.conf, line 12}.
+   *
+   * @param index the index of an option that has a source; see {@link #has}
+   * @param out where to write the description
+   * @throws IOException if {@code out} throws it
+   */
+  void describe(int index, Appendable out) throws IOException {
+    switch (kinds[index]) {
+      case ARGUMENT:
+        out.append("command-line argument ").append(Integer.toString(positions[index]));
+        break;
+      case CONFIG_FILE:
+        out.append("file ").append(String.valueOf(names[index]));
+        out.append(", line ").append(Integer.toString(positions[index]));
+        break;
+      case SYSTEM_PROPERTY:
+        out.append("system property ").append(String.valueOf(names[index]));
+        break;
+      case ARGUMENT_FILE:
+        out.append("argument file ").append(String.valueOf(names[index]));
+        out.append(", line ").append(Integer.toString(positions[index]));
+        break;
+      case ENVIRONMENT_VARIABLE:
+        out.append("environment variable ").append(String.valueOf(names[index]));
+        break;
+      default:
+        throw new Error("No source recorded for option " + index);
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package org.plumelib.options;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.plumelib.options.Options.OptionInfo;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Writes the current values of the options of an {@link Options} as JSON or as Java properties,
+ * straight to an output stream. See {@link Options#writeJson} and {@link Options#writeProperties}.
+ *
+ * <p>The keys are escaped once, when the exporter is created, so writing the values costs little
+ * more than reading the fields.
+ */
+// Not public, but package-visible, to keep it out of public Javadoc
+final class SettingsExporter {
+
+  /** The options, in order. */
+  private final List<OptionInfo> options;
+
+  /** The default value of each option, indexed as {@link #options}. */
+  private final OptionsSnapshot defaults;
+
+  /** For each option, its long name as a quoted JSON string followed by a colon. */
+  private final String[] jsonKeys;
+
+  /** For each option, its long name escaped as a properties key. */
+  private final String[] propertyKeys;
+
+  /** For each option, whether it is unpublicized, by itself or through its group. */
+  private final boolean[] unpublicized;
+
+  /**
+   * Creates an exporter.
+   *
+   * @param options the options, in order
+   * @param defaults the default value of each option, indexed as {@code options}
+   */
+  SettingsExporter(List<OptionInfo> options, OptionsSnapshot defaults) {
+    this.options = options;
+    this.defaults = defaults;
+    int n = options.size();
+    jsonKeys = new String[n];
+    propertyKeys = new String[n];
+    unpublicized = new boolean[n];
+    StringBuilder sb = new StringBuilder();
+    try {
+      for (int i = 0; i < n; i++) {
+        OptionInfo oi = options.get(i);
+        sb.setLength(0);
+        writeJsonString(sb, oi.longName);
+        jsonKeys[i] = sb.append(':').toString();
+        sb.setLength(0);
+        writePropertiesText(sb, oi.longName, true);
+        propertyKeys[i] = sb.toString();
+        unpublicized[i] = oi.unpublicized || oi.spec.groupUnpublicized;
+      }
+    } catch (IOException e) {
+      throw new Error("StringBuilder threw " + e, e);
+    }
+  }
+
+  /**
+   * Returns true if an option is to be written.
+   *
+   * @param i the index of the option
+   * @param value the current value of the option
+   * @param nonDefaultOnly whether to skip options whose values equal their defaults
+   * @param showUnpublicized whether to include unpublicized options
+   * @return true if the option is to be written
+   */
+  private boolean include(
+      int i, /*@Nullable*/ Object value, boolean nonDefaultOnly, boolean showUnpublicized) {
+    if (unpublicized[i] && !showUnpublicized) {
+      return false;
+    }
+    return !nonDefaultOnly || !OptionsWatcher.valuesEqual(value, defaults.get(i));
+  }
+
+  /**
+   * Returns a buffered UTF-8 writer on a stream.
+   *
+   * @param out the stream
+   * @return a writer on the stream
+   */
+  private static Writer writer(OutputStream out) {
+    return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Writes the options as a JSON object. See {@link Options#writeJson}.
+   *
+   * @param stream where to write the object; it is flushed but not closed
+   * @param nonDefaultOnly whether to skip options whose values equal their defaults
+   * @param showUnpublicized whether to include unpublicized options
+   * @throws IOException if the stream throws it
+   */
+  void writeJson(OutputStream stream, boolean nonDefaultOnly, boolean showUnpublicized)
+      throws IOException {
+    Writer out = writer(stream);
+    out.write('{');
+    boolean first = true;
+    for (int i = 0; i < options.size(); i++) {
+      OptionInfo oi = options.get(i);
+      Object value = oi.accessor.get(oi.obj);
+      if (!include(i, value, nonDefaultOnly, showUnpublicized)) {
+        continue;
+      }
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      out.write(jsonKeys[i]);
+      if (value instanceof List) {
+        out.write('[');
+        List<?> list = (List<?>) value;
+        for (int j = 0; j < list.size(); j++) {
+          if (j > 0) {
+            out.write(',');
+          }
+          writeJsonValue(out, list.get(j));
+        }
+        out.write(']');
+      } else {
+        writeJsonValue(out, value);
+      }
+    }
+    out.write('}');
+    out.flush();
+  }
+
+  /**
+   * Writes a value that is not a list as a JSON value: a boolean as {@code true} or {@code false},
+   * a finite number as a number, null as {@code null}, and anything else as a string. An infinite
+   * or NaN floating-point value is written as the string that Java prints for it.
+   *
+   * @param out where to write the value
+   * @param value the value, or an element of a list
+   * @throws IOException if {@code out} throws it
+   */
+  private static void writeJsonValue(Appendable out, /*@Nullable*/ Object value)
+      throws IOException {
+    if (value == null) {
+      out.append("null");
+    } else if (value instanceof Boolean
+        || value instanceof Byte
+        || value instanceof Short
+        || value instanceof Integer
+        || value instanceof Long) {
+      out.append(value.toString());
+    } else if (value instanceof Float || value instanceof Double) {
+      double d = ((Number) value).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        writeJsonString(out, value.toString());
+      } else {
+        out.append(value.toString());
+      }
+    } else if (value instanceof Character) {
+      writeJsonString(out, value.toString());
+    } else {
+      writeJsonString(out, OptionsSnapshot.toArgString(value));
+    }
+  }
+
+  /**
+   * Writes a string as a quoted JSON string.
+   *
+   * @param out where to write the string
+   * @param s the string
+   * @throws IOException if {@code out} throws it
+   */
+  private static void writeJsonString(Appendable out, String s) throws IOException {
+    out.append('"');
+    int start = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\') {
+        continue;
+      }
+      out.append(s, start, i);
+      start = i + 1;
+      switch (c) {
+        case '"':
+          out.append("\\\"");
+          break;
+        case '\\':
+          out.append("\\\\");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '\t':
+          out.append("\\t");
+          break;
+        default:
+          appendUnicodeEscape(out, c);
+          break;
+      }
+    }
+    out.append(s, start, s.length());
+    out.append('"');
+  }
+
+  /**
+   * Writes the options as Java properties, in the format read by {@link
+   * java.util.Properties#load(java.io.InputStream)}. See {@link Options#writeProperties}.
+   *
+   * @param stream where to write the properties; it is flushed but not closed
+   * @param nonDefaultOnly whether to skip options whose values equal their defaults
+   * @param showUnpublicized whether to include unpublicized options
+   * @throws IOException if the stream throws it
+   */
+  void writeProperties(OutputStream stream, boolean nonDefaultOnly, boolean showUnpublicized)
+      throws IOException {
+    Writer out = writer(stream);
+    for (int i = 0; i < options.size(); i++) {
+      OptionInfo oi = options.get(i);
+      Object value = oi.accessor.get(oi.obj);
+      if (value == null || !include(i, value, nonDefaultOnly, showUnpublicized)) {
+        continue;
+      }
+      if (value instanceof List) {
+        List<?> list = (List<?>) value;
+        for (int j = 0; j < list.size(); j++) {
+          Object element = list.get(j);
+          if (element == null) {
+            continue;
+          }
+          out.write(propertyKeys[i]);
+          out.write('.');
+          out.write(Integer.toString(j));
+          out.write('=');
+          writePropertiesText(out, OptionsSnapshot.toArgString(element), false);
+          out.write('\n');
+        }
+      } else {
+        out.write(propertyKeys[i]);
+        out.write('=');
+        writePropertiesText(out, OptionsSnapshot.toArgString(value), false);
+        out.write('\n');
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Writes a key or value escaped as {@link java.util.Properties#store(OutputStream, String)}
+   * escapes it, so that the output is plain ASCII.
+   *
+   * @param out where to write the text
+   * @param s the key or value
+   * @param isKey true for a key, in which every space is escaped; false for a value, in which only
+   *     a leading space is
+   * @throws IOException if {@code out} throws it
+   */
+  private static void writePropertiesText(Appendable out, String s, boolean isKey)
+      throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case ' ':
+          out.append((i == 0 || isKey) ? "\\ " : " ");
+          break;
+        case '\t':
+          out.append("\\t");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '\f':
+          out.append("\\f");
+          break;
+        case '=':
+        case ':':
+        case '#':
+        case '!':
+        case '\\':
+          out.append('\\').append(c);
+          break;
+        default:
+          if (c < 0x20 || c > 0x7e) {
+            appendUnicodeEscape(out, c);
+          } else {
+            out.append(c);
+          }
+          break;
+      }
+    }
+  }
+
+  /**
+   * Writes a character as a {@code \}{@code uXXXX} escape.
+   *
+   * @param out where to write the escape
+   * @param c the character
+   * @throws IOException if {@code out} throws it
+   */
+  private static void appendUnicodeEscape(Appendable out, char c) throws IOException {
+    out.append("\\u");
+    for (int shift = 12; shift >= 0; shift -= 4) {
+      out.append("0123456789ABCDEF".charAt((c >> shift) & 0xF));
+    }
+  }
+}
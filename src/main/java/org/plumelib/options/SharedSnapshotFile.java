@@ -0,0 +1,645 @@
+package org.plumelib.options;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.plumelib.options.Options.FieldSpec;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Shares the values of options between processes through a memory-mapped file, so that many
+ * processes on a host that run with the same options need not each read and parse the same
+ * configuration.
+ *
+ * <p>One process parses the configuration and publishes each resulting {@link OptionsSnapshot}:
+ *
+ * <pre>
+ * SharedSnapshotFile out =
+ *     SharedSnapshotFile.openForWriting(file, options.getSnapshot(), 64 * 1024);
+ * out.publish(options.getSnapshot());
+ * </pre>
+ *
+ * The others map the same file, using any snapshot from an {@link Options} over the same classes
+ * to describe the options, and read the most recently published values without parsing them:
+ *
+ * <pre>
+ * SharedSnapshotFile in = SharedSnapshotFile.openForReading(file, options.getSnapshot());
+ * OptionsSnapshot current = in.read();
+ * long threads = in.getLong(current.indexOf("threads"));
+ * </pre>
+ *
+ * <p>The file begins with a header that records a hash of the names and types of the options, so
+ * that a reader built from different classes rejects the file rather than misreading it. A value of
+ * a primitive type is stored in a fixed 8-byte slot, which {@link #getLong}, {@link #getDouble},
+ * and {@link #getBoolean} read straight from the mapping. Any other value is stored as the string
+ * that its converter turns back into the value (see {@link Options}), and a list as the strings of
+ * its elements.
+ *
+ * <p>The header also holds a sequence number that the writer makes odd before it changes the data
+ * and even again afterward. A reader reads the sequence number, then the data, then the sequence
+ * number again, and retries if the two differ or are odd; it therefore sees all of the values of
+ * one snapshot, never a mix of two, and neither side takes a lock. {@link #read} decodes a new
+ * snapshot only when the sequence number has changed since its previous call.
+ *
+ * <p>Only one process should write a file at a time. A mapping is released when it is garbage
+ * collected, not when the file is closed.
+ */
+public final class SharedSnapshotFile implements Closeable {
+
+  /** Identifies a shared snapshot file: "OPTS". */
+  private static final int MAGIC = 0x4F505453;
+
+  /** The version of the file format. */
+  private static final int FORMAT_VERSION = 1;
+
+  /** The offset of {@link #MAGIC}. */
+  private static final int MAGIC_OFFSET = 0;
+
+  /** The offset of {@link #FORMAT_VERSION}. */
+  private static final int FORMAT_OFFSET = 4;
+
+  /** The offset of the hash of the options; see {@link OptionsSnapshot.Layout#schemaHash}. */
+  private static final int HASH_OFFSET = 8;
+
+  /** The offset of the sequence number, which is odd while the data is being written. */
+  private static final int SEQUENCE_OFFSET = 16;
+
+  /** The offset of the length of the data, in bytes. */
+  private static final int LENGTH_OFFSET = 24;
+
+  /** The offset of the version of the published snapshot. */
+  private static final int VERSION_OFFSET = 32;
+
+  /** The length of the header, and the offset of the data. */
+  private static final int HEADER_LENGTH = 64;
+
+  /** The largest number of times that a reader waits for a writer to finish. */
+  private static final int MAX_WAITS = 1 << 16;
+
+  /** The file. */
+  private final File file;
+
+  /** The open file. */
+  private final RandomAccessFile raf;
+
+  /** The mapping of the whole file. */
+  private final MappedByteBuffer buffer;
+
+  /** The names and types of the options. */
+  private final OptionsSnapshot.Layout layout;
+
+  /**
+   * For each option, the offset of its slot if it has a primitive type, otherwise -1. The slots
+   * come first in the data, in the order of the options; the other values follow them.
+   */
+  private final int[] slotOffsets;
+
+  /** The offset of the first value that is not in a slot. */
+  private final int referencesOffset;
+
+  /** Whether this is the writer. */
+  private final boolean writable;
+
+  /** The sequence number of {@link #cached}, or 0 if there is none. */
+  private long cachedSequence = 0;
+
+  /** The snapshot that {@link #read} decoded most recently, or null if none. */
+  private /*@Nullable*/ OptionsSnapshot cached = null;
+
+  /**
+   * Accessed only for its effect on memory ordering: a write followed by a read acts as a full
+   * fence around the plain accesses to the mapping.
+   */
+  @SuppressWarnings("unused")
+  private volatile int fence;
+
+  /**
+   * Creates a SharedSnapshotFile.
+   *
+   * @param file the file
+   * @param raf the open file
+   * @param buffer the mapping of the whole file
+   * @param layout the names and types of the options
+   * @param writable whether this is the writer
+   */
+  private SharedSnapshotFile(
+      File file,
+      RandomAccessFile raf,
+      MappedByteBuffer buffer,
+      OptionsSnapshot.Layout layout,
+      boolean writable) {
+    this.file = file;
+    this.raf = raf;
+    this.buffer = buffer;
+    this.layout = layout;
+    this.writable = writable;
+    this.slotOffsets = new int[layout.specs.size()];
+    int offset = HEADER_LENGTH;
+    for (int i = 0; i < slotOffsets.length; i++) {
+      if (layout.specs.get(i).fieldType.isPrimitive()) {
+        slotOffsets[i] = offset;
+        offset += 8;
+      } else {
+        slotOffsets[i] = -1;
+      }
+    }
+    this.referencesOffset = offset;
+  }
+
+  /**
+   * Opens a file for publishing snapshots, creating it if necessary. If the file already holds
+   * snapshots of the same options, its sequence number is kept, so that readers that have it mapped
+   * see the next publication as a change; otherwise its header is rewritten and it holds no
+   * snapshot until the first {@link #publish}.
+   *
+   * @param file the file
+   * @param template any snapshot of the options to be published
+   * @param capacity the largest number of bytes of data that a snapshot may take
+   * @return the open file
+   * @throws IOException if the file cannot be created or mapped
+   */
+  public static SharedSnapshotFile openForWriting(
+      File file, OptionsSnapshot template, int capacity) throws IOException {
+    OptionsSnapshot.Layout layout = template.layout();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long size = Math.max(raf.length(), (long) HEADER_LENGTH + capacity);
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      boolean sameOptions =
+          raf.length() >= HEADER_LENGTH
+              && buffer.getInt(MAGIC_OFFSET) == MAGIC
+              && buffer.getInt(FORMAT_OFFSET) == FORMAT_VERSION
+              && buffer.getLong(HASH_OFFSET) == layout.schemaHash;
+      if (!sameOptions) {
+        buffer.putLong(SEQUENCE_OFFSET, 0);
+        buffer.putInt(LENGTH_OFFSET, 0);
+        buffer.putLong(VERSION_OFFSET, 0);
+        buffer.putLong(HASH_OFFSET, layout.schemaHash);
+        buffer.putInt(FORMAT_OFFSET, FORMAT_VERSION);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+      }
+      return new SharedSnapshotFile(file, raf, buffer, layout, true);
+    } catch (IOException | RuntimeException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a file for reading the snapshots that another process publishes.
+   *
+   * @param file the file
+   * @param template any snapshot of the same options as the writer's, such as {@link
+   *     Options#getSnapshot} of an {@link Options} over the same classes
+   * @return the open file
+   * @throws IOException if the file cannot be mapped, or was written for different options
+   */
+  public static SharedSnapshotFile openForReading(File file, OptionsSnapshot template)
+      throws IOException {
+    OptionsSnapshot.Layout layout = template.layout();
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      long size = raf.length();
+      if (size < HEADER_LENGTH) {
+        throw new IOException(file + " is not a shared snapshot file");
+      }
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+      SharedSnapshotFile result = new SharedSnapshotFile(file, raf, buffer, layout, false);
+      result.checkHeader();
+      return result;
+    } catch (IOException | RuntimeException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Throws an exception unless the header describes the options of this file's layout.
+   *
+   * @throws IOException if the file was not written for the same options
+   */
+  private void checkHeader() throws IOException {
+    if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+      throw new IOException(file + " is not a shared snapshot file");
+    }
+    if (buffer.getInt(FORMAT_OFFSET) != FORMAT_VERSION) {
+      throw new IOException(
+          String.format(
+              "%s has format version %d, expected %d",
+              file, buffer.getInt(FORMAT_OFFSET), FORMAT_VERSION));
+    }
+    if (buffer.getLong(HASH_OFFSET) != layout.schemaHash) {
+      throw new IOException(file + " was written for different options");
+    }
+  }
+
+  /** Prevents plain accesses to the mapping from being reordered across this call. */
+  private void fullFence() {
+    fence = 0;
+    int unused = fence;
+  }
+
+  /**
+   * Publishes a snapshot. Readers see either the previous snapshot or this one.
+   *
+   * @param snapshot the values of the options, which must be those of this file
+   * @throws IOException if the snapshot is too large for the file
+   * @throws IllegalStateException if this file was opened for reading
+   * @throws IllegalArgumentException if the snapshot is of different options
+   */
+  public synchronized void publish(OptionsSnapshot snapshot) throws IOException {
+    if (!writable) {
+      throw new IllegalStateException(file + " was opened for reading");
+    }
+    if (snapshot.layout().schemaHash != layout.schemaHash) {
+      throw new IllegalArgumentException("snapshot is of different options than " + file);
+    }
+    byte[] data = encode(snapshot);
+    if (data.length > buffer.capacity() - HEADER_LENGTH) {
+      throw new IOException(
+          String.format(
+              "snapshot takes %d bytes, but %s holds at most %d",
+              data.length, file, buffer.capacity() - HEADER_LENGTH));
+    }
+    // A sequence number that is already odd was left by a writer that did not finish.
+    long sequence = buffer.getLong(SEQUENCE_OFFSET) | 1;
+    buffer.putLong(SEQUENCE_OFFSET, sequence);
+    fullFence();
+    ByteBuffer target = buffer.duplicate();
+    target.position(HEADER_LENGTH);
+    target.put(data);
+    buffer.putInt(LENGTH_OFFSET, data.length);
+    buffer.putLong(VERSION_OFFSET, snapshot.getVersion());
+    fullFence();
+    buffer.putLong(SEQUENCE_OFFSET, sequence + 1);
+    fullFence();
+  }
+
+  /**
+   * Encodes the values of a snapshot: first a slot for each primitive value, then a record for
+   * each other value.
+   *
+   * @param snapshot the values of the options
+   * @return the encoded values
+   */
+  private byte[] encode(OptionsSnapshot snapshot) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(referencesOffset - HEADER_LENGTH + 256);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      for (int i = 0; i < slotOffsets.length; i++) {
+        if (slotOffsets[i] != -1) {
+          out.writeLong(primitiveBits(snapshot.get(i)));
+        }
+      }
+      for (int i = 0; i < slotOffsets.length; i++) {
+        if (slotOffsets[i] != -1) {
+          continue;
+        }
+        Object value = snapshot.get(i);
+        if (layout.specs.get(i).isList) {
+          if (value == null) {
+            out.writeInt(-1);
+          } else {
+            List<?> list = (List<?>) value;
+            out.writeInt(list.size());
+            for (Object element : list) {
+              writeString(out, element);
+            }
+          }
+        } else {
+          writeString(out, value);
+        }
+      }
+    } catch (IOException e) {
+      throw new Error("ByteArrayOutputStream threw " + e, e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Returns the contents of the slot of a primitive value.
+   *
+   * @param value a boxed primitive value
+   * @return the value as a long, or the bits of the value as a double
+   */
+  private static long primitiveBits(/*@Nullable*/ Object value) {
+    if (value instanceof Boolean) {
+      return ((Boolean) value) ? 1 : 0;
+    } else if (value instanceof Character) {
+      return (Character) value;
+    } else if (value instanceof Float || value instanceof Double) {
+      return Double.doubleToRawLongBits(((Number) value).doubleValue());
+    } else if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else {
+      throw new IllegalArgumentException("not a primitive value: " + value);
+    }
+  }
+
+  /**
+   * Writes a value as its length in UTF-8 bytes (-1 for null) followed by the bytes.
+   *
+   * @param out where to write
+   * @param value the value, or null
+   * @throws IOException if {@code out} throws it
+   */
+  private static void writeString(DataOutputStream out, /*@Nullable*/ Object value)
+      throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] utf8 = OptionsSnapshot.toArgString(value).getBytes(StandardCharsets.UTF_8);
+    out.writeInt(utf8.length);
+    out.write(utf8);
+  }
+
+  /**
+   * Returns the sequence number once no write is in progress. The caller must compare it with the
+   * sequence number after reading the data.
+   *
+   * @return the current sequence number, which is even
+   */
+  private long stableSequence() {
+    for (int waits = 0; waits < MAX_WAITS; waits++) {
+      long sequence = buffer.getLong(SEQUENCE_OFFSET);
+      fullFence();
+      if ((sequence & 1) == 0) {
+        return sequence;
+      }
+      Thread.yield();
+    }
+    throw new IllegalStateException("the writer of " + file + " did not finish publishing");
+  }
+
+  /**
+   * Returns whether the sequence number is still {@code sequence}, that is, whether no snapshot
+   * was published while the data was being read.
+   *
+   * @param sequence the result of {@link #stableSequence}
+   * @return true if the data read since then is consistent
+   */
+  private boolean unchanged(long sequence) {
+    fullFence();
+    return buffer.getLong(SEQUENCE_OFFSET) == sequence;
+  }
+
+  /**
+   * Returns the snapshot most recently published to the file. A snapshot is decoded only when a
+   * new one has been published since the previous call; otherwise the same object is returned.
+   *
+   * @return the most recently published snapshot, or null if none has been published
+   * @throws IOException if the file has been rewritten for different options, or a value cannot be
+   *     converted
+   */
+  public synchronized /*@Nullable*/ OptionsSnapshot read() throws IOException {
+    while (true) {
+      long sequence = stableSequence();
+      if (sequence == 0) {
+        return null;
+      }
+      if (sequence == cachedSequence) {
+        return cached;
+      }
+      OptionsSnapshot snapshot;
+      try {
+        checkHeader();
+        snapshot = decode();
+      } catch (IOException | RuntimeException e) {
+        if (unchanged(sequence)) {
+          throw e;
+        }
+        continue; // a torn read: the writer changed the data meanwhile
+      }
+      if (unchanged(sequence)) {
+        cachedSequence = sequence;
+        cached = snapshot;
+        return snapshot;
+      }
+    }
+  }
+
+  /**
+   * Decodes the values in the file. The result is meaningful only if the sequence number did not
+   * change meanwhile.
+   *
+   * @return the snapshot in the file
+   * @throws IOException if the data is malformed or a value cannot be converted
+   */
+  private OptionsSnapshot decode() throws IOException {
+    int length = buffer.getInt(LENGTH_OFFSET);
+    long version = buffer.getLong(VERSION_OFFSET);
+    if (length < referencesOffset - HEADER_LENGTH || length > buffer.capacity() - HEADER_LENGTH) {
+      throw new IOException(file + " has a malformed data length " + length);
+    }
+    ByteBuffer in = buffer.duplicate();
+    in.limit(HEADER_LENGTH + length);
+    in.position(referencesOffset);
+    /*@Nullable*/ Object[] values = new Object[slotOffsets.length];
+    for (int i = 0; i < values.length; i++) {
+      FieldSpec spec = layout.specs.get(i);
+      if (slotOffsets[i] != -1) {
+        values[i] = boxPrimitive(spec.fieldType, buffer.getLong(slotOffsets[i]));
+      } else if (spec.isList) {
+        int count = in.getInt();
+        if (count == -1) {
+          values[i] = null;
+        } else {
+          if (count < 0 || count > in.remaining() / 4) {
+            throw new IOException(file + " has a malformed list length " + count);
+          }
+          List<Object> list = new ArrayList<Object>(count);
+          for (int j = 0; j < count; j++) {
+            list.add(readValue(in, spec, i));
+          }
+          values[i] = Collections.unmodifiableList(list);
+        }
+      } else {
+        values[i] = readValue(in, spec, i);
+      }
+    }
+    return new OptionsSnapshot(layout, values, version);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString} and converts it to the base type of an option.
+   *
+   * @param in the data, positioned at the string
+   * @param spec the option's field
+   * @param index the option's index
+   * @return the value, or null
+   * @throws IOException if the data is malformed or the string cannot be converted
+   */
+  private /*@Nullable*/ Object readValue(ByteBuffer in, FieldSpec spec, int index)
+      throws IOException {
+    int length = in.getInt();
+    if (length == -1) {
+      return null;
+    }
+    if (length < 0 || length > in.remaining()) {
+      throw new IOException(file + " has a malformed string length " + length);
+    }
+    byte[] utf8 = new byte[length];
+    in.get(utf8);
+    String s = new String(utf8, StandardCharsets.UTF_8);
+    if (spec.converter == null) {
+      throw new IOException("No constructor or factory for option " + layout.names.get(index));
+    }
+    try {
+      return spec.converter.convert(s);
+    } catch (Exception e) {
+      throw new IOException(
+          String.format("Invalid value (%s) for option %s in %s", s, layout.names.get(index), file),
+          e);
+    }
+  }
+
+  /**
+   * Converts the contents of a slot to a boxed value of a primitive type.
+   *
+   * @param type the primitive type
+   * @param bits the contents of the slot
+   * @return the boxed value
+   */
+  private static Object boxPrimitive(Class<?> type, long bits) {
+    if (type == Boolean.TYPE) {
+      return bits != 0;
+    } else if (type == Integer.TYPE) {
+      return (int) bits;
+    } else if (type == Long.TYPE) {
+      return bits;
+    } else if (type == Double.TYPE) {
+      return Double.longBitsToDouble(bits);
+    } else if (type == Float.TYPE) {
+      return (float) Double.longBitsToDouble(bits);
+    } else if (type == Short.TYPE) {
+      return (short) bits;
+    } else if (type == Byte.TYPE) {
+      return (byte) bits;
+    } else if (type == Character.TYPE) {
+      return (char) bits;
+    } else {
+      throw new Error("Unexpected primitive type " + type);
+    }
+  }
+
+  /**
+   * Reads the slot of an option straight from the mapping, retrying if a snapshot is published
+   * meanwhile.
+   *
+   * @param index the index of an option, as returned by {@link OptionsSnapshot#indexOf}
+   * @param kind a description of the types that the caller accepts, for the error message
+   * @param types the primitive types that the caller accepts
+   * @return the contents of the slot
+   */
+  private long readSlot(int index, String kind, Class<?>... types) {
+    int offset = slotOffsets[index];
+    Class<?> fieldType = layout.specs.get(index).fieldType;
+    boolean accepted = false;
+    for (Class<?> type : types) {
+      accepted |= (fieldType == type);
+    }
+    if (offset == -1 || !accepted) {
+      throw new IllegalArgumentException(
+          String.format(
+              "option %s has type %s, not %s", layout.names.get(index), fieldType.getName(), kind));
+    }
+    while (true) {
+      long sequence = stableSequence();
+      if (sequence == 0) {
+        throw new IllegalStateException("no snapshot has been published to " + file);
+      }
+      long hash = buffer.getLong(HASH_OFFSET);
+      long bits = buffer.getLong(offset);
+      if (unchanged(sequence)) {
+        if (hash != layout.schemaHash) {
+          throw new IllegalStateException(file + " was rewritten for different options");
+        }
+        return bits;
+      }
+    }
+  }
+
+  /**
+   * Returns the current value of an option of an integral type or {@code char}, read straight from
+   * the mapping without decoding a snapshot.
+   *
+   * @param index the index of an option, as returned by {@link OptionsSnapshot#indexOf}
+   * @return the value of the option in the most recently published snapshot
+   * @throws IllegalArgumentException if the option is not of an integral type or {@code char}
+   * @throws IllegalStateException if no snapshot has been published
+   */
+  public long getLong(int index) {
+    return readSlot(
+        index,
+        "an integral type",
+        Integer.TYPE,
+        Long.TYPE,
+        Short.TYPE,
+        Byte.TYPE,
+        Character.TYPE);
+  }
+
+  /**
+   * Returns the current value of an option of type {@code double} or {@code float}, read straight
+   * from the mapping without decoding a snapshot.
+   *
+   * @param index the index of an option, as returned by {@link OptionsSnapshot#indexOf}
+   * @return the value of the option in the most recently published snapshot
+   * @throws IllegalArgumentException if the option is not of type {@code double} or {@code float}
+   * @throws IllegalStateException if no snapshot has been published
+   */
+  public double getDouble(int index) {
+    long bits = readSlot(index, "a floating-point type", Double.TYPE, Float.TYPE);
+    return Double.longBitsToDouble(bits);
+  }
+
+  /**
+   * Returns the current value of an option of type {@code boolean}, read straight from the mapping
+   * without decoding a snapshot.
+   *
+   * @param index the index of an option, as returned by {@link OptionsSnapshot#indexOf}
+   * @return the value of the option in the most recently published snapshot
+   * @throws IllegalArgumentException if the option is not of type {@code boolean}
+   * @throws IllegalStateException if no snapshot has been published
+   */
+  public boolean getBoolean(int index) {
+    return readSlot(index, "boolean", Boolean.TYPE) != 0;
+  }
+
+  /**
+   * Returns the sequence number of the file, which increases by 2 with each {@link #publish}. A
+   * reader can poll it cheaply to learn whether a new snapshot has been published.
+   *
+   * @return the sequence number, or 0 if no snapshot has been published; odd while one is being
+   *     published
+   */
+  public long getSequence() {
+    long sequence = buffer.getLong(SEQUENCE_OFFSET);
+    fullFence();
+    return sequence;
+  }
+
+  /**
+   * Closes the file. The mapping remains valid until it is garbage collected.
+   *
+   * @throws IOException if the file cannot be closed
+   */
+  @Override
+  public void close() throws IOException {
+    raf.close();
+  }
+}
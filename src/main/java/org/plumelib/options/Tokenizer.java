@@ -0,0 +1,273 @@
+package org.plumelib.options;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Splits a command line into tokens (command-line flags and arguments), reading the input
+ * incrementally. Tokens are separated by whitespace. A single- or double-quoted section may contain
+ * whitespace; as in {@link Options#tokenize}, the quotes are kept in the token. An unterminated
+ * quote is closed at the end of the input.
+ *
+ * <p>If {@link #setStripQuotes(boolean)} is true, the quotes themselves are omitted from tokens,
+ * as in a shell or a Java {@code @}argument file.
+ *
+ * <p>If {@link #setBackslashEscapes(boolean)} is true, a backslash outside quotes makes the next
+ * character part of the token (so {@code a\ b} is the one token {@code a b}), and within double
+ * quotes a backslash escapes a double quote or a backslash. Within single quotes, backslashes have
+ * no special meaning.
+ *
+ * <p>The tokenizer runs in time linear in the length of the input and holds only the current token
+ * in memory, so it is suitable for inputs of many megabytes. Use it like an iterator:
+ *
+ * <pre>
+ * Tokenizer tokenizer = new Tokenizer(reader);
+ * while (tokenizer.next()) {
+ *   String token = tokenizer.token();
+ *   ...
+ * }
+ * </pre>
+ *
+ * <p>{@link #start()} and {@link #end()} give the position of the current token in the input, so
+ * that a caller with random access to the input can slice it without copying, and {@link #line()}
+ * gives the line on which it starts.
+ */
+public final class Tokenizer {
+
+  /** The size of the buffer used to read from a {@link Reader}. */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** The input, if it is a Reader; otherwise null. */
+  private final /*@Nullable*/ Reader reader;
+
+  /**
+   * The input, if it is a CharSequence; otherwise a view of {@link #buffer}. Characters are read
+   * from indices {@link #pos} through {@link #limit}.
+   */
+  private final CharSequence chars;
+
+  /** Holds the characters most recently read from {@link #reader}, or null if there is none. */
+  private final char /*@Nullable*/ [] buffer;
+
+  /** The index in {@link #chars} of the next character to read. */
+  private int pos = 0;
+
+  /** The index in {@link #chars} after the last character available. */
+  private int limit;
+
+  /** The offset in the input of the character at index 0 of {@link #chars}. */
+  private long bufferOffset = 0;
+
+  /** Whether a backslash escapes the next character. */
+  private boolean backslashEscapes = false;
+
+  /** Whether to omit quotes from tokens. */
+  private boolean stripQuotes = false;
+
+  /** The current token. */
+  private final StringBuilder token = new StringBuilder();
+
+  /** The offset in the input of the first character of the current token. */
+  private long start = -1;
+
+  /** The offset in the input after the last character of the current token. */
+  private long end = -1;
+
+  /** The number of newline characters read so far. */
+  private int newlines = 0;
+
+  /** The line number, starting at 1, of the first character of the current token. */
+  private int line = 0;
+
+  /**
+   * Creates a tokenizer that reads from the given Reader. The Reader is not closed.
+   *
+   * @param reader the input
+   */
+  public Tokenizer(Reader reader) {
+    this.reader = reader;
+    this.buffer = new char[BUFFER_SIZE];
+    this.chars = CharBuffer.wrap(buffer);
+    this.limit = 0;
+  }
+
+  /**
+   * Creates a tokenizer that reads from the given characters, such as a String or a {@link
+   * CharBuffer}. The characters are not copied, so they must not change while the tokenizer is in
+   * use.
+   *
+   * @param chars the input
+   */
+  public Tokenizer(CharSequence chars) {
+    this.reader = null;
+    this.buffer = null;
+    this.chars = chars;
+    this.limit = chars.length();
+  }
+
+  /**
+   * If true, a backslash escapes the next character, as described in the class documentation. The
+   * default is false, which matches {@link Options#tokenize}.
+   *
+   * @param val whether backslashes escape the next character
+   */
+  public void setBackslashEscapes(boolean val) {
+    backslashEscapes = val;
+  }
+
+  /**
+   * If true, quote characters that begin and end a quoted section are omitted from tokens. The
+   * default is false, which matches {@link Options#tokenize}.
+   *
+   * @param val whether to omit quotes from tokens
+   */
+  public void setStripQuotes(boolean val) {
+    stripQuotes = val;
+  }
+
+  /**
+   * Returns the next character of the input, or -1 at the end of the input.
+   *
+   * @return the next character, or -1
+   * @throws IOException if the Reader throws an exception
+   */
+  private int read() throws IOException {
+    if (pos == limit) {
+      if (reader == null || buffer == null) {
+        return -1;
+      }
+      bufferOffset += limit;
+      pos = 0;
+      limit = 0;
+      int n;
+      do {
+        n = reader.read(buffer, 0, buffer.length);
+      } while (n == 0);
+      if (n < 0) {
+        return -1;
+      }
+      limit = n;
+    }
+    char ch = chars.charAt(pos++);
+    if (ch == '\n') {
+      newlines++;
+    }
+    return ch;
+  }
+
+  /**
+   * Returns the offset in the input of the next character to be read.
+   *
+   * @return the offset of the next character
+   */
+  private long offset() {
+    return bufferOffset + pos;
+  }
+
+  /**
+   * Advances to the next token.
+   *
+   * @return true if there is another token, false at the end of the input
+   * @throws IOException if the Reader throws an exception
+   */
+  public boolean next() throws IOException {
+    token.setLength(0);
+    int ch;
+    do {
+      ch = read();
+    } while (ch != -1 && Character.isWhitespace(ch));
+    if (ch == -1) {
+      start = end = offset();
+      return false;
+    }
+    start = offset() - 1;
+    line = newlines + 1;
+    while (ch != -1 && !Character.isWhitespace(ch)) {
+      if (ch == '\'' || ch == '"') {
+        char quote = (char) ch;
+        if (!stripQuotes) {
+          token.append(quote);
+        }
+        while ((ch = read()) != -1 && ch != quote) {
+          if (ch == '\\' && backslashEscapes && quote == '"') {
+            int escaped = read();
+            if (escaped == -1) {
+              token.append('\\');
+              break;
+            }
+            if (escaped != '"' && escaped != '\\') {
+              token.append('\\');
+            }
+            ch = escaped;
+          }
+          token.append((char) ch);
+        }
+        if (!stripQuotes) {
+          token.append(quote);
+        }
+      } else if (ch == '\\' && backslashEscapes) {
+        int escaped = read();
+        token.append(escaped == -1 ? '\\' : (char) escaped);
+      } else {
+        token.append((char) ch);
+      }
+      end = offset();
+      ch = read();
+    }
+    return true;
+  }
+
+  /**
+   * Returns the current token. Must be called only after {@link #next} has returned true.
+   *
+   * @return the current token
+   */
+  public String token() {
+    return token.toString();
+  }
+
+  /**
+   * Returns the characters of the current token, without copying them. The result is valid only
+   * until the next call to {@link #next}.
+   *
+   * @return the characters of the current token
+   */
+  public CharSequence tokenChars() {
+    return token;
+  }
+
+  /**
+   * Returns the offset in the input of the first character of the current token.
+   *
+   * @return the offset of the start of the current token
+   */
+  public long start() {
+    return start;
+  }
+
+  /**
+   * Returns the offset in the input after the last character of the current token. With escapes,
+   * and with an unterminated quote, {@code end() - start()} may differ from the length of {@link
+   * #token()}.
+   *
+   * @return the offset of the end of the current token
+   */
+  public long end() {
+    return end;
+  }
+
+  /**
+   * Returns the line number, starting at 1, on which the current token starts. Lines are ended by
+   * newline characters.
+   *
+   * @return the line number of the start of the current token
+   */
+  public int line() {
+    return line;
+  }
+}
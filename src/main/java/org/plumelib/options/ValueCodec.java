@@ -0,0 +1,334 @@
+package org.plumelib.options;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.plumelib.options.Options.ArgException;
+import org.plumelib.options.Options.FieldAccessor;
+import org.plumelib.options.Options.FieldSpec;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * A compact binary encoding of the values of all the options of an {@link OptionsSchema}, for
+ * handing a configuration to another process without formatting and re-parsing a command line. See
+ * {@link OptionsSchema#encodeValues} and {@link Options#encodeValues}.
+ *
+ * <p>The encoding is:
+ *
+ * <ol>
+ *   <li>a header: the 4 bytes "OPTV", a format version byte, and the 8-byte hash of the names and
+ *       types of the options (see {@link OptionsSnapshot.Layout#schemaHash});
+ *   <li>the values of the {@code boolean} options, one bit each, in as many bytes as needed;
+ *   <li>the values of the other primitive options, each in its natural width, big-endian;
+ *   <li>for each other option, its value as a string record, or for a list option, the number of
+ *       elements followed by a string record for each.
+ * </ol>
+ *
+ * Within each section the options are in the schema's order. A string record is the length of the
+ * UTF-8 bytes of the string that the option's converter turns back into the value, followed by the
+ * bytes. Lengths and counts are stored plus one, as unsigned variable-length integers, with 0 for
+ * null.
+ */
+// Not public, but package-visible, to keep it out of public Javadoc
+final class ValueCodec {
+
+  /** Identifies an encoding: "OPTV". */
+  private static final int MAGIC = 0x4F505456;
+
+  /** The version of the encoding. */
+  private static final byte FORMAT_VERSION = 1;
+
+  /** The length of the header. */
+  private static final int HEADER_LENGTH = 13;
+
+  /** The names and types of the options. */
+  private final OptionsSnapshot.Layout layout;
+
+  /** The number of bytes that hold the values of the {@code boolean} options. */
+  private final int booleanBytes;
+
+  /** The length of the section of packed primitive values, including {@link #booleanBytes}. */
+  private final int primitivesLength;
+
+  /**
+   * Creates a codec.
+   *
+   * @param layout the names and types of the options
+   */
+  ValueCodec(OptionsSnapshot.Layout layout) {
+    this.layout = layout;
+    int booleans = 0;
+    int others = 0;
+    for (FieldSpec spec : layout.specs) {
+      if (spec.fieldType == Boolean.TYPE) {
+        booleans++;
+      } else if (spec.fieldType.isPrimitive()) {
+        others += width(spec.fieldType);
+      }
+    }
+    this.booleanBytes = (booleans + 7) / 8;
+    this.primitivesLength = booleanBytes + others;
+  }
+
+  /**
+   * Returns the number of bytes that a value of a primitive type other than {@code boolean} takes.
+   *
+   * @param type a primitive type other than {@code boolean}
+   * @return the width of the type in bytes
+   */
+  private static int width(Class<?> type) {
+    if (type == Byte.TYPE) {
+      return 1;
+    } else if (type == Short.TYPE || type == Character.TYPE) {
+      return 2;
+    } else if (type == Integer.TYPE || type == Float.TYPE) {
+      return 4;
+    } else {
+      return 8;
+    }
+  }
+
+  /**
+   * Encodes the current values of the options.
+   *
+   * @param objects for each option, the object whose field holds its value; null for a static field
+   * @return the encoding
+   */
+  byte[] encode(/*@Nullable*/ Object[] objects) {
+    List<FieldSpec> specs = layout.specs;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + primitivesLength);
+    header.putInt(MAGIC).put(FORMAT_VERSION).putLong(layout.schemaHash);
+    int bit = 0;
+    int bitsAt = header.position();
+    header.position(bitsAt + booleanBytes);
+    for (int i = 0; i < specs.size(); i++) {
+      FieldSpec spec = specs.get(i);
+      Object value = spec.accessor.get(objects[i]);
+      Class<?> type = spec.fieldType;
+      if (type == Boolean.TYPE) {
+        if ((Boolean) value) {
+          int at = bitsAt + bit / 8;
+          header.put(at, (byte) (header.get(at) | (1 << (bit % 8))));
+        }
+        bit++;
+      } else if (type == Byte.TYPE) {
+        header.put((Byte) value);
+      } else if (type == Short.TYPE) {
+        header.putShort((Short) value);
+      } else if (type == Character.TYPE) {
+        header.putChar((Character) value);
+      } else if (type == Integer.TYPE) {
+        header.putInt((Integer) value);
+      } else if (type == Float.TYPE) {
+        header.putFloat((Float) value);
+      } else if (type == Long.TYPE) {
+        header.putLong((Long) value);
+      } else if (type == Double.TYPE) {
+        header.putDouble((Double) value);
+      }
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(header.capacity() + 64);
+    out.write(header.array(), 0, header.capacity());
+    for (int i = 0; i < specs.size(); i++) {
+      FieldSpec spec = specs.get(i);
+      if (spec.fieldType.isPrimitive()) {
+        continue;
+      }
+      Object value = spec.accessor.get(objects[i]);
+      if (spec.isList) {
+        if (value == null) {
+          writeLength(out, -1);
+        } else {
+          List<?> list = (List<?>) value;
+          writeLength(out, list.size());
+          for (Object element : list) {
+            writeString(out, element);
+          }
+        }
+      } else {
+        writeString(out, value);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes a length or count, plus one, as an unsigned variable-length integer.
+   *
+   * @param out where to write
+   * @param length the length, or -1 for null
+   */
+  private static void writeLength(ByteArrayOutputStream out, int length) {
+    int v = length + 1;
+    while ((v & ~0x7F) != 0) {
+      out.write((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  /**
+   * Writes a string record for a value.
+   *
+   * @param out where to write
+   * @param value the value, or null
+   */
+  private static void writeString(ByteArrayOutputStream out, /*@Nullable*/ Object value) {
+    if (value == null) {
+      writeLength(out, -1);
+      return;
+    }
+    byte[] utf8 = OptionsSnapshot.toArgString(value).getBytes(StandardCharsets.UTF_8);
+    writeLength(out, utf8.length);
+    out.write(utf8, 0, utf8.length);
+  }
+
+  /**
+   * Sets the options to the values in an encoding. Every value is read and converted before any
+   * field is set, so if this throws an exception, no field has changed. Primitive values are set
+   * with the type-specific setters of {@link FieldAccessor}, without boxing.
+   *
+   * @param objects for each option, the object whose field to set; null for a static field
+   * @param data an encoding produced by {@link #encode} for the same options
+   * @throws ArgException if the encoding is malformed, is for different options, or holds a value
+   *     that cannot be converted
+   */
+  void decode(/*@Nullable*/ Object[] objects, byte[] data) throws ArgException {
+    List<FieldSpec> specs = layout.specs;
+    ByteBuffer in = ByteBuffer.wrap(data);
+    if (data.length < HEADER_LENGTH + primitivesLength || in.getInt() != MAGIC) {
+      throw new ArgException("Not an encoding of option values");
+    }
+    byte version = in.get();
+    if (version != FORMAT_VERSION) {
+      throw new ArgException(
+          "Encoding of option values has version %d, expected %d", version, FORMAT_VERSION);
+    }
+    if (in.getLong() != layout.schemaHash) {
+      throw new ArgException("Encoding of option values is for different options");
+    }
+
+    // Convert the other values first, so that a bad one leaves the fields unchanged.
+    int bitsAt = in.position();
+    int primitivesAt = bitsAt + booleanBytes;
+    in.position(HEADER_LENGTH + primitivesLength);
+    /*@Nullable*/ Object[] references = new Object[specs.size()];
+    try {
+      for (int i = 0; i < specs.size(); i++) {
+        FieldSpec spec = specs.get(i);
+        if (spec.fieldType.isPrimitive()) {
+          continue;
+        }
+        if (spec.isList) {
+          int count = readLength(in);
+          if (count != -1) {
+            if (count > in.remaining()) {
+              throw new ArgException("Malformed encoding of option values");
+            }
+            List<Object> list = new ArrayList<Object>(count);
+            for (int j = 0; j < count; j++) {
+              list.add(readValue(in, spec, i));
+            }
+            references[i] = list;
+          }
+        } else {
+          references[i] = readValue(in, spec, i);
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      throw new ArgException("Malformed encoding of option values");
+    }
+    if (in.hasRemaining()) {
+      throw new ArgException("Malformed encoding of option values");
+    }
+
+    in.position(primitivesAt);
+    int bit = 0;
+    for (int i = 0; i < specs.size(); i++) {
+      FieldSpec spec = specs.get(i);
+      FieldAccessor accessor = spec.accessor;
+      Object obj = objects[i];
+      Class<?> type = spec.fieldType;
+      if (type == Boolean.TYPE) {
+        accessor.setBoolean(obj, (data[bitsAt + bit / 8] & (1 << (bit % 8))) != 0);
+        bit++;
+      } else if (type == Byte.TYPE) {
+        accessor.setByte(obj, in.get());
+      } else if (type == Short.TYPE) {
+        accessor.setShort(obj, in.getShort());
+      } else if (type == Character.TYPE) {
+        accessor.setChar(obj, in.getChar());
+      } else if (type == Integer.TYPE) {
+        accessor.setInt(obj, in.getInt());
+      } else if (type == Float.TYPE) {
+        accessor.setFloat(obj, in.getFloat());
+      } else if (type == Long.TYPE) {
+        accessor.setLong(obj, in.getLong());
+      } else if (type == Double.TYPE) {
+        accessor.setDouble(obj, in.getDouble());
+      } else {
+        accessor.set(obj, references[i]);
+      }
+    }
+  }
+
+  /**
+   * Reads a length or count written by {@link #writeLength}.
+   *
+   * @param in the encoding, positioned at the length
+   * @return the length, or -1 for null
+   * @throws ArgException if the length is malformed
+   */
+  private static int readLength(ByteBuffer in) throws ArgException {
+    int v = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = in.get();
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (v < 0) {
+          break;
+        }
+        return v - 1;
+      }
+    }
+    throw new ArgException("Malformed encoding of option values");
+  }
+
+  /**
+   * Reads a string record and converts it to the base type of an option.
+   *
+   * @param in the encoding, positioned at the record
+   * @param spec the option's field
+   * @param index the option's index
+   * @return the value, or null
+   * @throws ArgException if the record is malformed or the string cannot be converted
+   */
+  private /*@Nullable*/ Object readValue(ByteBuffer in, FieldSpec spec, int index)
+      throws ArgException {
+    int length = readLength(in);
+    if (length == -1) {
+      return null;
+    }
+    if (length > in.remaining()) {
+      throw new ArgException("Malformed encoding of option values");
+    }
+    String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    String name = layout.names.get(index);
+    if (spec.converter == null) {
+      throw new Error("No constructor or factory for argument " + name);
+    }
+    try {
+      return spec.converter.convert(s);
+    } catch (Exception e) {
+      throw new ArgException("Invalid argument (%s) for argument %s", s, name);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package org.plumelib.options;
+
+import java.util.BitSet;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * Records the values that parsing writes to the option fields of an {@link Options}: which options
+ * have been set explicitly, and, if they are maintained, the fingerprint of the selected values and
+ * the source of each value.
+ * {@link OptionsSchema} calls it at each place where a field is written, so a transactional parse
+ * records nothing until it commits, and an ordinary parse records each value as it is written.
+ */
+// Not public, but package-visible, to keep it out of public Javadoc
+final class WriteLog {
+
+  /** The indices of the options that some parse has set. */
+  final BitSet explicit = new BitSet();
+
+  /** The fingerprint of the selected options, or null if none is maintained. */
+  /*@Nullable*/ Fingerprint fingerprint = null;
+
+  /**
+   * The source of the value of each option, or null if sources are not recorded. During a
+   * transaction, the sources recorded by the transaction, which are not yet committed.
+   */
+  /*@Nullable*/ Provenance provenance = null;
+
+  /** During a transaction, the committed sources; otherwise null. */
+  private /*@Nullable*/ Provenance committedProvenance = null;
+
+  /**
+   * Records that an option has been set to a new value.
+   *
+   * @param index the index of the option
+   * @param value its new value; a whole list for a list option
+   */
+  void set(int index, /*@Nullable*/ Object value) {
+    explicit.set(index);
+    if (fingerprint != null) {
+      fingerprint.set(index, value);
+    }
+  }
+
+  /**
+   * Records that an option has been set, without its value. Used for a list option, whose
+   * elements are recorded with {@link #append}, and for any option when {@link #needsValues} is
+   * false.
+   *
+   * @param index the index of the option
+   */
+  void mark(int index) {
+    explicit.set(index);
+  }
+
+  /**
+   * Returns true if the values written must be recorded, not just which options were set. When
+   * false, a caller can use {@link #mark} and avoid reading (and boxing) the values.
+   *
+   * @return true if the values written must be recorded
+   */
+  boolean needsValues() {
+    return fingerprint != null;
+  }
+
+  /**
+   * Records that an element has been added to the end of the list of a list option.
+   *
+   * @param index the index of the option
+   * @param element the new element
+   */
+  void append(int index, /*@Nullable*/ Object element) {
+    if (fingerprint != null) {
+      fingerprint.append(index, element);
+    }
+  }
+
+  /**
+   * Records the source of an option's value, if sources are recorded. Called after the value has
+   * been converted, so that a value that is rejected leaves no trace.
+   *
+   * @param index the index of the option
+   * @param kind the kind of source, such as {@link Provenance#ARGUMENT}
+   * @param name the name of the file or variable, or null for an argument
+   * @param position the index of the argument or the number of the line, or 0
+   */
+  void source(int index, byte kind, /*@Nullable*/ String name, int position) {
+    if (provenance != null) {
+      provenance.record(index, kind, name, position);
+    }
+  }
+
+  /**
+   * Returns true if sources are recorded, so that a caller can avoid computing them otherwise.
+   *
+   * @return true if sources are recorded
+   */
+  boolean recordsSources() {
+    return provenance != null;
+  }
+
+  /**
+   * Starts a transaction: until {@link #endTransaction}, sources are recorded apart from the
+   * committed ones, so that a parse that fails changes nothing. Values are not affected, since a
+   * transactional parse records them only when it commits.
+   */
+  void beginTransaction() {
+    if (provenance != null) {
+      committedProvenance = provenance;
+      provenance = new Provenance(provenance.size());
+    }
+  }
+
+  /**
+   * Ends a transaction started by {@link #beginTransaction}.
+   *
+   * @param commit if true, the sources recorded by the transaction are added to the committed
+   *     ones; if false, they are discarded
+   */
+  void endTransaction(boolean commit) {
+    Provenance committed = committedProvenance;
+    if (committed != null) {
+      if (commit && provenance != null) {
+        committed.addAll(provenance);
+      }
+      provenance = committed;
+      committedProvenance = null;
+    }
+  }
+}
@@ -3,10 +3,33 @@ package org.plumelib.options;
 import static org.junit.Assert.*;
 import static org.plumelib.options.Options.ArgException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 import org.junit.Test;
 
 /*>>>
@@ -119,6 +142,275 @@ public class TestOptions {
     assert t.ls.get(1).equals("world");
   }
 
+  /**
+   * Test that the annotation processor generated a binder, and that Options uses it.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testGeneratedBinder() throws ArgException {
+    OptionsBinder binder = Options.findBinder(ClassWithOptions.class);
+    assert binder != null : "no binder generated for ClassWithOptions";
+    assert binder.targetClass() == ClassWithOptions.class;
+    OptionsBinder.Descriptor[] descriptors = binder.descriptors();
+    assert descriptors.length == 9;
+    assert descriptors[0].fieldName.equals("lp");
+    assert descriptors[0].isList && descriptors[0].baseType == Pattern.class;
+    assert "a".equals(descriptors[1].shortName);
+    assert "filename".equals(descriptors[1].typeName);
+    assert descriptors[1].description.equals("argument 1");
+    assert descriptors[6].fieldName.equals("integer_reference");
+    try {
+      assert binder.convert(6, "24").equals(Integer.valueOf(24));
+    } catch (Exception e) {
+      throw new Error("binder failed to convert an Integer", e);
+    }
+    try {
+      binder.convert(3, "2.5"); // temperature is a double, which Options converts itself
+      fail("Didn't throw IllegalArgumentException as expected");
+    } catch (IllegalArgumentException e) {
+      assert e.getMessage().equals("no converter for option 3") : e.getMessage();
+    } catch (Exception e) {
+      throw new Error("binder threw an unexpected exception", e);
+    }
+
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.parse(new String[] {"-a", "foo", "--lp=x+", "-f", "in.txt", "-d", "2.5"});
+    assert t.arg1.equals("foo");
+    assert t.lp.get(0).pattern().equals("x+");
+    assert t.input_file != null && t.input_file.getName().equals("in.txt");
+    assert t.temperature == 2.5;
+  }
+
+  /** Test that a non-public option field is reported as such. */
+  @Test
+  public void testNonPublicOptionField() {
+    // A local class, which the annotation processor does not see, so that the processor does not
+    // reject the field at compile time.
+    class ClassWithPrivateOption {
+      @Option("a private option")
+      private int hidden;
+    }
+    try {
+      new Options("test", new ClassWithPrivateOption());
+      fail("Didn't throw Error as expected");
+    } catch (Error e) {
+      assert e.getMessage() != null
+          && e.getMessage().startsWith("option field is not public: private int ")
+          : e.getMessage();
+    }
+  }
+
+  /** Test class whose binder name is taken by a binder generated for another class. */
+  public static class ClassWithForeignBinder {
+    /** Not an option, so that the annotation processor generates no binder of its own. */
+    public int size;
+  }
+
+  /** Test class whose binder describes fields that it no longer has. */
+  public static class ClassWithStaleBinder {
+    /** Not an option, so that the annotation processor generates no binder of its own. */
+    public int count;
+  }
+
+  /** Test that a binder is not used for a class other than the one it was generated for. */
+  @Test
+  public void testMismatchedBinder() {
+    assert Options.findBinder(ClassWithForeignBinder.class) == null;
+    assert Options.findBinder(ClassWithStaleBinder.class) == null;
+  }
+
+  /** Test class with a final option field, which a generated binder could not assign. */
+  public static class ClassWithFinalOption {
+    @Option("-s the size")
+    public final int size = 3;
+
+    @Option("-n the name")
+    public String name = "none";
+  }
+
+  /**
+   * Test that no binder is generated for a class with a final option field, and that the class is
+   * still handled reflectively.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testFinalOptionField() throws ArgException {
+    assert Options.findBinder(ClassWithFinalOption.class) == null;
+    ClassWithFinalOption t = new ClassWithFinalOption();
+    Options options = new Options("test", t);
+    options.parse(new String[] {"-n", "x"});
+    assert t.name.equals("x");
+    assert options.getOptions().size() == 2;
+  }
+
+  /**
+   * Test that class-level option information is computed once and shared by Options instances,
+   * while defaults are read from each bound object.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testFieldSpecCache() throws ArgException {
+    ClassWithOptions t1 = new ClassWithOptions();
+    ClassWithOptions t2 = new ClassWithOptions();
+    t2.arg1 = "other";
+    Options options1 = new Options("test", t1);
+    Options options2 = new Options("test", t2);
+    assert Options.fieldSpecs(ClassWithOptions.class) == Options.fieldSpecs(ClassWithOptions.class);
+    for (int i = 0; i < options1.getOptions().size(); i++) {
+      assert options1.getOptions().get(i).spec == options2.getOptions().get(i).spec;
+    }
+    assert "/tmp/foobar".equals(options1.getOptions().get(1).defaultStr);
+    assert "other".equals(options2.getOptions().get(1).defaultStr);
+
+    options2.parse(new String[] {"-a", "changed"});
+    assert t1.arg1.equals("/tmp/foobar");
+    assert t2.arg1.equals("changed");
+  }
+
+  /** Test class with an option of every primitive type. */
+  public static class ClassWithPrimitives {
+    @Option("a byte")
+    public byte b;
+
+    @Option("a char")
+    public char c;
+
+    @Option("a short")
+    public short s;
+
+    @Option("an int")
+    public int i;
+
+    @Option("a long")
+    public long l;
+
+    @Option("a float")
+    public float f;
+
+    @Option("a double")
+    public double d;
+
+    @Option("a boolean")
+    public boolean z;
+
+    @Option("an enum")
+    public TimeUnit u = TimeUnit.SECONDS;
+  }
+
+  /**
+   * Test the type-specialized setters, and that settings() reads the fields.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testPrimitiveSetters() throws ArgException {
+    ClassWithPrimitives t = new ClassWithPrimitives();
+    Options options = new Options("test", t);
+    options.parse(
+        new String[] {
+          "--b=0x7f", "--c=q", "--s=-300", "--i=123456", "--l=9876543210", "--f=1.5", "--d=-2.25",
+          "--z=T"
+        });
+    assert t.b == 127;
+    assert t.c == 'q';
+    assert t.s == -300;
+    assert t.i == 123456;
+    assert t.l == 9876543210L;
+    assert t.f == 1.5f;
+    assert t.d == -2.25;
+    assert t.z;
+    assert options.settings().contains("= 9876543210");
+
+    try {
+      options.parse(new String[] {"--c=ab"});
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().contains("not a single character");
+    }
+  }
+
+  /**
+   * Test that parsing integral, char, boolean, and enum options does not allocate per option when
+   * the options string is not recorded.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testAllocationFreeParse() throws ArgException {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return;
+    }
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    if (!threadBean.isThreadAllocatedMemorySupported()) {
+      return;
+    }
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    ClassWithPrimitives t = new ClassWithPrimitives();
+    Options options = new Options("test", t);
+    options.setRecordOptionsString(false);
+    String[] one = {
+      "--b=-12", "--c=x", "--s", "0x7ff", "--i=-2147483648", "--l=0777", "--z=false",
+      "--u=milliSeconds"
+    };
+    String[] many = new String[one.length * 10];
+    for (int j = 0; j < many.length; j++) {
+      many[j] = one[j % one.length];
+    }
+
+    long oneBytes = Long.MAX_VALUE;
+    long manyBytes = Long.MAX_VALUE;
+    long threadId = Thread.currentThread().getId();
+    for (int round = 0; round < 20; round++) {
+      long before = threadBean.getThreadAllocatedBytes(threadId);
+      options.parse(one);
+      long middle = threadBean.getThreadAllocatedBytes(threadId);
+      options.parse(many);
+      long after = threadBean.getThreadAllocatedBytes(threadId);
+      oneBytes = Math.min(oneBytes, middle - before);
+      manyBytes = Math.min(manyBytes, after - middle);
+    }
+    assert manyBytes == oneBytes : String.format("%d bytes vs. %d bytes", manyBytes, oneBytes);
+    assert t.b == -12 && t.c == 'x' && t.s == 0x7ff && t.i == Integer.MIN_VALUE;
+    assert t.l == 0777 && !t.z && t.u == TimeUnit.MILLISECONDS;
+
+    try {
+      options.parse(new String[] {"--b=128"});
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().contains("not a byte");
+    }
+  }
+
+  /**
+   * Test getOptionsString(), including values that contain both kinds of quote.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testOptionsString() throws ArgException {
+    Options.spaceSeparatedLists = false;
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.parse(new String[] {"-a", "x y", "--arg2=it's", "-b", "--ls", "say \"it's\""});
+    assert options.getOptionsString().equals("-a='x y' --arg2=it's -b --ls='say \"it'\\''s\"'")
+        : options.getOptionsString();
+    assert t.ls != null && t.ls.get(0).equals("say \"it's\"");
+
+    int n = 20000;
+    String[] many = new String[n];
+    for (int i = 0; i < n; i++) {
+      many[i] = "--ls=include" + i;
+    }
+    options.parse(many);
+    assert options.getOptionsString().endsWith(" --ls=include" + (n - 1));
+  }
+
   /** Test class for option alias testing. */
   public static class ClassWithOptionsAliases {
     @Option("-d Set the day")
@@ -180,6 +472,1215 @@ public class TestOptions {
     assert t.printVersion;
   }
 
+  /** Test class for option abbreviation testing. */
+  public static class ClassWithSimilarNames {
+    @Option("Be verbose")
+    public boolean verbose;
+
+    @Option("Print the version")
+    public boolean version;
+
+    @Option("Number of worker threads")
+    public int thread_count = 1;
+  }
+
+  /**
+   * Test option-name lookup: hyphen/underscore equivalence and unique-prefix abbreviations.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testOptionAbbreviations() throws ArgException {
+    ClassWithSimilarNames t = new ClassWithSimilarNames();
+    Options options = new Options("test", t);
+
+    options.parse(new String[] {"--thread_count=3"});
+    assert t.thread_count == 3;
+    options.parse(new String[] {"--thread-count", "4"});
+    assert t.thread_count == 4;
+    try {
+      options.parse(new String[] {"-_verbose"});
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().startsWith("unknown option name '-_verbose'") : e.getMessage();
+    }
+
+    OptionsSchema underscores =
+        new OptionsSchema.Builder(ClassWithSimilarNames.class).setUseDashes(false).build();
+    underscores.parse(t, "--thread_count=7");
+    assert t.thread_count == 7;
+    try {
+      underscores.parse(t, "--thread-count=8");
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().startsWith("unknown option name '--thread-count'") : e.getMessage();
+    }
+
+    try {
+      options.parse(new String[] {"--verb"});
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().startsWith("unknown option name '--verb'") : e.getMessage();
+    }
+
+    options.setAllowAbbreviations(true);
+    options.parse(new String[] {"--verb", "--thr=5"});
+    assert t.verbose;
+    assert t.thread_count == 5;
+    options.parse(new String[] {"--vers"});
+    assert t.version;
+    try {
+      options.parse(new String[] {"--ver"});
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().startsWith("ambiguous option name '--ver'") : e.getMessage();
+    }
+
+    // ',' separates options within one argument.
+    t.verbose = false;
+    t.version = false;
+    String[] rest = options.parse(new String[] {"--thread-count=6,--verbose", "x", "--", "-y"});
+    assert t.thread_count == 6;
+    assert t.verbose;
+    assert rest.length == 2 && rest[0].equals("x") && rest[1].equals("-y");
+  }
+
+  /**
+   * Test that one OptionsSchema can be used by several threads at once, each parsing into its own
+   * object.
+   *
+   * @throws Exception if there is an illegal argument or a thread is interrupted
+   */
+  @Test
+  public void testOptionsSchema() throws Exception {
+    final OptionsSchema schema =
+        new OptionsSchema.Builder(ClassWithOptions.class).setSpaceSeparatedLists(true).build();
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final int id = i;
+      threads[i] =
+          new Thread() {
+            @Override
+            public void run() {
+              try {
+                for (int j = 0; j < 500; j++) {
+                  ClassWithOptions t = new ClassWithOptions();
+                  String n = id + "-" + j;
+                  OptionsSchema.Result result =
+                      schema.parse(t, "-a", n, "--ls=x " + n, "rest" + n, "-i=" + j);
+                  assert t.arg1.equals(n) && t.integer_reference == j;
+                  assert t.ls != null && t.ls.size() == 2 && t.ls.get(1).equals(n);
+                  assert result.getArgs().length == 1 && result.getArgs()[0].equals("rest" + n);
+                  assert result
+                      .getOptionsString()
+                      .equals("-a=" + n + " --ls='x " + n + "' -i=" + j);
+                }
+              } catch (Throwable e) {
+                failures.add(e);
+              }
+            }
+          };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assert failures.isEmpty() : failures;
+
+    try {
+      schema.parse(new ClassWithPrimitives(), "-a", "x");
+      org.junit.Assert.fail("Didn't throw IllegalArgumentException as expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    try {
+      new OptionsSchema.Builder(TestOptionGroups1.class).build();
+      org.junit.Assert.fail("Didn't throw Error as expected");
+    } catch (Error e) {
+      assert e.getMessage().contains("static option");
+    }
+  }
+
+  /**
+   * Test CorpusChecker on a file of command lines and a directory of argument files.
+   *
+   * @throws IOException if a temporary file cannot be written
+   */
+  @Test
+  public void testCorpusChecker() throws IOException {
+    Path dir = Files.createTempDirectory("corpus");
+    Path log = dir.resolve("jobs.log");
+    Path argDir = Files.createDirectory(dir.resolve("argfiles"));
+    Files.write(
+        log,
+        Arrays.asList(
+            "# recorded jobs", "-a x --ls 'one two'", "", "--bogus=1", "-i 3 -b", "-i three"),
+        StandardCharsets.UTF_8);
+    Files.write(
+        argDir.resolve("job1"), Arrays.asList("# job 1", "--arg1=y", "-b"), StandardCharsets.UTF_8);
+    Files.write(argDir.resolve("job2"), Arrays.asList("--lp=a", "--lp=b"), StandardCharsets.UTF_8);
+
+    OptionsSchema schema = new OptionsSchema.Builder(ClassWithOptions.class).build();
+    CorpusChecker.Report report =
+        new CorpusChecker(schema, 3, 2, 1).check(Arrays.asList(log.toFile(), argDir.toFile()));
+    assert report.getCommandLineCount() == 6 : report;
+    assert report.getErrorCount() == 2 : report;
+    assert report.getErrors().size() == 1 : report;
+    Map<String, Long> counts = report.getOptionCounts();
+    assert counts.get("--arg1") == 2 && counts.get("--ls") == 1 && counts.get("--lp") == 2
+        : counts;
+    assert counts.get("--bool") == 2 && counts.get("--integer-reference") == 1 : counts;
+    assert !counts.containsKey("--temperature") : counts;
+
+    // A command line longer than the limit is rejected without being parsed.
+    Files.write(
+        log,
+        Arrays.asList("-a x", "-a " + new String(new char[100]).replace('\0', 'y'), "-b\r"),
+        StandardCharsets.UTF_8);
+    Files.write(
+        argDir.resolve("job3"),
+        Arrays.asList("--arg1=" + new String(new char[60]).replace('\0', 'z'), "--lp=c"),
+        StandardCharsets.UTF_8);
+    report =
+        new CorpusChecker(schema, 2, 2, 5, 64)
+            .check(Arrays.asList(log.toFile(), argDir.toFile()));
+    assert report.getCommandLineCount() == 6 : report;
+    assert report.getErrorCount() == 2 : report;
+    String tooLong = ": command line is longer than 64 characters";
+    assert report.getErrors().contains(log.toFile() + ":2" + tooLong) : report;
+    assert report.getErrors().contains(argDir.resolve("job3").toFile() + tooLong) : report;
+    assert report.getOptionCounts().get("--bool") == 2 : report;
+  }
+
+  /**
+   * Test Tokenizer and Options.tokenize, including quotes, escapes, offsets, and input longer than
+   * the Tokenizer's buffer.
+   *
+   * @throws IOException if the Tokenizer throws an exception
+   */
+  @Test
+  public void testTokenizer() throws IOException {
+    assert Arrays.equals(
+        Options.tokenize("  -a 'x y'  --b=\"p q\"r  'open"),
+        new String[] {"-a", "'x y'", "--b=\"p q\"r", "'open'"});
+    assert Options.tokenize("   ").length == 0;
+
+    String input = " --x=a\\ b \"c \\\" d\" 'e\\'";
+    Tokenizer tokenizer = new Tokenizer(CharBuffer.wrap(input));
+    tokenizer.setBackslashEscapes(true);
+    List<String> tokens = new ArrayList<String>();
+    while (tokenizer.next()) {
+      tokens.add(tokenizer.token());
+      assert tokenizer.start() == input.indexOf(tokenizer.token().substring(0, 2));
+    }
+    assert tokens.equals(Arrays.asList("--x=a b", "\"c \" d\"", "'e\\'")) : tokens;
+    assert tokenizer.end() == input.length();
+
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      big.append("--opt").append(i).append("='v ").append(i).append("'\n");
+    }
+    tokenizer = new Tokenizer(new StringReader(big.toString()));
+    int count = 0;
+    while (tokenizer.next()) {
+      assert tokenizer.tokenChars().toString().equals("--opt" + count + "='v " + count + "'");
+      assert big.substring((int) tokenizer.start(), (int) tokenizer.end())
+          .equals(tokenizer.token());
+      count++;
+    }
+    assert count == 20000 : count;
+  }
+
+  /**
+   * Test expansion of @file arguments: nesting, compression, large files, caching, and cycles.
+   *
+   * @throws Exception if there is an illegal argument or a temporary file cannot be written
+   */
+  @Test
+  public void testArgFiles() throws Exception {
+    Options.spaceSeparatedLists = false;
+    Path dir = Files.createTempDirectory("argfiles");
+    Path main = dir.resolve("main.args");
+    Files.write(
+        main,
+        Arrays.asList("--arg1 \"x y\" @sub/nested.args.gz", "@@literal -- @notafile"),
+        StandardCharsets.UTF_8);
+    Files.createDirectory(dir.resolve("sub"));
+    try (Writer w =
+        new OutputStreamWriter(
+            new GZIPOutputStream(Files.newOutputStream(dir.resolve("sub/nested.args.gz"))),
+            StandardCharsets.UTF_8)) {
+      w.write("-i 5 --ls=a\\ b @../big.args");
+    }
+    StringBuilder big = new StringBuilder();
+    int n = (int) (ArgFiles.MAP_THRESHOLD / 8) + 1;
+    for (int i = 0; i < n; i++) {
+      big.append("--ld=1\n");
+    }
+    Files.write(dir.resolve("big.args"), big.toString().getBytes(StandardCharsets.UTF_8));
+
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.setExpandArgFiles(true);
+    String[] rest = options.parse(new String[] {"-b", "@" + main});
+    assert t.arg1.equals("x y") && t.integer_reference == 5 && t.bool;
+    assert t.ls != null && t.ls.equals(Arrays.asList("a b"));
+    assert t.ld.size() == n;
+    assert Arrays.equals(rest, new String[] {"@literal", "@notafile"}) : Arrays.toString(rest);
+
+    // A file too large for the cache is read, but not cached.
+    Path huge = dir.resolve("huge.args");
+    int hugeCount = (int) (ArgFiles.CACHE_WEIGHT / 32) + 1;
+    StringBuilder hugeText = new StringBuilder();
+    for (int i = 0; i < hugeCount; i++) {
+      hugeText.append("x\n");
+    }
+    Files.write(huge, hugeText.toString().getBytes(StandardCharsets.UTF_8));
+    int cached = ArgFiles.cachedFiles();
+    assert options.parse(new String[] {"@" + huge}).length == hugeCount;
+    assert ArgFiles.cachedFiles() == cached;
+    Files.delete(huge);
+
+    // A changed file is read again; an unchanged one comes from the cache.
+    Files.write(main, Arrays.asList("--arg1=changed"), StandardCharsets.UTF_8);
+    t = new ClassWithOptions();
+    options = new Options("test", t);
+    options.setExpandArgFiles(true);
+    options.parse(new String[] {"@" + main});
+    assert t.arg1.equals("changed");
+
+    Files.write(main, Arrays.asList("@sub/loop.args"), StandardCharsets.UTF_8);
+    Files.write(
+        dir.resolve("sub/loop.args"), Arrays.asList("@../main.args"), StandardCharsets.UTF_8);
+    try {
+      options.parse(new String[] {"@" + main});
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().contains("includes itself") : e.getMessage();
+    }
+  }
+
+  /**
+   * Test configuration files and their precedence relative to each other and the command line.
+   *
+   * @throws Exception if there is an illegal argument or a temporary file cannot be written
+   */
+  @Test
+  public void testConfigFiles() throws Exception {
+    Path dir = Files.createTempDirectory("config");
+    File base = dir.resolve("base.conf").toFile();
+    File site = dir.resolve("site.conf").toFile();
+    Files.write(
+        base.toPath(),
+        Arrays.asList(
+            "# defaults", "arg1 = base", "arg2 = base", "ld = 1", "ld = 2", "bool", "-d = 1.5"),
+        StandardCharsets.UTF_8);
+    Files.write(
+        site.toPath(),
+        Arrays.asList("arg2 = site", "arg2 = site too", "", "ld=3", "integer_reference = 7"),
+        StandardCharsets.UTF_8);
+
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.setConfigFiles(base, site);
+    String[] rest = options.parse(new String[] {"-a", "cli", "file"});
+    assert t.arg1.equals("cli");
+    assert "site too".equals(t.arg2);
+    assert t.ld.equals(Arrays.asList(3.0)) : t.ld;
+    assert t.bool && t.temperature == 1.5 && t.integer_reference == 7;
+    assert Arrays.equals(rest, new String[] {"file"});
+    assert options.getOptionsString().startsWith("-a=cli --ld=3 --arg2='site too'")
+        : options.getOptionsString();
+
+    Files.write(site.toPath(), Arrays.asList("arg2 = x", "colour = red"), StandardCharsets.UTF_8);
+    try {
+      new OptionsSchema.Builder(ClassWithOptions.class)
+          .build()
+          .parse(new Object[] {new ClassWithOptions()}, new String[0], Arrays.asList(site));
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().endsWith("site.conf:2: unknown option name 'colour'") : e.getMessage();
+    }
+  }
+
+  /**
+   * Test setting options from system properties and environment variables.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testVariableSources() throws ArgException {
+    Options.spaceSeparatedLists = false;
+
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.setSystemPropertyPrefix("testoptions.");
+    System.setProperty("testoptions.arg2", "prop");
+    System.setProperty("testoptions.integer.reference", "3");
+    System.setProperty("testoptions.bool", "");
+    try {
+      options.parse(new String[] {"--arg2=cli"});
+    } finally {
+      System.clearProperty("testoptions.arg2");
+      System.clearProperty("testoptions.integer.reference");
+      System.clearProperty("testoptions.bool");
+    }
+    assert t.arg2.equals("cli");
+    assert t.integer_reference == 3 && t.bool;
+    assert options.getOptionsString().equals("--arg2=cli --bool --integer-reference=3")
+        : options.getOptionsString();
+
+    OptionsSchema schema =
+        new OptionsSchema.Builder(ClassWithOptions.class)
+            .setEnvironmentPrefix("MYAPP_")
+            .setSystemPropertyPrefix("myapp.")
+            .build();
+    Properties props = new Properties();
+    props.setProperty("myapp.arg1", "prop");
+    Map<String, String> env = new HashMap<String, String>();
+    env.put("MYAPP_ARG1", "env");
+    env.put("MYAPP_TEMPERATURE", "2.5");
+    env.put("MYAPP_LD", "4");
+    env.put("MYAPP_NOT_AN_OPTION", "x");
+    env.put("PATH", "/bin");
+    t = new ClassWithOptions();
+    List<String> names = new ArrayList<String>();
+    String[] rest =
+        schema.parse(
+            new Object[] {t},
+            new String[] {"file", "-b"},
+            props,
+            env,
+            Collections.<File>emptyList(),
+            names,
+            new ArrayList</*@Nullable*/ String>());
+    assert Arrays.equals(rest, new String[] {"file"});
+    assert t.arg1.equals("prop") && t.temperature == 2.5 && t.bool;
+    assert t.ld.equals(Arrays.asList(4.0));
+    assert names.equals(Arrays.asList("-b", "--arg1", "--ld", "--temperature")) : names;
+
+    env.put("MYAPP_temperature", "3");
+    try {
+      schema.parse(
+          new Object[] {new ClassWithOptions()},
+          new String[0],
+          props,
+          env,
+          Collections.<File>emptyList(),
+          null,
+          null);
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().contains("MYAPP_TEMPERATURE and MYAPP_temperature both set")
+          : e.getMessage();
+    }
+    env.remove("MYAPP_temperature");
+    env.put("MYAPP_TEMPERATURE", "hot");
+    try {
+      schema.parse(
+          new Object[] {new ClassWithOptions()},
+          new String[0],
+          props,
+          env,
+          Collections.<File>emptyList(),
+          null,
+          null);
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().startsWith("environment variable MYAPP_TEMPERATURE: ")
+          : e.getMessage();
+    }
+
+    // Aliases are mapped too.
+    ClassWithOptionsAliases a = new ClassWithOptionsAliases();
+    new OptionsSchema.Builder(ClassWithOptionsAliases.class)
+        .setEnvironmentPrefix("X_")
+        .build()
+        .parse(
+            new Object[] {a},
+            new String[0],
+            props,
+            Collections.singletonMap("X_TEMP", "1"),
+            Collections.<File>emptyList(),
+            null,
+            null);
+    assert a.temperature == 1.0;
+  }
+
+  /**
+   * Test reloading configuration files when they change.
+   *
+   * @throws Exception if there is an illegal argument, a file cannot be written, or the test is
+   *     interrupted
+   */
+  @Test
+  public void testOptionsWatcher() throws Exception {
+    Path dir = Files.createTempDirectory("watch");
+    File conf = dir.resolve("server.conf").toFile();
+    Files.write(conf.toPath(), Arrays.asList("arg2 = one", "ld = 1"), StandardCharsets.UTF_8);
+    OptionsSchema schema = new OptionsSchema.Builder(ClassWithOptions.class).build();
+    ClassWithOptions t = new ClassWithOptions();
+    Object[] targets = new Object[] {t};
+    String[] args = new String[] {"-d", "3"};
+    List<File> files = Arrays.asList(conf);
+    schema.parse(targets, args, files);
+
+    final BlockingQueue<Object> outcomes = new LinkedBlockingQueue<Object>();
+    OptionsWatcher watcher =
+        new OptionsWatcher(
+            schema,
+            targets,
+            args,
+            files,
+            new OptionsWatcher.Listener() {
+              @Override
+              public void applied(List<String> changedOptions) {
+                outcomes.add(changedOptions);
+              }
+
+              @Override
+              public void rejected(ArgException e) {
+                outcomes.add(e);
+              }
+            });
+    assert watcher.reload().isEmpty();
+
+    // Only the fields that differ are written; the command line still wins.
+    List<Double> ld = t.ld;
+    Files.write(
+        conf.toPath(),
+        Arrays.asList("# tuned", "arg2 = one", "ld = 1", "-d = 5", "bool"),
+        StandardCharsets.UTF_8);
+    assert watcher.reload().equals(Arrays.asList("--bool"));
+    assert t.bool && t.temperature == 3.0 && t.ld == ld;
+
+    // An error leaves every field alone.
+    Files.write(conf.toPath(), Arrays.asList("arg2 = two", "ld = x"), StandardCharsets.UTF_8);
+    try {
+      watcher.reload();
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().contains("server.conf:2:") : e.getMessage();
+    }
+    assert t.arg2.equals("one") && t.bool && t.ld.equals(Arrays.asList(1.0));
+    assert watcher.reload().isEmpty();
+
+    watcher.start();
+    try {
+      Files.write(conf.toPath(), Arrays.asList("arg2 = two", "ld = 2"), StandardCharsets.UTF_8);
+      Object outcome = outcomes.poll(60, TimeUnit.SECONDS);
+      assert Arrays.asList("--arg2", "--bool", "--ld").equals(outcome) : outcome;
+      assert t.arg2.equals("two") && !t.bool && t.ld.equals(Arrays.asList(2.0));
+      assert watcher.getSnapshot().get("arg2").equals("two");
+    } finally {
+      watcher.close();
+    }
+  }
+
+  /**
+   * Test that a transactional parse leaves its targets untouched on error.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testTransactionalParse() throws ArgException {
+    Options.spaceSeparatedLists = false;
+
+    ClassWithOptions t = new ClassWithOptions();
+    ClassWithPrimitives p = new ClassWithPrimitives();
+    Options options = new Options("test", t, p);
+    options.setTransactional(true);
+    options.parse(new String[] {"--ld", "1", "-i", "3", "--l", "40", "-a", "x"});
+    assert t.ld.equals(Arrays.asList(1.0)) && t.integer_reference == 3 && p.l == 40;
+
+    String before = options.getOptionsString();
+    String[] bad = {"--ld", "2", "--ld", "3", "--l", "50", "-b", "-a", "y", "-d", "warm"};
+    try {
+      options.parse(bad);
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().contains("warm") : e.getMessage();
+    }
+    assert t.ld.equals(Arrays.asList(1.0)) && p.l == 40 && !t.bool && t.arg1.equals("x");
+    assert options.getOptionsString().equals(before);
+
+    options.parse(new String[] {"--ld", "2", "--ld", "3", "--l", "50", "--l", "60", "-b"});
+    assert t.ld.equals(Arrays.asList(1.0, 2.0, 3.0)) && p.l == 60 && t.bool;
+
+    // The same holds for configuration files and for a schema, and a null list is created.
+    ClassWithOptions t2 = new ClassWithOptions();
+    OptionsSchema schema =
+        new OptionsSchema.Builder(ClassWithOptions.class).setTransactional(true).build();
+    OptionsSchema.Result result = schema.parse(t2, "--ls", "a", "--ls", "b", "-a", "z");
+    assert t2.ls != null && t2.ls.equals(Arrays.asList("a", "b")) && t2.arg1.equals("z");
+    assert result.getOptionNames().equals(Arrays.asList("--ls", "--ls", "-a"));
+    try {
+      schema.parse(t2, "--ls", "c", "--nosuch");
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      // expected
+    }
+    assert t2.ls.equals(Arrays.asList("a", "b"));
+  }
+
+  /**
+   * Test the snapshots published by each completed parse.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testOptionsSnapshot() throws ArgException {
+    Options.spaceSeparatedLists = false;
+
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    OptionsSnapshot initial = options.getSnapshot();
+    assert initial.getVersion() == 0;
+    assert initial.get("arg1").equals("/tmp/foobar") && initial.get("arg2") == null;
+
+    options.parse(new String[] {"--ld", "1", "--ld", "2", "-i", "7", "-d", "1.5"});
+    OptionsSnapshot snap = options.getSnapshot();
+    assert snap.getVersion() == 1;
+    int index = snap.indexOf("--integer-reference");
+    assert index == snap.indexOf("integer_reference") && index != -1;
+    assert snap.get(index).equals(7) && snap.get("temperature").equals(1.5);
+    assert snap.get("ld").equals(Arrays.asList(1.0, 2.0));
+    assert snap.getOptionNames().get(index).equals("integer-reference");
+    assert snap.indexOf("nosuch") == -1;
+    try {
+      snap.get("nosuch");
+      org.junit.Assert.fail("Didn't throw IllegalArgumentException as expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // A snapshot does not change when the fields do, and a failed parse publishes nothing.
+    try {
+      options.parse(new String[] {"--ld", "3", "-i", "eight"});
+      org.junit.Assert.fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      // expected
+    }
+    assert t.ld.size() == 3;
+    assert options.getSnapshot() == snap;
+    assert snap.get("ld").equals(Arrays.asList(1.0, 2.0));
+    try {
+      ((List<?>) snap.get("ld")).clear();
+      org.junit.Assert.fail("Didn't throw UnsupportedOperationException as expected");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  /** Test class with option groups and instance fields. */
+  public static class ClassWithPoolOptions {
+    @OptionGroup("Pool options")
+    @Option("Number of worker threads")
+    public int threads = 1;
+
+    @Option("Capacity of the work queue")
+    public int queue_size = 100;
+
+    @OptionGroup("Cache options")
+    @Option("Number of cache entries")
+    public int cache_size = 1000;
+  }
+
+  /**
+   * Test listeners to option changes.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testChangeListeners() throws ArgException {
+    ClassWithPoolOptions t = new ClassWithPoolOptions();
+    Options options = new Options("test", t);
+    final List<OptionsChange> threadChanges = new ArrayList<OptionsChange>();
+    final List<OptionsChange> poolChanges = new ArrayList<OptionsChange>();
+    final List<OptionsChange> cacheChanges = new ArrayList<OptionsChange>();
+    final List<Runnable> queued = new ArrayList<Runnable>();
+    options.addChangeListener(
+        "--threads",
+        new OptionsChange.Listener() {
+          @Override
+          public void optionsChanged(OptionsChange change) {
+            threadChanges.add(change);
+          }
+        });
+    options.addGroupChangeListener(
+        "Pool options",
+        new OptionsChange.Listener() {
+          @Override
+          public void optionsChanged(OptionsChange change) {
+            poolChanges.add(change);
+          }
+        },
+        new Executor() {
+          @Override
+          public void execute(Runnable task) {
+            queued.add(task);
+          }
+        });
+    options.addChangeListener(
+        "cache_size",
+        new OptionsChange.Listener() {
+          @Override
+          public void optionsChanged(OptionsChange change) {
+            cacheChanges.add(change);
+          }
+        });
+
+    options.parse(new String[] {"--threads", "4", "--queue-size", "10"});
+    assert threadChanges.size() == 1 && cacheChanges.isEmpty();
+    OptionsChange change = threadChanges.get(0);
+    assert change.getChangedOptions().equals(Arrays.asList("threads"));
+    assert change.getOldValue("threads").equals(1) && change.getNewValue("threads").equals(4);
+    // The group listener runs on its executor, once for both options.
+    assert poolChanges.isEmpty() && queued.size() == 1;
+    queued.get(0).run();
+    assert poolChanges.get(0).getChangedOptions().equals(Arrays.asList("threads", "queue-size"));
+
+    // A parse that changes nothing that is listened to notifies no one.
+    options.parse(new String[] {"--threads", "4"});
+    assert threadChanges.size() == 1 && queued.size() == 1 && cacheChanges.isEmpty();
+    options.parse(new String[] {"--cache-size", "5"});
+    assert cacheChanges.size() == 1 && queued.size() == 1;
+
+    OptionsChange.Listener ignore =
+        new OptionsChange.Listener() {
+          @Override
+          public void optionsChanged(OptionsChange c) {}
+        };
+    try {
+      options.addChangeListener("nosuch", ignore);
+      org.junit.Assert.fail("Didn't throw IllegalArgumentException as expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      options.addGroupChangeListener("No such options", ignore);
+      org.junit.Assert.fail("Didn't throw IllegalArgumentException as expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test sharing snapshots between processes through a memory-mapped file.
+   *
+   * @throws Exception if there is an illegal argument or an I/O error
+   */
+  @Test
+  public void testSharedSnapshotFile() throws Exception {
+    Options.spaceSeparatedLists = false;
+    ClassWithOptions writerTarget = new ClassWithOptions();
+    Options writerOptions = new Options("test", writerTarget);
+    writerOptions.parse(
+        new String[] {"--lp", "a+b", "--lp", "[0-9]", "-d", "2.5", "-b", "--ld", "1.5", "-i", "7"});
+    Options readerOptions = new Options("test", new ClassWithOptions());
+
+    File file = File.createTempFile("options", ".snapshot");
+    file.deleteOnExit();
+    SharedSnapshotFile out =
+        SharedSnapshotFile.openForWriting(file, writerOptions.getSnapshot(), 4096);
+    SharedSnapshotFile in = SharedSnapshotFile.openForReading(file, readerOptions.getSnapshot());
+    assert in.read() == null && in.getSequence() == 0;
+
+    out.publish(writerOptions.getSnapshot());
+    OptionsSnapshot snapshot = in.read();
+    assert snapshot != null && in.getSequence() == 2;
+    assert in.read() == snapshot : "an unchanged file is not decoded again";
+    assert snapshot.getVersion() == writerOptions.getSnapshot().getVersion();
+    assert snapshot.get("temperature").equals(2.5);
+    assert snapshot.get("bool").equals(true);
+    assert snapshot.get("integer-reference").equals(7);
+    assert snapshot.get("arg1").equals("/tmp/foobar");
+    assert snapshot.get("arg2") == null && snapshot.get("input-file") == null;
+    assert snapshot.get("ls").equals(Collections.emptyList());
+    assert snapshot.get("ld").equals(Arrays.asList(1.5));
+    List<?> lp = (List<?>) snapshot.get("lp");
+    assert lp.size() == 2 && ((Pattern) lp.get(1)).pattern().equals("[0-9]");
+    assert in.getDouble(snapshot.indexOf("temperature")) == 2.5;
+    assert in.getBoolean(snapshot.indexOf("bool"));
+    try {
+      in.getLong(snapshot.indexOf("temperature"));
+      fail("Didn't throw IllegalArgumentException as expected");
+    } catch (IllegalArgumentException e) {
+      // expected exception
+    }
+
+    // Primitive slots are read straight from the mapping, without decoding a snapshot.
+    writerOptions.parse(new String[] {"-d", "-1.25"});
+    out.publish(writerOptions.getSnapshot());
+    assert in.getDouble(snapshot.indexOf("temperature")) == -1.25;
+    OptionsSnapshot next = in.read();
+    assert next != snapshot && next.get("temperature").equals(-1.25) && in.getSequence() == 4;
+
+    // A reader whose options differ from the writer's rejects the file.
+    Options other = new Options("test", new ClassWithPrimitives());
+    try {
+      SharedSnapshotFile.openForReading(file, other.getSnapshot());
+      fail("Didn't throw IOException as expected");
+    } catch (IOException e) {
+      assert e.getMessage().contains("different options");
+    }
+    in.close();
+    out.close();
+  }
+
+  /**
+   * Test the binary encoding of option values.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testEncodeValues() throws ArgException {
+    Options.spaceSeparatedLists = false;
+    ClassWithPrimitives p = new ClassWithPrimitives();
+    Options options = new Options("test", p);
+    options.parse(
+        new String[] {
+          "--b", "-7", "--c", "x", "--s", "300", "--i", "-70000", "--l", "12345678901", "--f",
+          "1.5", "--d", "-2.25", "--z", "--u", "minutes"
+        });
+    byte[] data = options.encodeValues();
+    ClassWithPrimitives q = new ClassWithPrimitives();
+    Options worker = new Options("test", q);
+    worker.decodeValues(data);
+    assert q.b == -7 && q.c == 'x' && q.s == 300 && q.i == -70000 && q.l == 12345678901L;
+    assert q.f == 1.5f && q.d == -2.25 && q.z && q.u == TimeUnit.MINUTES;
+    assert worker.getSnapshot().get("i").equals(-70000);
+
+    // Values that a command line would have to quote are copied exactly.
+    ClassWithOptions t = new ClassWithOptions();
+    String awkward = "it's a \"quoted\" value";
+    OptionsSchema schema = new OptionsSchema.Builder(ClassWithOptions.class).build();
+    schema.parse(t, "--lp", "a b+", "--lp", "\\d", "--arg1", awkward, "--ld", "0.5", "-i", "3");
+    ClassWithOptions u = new ClassWithOptions();
+    schema.decodeValues(new Object[] {u}, schema.encodeValues(new Object[] {t}));
+    assert u.arg1.equals(awkward) && u.arg2 == null && u.integer_reference == 3;
+    assert u.lp.size() == 2 && u.lp.get(0).pattern().equals("a b+");
+    assert u.ld.equals(Arrays.asList(0.5)) && u.lp != t.lp;
+
+    // An encoding for other options, or a damaged one, changes nothing.
+    try {
+      schema.decodeValues(new Object[] {u}, data);
+      fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert e.getMessage().contains("different options");
+    }
+    byte[] truncated = Arrays.copyOf(data, data.length - 1);
+    q.i = 0;
+    try {
+      worker.decodeValues(truncated);
+      fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      assert q.i == 0;
+    }
+  }
+
+  /**
+   * Test the canonical command line of the current values.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testCanonicalArgs() throws ArgException {
+    Options.spaceSeparatedLists = false;
+    ClassWithOptions t = new ClassWithOptions();
+    t.ld.add(9.0);
+    Options options = new Options("test", t);
+    options.setExpandArgFiles(true);
+    assert options.getCanonicalArgs().length == 0;
+
+    String awkward = "-it's \"odd\",-x=1";
+    options.parse(new String[] {"--ld", "1.5", "-b", "--arg1", awkward});
+    t.arg2 = "@file";
+    t.ls.add("--");
+    t.ls.add("@after");
+    String[] args = options.getCanonicalArgs();
+    assert Arrays.equals(
+            args,
+            new String[] {
+              "--arg1", awkward, "--arg2", "@@file", "--bool", "--ld", "1.5", "--ls", "--", "--ls",
+              "@after"
+            })
+        : Arrays.toString(args);
+
+    ClassWithOptions u = new ClassWithOptions();
+    u.ld.add(9.0);
+    Options child = new Options("test", u);
+    child.setExpandArgFiles(true);
+    child.parse(args);
+    assert Arrays.equals(child.getCanonicalArgs(), args);
+    assert u.arg1.equals(awkward) && u.arg2.equals("@file") && u.bool;
+    assert u.ld.equals(Arrays.asList(9.0, 1.5)) && u.ls.equals(Arrays.asList("--", "@after"));
+
+    // A buffer can be reused, and booleans that are true by default are negated.
+    ClassWithPrimitives p = new ClassWithPrimitives();
+    p.z = true;
+    Options primitives = new Options("test", p);
+    List<String> buffer = new ArrayList<String>();
+    p.z = false;
+    p.i = -3;
+    primitives.appendCanonicalArgs(buffer);
+    assert buffer.equals(Arrays.asList("--i", "-3", "--z=false")) : buffer;
+
+    t.ld.clear();
+    try {
+      options.getCanonicalArgs();
+      fail("Didn't throw IllegalStateException as expected");
+    } catch (IllegalStateException e) {
+      // expected exception
+    }
+  }
+
+  /**
+   * Returns the fingerprint of a ClassWithOptions after parsing the given arguments.
+   *
+   * @param includeDefaults whether options that have their default values affect the fingerprint
+   * @param transactional whether to parse transactionally
+   * @param args the arguments to parse
+   * @return the fingerprint after the parse
+   * @throws ArgException if there is an illegal argument
+   */
+  private static long fingerprint(boolean includeDefaults, boolean transactional, String... args)
+      throws ArgException {
+    Options options = new Options("test", new ClassWithOptions());
+    options.setTransactional(transactional);
+    options.setFingerprintOptions(includeDefaults);
+    options.parse(args);
+    return options.getFingerprint();
+  }
+
+  /**
+   * Test the fingerprint of option values.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testFingerprint() throws ArgException {
+    Options.spaceSeparatedLists = false;
+    assert fingerprint(false, false) == 0;
+    assert fingerprint(true, false) != 0;
+
+    long f = fingerprint(false, false, "--arg1", "x", "-d", "1.50", "--ld", "1", "--ld", "2");
+    // Order and formatting do not matter, nor does the way the fields are written.
+    assert f == fingerprint(false, false, "--ld", "1.0", "-d", "1.5", "--ld", "2", "--arg1=x");
+    assert f == fingerprint(false, true, "--arg1", "x", "-d", "1.5", "--ld", "1", "--ld", "2");
+    // An option set to its default does not matter, unless defaults are included.
+    assert f
+        == fingerprint(
+            false, false, "--arg1", "x", "-d", "1.5", "--ld", "1", "--ld", "2", "--bool=false");
+    assert f != fingerprint(true, false, "--arg1", "x", "-d", "1.5", "--ld", "1", "--ld", "2");
+    // List elements are in order.
+    assert f != fingerprint(false, false, "--arg1", "x", "-d", "1.5", "--ld", "2", "--ld", "1");
+    assert f != fingerprint(false, false, "--arg1", "y", "-d", "1.5", "--ld", "1", "--ld", "2");
+
+    // The incremental fingerprint equals one computed afresh from the same values.
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.parse(new String[] {"--arg1", "x", "-d", "1.5", "--ld", "1", "--ld", "2"});
+    options.setFingerprintOptions(false);
+    assert options.getFingerprint() == f;
+
+    // Only the selected options matter.
+    options.setFingerprintOptions(false, "--temperature");
+    long g = options.getFingerprint();
+    options.parse(new String[] {"--arg1", "z", "--ld", "3"});
+    assert options.getFingerprint() == g;
+    options.parse(new String[] {"-d", "0"});
+    assert options.getFingerprint() == 0;
+    try {
+      options.setFingerprintOptions(false, "nosuch");
+      fail("Didn't throw IllegalArgumentException as expected");
+    } catch (IllegalArgumentException e) {
+      // expected exception
+    }
+  }
+
+  /**
+   * Test that usage messages are cached, and that streaming one writes the same text.
+   *
+   * @throws IOException if an IOException occurs
+   */
+  @Test
+  public void testUsageCache() throws IOException {
+    Options options = new Options("test", new ClassWithOptions());
+    String usage = options.usage();
+    assert usage == options.usage();
+    assert usage.contains("--ld=<double> [+]");
+    StringBuilder sb = new StringBuilder();
+    options.usage(sb, false);
+    assert sb.toString().equals(usage) : sb;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    options.printUsage(new PrintStream(bytes, true, "UTF-8"));
+    String printed = bytes.toString("UTF-8");
+    assert printed.startsWith("Usage: test" + System.lineSeparator() + usage);
+    assert printed.contains("[+] marked option can be specified multiple times");
+
+    Options groups = new Options("test", TestOptionGroups2.class);
+    String publicized = groups.usage();
+    assert !publicized.contains("--mu");
+    String all = groups.usage(true);
+    assert all.contains("--mu") && all.contains("--pi");
+    sb.setLength(0);
+    groups.usage(sb, true, "Internal options");
+    assert sb.toString().equals(groups.usage(true, "Internal options"));
+    assert sb.toString().contains("Internal options:") && !sb.toString().contains("--color");
+    bytes.reset();
+    groups.printUsage(new PrintStream(bytes, true, "UTF-8"));
+    assert !bytes.toString("UTF-8").contains("[+] marked option");
+
+    try {
+      groups.usage("No such group");
+      fail("Didn't throw IllegalArgumentException as expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test that settings written to an Appendable match settings(), and the format of each line.
+   *
+   * @throws ArgException if there is an illegal argument
+   * @throws IOException if an IOException occurs
+   */
+  @Test
+  public void testStreamingSettings() throws ArgException, IOException {
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.parse(new String[] {"--arg1=hello", "--ld", "2.5"});
+    StringBuilder sb = new StringBuilder();
+    options.settings(sb, false);
+    String settings = options.settings();
+    assert sb.toString().equals(settings) : sb;
+
+    String eol = System.lineSeparator();
+    int width = 0;
+    for (Options.OptionInfo oi : options.getOptions()) {
+      width = Math.max(width, oi.synopsis().length());
+    }
+    String[] lines = settings.split(eol, -1);
+    assert lines.length == options.getOptions().size();
+    for (String line : lines) {
+      assert line.indexOf(" = ") == width : line;
+    }
+    assert settings.contains(String.format("%-" + width + "s = %s", "arg1", "hello"));
+    assert settings.contains(String.format("%-" + width + "s = [2.5]", "ld"));
+
+    String description = options.toString();
+    assert description.split(eol, -1).length == lines.length;
+    assert description.startsWith("--");
+    assert description.contains(
+        "--ld field public java.util.List " + ClassWithOptions.class.getName() + ".ld");
+  }
+
+  /**
+   * Test writing option values as JSON and as properties.
+   *
+   * @throws ArgException if there is an illegal argument
+   * @throws IOException if an IOException occurs
+   */
+  @Test
+  public void testWriteJsonAndProperties() throws ArgException, IOException {
+    Options.spaceSeparatedLists = false;
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.parse(
+        new String[] {
+          "--arg1", "say \"hi\"\\\u00e9", "-b", "--ld", "1.5", "--ld", "-2", "-d", "NaN"
+        });
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    options.writeJson(out, true, false);
+    String json = out.toString("UTF-8");
+    assert json.equals(
+            "{\"arg1\":\"say \\\"hi\\\"\\\\\u00e9\",\"temperature\":\"NaN\",\"bool\":true,"
+                + "\"ld\":[1.5,-2.0]}")
+        : json;
+
+    out.reset();
+    options.writeJson(out, false, false);
+    json = out.toString("UTF-8");
+    assert json.startsWith("{\"lp\":[],\"arg1\":") : json;
+    assert json.contains("\"arg2\":null,") && json.endsWith("\"ls\":[]}") : json;
+
+    t.ls.add("a=b c");
+    t.temperature = 2.5;
+    out.reset();
+    options.writeProperties(out, true, false);
+    Properties props = new Properties();
+    props.load(new ByteArrayInputStream(out.toByteArray()));
+    assert props.size() == 6 : props;
+    assert props.getProperty("arg1").equals("say \"hi\"\\\u00e9");
+    assert props.getProperty("temperature").equals("2.5");
+    assert props.getProperty("bool").equals("true");
+    assert props.getProperty("ld.0").equals("1.5") && props.getProperty("ld.1").equals("-2.0");
+    assert props.getProperty("ls.0").equals("a=b c");
+    for (byte b : out.toByteArray()) {
+      assert b > 0 : "not ASCII";
+    }
+
+    Options groups = new Options("test", TestOptionGroups2.class);
+    out.reset();
+    groups.writeJson(out, false, false);
+    assert !out.toString("UTF-8").contains("mu") : out;
+    out.reset();
+    groups.writeJson(out, false, true);
+    assert out.toString("UTF-8").contains("\"mu\":4902.7,\"pi\":3.14") : out;
+  }
+
+  /**
+   * Test tracking of explicitly-set options, and diffs between snapshots and against the defaults.
+   *
+   * @throws ArgException if there is an illegal argument
+   */
+  @Test
+  public void testExplicitlySetAndDiff() throws ArgException {
+    Options.spaceSeparatedLists = false;
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.setTransactional(true);
+    assert !options.isExplicitlySet("arg1");
+    assert options.getSnapshot().diffFromDefaults().getChangedOptions().isEmpty();
+
+    OptionsSnapshot before = options.getSnapshot();
+    options.parse(new String[] {"--arg1=/tmp/foobar", "-b"});
+    assert options.isExplicitlySet("--arg1") && options.isExplicitlySet("bool");
+    assert !options.isExplicitlySet("ld");
+    BitSet explicit = options.getExplicitlySet();
+    assert explicit.cardinality() == 2;
+    assert explicit.get(before.indexOf("bool"));
+    OptionsChange fromDefaults = options.getSnapshot().diffFromDefaults();
+    assert fromDefaults.getChangedOptions().equals(Arrays.asList("bool")) : fromDefaults;
+    assert fromDefaults.getOldValue("bool").equals(false);
+    assert fromDefaults.getNewValue("bool").equals(true);
+
+    try {
+      options.parse(new String[] {"-d", "3", "-i", "x"});
+      fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      // expected
+    }
+    assert !options.isExplicitlySet("temperature");
+
+    OptionsSnapshot middle = options.getSnapshot();
+    options.parse(new String[] {"--ld", "1", "-b=false", "-d", "2"});
+    assert options.isExplicitlySet("ld") && options.isExplicitlySet("temperature");
+    OptionsSnapshot after = options.getSnapshot();
+    OptionsChange change = middle.diff(after);
+    assert change.getChangedOptions().equals(Arrays.asList("temperature", "bool", "ld")) : change;
+    assert change.getNewValue("ld").equals(Arrays.asList(1.0));
+    assert after.diff(middle).getChangedOptions().equals(change.getChangedOptions());
+    assert before.diff(after).getChangedOptions().equals(Arrays.asList("temperature", "ld"));
+    assert after.diff(after).getChangedOptions().isEmpty();
+    assert options.getDefaults() == before;
+
+    try {
+      after.diff(new Options("test", new ClassWithPrimitives()).getSnapshot());
+      fail("Didn't throw IllegalArgumentException as expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test recording where option values came from, and explaining them.
+   *
+   * @throws ArgException if there is an illegal argument
+   * @throws IOException if a temporary file cannot be written
+   */
+  @Test
+  public void testProvenance() throws ArgException, IOException {
+    Options.spaceSeparatedLists = false;
+    Path config = Files.createTempFile("provenance", ".conf");
+    Files.write(
+        config, Arrays.asList("# settings", "ld = 2.5", "temperature = 4"), StandardCharsets.UTF_8);
+
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.setRecordProvenance(true);
+    options.setTransactional(true);
+    options.setConfigFiles(config.toFile());
+    options.setSystemPropertyPrefix("testprovenance.");
+    System.setProperty("testprovenance.integer.reference", "7");
+    try {
+      options.parse(new String[] {"-b", "--arg1", "x", "-d", "3"});
+    } finally {
+      System.clearProperty("testprovenance.integer.reference");
+    }
+    assert options.explain("arg1").equals("arg1 = x (command-line argument 1)")
+        : options.explain("arg1");
+    assert options.explain("temperature").equals("temperature = 3.0 (command-line argument 3)");
+    String configName = config.toFile().getPath();
+    assert options.explain("ld").equals("ld = [2.5] (file " + configName + ", line 2)")
+        : options.explain("ld");
+    assert options.explain("integer_reference")
+            .equals("integer-reference = 7 (system property testprovenance.integer.reference)")
+        : options.explain("integer_reference");
+    assert options.explain("--arg2").equals("arg2 = null (default)");
+
+    try {
+      options.parse(new String[] {"--arg2=y", "-i", "bad"});
+      fail("Didn't throw ArgException as expected");
+    } catch (ArgException e) {
+      // expected
+    }
+    assert options.explain("arg2").equals("arg2 = null (default)");
+
+    t.input_file = new File("in");
+    assert options.explain("input_file").contains("not set by parsing");
+    String all = options.explain();
+    assert all.split(System.lineSeparator()).length == options.getOptions().size();
+    assert all.contains("bool = true (command-line argument 0)") : all;
+    Files.delete(config);
+
+    Options unrecorded = new Options("test", new ClassWithOptions());
+    unrecorded.parse(new String[] {"-b"});
+    assert unrecorded.explain("bool").contains("provenance was not recorded");
+    assert unrecorded.explain("arg1").equals("arg1 = /tmp/foobar (default)");
+  }
+
+  /**
+   * Test that provenance refers to the command line as given and to the lines of argument files.
+   *
+   * @throws ArgException if there is an illegal argument
+   * @throws IOException if a temporary file cannot be written
+   */
+  @Test
+  public void testProvenanceArgFiles() throws ArgException, IOException {
+    Path dir = Files.createTempDirectory("provenance");
+    Path outer = dir.resolve("outer.args");
+    Path inner = dir.resolve("inner.args");
+    Files.write(
+        outer, Arrays.asList("--arg1 x", "-d", "  4", "@inner.args"), StandardCharsets.UTF_8);
+    Files.write(inner, Arrays.asList("", "--arg2 y"), StandardCharsets.UTF_8);
+
+    ClassWithOptions t = new ClassWithOptions();
+    Options options = new Options("test", t);
+    options.setExpandArgFiles(true);
+    options.setRecordProvenance(true);
+    options.parse(new String[] {"-i", "5", "@" + outer, "-b"});
+    String outerName = outer.toRealPath().toString();
+    String innerName = inner.toRealPath().toString();
+    assert options.explain("integer_reference").endsWith("(command-line argument 0)");
+    assert options.explain("arg1").equals("arg1 = x (argument file " + outerName + ", line 1)")
+        : options.explain("arg1");
+    assert options.explain("temperature").endsWith("(argument file " + outerName + ", line 2)");
+    assert options.explain("arg2").equals("arg2 = y (argument file " + innerName + ", line 2)")
+        : options.explain("arg2");
+    assert options.explain("bool").equals("bool = true (command-line argument 3)")
+        : options.explain("bool");
+
+    Files.delete(inner);
+    Files.delete(outer);
+    Files.delete(dir);
+  }
+
   /** Test class for testing option groups. */
   public static class TestOptionGroups1 {
     @Option("-m Set the mass")
@@ -270,6 +1771,9 @@ public class TestOptions {
     } catch (Error e) {
       assert e.getMessage() != null
           && e.getMessage().indexOf("missing @OptionGroup annotation in field") > -1;
+      // The field is printed as Field.toString prints it.
+      String field = "public static int " + TestOptionGroups1.class.getName() + ".mass";
+      assert e.getMessage().contains("in field " + field) : e.getMessage();
     }
 
     Options options = new Options("test", TestOptionGroups2.class);
@@ -0,0 +1,88 @@
+package org.plumelib.options;
+
+/*>>>
+import org.checkerframework.checker.nullness.qual.*;
+*/
+
+/**
+ * A binder whose name is that of the binder for {@link TestOptions.ClassWithForeignBinder}, but
+ * which was generated for another class, as a binder for a top-level class named {@code
+ * TestOptions_ClassWithForeignBinder} would be. {@link Options#findBinder} must not use it.
+ */
+public final class TestOptions_ClassWithForeignBinder_OptionsBinder extends UnusableBinder {
+  @Override
+  public Class<?> targetClass() {
+    return TestOptions.ClassWithOptions.class;
+  }
+
+  @Override
+  public Descriptor[] descriptors() {
+    return new Descriptor[0];
+  }
+}
+
+/**
+ * A binder for {@link TestOptions.ClassWithStaleBinder} whose descriptors no longer match the
+ * class's fields, as if the class had been recompiled without the annotation processor. {@link
+ * Options#findBinder} must not use it.
+ */
+final class TestOptions_ClassWithStaleBinder_OptionsBinder extends UnusableBinder {
+  @Override
+  public Class<?> targetClass() {
+    return TestOptions.ClassWithStaleBinder.class;
+  }
+
+  @Override
+  public Descriptor[] descriptors() {
+    return new Descriptor[] {
+      new Descriptor(
+          "count",
+          false,
+          String.class,
+          String.class,
+          false,
+          "a count",
+          null,
+          null,
+          "a count",
+          new String[0],
+          false,
+          false,
+          null,
+          false)
+    };
+  }
+}
+
+/** A binder that cannot access any field; {@link Options} must reject it before using it. */
+abstract class UnusableBinder implements OptionsBinder {
+  @Override
+  public /*@Nullable*/ Object get(int index, /*@Nullable*/ Object target) {
+    throw new AssertionError("binder should not be used");
+  }
+
+  @Override
+  public void set(int index, /*@Nullable*/ Object target, /*@Nullable*/ Object value) {
+    throw new AssertionError("binder should not be used");
+  }
+
+  @Override
+  public void setBoolean(int index, /*@Nullable*/ Object target, boolean value) {
+    throw new AssertionError("binder should not be used");
+  }
+
+  @Override
+  public void setLong(int index, /*@Nullable*/ Object target, long value) {
+    throw new AssertionError("binder should not be used");
+  }
+
+  @Override
+  public void setDouble(int index, /*@Nullable*/ Object target, double value) {
+    throw new AssertionError("binder should not be used");
+  }
+
+  @Override
+  public Object convert(int index, String value) {
+    throw new AssertionError("binder should not be used");
+  }
+}